@@ -23,3 +23,8 @@
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
 #-renamesourcefileattribute SourceFile
+
+# Legacy DeviceMessage JSON is decoded by field name through Gson.
+-keepclassmembers class me.tatocaster.nearbyconnection.wire.DeviceMessageCodec$LegacyDeviceMessage {
+    <fields>;
+}
@@ -1,30 +1,46 @@
 package me.tatocaster.nearbyconnection;
 
 import com.google.android.gms.nearby.messages.Message;
-import com.google.gson.Gson;
 
-import java.nio.charset.Charset;
+import me.tatocaster.nearbyconnection.messages.DeviceInfo;
+import me.tatocaster.nearbyconnection.wire.DeviceMessageCodec;
+import me.tatocaster.nearbyconnection.wire.Utf8;
 
 /**
  * Created by tatocaster on 2/24/17.
  */
 
-public class DeviceMessage {
-    private static final Gson gson = new Gson();
+public class DeviceMessage implements DeviceInfo {
+    private static final DeviceMessageCodec.Factory<DeviceMessage> FACTORY = DeviceMessage::new;
 
     private final String mUUID;
     private final String mMessageBody;
 
 
     public static Message newNearbyMessage(String instanceId, String messageBody) {
-        DeviceMessage deviceMessage = new DeviceMessage(instanceId, messageBody);
-        return new Message(gson.toJson(deviceMessage).getBytes(Charset.forName("UTF-8")));
+        return new Message(newContent(instanceId, messageBody));
+    }
+
+    /**
+     * The payload of {@link #newNearbyMessage}, for publishing through a transport. Still the
+     * legacy JSON: older builds decode whatever they find with Gson and no error handling, so a
+     * binary payload would crash them.
+     */
+    public static byte[] newContent(String instanceId, String messageBody) {
+        return DeviceMessageCodec.encodeLegacy(instanceId, messageBody).getBytes(Utf8.UTF_8);
     }
 
 
+    /**
+     * Decodes both the binary payload and the JSON published by older builds, see
+     * {@link DeviceMessageCodec}.
+     */
     public static DeviceMessage fromNearbyMessage(Message message) {
-        String nearbyMessageString = new String(message.getContent()).trim();
-        return gson.fromJson((new String(nearbyMessageString.getBytes(Charset.forName("UTF-8")))), DeviceMessage.class);
+        return fromContent(message.getContent());
+    }
+
+    static DeviceMessage fromContent(byte[] content) {
+        return DeviceMessageCodec.decode(content, FACTORY);
     }
 
     private DeviceMessage(String uuid, String messageBody) {
@@ -36,4 +52,47 @@ public class DeviceMessage {
     protected String getMessageBody() {
         return mMessageBody;
     }
+
+    /**
+     * The publisher's UUID, which is what tells two devices of the same model apart. Malformed
+     * legacy JSON may lack it, such a message falls back to its body.
+     */
+    @Override
+    public String getDeviceId() {
+        return mUUID != null ? mUUID : mMessageBody;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return mMessageBody;
+    }
+
+    /**
+     * Equal to any message from the same publisher with the same body, so a lost message finds
+     * the one that was found even if it was decoded again in between.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DeviceMessage)) {
+            return false;
+        }
+        DeviceMessage other = (DeviceMessage) o;
+        return getDeviceId().equals(other.getDeviceId()) && mMessageBody.equals(other.mMessageBody);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * getDeviceId().hashCode() + mMessageBody.hashCode();
+    }
+
+    /**
+     * Shown as-is by the nearby devices list.
+     */
+    @Override
+    public String toString() {
+        return mMessageBody;
+    }
 }
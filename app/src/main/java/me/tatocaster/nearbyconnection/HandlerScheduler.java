@@ -0,0 +1,34 @@
+package me.tatocaster.nearbyconnection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * {@link Scheduler} that posts to a {@link Handler}, timed by {@link SystemClock#uptimeMillis()}.
+ */
+class HandlerScheduler implements Scheduler {
+
+    private final Handler mHandler;
+
+    HandlerScheduler(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
@@ -1,101 +1,70 @@
 package me.tatocaster.nearbyconnection;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.support.annotation.IntDef;
-import android.support.annotation.NonNull;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.View;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.connection.AppIdentifier;
-import com.google.android.gms.nearby.connection.AppMetadata;
-import com.google.android.gms.nearby.connection.Connections;
-import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
-
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import butterknife.OnCheckedChanged;
 import butterknife.OnClick;
+import butterknife.OnLongClick;
+import me.tatocaster.nearbyconnection.connection.LinkQuality;
+import me.tatocaster.nearbyconnection.discovery.DiscoveryEventBatcher;
+import me.tatocaster.nearbyconnection.log.DebugLog;
+import me.tatocaster.nearbyconnection.metrics.MetricsRegistry;
 
 /**
  * Main class for the Nearby Connections demo application.  This implements both ends of a two-
  * sided connection where one device advertises and the other discovers. Once the devices are
  * connected, they can send messages to each other.
+ * <p>
+ * The connections themselves live in the process-wide {@link NearbySession}, so they survive
+ * rotation and moving to another screen; this activity binds to the {@link NearbyService} for
+ * it and is its UI.
  */
-public class MainActivity extends Activity implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener,
-        Connections.MessageListener {
+public class MainActivity extends Activity {
 
     private static final String TAG = "MainActivity";
 
-    Connections.ConnectionRequestListener mConnectionRequestListener = new Connections.ConnectionRequestListener() {
-        @Override
-        public void onConnectionRequest(String s, String s1, byte[] bytes) {
-            MainActivity.this.onConnectionRequest(s, s1, bytes)
-            ;
-        }
-    };
-
-    Connections.EndpointDiscoveryListener mEndpointDiscoveryListener = new Connections.EndpointDiscoveryListener() {
-        @Override
-        public void onEndpointFound(String s, String s1, String s2) {
-            MainActivity.this.onEndpointFound(s, s1, s2);
-        }
-
-        @Override
-        public void onEndpointLost(String s) {
-            MainActivity.this.onEndpointLost(s);
-        }
-    };
+    private static final int REQUEST_PICK_FILE = 1;
 
     /**
-     * Timeouts (in millis) for startAdvertising and startDiscovery.  At the end of these time
-     * intervals the app will silently stop advertising or discovering.
-     * <p>
-     * To set advertising or discovery to run indefinitely, use 0L where timeouts are required.
+     * Lines rendered if the debug panel has no line limit.
      */
-    private static final long TIMEOUT_ADVERTISE = 1000L * 30L;
-    private static final long TIMEOUT_DISCOVER = 1000L * 30L;
+    private static final int DEBUG_LOG_DEFAULT_LINES = 50;
 
     /**
-     * Possible states for this application:
-     * IDLE - GoogleApiClient not yet connected, can't do anything.
-     * READY - GoogleApiClient connected, ready to use Nearby Connections API.
-     * ADVERTISING - advertising for peers to connect.
-     * DISCOVERING - looking for a peer that is advertising.
-     * CONNECTED - found a peer.
+     * How often the metrics overlay is refreshed while shown.
      */
-    @Retention(RetentionPolicy.CLASS)
-    @IntDef({STATE_IDLE, STATE_READY, STATE_ADVERTISING, STATE_DISCOVERING, STATE_CONNECTED})
-    public @interface NearbyConnectionState {
-    }
-
-    private static final int STATE_IDLE = 1023;
-    private static final int STATE_READY = 1024;
-    private static final int STATE_ADVERTISING = 1025;
-    private static final int STATE_DISCOVERING = 1026;
-    private static final int STATE_CONNECTED = 1027;
+    private static final long METRICS_OVERLAY_REFRESH_MILLIS = 1000;
 
     /**
-     * GoogleApiClient for connecting to the Nearby Connections API
+     * The service and the shared Nearby session, held while this activity is started
      **/
-    private GoogleApiClient mGoogleApiClient;
+    private NearbyService.LocalBinder mService;
+    private NearbySession mSession;
 
     /**
      * Views and Dialogs
@@ -104,10 +73,28 @@ public class MainActivity extends Activity implements
     private MyListDialog mMyListDialog;
 
     /**
-     * The current state of the application
+     * The session's debug log, rendered at most once per frame
+     **/
+    private DebugLog mDebugLog;
+    private final AtomicBoolean mDebugLogRenderPending = new AtomicBoolean();
+    private final Runnable mRenderDebugLog = this::renderDebugLog;
+
+    /**
+     * The process metrics, shown over the screen while the overlay is on
      **/
-    @NearbyConnectionState
-    private int mState = STATE_IDLE;
+    private MetricsRegistry mMetrics;
+    private final Runnable mRenderMetrics = this::renderMetrics;
+
+    /**
+     * Groups discovery callbacks into one list update per frame
+     **/
+    private DiscoveryEventBatcher mDiscoveryEventBatcher;
+
+    /**
+     * The state of the session as last shown
+     **/
+    @NearbySession.NearbyConnectionState
+    private int mState = NearbySession.STATE_IDLE;
 
     @BindView(R.id.edittext_message)
     public EditText mMessageText;
@@ -115,10 +102,11 @@ public class MainActivity extends Activity implements
     @BindView(R.id.debug_text)
     TextView mDebugInfo;
 
-    /**
-     * The endpoint ID of the connected peer, used for messaging
-     **/
-    private String mOtherEndpointId;
+    @BindView(R.id.checkbox_background)
+    CheckBox mBackgroundCheckBox;
+
+    @BindView(R.id.metrics_overlay)
+    TextView mMetricsOverlay;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -126,222 +114,201 @@ public class MainActivity extends Activity implements
         setContentView(R.layout.activity_main);
         ButterKnife.bind(this);
 
-
         // Debug text view
         mDebugInfo.setMovementMethod(new ScrollingMovementMethod());
+        mMetrics = NearbyApplication.get(this).getMetrics();
 
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(Nearby.CONNECTIONS_API)
-                .build();
+        mDiscoveryEventBatcher = new DiscoveryEventBatcher(new HandlerScheduler(getMainLooper()),
+                this::onDiscoveryBatch);
     }
 
     @Override
     public void onStart() {
         super.onStart();
         Log.d(TAG, "onStart");
-        mGoogleApiClient.connect();
+        bindService(new Intent(this, NearbyService.class), mServiceConnection, BIND_AUTO_CREATE);
+        if (mMetricsOverlay.getVisibility() == View.VISIBLE) {
+            renderMetrics();
+        }
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        Log.d(TAG, "onStop");
+        Log.d(TAG, "onStop: " + mDiscoveryEventBatcher + " " + mSession);
+        mDiscoveryEventBatcher.cancel();
+        mMetricsOverlay.removeCallbacks(mRenderMetrics);
+        if (mConnectionRequestDialog != null) {
+            mConnectionRequestDialog.dismiss();
+            mConnectionRequestDialog = null;
+        }
+        if (mMyListDialog != null) {
+            mMyListDialog.dismiss();
+            mMyListDialog = null;
+        }
 
-        // Disconnect the Google API client and stop any ongoing discovery or advertising. When the
-        // GoogleAPIClient is disconnected, any connected peers will get an onDisconnected callback.
-        if (mGoogleApiClient != null) {
-            mGoogleApiClient.disconnect();
+        unbindService(mServiceConnection);
+        if (mService != null) {
+            // Undecided requests are put to the user again when the activity is back, and found
+            // endpoints listed again. Peers stay connected while another screen or background
+            // mode holds the session, and for a few seconds after the last one let go.
+            mSession.detach(mUi);
+            mSession.release();
+            mService = null;
         }
     }
 
-    public void openNearbyMessages(View v) {
-        startActivity(new Intent(this, NearbyMessagesActivity.class));
-    }
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = (NearbyService.LocalBinder) binder;
+            mSession = mService.getSession();
+            mDebugLog = mSession.getDebugLog();
+            mSession.acquire();
+            mSession.attach(mUi);
+            mBackgroundCheckBox.setChecked(mService.isInBackgroundMode());
+            renderDebugLog();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // a local service only goes away with the process
+        }
+    };
 
     /**
-     * Check if the device is connected (or connecting) to a WiFi network.
-     *
-     * @return true if connected or connecting, false otherwise.
+     * Background mode keeps peers connected with the screen off, see {@link NearbyService}.
      */
-    private boolean isConnectedToNetwork() {
-        ConnectivityManager connManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        NetworkInfo info = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-
-        return (info != null && info.isConnectedOrConnecting());
+    @OnCheckedChanged(R.id.checkbox_background)
+    public void onBackgroundModeChange(CompoundButton v, boolean isChecked) {
+        if (mService == null || isChecked == mService.isInBackgroundMode()) {
+            return;
+        }
+        if (isChecked) {
+            NearbyService.startBackground(this);
+        } else {
+            NearbyService.stopBackground(this);
+        }
     }
 
     /**
-     * Begin advertising for Nearby Connections, if possible.
+     * Show or hide the metrics overlay, with the quality of each link; it refreshes itself while
+     * shown.
      */
-    private void startAdvertising() {
-        debugLog("startAdvertising");
-        if (!isConnectedToNetwork()) {
-            debugLog("startAdvertising: not connected to WiFi network.");
-            return;
+    @OnClick({R.id.debug_label, R.id.metrics_overlay})
+    public void toggleMetricsOverlay() {
+        if (mMetricsOverlay.getVisibility() == View.VISIBLE) {
+            mMetricsOverlay.removeCallbacks(mRenderMetrics);
+            mMetricsOverlay.setVisibility(View.GONE);
+        } else {
+            mMetricsOverlay.setVisibility(View.VISIBLE);
+            renderMetrics();
         }
+    }
 
-        // Advertising with an AppIdentifer lets other devices on the network discover
-        // this application and prompt the user to install the application.
-        List<AppIdentifier> appIdentifierList = new ArrayList<>();
-        appIdentifierList.add(new AppIdentifier(getPackageName()));
-        AppMetadata appMetadata = new AppMetadata(appIdentifierList);
-
-        // Advertise for Nearby Connections. This will broadcast the service id defined in
-        // AndroidManifest.xml. By passing 'null' for the name, the Nearby Connections API
-        // will construct a default name based on device model such as 'LGE Nexus 5'.
-        String name = null;
-        Nearby.Connections.startAdvertising(mGoogleApiClient, name, appMetadata, TIMEOUT_ADVERTISE, mConnectionRequestListener)
-                .setResultCallback(result -> {
-                    Log.d(TAG, "startAdvertising:onResult:" + result);
-                    if (result.getStatus().isSuccess()) {
-                        debugLog("startAdvertising:onResult: SUCCESS");
-
-                        updateViewVisibility(STATE_ADVERTISING);
-                    } else {
-                        debugLog("startAdvertising:onResult: FAILURE ");
-
-                        // If the user hits 'Advertise' multiple times in the timeout window,
-                        // the error will be STATUS_ALREADY_ADVERTISING
-                        int statusCode = result.getStatus().getStatusCode();
-                        if (statusCode == ConnectionsStatusCodes.STATUS_ALREADY_ADVERTISING) {
-                            debugLog("STATUS_ALREADY_ADVERTISING");
-                        } else {
-                            updateViewVisibility(STATE_READY);
-                        }
-                    }
-                });
+    public void openNearbyMessages(View v) {
+        startActivity(new Intent(this, NearbyMessagesActivity.class));
     }
 
     /**
-     * Begin discovering devices advertising Nearby Connections, if possible.
+     * Let the user pick a file to send to every connected peer. The session is held while the
+     * picker is shown, so the peers are still there when it comes back.
      */
-    private void startDiscovery() {
-        debugLog("startDiscovery");
-        if (!isConnectedToNetwork()) {
-            debugLog("startDiscovery: not connected to WiFi network.");
+    private void pickFile() {
+        NearbyApplication.get(this).getSession().acquire();
+        startActivityForResult(new Intent(Intent.ACTION_GET_CONTENT).setType("*/*")
+                .addCategory(Intent.CATEGORY_OPENABLE), REQUEST_PICK_FILE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_PICK_FILE) {
             return;
         }
-
-        // Discover nearby apps that are advertising with the required service ID.
-        String serviceId = getString(R.string.service_id);
-        Nearby.Connections.startDiscovery(mGoogleApiClient, serviceId, TIMEOUT_DISCOVER, mEndpointDiscoveryListener)
-                .setResultCallback(status -> {
-                    if (status.isSuccess()) {
-                        debugLog("startDiscovery:onResult: SUCCESS");
-
-                        updateViewVisibility(STATE_DISCOVERING);
-                    } else {
-                        debugLog("startDiscovery:onResult: FAILURE");
-
-                        // If the user hits 'Discover' multiple times in the timeout window,
-                        // the error will be STATUS_ALREADY_DISCOVERING
-                        int statusCode = status.getStatusCode();
-                        if (statusCode == ConnectionsStatusCodes.STATUS_ALREADY_DISCOVERING) {
-                            debugLog("STATUS_ALREADY_DISCOVERING");
-                        } else {
-                            updateViewVisibility(STATE_READY);
-                        }
-                    }
-                });
+        // not bound again yet, the session is the process-wide one
+        NearbySession session = NearbyApplication.get(this).getSession();
+        if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+            session.sendFile(data.getData());
+        }
+        session.release();
     }
 
     /**
-     * Send a reliable message to the connected peer. Takes the contents of the EditText and
-     * sends the message as a byte[].
+     * Send a reliable message to every connected peer. Takes the contents of the EditText.
      */
     private void sendMessage() {
-        // Sends a reliable message, which is guaranteed to be delivered eventually and to respect
-        // message ordering from sender to receiver. Nearby.Connections.sendUnreliableMessage
-        // should be used for high-frequency messages where guaranteed delivery is not required, such
-        // as showing one player's cursor location to another. Unreliable messages are often
-        // delivered faster than reliable messages.
-        String msg = mMessageText.getText().toString();
-        Nearby.Connections.sendReliableMessage(mGoogleApiClient, mOtherEndpointId, msg.getBytes());
-
+        mSession.sendMessage(mMessageText.getText().toString());
         mMessageText.setText(null);
     }
 
-    /**
-     * Send a connection request to a given endpoint.
-     *
-     * @param endpointId   the endpointId to which you want to connect.
-     * @param endpointName the name of the endpoint to which you want to connect. Not required to
-     *                     make the connection, but used to display after success or failure.
-     */
-    private void connectTo(String endpointId, final String endpointName) {
-        debugLog("connectTo:" + endpointId + ":" + endpointName);
-
-        // Send a connection request to a remote endpoint. By passing 'null' for the name,
-        // the Nearby Connections API will construct a default name based on device model
-        // such as 'LGE Nexus 5'.
-        String myName = null;
-        byte[] myPayload = null;
-        Nearby.Connections.sendConnectionRequest(mGoogleApiClient, myName, endpointId, myPayload,
-                (endpointId1, status, bytes) -> {
-                    Log.d(TAG, "onConnectionResponse:" + endpointId1 + ":" + status);
-                    if (status.isSuccess()) {
-                        debugLog("onConnectionResponse: " + endpointName + " SUCCESS");
-                        Toast.makeText(MainActivity.this, "Connected to " + endpointName, Toast.LENGTH_SHORT).show();
-
-                        mOtherEndpointId = endpointId1;
-                        updateViewVisibility(STATE_CONNECTED);
-                    } else {
-                        debugLog("onConnectionResponse: " + endpointName + " FAILURE");
-                    }
-                }, this);
-    }
+    private final NearbySession.Ui mUi = new NearbySession.Ui() {
+        @Override
+        public void onStateChanged(int state) {
+            updateViewVisibility(state);
+        }
+
+        @Override
+        public void onEndpointFound(String endpointId, String endpointName) {
+            // The endpoint is listed with the next discovery batch, see onDiscoveryBatch.
+            mDiscoveryEventBatcher.onEndpointFound(endpointId, endpointName);
+        }
 
+        @Override
+        public void onEndpointLost(String endpointId) {
+            // It is taken off the dialog with the next discovery batch.
+            mDiscoveryEventBatcher.onEndpointLost(endpointId);
+        }
 
-    public void onConnectionRequest(final String endpointId, String endpointName, byte[] payload) {
-        debugLog("onConnectionRequest:" + endpointId + ":" + endpointName);
+        @Override
+        public void onConnectionRequest(String endpointId, String endpointName) {
+            showConnectionRequest(endpointId, endpointName);
+        }
+
+        @Override
+        public void onConnectionResult(String endpointName, boolean success) {
+            if (success) {
+                Toast.makeText(MainActivity.this, "Connected to " + endpointName, Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onDebugLogChanged() {
+            if (mDebugLogRenderPending.compareAndSet(false, true)) {
+                mDebugInfo.postOnAnimation(mRenderDebugLog);
+            }
+        }
+    };
 
-        // This device is advertising and has received a connection request. Show a dialog asking
-        // the user if they would like to connect and accept or reject the request accordingly.
+    /**
+     * This device is advertising and has received a connection request that policy left to the
+     * user. Show a dialog asking the user if they would like to connect and accept or reject the
+     * request accordingly.
+     */
+    private void showConnectionRequest(final String endpointId, final String endpointName) {
         mConnectionRequestDialog = new AlertDialog.Builder(this)
                 .setTitle("Connection Request")
                 .setMessage("Do you want to connect to " + endpointName + "?")
                 .setCancelable(false)
-                .setPositiveButton("Connect", (dialog, which) -> {
-                    byte[] payload1 = null;
-                    Nearby.Connections.acceptConnectionRequest(mGoogleApiClient, endpointId, payload1, MainActivity.this)
-                            .setResultCallback(status -> {
-                                if (status.isSuccess()) {
-                                    debugLog("acceptConnectionRequest: SUCCESS");
-
-                                    mOtherEndpointId = endpointId;
-                                    updateViewVisibility(STATE_CONNECTED);
-                                } else {
-                                    debugLog("acceptConnectionRequest: FAILURE");
-                                }
-                            });
-                })
-                .setNegativeButton("No", (dialog, which) -> Nearby.Connections.rejectConnectionRequest(mGoogleApiClient, endpointId)).create();
+                .setPositiveButton("Connect", (dialog, which) ->
+                        mSession.acceptConnectionRequest(endpointId, endpointName))
+                .setNegativeButton("No", (dialog, which) ->
+                        mSession.rejectConnectionRequest(endpointId))
+                .create();
 
         mConnectionRequestDialog.show();
     }
 
-    @Override
-    public void onMessageReceived(String endpointId, byte[] payload, boolean isReliable) {
-        // A message has been received from a remote endpoint.
-        debugLog("onMessageReceived:" + endpointId + ":" + new String(payload));
-    }
-
-    @Override
-    public void onDisconnected(String endpointId) {
-        debugLog("onDisconnected:" + endpointId);
-
-        updateViewVisibility(STATE_READY);
-    }
-
-
-    public void onEndpointFound(final String endpointId, String serviceId, final String endpointName) {
-        Log.d(TAG, "onEndpointFound:" + endpointId + ":" + endpointName);
-
-        // This device is discovering endpoints and has located an advertiser. Display a dialog to
-        // the user asking if they want to connect, and send a connection request if they do.
+    /**
+     * Apply one batch of discovery events to the endpoint dialog as a single list update.
+     * Display a dialog to the user asking if they want to connect, and send a connection request
+     * if they do.
+     */
+    private void onDiscoveryBatch(List<DiscoveryEventBatcher.Found> found, List<String> lost) {
         if (mMyListDialog == null) {
+            if (found.isEmpty()) {
+                return;
+            }
             // Configure the AlertDialog that the MyListDialog wraps
             AlertDialog.Builder builder = new AlertDialog.Builder(this)
                     .setTitle("Endpoint(s) Found")
@@ -353,88 +320,69 @@ public class MainActivity extends Activity implements
                 String selectedEndpointName = mMyListDialog.getItemKey(which);
                 String selectedEndpointId = mMyListDialog.getItemValue(which);
 
-                MainActivity.this.connectTo(selectedEndpointId, selectedEndpointName);
+                mSession.connectTo(selectedEndpointId, selectedEndpointName);
                 mMyListDialog.dismiss();
             });
         }
 
-        mMyListDialog.addItem(endpointName, endpointId);
-        mMyListDialog.show();
-    }
-
-
-    public void onEndpointLost(String endpointId) {
-        debugLog("onEndpointLost:" + endpointId);
-
-        // An endpoint that was previously available for connection is no longer. It may have
-        // stopped advertising, gone out of range, or lost connectivity. Dismiss any dialog that
-        // was offering a connection.
-        if (mMyListDialog != null) {
+        mMyListDialog.beginUpdate();
+        for (String endpointId : lost) {
             mMyListDialog.removeItemByValue(endpointId);
         }
-    }
-
-    @Override
-    public void onConnected(Bundle bundle) {
-        debugLog("onConnected");
-        updateViewVisibility(STATE_READY);
-    }
-
-    @Override
-    public void onConnectionSuspended(int i) {
-        debugLog("onConnectionSuspended: " + i);
-        updateViewVisibility(STATE_IDLE);
-
-        // Try to re-connect
-        mGoogleApiClient.reconnect();
-    }
+        for (DiscoveryEventBatcher.Found endpoint : found) {
+            mMyListDialog.addItem(endpoint.getName(), endpoint.getId());
+        }
+        mMyListDialog.endUpdate();
 
-    @Override
-    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
-        debugLog("onConnectionFailed: " + connectionResult);
-        updateViewVisibility(STATE_IDLE);
+        if (!found.isEmpty() && !mMyListDialog.isShowing()) {
+            mMyListDialog.show();
+        }
     }
 
-    @OnClick({R.id.button_advertise, R.id.button_discover, R.id.button_send})
+    @OnClick({R.id.button_advertise, R.id.button_discover, R.id.button_send, R.id.button_send_file})
     public void onButtonClick(View v) {
         switch (v.getId()) {
             case R.id.button_advertise:
-                startAdvertising();
+                mSession.startAdvertising();
                 break;
             case R.id.button_discover:
-                startDiscovery();
+                mSession.startDiscovery();
                 break;
             case R.id.button_send:
                 sendMessage();
                 break;
+            case R.id.button_send_file:
+                pickFile();
+                break;
         }
     }
 
     /**
-     * Change the application state and update the visibility on on-screen views '
-     * based on the new state of the application.
+     * Update the visibility on on-screen views based on the state of the session.
      *
-     * @param newState the state to move to (should be NearbyConnectionState)
+     * @param newState the state to show (should be NearbyConnectionState)
      */
-    private void updateViewVisibility(@NearbyConnectionState int newState) {
+    private void updateViewVisibility(@NearbySession.NearbyConnectionState int newState) {
         mState = newState;
         switch (mState) {
-            case STATE_IDLE:
+            case NearbySession.STATE_IDLE:
                 // The GoogleAPIClient is not connected, we can't yet start advertising or
                 // discovery so hide all buttons
                 ButterKnife.findById(this, R.id.layout_nearby_buttons).setVisibility(View.GONE);
                 ButterKnife.findById(this, R.id.layout_message).setVisibility(View.GONE);
                 break;
-            case STATE_READY:
-                // The GoogleAPIClient is connected, we can begin advertising or discovery.
+            case NearbySession.STATE_READY:
+                // The GoogleAPIClient is connected, we can begin advertising or discovery. Messages
+                // can still be written if they are kept for peers we have been connected to.
                 ButterKnife.findById(this, R.id.layout_nearby_buttons).setVisibility(View.VISIBLE);
-                ButterKnife.findById(this, R.id.layout_message).setVisibility(View.GONE);
+                ButterKnife.findById(this, R.id.layout_message).setVisibility(
+                        mSession.canQueueMessages() ? View.VISIBLE : View.GONE);
                 break;
-            case STATE_ADVERTISING:
+            case NearbySession.STATE_ADVERTISING:
                 break;
-            case STATE_DISCOVERING:
+            case NearbySession.STATE_DISCOVERING:
                 break;
-            case STATE_CONNECTED:
+            case NearbySession.STATE_CONNECTED:
                 // We are connected to another device via the Connections API, so we can
                 // show the message UI.
                 ButterKnife.findById(this, R.id.layout_nearby_buttons).setVisibility(View.VISIBLE);
@@ -444,12 +392,70 @@ public class MainActivity extends Activity implements
     }
 
     /**
-     * Print a message to the DEBUG LogCat as well as to the on-screen debug panel.
-     *
-     * @param msg the message to print and display.
+     * Render the newest entries of the debug log into the debug panel, only as many as it shows.
+     */
+    private void renderDebugLog() {
+        mDebugLogRenderPending.set(false);
+        int lines = mDebugInfo.getMaxLines();
+        StringBuilder text = new StringBuilder(lines * 48);
+        mDebugLog.render(text, lines > 0 ? lines : DEBUG_LOG_DEFAULT_LINES);
+        mDebugInfo.setText(text);
+    }
+
+    private void renderMetrics() {
+        mMetricsOverlay.removeCallbacks(mRenderMetrics);
+        StringBuilder text = new StringBuilder(1024);
+        try {
+            mMetrics.dump(text, SystemClock.uptimeMillis());
+        } catch (IOException e) {
+            // a StringBuilder does not throw
+        }
+        if (mSession != null) {
+            for (LinkQuality link : mSession.getLinkQualities()) {
+                text.append(link).append('\n');
+            }
+        }
+        mMetricsOverlay.setText(text);
+        mMetricsOverlay.postDelayed(mRenderMetrics, METRICS_OVERLAY_REFRESH_MILLIS);
+    }
+
+    /**
+     * Write the whole debug log buffer to a file in the app's files directory. There is nothing
+     * to write until the service is bound.
      */
-    private void debugLog(String msg) {
-        Log.d(TAG, msg);
-        mDebugInfo.append("\n" + msg);
+    @OnLongClick(R.id.debug_text)
+    public boolean exportDebugLog() {
+        final DebugLog debugLog = mDebugLog;
+        if (debugLog == null) {
+            Toast.makeText(this, "Debug log not ready yet", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        final File file = new File(dir, "nearby-debug-" + System.currentTimeMillis() + ".log");
+        new Thread(() -> {
+            String result;
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new FileWriter(file));
+                debugLog.export(writer);
+                result = "Debug log saved to " + file;
+            } catch (IOException e) {
+                Log.w(TAG, "exportDebugLog", e);
+                result = "Could not save debug log: " + e.getMessage();
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            final String message = result;
+            runOnUiThread(() -> Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show());
+        }, "DebugLogExport").start();
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -7,27 +7,34 @@ package me.tatocaster.nearbyconnection;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.support.v7.app.AlertDialog;
-import android.widget.ArrayAdapter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import me.tatocaster.nearbyconnection.discovery.EndpointRegistry;
 
 /**
  * Simple wrapper for an AlertDialog with a list of items, each of which has a display string and
  * and associated value (similar to a "select" tag in HTML).
+ * <p>
+ * Items are keyed by their value (the endpoint id), so two endpoints with the same display name
+ * are both listed. The list is backed by an {@link EndpointRegistry}, which keeps add, remove and
+ * lookup O(1) and lets callers batch changes into a single adapter notification.
  */
 public class MyListDialog {
 
     private AlertDialog mDialog;
-    private ArrayAdapter<String> mAdapter;
-    private HashMap<String, String> mItemMap;
+    private EndpointAdapter mAdapter;
+    private EndpointRegistry mRegistry;
 
     public MyListDialog(Context context, AlertDialog.Builder builder,
                         DialogInterface.OnClickListener listener) {
 
-        mItemMap = new HashMap<>();
-        mAdapter = new ArrayAdapter<>(context, android.R.layout.select_dialog_singlechoice);
+        mRegistry = new EndpointRegistry();
+        mAdapter = new EndpointAdapter(context, mRegistry);
+        mRegistry.setListener(mAdapter::notifyDataSetChanged);
 
         // Create dialog from builder
         builder.setAdapter(mAdapter, listener);
@@ -36,42 +43,57 @@ public class MyListDialog {
 
 
     /**
-     * Add an item to the Dialog's list.
+     * Add an item to the Dialog's list, or update its title if the value is already listed.
      *
      * @param title the human-readable string that should be used to display the item.
      * @param value a value associated with the item that should not be displayed.
      */
     public void addItem(String title, String value) {
-        mItemMap.put(title, value);
-        mAdapter.add(title);
+        mRegistry.put(value, title);
     }
 
     /**
-     * Remove an item from the list by its title.
+     * Remove the first item with the given title.
+     * Note: this is an O(n) operation, prefer {@link #removeItemByValue(String)}.
      *
      * @param title the title of the item to remove.
      */
     public void removeItemByTitle(String title) {
-        mItemMap.remove(title);
-        mAdapter.remove(title);
+        for (int i = 0; i < mRegistry.size(); i++) {
+            EndpointRegistry.Endpoint endpoint = mRegistry.getAt(i);
+            if (endpoint.getName().equals(title)) {
+                mRegistry.remove(endpoint.getId());
+                return;
+            }
+        }
     }
 
     /**
      * Remove an item from the list by its associated value.
-     * Note: this is an O(n) operation.
      *
      * @param value the value of the item to remove.
      */
     public void removeItemByValue(String value) {
-        Iterator<Map.Entry<String, String>> iterator = mItemMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, String> entry = iterator.next();
-            if (entry.getValue().equals(value)) {
-                iterator.remove();
-                mAdapter.remove(entry.getKey());
-                mAdapter.notifyDataSetChanged();
-            }
-        }
+        mRegistry.remove(value);
+    }
+
+    /**
+     * Group the following adds and removes into a single list refresh. Must be paired with
+     * {@link #endUpdate()}.
+     */
+    public void beginUpdate() {
+        mRegistry.beginUpdate();
+    }
+
+    public void endUpdate() {
+        mRegistry.endUpdate();
+    }
+
+    /**
+     * @return the number of items in the list.
+     */
+    public int getItemCount() {
+        return mRegistry.size();
     }
 
     /**
@@ -81,7 +103,7 @@ public class MyListDialog {
      * @return the item's title.
      */
     public String getItemKey(int index) {
-        return mAdapter.getItem(index);
+        return mRegistry.getAt(index).getName();
     }
 
     /**
@@ -91,7 +113,7 @@ public class MyListDialog {
      * @return the item's value.
      */
     public String getItemValue(int index) {
-        return mItemMap.get(getItemKey(index));
+        return mRegistry.getAt(index).getId();
     }
 
     /**
@@ -101,6 +123,13 @@ public class MyListDialog {
         mDialog.show();
     }
 
+    /**
+     * @return true if the dialog is currently showing.
+     */
+    public boolean isShowing() {
+        return mDialog.isShowing();
+    }
+
     /**
      * Dismiss the dialog if it is showing (calls AlertDialog#dismiss).
      */
@@ -110,4 +139,45 @@ public class MyListDialog {
         }
     }
 
+    /**
+     * Single choice rows over the registry, in discovery order.
+     */
+    private static class EndpointAdapter extends BaseAdapter {
+
+        private final LayoutInflater mInflater;
+        private final EndpointRegistry mRegistry;
+
+        EndpointAdapter(Context context, EndpointRegistry registry) {
+            mInflater = LayoutInflater.from(context);
+            mRegistry = registry;
+        }
+
+        @Override
+        public int getCount() {
+            return mRegistry.size();
+        }
+
+        @Override
+        public EndpointRegistry.Endpoint getItem(int position) {
+            return mRegistry.getAt(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mRegistry.getAt(position).getStableId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) (convertView != null ? convertView
+                    : mInflater.inflate(android.R.layout.select_dialog_singlechoice, parent, false));
+            view.setText(getItem(position).getName());
+            return view;
+        }
+    }
 }
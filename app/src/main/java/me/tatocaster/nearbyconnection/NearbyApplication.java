@@ -0,0 +1,103 @@
+package me.tatocaster.nearbyconnection;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.gms.nearby.connection.Connections;
+import com.squareup.leakcanary.LeakCanary;
+import com.squareup.leakcanary.RefWatcher;
+
+import java.util.UUID;
+
+import me.tatocaster.nearbyconnection.buffer.BufferPool;
+import me.tatocaster.nearbyconnection.metrics.MetricsRegistry;
+
+/**
+ * Installs LeakCanary and holds the process-wide pool for inbound payloads, the metrics and the
+ * shared {@link NearbySession}.
+ */
+public class NearbyApplication extends Application {
+
+    private static final String TAG = "NearbyApplication";
+
+    // Key used in writing to and reading from SharedPreferences.
+    private static final String KEY_UUID = "key_uuid";
+
+    // one inbound buffer in this many records where it was acquired, see BufferPool
+    private static final int BUFFER_LEAK_SAMPLING_INTERVAL = 16;
+
+    private RefWatcher mRefWatcher;
+    private BufferPool mInboundBufferPool;
+    private final MetricsRegistry mMetrics = new MetricsRegistry(SystemClock.uptimeMillis());
+    private NearbySession mSession;
+    private String mInstallId;
+
+    public static NearbyApplication get(Context context) {
+        return (NearbyApplication) context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (LeakCanary.isInAnalyzerProcess(this)) {
+            // this process is dedicated to LeakCanary for heap analysis
+            return;
+        }
+        mRefWatcher = LeakCanary.install(this);
+
+        // Every Connections payload fits a pooled array. Debug builds also sample buffers that
+        // are never released.
+        BufferPool.Builder pool = new BufferPool.Builder()
+                .bufferSizes(128, Connections.MAX_RELIABLE_MESSAGE_LEN);
+        if (BuildConfig.DEBUG) {
+            pool.leakDetection((description, allocationSite) -> Log.e(TAG, description, allocationSite),
+                    BUFFER_LEAK_SAMPLING_INTERVAL);
+        }
+        mInboundBufferPool = pool.build();
+    }
+
+    public RefWatcher getRefWatcher() {
+        return mRefWatcher;
+    }
+
+    public BufferPool getInboundBufferPool() {
+        return mInboundBufferPool;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * A UUID created on first use and saved to {@link SharedPreferences}, which tells this
+     * install apart from others of the same device model. It is added to the published message
+     * to avoid it being undelivered due to de-duplication, see {@link DeviceMessage}, and sent
+     * in the connection handshake so peers know us again after reconnecting. Main thread only.
+     */
+    public String getInstallId() {
+        if (mInstallId == null) {
+            SharedPreferences sharedPreferences = getSharedPreferences(getPackageName(), Context.MODE_PRIVATE);
+            String uuid = sharedPreferences.getString(KEY_UUID, "");
+            if (TextUtils.isEmpty(uuid)) {
+                uuid = UUID.randomUUID().toString();
+                sharedPreferences.edit().putString(KEY_UUID, uuid).apply();
+            }
+            mInstallId = uuid;
+        }
+        return mInstallId;
+    }
+
+    /**
+     * The Nearby session shared by every screen, created on first use. Main thread only.
+     */
+    public NearbySession getSession() {
+        if (mSession == null) {
+            mSession = new NearbySession(this);
+        }
+        return mSession;
+    }
+}
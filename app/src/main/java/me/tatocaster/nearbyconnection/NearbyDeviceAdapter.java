@@ -0,0 +1,90 @@
+package me.tatocaster.nearbyconnection;
+
+import android.os.SystemClock;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.messages.DeviceListDiff;
+import me.tatocaster.nearbyconnection.messages.NearbyDevice;
+
+/**
+ * Shows {@link NearbyDevice} snapshots. Each new snapshot is diffed against the current one and
+ * only the rows that changed are notified, so additions and removals animate and the rest of
+ * the list is left alone.
+ */
+class NearbyDeviceAdapter extends RecyclerView.Adapter<NearbyDeviceAdapter.ViewHolder>
+        implements DeviceListDiff.Callback {
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView mName;
+        final TextView mDetails;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mName = (TextView) itemView.findViewById(android.R.id.text1);
+            mDetails = (TextView) itemView.findViewById(android.R.id.text2);
+        }
+    }
+
+    private List<NearbyDevice> mDevices = Collections.emptyList();
+
+    NearbyDeviceAdapter() {
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show {@code devices}, which must be ordered by stable id like every store snapshot.
+     */
+    void submit(List<NearbyDevice> devices) {
+        List<NearbyDevice> old = mDevices;
+        mDevices = devices;
+        DeviceListDiff.dispatch(old, devices, this);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_2, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        NearbyDevice device = mDevices.get(position);
+        holder.mName.setText(device.getName());
+        // last-seen times are on the uptime clock of the feed's schedulers
+        long seenSecondsAgo = (SystemClock.uptimeMillis() - device.getLastSeenMillis()) / 1000;
+        holder.mDetails.setText(holder.itemView.getContext().getString(
+                R.string.nearby_device_details, device.getId(), seenSecondsAgo));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDevices.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mDevices.get(position).getStableId();
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onChanged(int position, int count) {
+        notifyItemRangeChanged(position, count);
+    }
+}
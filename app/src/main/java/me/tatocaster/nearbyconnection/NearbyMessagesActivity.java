@@ -1,39 +1,35 @@
 package me.tatocaster.nearbyconnection;
 
-import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.Intent;
+import android.content.IntentSender;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.SwitchCompat;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
-import android.widget.ArrayAdapter;
 import android.widget.CompoundButton;
-import android.widget.ListView;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.nearby.Nearby;
-import com.google.android.gms.nearby.messages.Message;
-import com.google.android.gms.nearby.messages.MessageListener;
-import com.google.android.gms.nearby.messages.PublishCallback;
-import com.google.android.gms.nearby.messages.PublishOptions;
-import com.google.android.gms.nearby.messages.Strategy;
-import com.google.android.gms.nearby.messages.SubscribeCallback;
-import com.google.android.gms.nearby.messages.SubscribeOptions;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnCheckedChanged;
+import me.tatocaster.nearbyconnection.discovery.ScanProfile;
+import me.tatocaster.nearbyconnection.discovery.ScanScheduler;
+import me.tatocaster.nearbyconnection.messages.DecodedMessageCache;
+import me.tatocaster.nearbyconnection.messages.MessageFeed;
+import me.tatocaster.nearbyconnection.metrics.MetricsRegistry;
+import me.tatocaster.nearbyconnection.transport.NearbyTransport;
 
 /**
  * Created by tatocaster on 2/26/17.
@@ -45,36 +41,38 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
 
     private static final String TAG = "NearbyMessagesActivity";
 
+    /**
+     * The time in seconds for a published message to live. Set to three minutes in this sample.
+     */
     private static final int TTL_IN_SECONDS = 3 * 60; // Three minutes.
 
-    // Key used in writing to and reading from SharedPreferences.
-    private static final String KEY_UUID = "key_uuid";
-
     /**
-     * Sets the time in seconds for a published message or a subscription to live. Set to three
-     * minutes in this sample.
+     * The subscription is renewed in windows that adapt to how many new devices turn up, instead
+     * of living for a fixed TTL. See {@link ScanScheduler}. Devices not found again in a window
+     * are dropped from the list, since nothing reports them lost while unsubscribed.
      */
-    private static final Strategy PUB_SUB_STRATEGY = new Strategy.Builder()
-            .setTtlSeconds(TTL_IN_SECONDS).build();
+    private static final ScanProfile SUBSCRIBE_SCAN_PROFILE = ScanProfile.BALANCED;
+
+    private static final int DECODED_MESSAGE_CACHE_SIZE = 128;
 
     /**
-     * Creates a UUID and saves it to {@link SharedPreferences}. The UUID is added to the published
-     * message to avoid it being undelivered due to de-duplication. See {@link DeviceMessage} for
-     * details.
+     * Request code for resolving a failed connection of the shared client, e.g. Nearby consent.
      */
-    private static String getUUID(SharedPreferences sharedPreferences) {
-        String uuid = sharedPreferences.getString(KEY_UUID, "");
-        if (TextUtils.isEmpty(uuid)) {
-            uuid = UUID.randomUUID().toString();
-            sharedPreferences.edit().putString(KEY_UUID, uuid).apply();
-        }
-        return uuid;
-    }
+    private static final int REQUEST_RESOLVE_ERROR = 1001;
 
     /**
-     * The entry point to Google Play Services.
+     * The shared Nearby session and its entry point to Google Play Services, held while this
+     * activity is started.
      */
+    private NearbySession mSession;
     private GoogleApiClient mGoogleApiClient;
+    private boolean mResolvingError;
+    private boolean mStarted;
+
+    /**
+     * Pub/sub calls, made through the GoogleApiClient.
+     */
+    private NearbyTransport mTransport;
 
     @BindView(R.id.publish_switch)
     public SwitchCompat mPublishSwitch;
@@ -83,19 +81,45 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
     public SwitchCompat mSubscribeSwitch;
 
     /**
-     * The {@link Message} object used to broadcast information about the device to nearby devices.
+     * The message content used to broadcast information about the device to nearby devices.
      */
-    private Message mPubMessage;
+    private byte[] mPubMessage;
 
     /**
-     * A {@link MessageListener} for processing messages from nearby devices.
+     * A {@link NearbyTransport.SubscriptionListener} for processing messages from nearby devices.
      */
-    private MessageListener mMessageListener;
+    private NearbyTransport.SubscriptionListener mMessageListener;
 
     /**
-     * Adapter for working with messages from nearby publishers.
+     * Decoded payloads of recently seen messages, so a peer flapping in and out of range is only
+     * decoded once. The feed matches lost messages to found ones by content and device UUID, so
+     * an entry evicted in between still comes off the list.
      */
-    private ArrayAdapter<String> mNearbyDevicesArrayAdapter;
+    private final DecodedMessageCache<DeviceMessage> mDecodedMessages =
+            new DecodedMessageCache<>(DECODED_MESSAGE_CACHE_SIZE, DeviceMessage::fromContent);
+
+    /**
+     * Decodes found/lost messages on a background thread and hands the list to the adapter.
+     */
+    private HandlerThread mDecodeThread;
+    private MessageFeed<DeviceMessage> mMessageFeed;
+
+    /**
+     * Devices of nearby publishers, keyed by their UUID.
+     */
+    private NearbyDeviceAdapter mNearbyDevicesAdapter;
+
+    /**
+     * Subscribes and unsubscribes in adaptive windows while the subscribe switch is on.
+     */
+    private ScanScheduler mSubscribeScan;
+
+    /**
+     * Pub/sub rates and start latencies, next to the Connections metrics
+     */
+    private MetricsRegistry mMetrics;
+    private MetricsRegistry.Counter mFoundCount;
+    private MetricsRegistry.Counter mLostCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -104,32 +128,106 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
 
         ButterKnife.bind(this);
 
+        mMetrics = NearbyApplication.get(this).getMetrics();
+        mFoundCount = mMetrics.counter("messages.found");
+        mLostCount = mMetrics.counter("messages.lost");
+
         // Build the message that is going to be published. This contains the device name and a
         // UUID.
-        mPubMessage = DeviceMessage.newNearbyMessage(getUUID(getSharedPreferences(getApplicationContext().getPackageName(), Context.MODE_PRIVATE)), Build.MODEL);
+        mPubMessage = DeviceMessage.newContent(NearbyApplication.get(this).getInstallId(), Build.MODEL);
 
-        mMessageListener = new MessageListener() {
+        mMessageListener = new NearbyTransport.SubscriptionListener() {
             @Override
-            public void onFound(final Message message) {
-                // Called when a new message is found.
-                mNearbyDevicesArrayAdapter.add(DeviceMessage.fromNearbyMessage(message).getMessageBody());
+            public void onFound(final byte[] content) {
+                // Called when a message is found, on the session's thread, again in every
+                // subscription window while it is there. Decoding happens off the main thread.
+                mFoundCount.increment();
+                mMessageFeed.onFound(content);
             }
 
             @Override
-            public void onLost(final Message message) {
+            public void onLost(final byte[] content) {
                 // Called when a message is no longer detectable nearby.
-                mNearbyDevicesArrayAdapter.remove(DeviceMessage.fromNearbyMessage(message).getMessageBody());
+                mLostCount.increment();
+                mMessageFeed.onLost(content);
             }
         };
 
 
-        final List<String> nearbyDevicesArrayList = new ArrayList<>();
-        mNearbyDevicesArrayAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, nearbyDevicesArrayList);
-        final ListView nearbyDevicesListView = ButterKnife.findById(this, R.id.nearby_devices_list_view);
-        if (nearbyDevicesListView != null) {
-            nearbyDevicesListView.setAdapter(mNearbyDevicesArrayAdapter);
+        mNearbyDevicesAdapter = new NearbyDeviceAdapter();
+
+        mDecodeThread = new HandlerThread("NearbyDecode");
+        mDecodeThread.start();
+        mMessageFeed = new MessageFeed<>(new HandlerScheduler(mDecodeThread.getLooper()),
+                new HandlerScheduler(getMainLooper()), mDecodedMessages, mNearbyDevicesAdapter::submit);
+        // only devices that were not already listed make a window count as busy
+        mMessageFeed.setFoundListener(() -> runOnUiThread(mSubscribeScan::onPeerFound));
+        mMetrics.register("messages.feed_ms", mMessageFeed.getLatencyMillis());
+        final RecyclerView nearbyDevicesView = ButterKnife.findById(this, R.id.nearby_devices_list_view);
+        if (nearbyDevicesView != null) {
+            nearbyDevicesView.setLayoutManager(new LinearLayoutManager(this));
+            nearbyDevicesView.setAdapter(mNearbyDevicesAdapter);
         }
-        buildGoogleApiClient();
+        mSession = NearbyApplication.get(this).getSession();
+        mGoogleApiClient = mSession.getGoogleApiClient();
+        mTransport = mSession.getTransport();
+        mSubscribeScan = new ScanScheduler(new ScanScheduler.Radio() {
+            @Override
+            public void start(long windowMillis) {
+                // no onLost comes for devices that left while unsubscribed, see MessageFeed
+                mMessageFeed.onWindowStarted();
+                subscribeWindow(windowMillis);
+            }
+
+            @Override
+            public void stop() {
+                if (mGoogleApiClient.isConnected()) {
+                    mTransport.unsubscribe(mMessageListener);
+                }
+            }
+        }, new HandlerScheduler(getMainLooper()), SUBSCRIBE_SCAN_PROFILE);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStarted = true;
+        mSession.acquire();
+        // called back right away if the shared client is already connected
+        mGoogleApiClient.registerConnectionCallbacks(this);
+        mGoogleApiClient.registerConnectionFailedListener(this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mStarted = false;
+        // The client outlives this activity now, so publications and subscriptions are ended
+        // here instead of with it; the switches bring them back in onConnected.
+        if (mGoogleApiClient.isConnected() && mPublishSwitch.isChecked()) {
+            unpublish();
+        }
+        mSubscribeScan.stop();
+        mGoogleApiClient.unregisterConnectionCallbacks(this);
+        mGoogleApiClient.unregisterConnectionFailedListener(this);
+        mSession.release();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_RESOLVE_ERROR) {
+            mResolvingError = false;
+            if (resultCode == RESULT_OK && !mGoogleApiClient.isConnecting() && !mGoogleApiClient.isConnected()) {
+                mGoogleApiClient.connect();
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDecodeThread.quit();
     }
 
     @OnCheckedChanged(R.id.subscribe_switch)
@@ -160,35 +258,46 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
         }
     }
 
-    private void buildGoogleApiClient() {
-        if (mGoogleApiClient != null) {
-            return;
-        }
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addApi(Nearby.MESSAGES_API)
-                .addConnectionCallbacks(this)
-                .enableAutoManage(this, this)
-                .build();
-    }
+    // The shared client calls back on the session's thread, the UI is updated on the main thread
 
     @Override
     public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+        runOnUiThread(() -> resolveConnectionFailure(connectionResult));
+    }
+
+    private void resolveConnectionFailure(ConnectionResult connectionResult) {
+        // the shared client has no auto-manage, so the consent dialog is shown from here
+        if (connectionResult.hasResolution() && !mResolvingError) {
+            try {
+                mResolvingError = true;
+                connectionResult.startResolutionForResult(this, REQUEST_RESOLVE_ERROR);
+                return;
+            } catch (IntentSender.SendIntentException e) {
+                mResolvingError = false;
+            }
+        }
         logAndShowSnackbar("Exception while connecting to Google Play services: " + connectionResult.getErrorMessage());
     }
 
     @Override
     public void onConnectionSuspended(int i) {
-        logAndShowSnackbar("Connection suspended. Error code: " + i);
+        runOnUiThread(() -> logAndShowSnackbar("Connection suspended. Error code: " + i));
     }
 
     @Override
     public void onConnected(@Nullable Bundle bundle) {
         Log.i(TAG, "GoogleApiClient connected");
+        runOnUiThread(this::resumePubSub);
+    }
+
+    private void resumePubSub() {
+        if (!mStarted) {
+            return;
+        }
         // We use the Switch buttons in the UI to track whether we were previously doing pub/sub (
-        // switch buttons retain state on orientation change). Since the GoogleApiClient disconnects
-        // when the activity is destroyed, foreground pubs/subs do not survive device rotation. Once
-        // this activity is re-created and GoogleApiClient connects, we check the UI and pub/sub
-        // again if necessary.
+        // switch buttons retain state on orientation change). Pubs/subs are ended in onStop, so
+        // they do not survive device rotation. Once this activity is started again and the
+        // shared GoogleApiClient is connected, we check the UI and pub/sub again if necessary.
         if (mPublishSwitch.isChecked()) {
             publish();
         }
@@ -198,32 +307,41 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
     }
 
     /**
-     * Subscribes to messages from nearby devices and updates the UI if the subscription either
-     * fails or TTLs.
+     * Subscribes to messages from nearby devices, one scan window at a time.
      */
     private void subscribe() {
         Log.i(TAG, "Subscribing");
-        mNearbyDevicesArrayAdapter.clear();
-        SubscribeOptions options = new SubscribeOptions.Builder()
-                .setStrategy(PUB_SUB_STRATEGY)
-                .setCallback(new SubscribeCallback() {
-                    @Override
-                    public void onExpired() {
-                        super.onExpired();
-                        Log.i(TAG, "No longer subscribing");
-                        runOnUiThread(() -> mSubscribeSwitch.setChecked(false));
-                    }
-                }).build();
-
-        Nearby.Messages.subscribe(mGoogleApiClient, mMessageListener, options)
-                .setResultCallback(status -> {
-                    if (status.isSuccess()) {
-                        Log.i(TAG, "Subscribed successfully.");
-                    } else {
-                        logAndShowSnackbar("Could not subscribe, status = " + status);
+        mMessageFeed.clear();
+        mSubscribeScan.start();
+    }
+
+    /**
+     * Subscribe for one window and updates the UI if the subscription fails. Its TTL is the
+     * window, rounded up, so it lapses even if the scheduler does not get to unsubscribe.
+     */
+    private void subscribeWindow(long windowMillis) {
+        int ttlSeconds = (int) ((windowMillis + 999) / 1000);
+        final long startedAt = SystemClock.uptimeMillis();
+        mTransport.subscribe(mMessageListener, ttlSeconds, new NearbyTransport.PubSubCallback() {
+            @Override
+            public void onResult(int statusCode) {
+                mMetrics.histogram("messages.subscribe.start_ms").record(SystemClock.uptimeMillis() - startedAt);
+                if (statusCode == NearbyTransport.STATUS_OK) {
+                    Log.i(TAG, "Subscribed successfully for " + ttlSeconds + " s.");
+                } else {
+                    runOnUiThread(() -> {
+                        logAndShowSnackbar("Could not subscribe, status = " + statusCode);
                         mSubscribeSwitch.setChecked(false);
-                    }
-                });
+                    });
+                }
+            }
+
+            @Override
+            public void onExpired() {
+                // the end of a window, the scan scheduler subscribes again after the idle gap
+                Log.i(TAG, "Subscription window over");
+            }
+        });
     }
 
     /**
@@ -232,34 +350,35 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
      */
     private void publish() {
         Log.i(TAG, "Publishing");
-        PublishOptions options = new PublishOptions.Builder()
-                .setStrategy(PUB_SUB_STRATEGY)
-                .setCallback(new PublishCallback() {
-                    @Override
-                    public void onExpired() {
-                        super.onExpired();
-                        Log.i(TAG, "No longer publishing");
-                        runOnUiThread(() -> mPublishSwitch.setChecked(false));
-                    }
-                }).build();
-
-        Nearby.Messages.publish(mGoogleApiClient, mPubMessage, options)
-                .setResultCallback(status -> {
-                    if (status.isSuccess()) {
-                        Log.i(TAG, "Published successfully.");
-                    } else {
-                        logAndShowSnackbar("Could not publish, status = " + status);
+        final long startedAt = SystemClock.uptimeMillis();
+        mTransport.publish(mPubMessage, TTL_IN_SECONDS, new NearbyTransport.PubSubCallback() {
+            @Override
+            public void onResult(int statusCode) {
+                mMetrics.histogram("messages.publish.start_ms").record(SystemClock.uptimeMillis() - startedAt);
+                if (statusCode == NearbyTransport.STATUS_OK) {
+                    Log.i(TAG, "Published successfully.");
+                } else {
+                    runOnUiThread(() -> {
+                        logAndShowSnackbar("Could not publish, status = " + statusCode);
                         mPublishSwitch.setChecked(false);
-                    }
-                });
+                    });
+                }
+            }
+
+            @Override
+            public void onExpired() {
+                Log.i(TAG, "No longer publishing");
+                runOnUiThread(() -> mPublishSwitch.setChecked(false));
+            }
+        });
     }
 
     /**
      * Stops subscribing to messages from nearby devices.
      */
     private void unsubscribe() {
-        Log.i(TAG, "Unsubscribing.");
-        Nearby.Messages.unsubscribe(mGoogleApiClient, mMessageListener);
+        Log.i(TAG, "Unsubscribing. " + mMessageFeed + " " + mSubscribeScan);
+        mSubscribeScan.stop();
     }
 
     /**
@@ -267,7 +386,7 @@ public class NearbyMessagesActivity extends AppCompatActivity implements
      */
     private void unpublish() {
         Log.i(TAG, "Unpublishing.");
-        Nearby.Messages.unpublish(mGoogleApiClient, mPubMessage);
+        mTransport.unpublish(mPubMessage);
     }
 
     /**
@@ -0,0 +1,125 @@
+package me.tatocaster.nearbyconnection;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/**
+ * Owns the {@link NearbySession} for the app's screens, and in background mode keeps it
+ * connected as a foreground service, so peers stay connected and relaying with the screen off.
+ * <p>
+ * Screens bind to the service and get the session from the {@link LocalBinder}. Background mode
+ * is switched with {@link #startBackground(Context)} and {@link #stopBackground(Context)}; while
+ * it is on the service holds a reference to the session and shows an ongoing notification. The
+ * session does its work on its own thread and only keeps the CPU awake while messages are being
+ * handled.
+ * <p>
+ * Nearby Messages only publish and subscribe for a screen in the foreground, so background mode
+ * covers the Connections side.
+ */
+public class NearbyService extends Service {
+
+    private static final String TAG = "NearbyService";
+
+    private static final String ACTION_START_BACKGROUND = "me.tatocaster.nearbyconnection.action.START_BACKGROUND";
+    private static final String ACTION_STOP_BACKGROUND = "me.tatocaster.nearbyconnection.action.STOP_BACKGROUND";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * What bound screens get.
+     */
+    public class LocalBinder extends Binder {
+        public NearbySession getSession() {
+            return mSession;
+        }
+
+        public boolean isInBackgroundMode() {
+            return mBackground;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private NearbySession mSession;
+    private boolean mBackground;
+
+    /**
+     * Keep the session connected until {@link #stopBackground(Context)}, whether or not any
+     * screen is open.
+     */
+    public static void startBackground(Context context) {
+        context.startService(new Intent(context, NearbyService.class).setAction(ACTION_START_BACKGROUND));
+    }
+
+    public static void stopBackground(Context context) {
+        context.startService(new Intent(context, NearbyService.class).setAction(ACTION_STOP_BACKGROUND));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mSession = NearbyApplication.get(this).getSession();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // a null intent is a restart after the process was killed in background mode
+        if (intent == null || ACTION_START_BACKGROUND.equals(intent.getAction())) {
+            enterBackground();
+            return START_STICKY;
+        }
+        if (ACTION_STOP_BACKGROUND.equals(intent.getAction())) {
+            leaveBackground();
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        leaveBackground();
+        super.onDestroy();
+    }
+
+    private void enterBackground() {
+        if (mBackground) {
+            return;
+        }
+        Log.d(TAG, "enterBackground");
+        mBackground = true;
+        mSession.acquire();
+        mSession.setBackground(true);
+        startForeground(NOTIFICATION_ID, new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.background_mode_running))
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0,
+                        new Intent(this, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT))
+                .addAction(0, getString(R.string.background_mode_stop), PendingIntent.getService(this, 0,
+                        new Intent(this, NearbyService.class).setAction(ACTION_STOP_BACKGROUND),
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .build());
+    }
+
+    private void leaveBackground() {
+        if (!mBackground) {
+            return;
+        }
+        Log.d(TAG, "leaveBackground: " + mSession);
+        mBackground = false;
+        mSession.setBackground(false);
+        stopForeground(true);
+        mSession.release();
+    }
+}
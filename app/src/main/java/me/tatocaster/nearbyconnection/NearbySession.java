@@ -0,0 +1,1587 @@
+package me.tatocaster.nearbyconnection;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.Connections;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.tatocaster.nearbyconnection.connection.AdmissionController;
+import me.tatocaster.nearbyconnection.connection.ChannelMux;
+import me.tatocaster.nearbyconnection.connection.ConnectionManager;
+import me.tatocaster.nearbyconnection.connection.LinkMonitor;
+import me.tatocaster.nearbyconnection.connection.LinkQuality;
+import me.tatocaster.nearbyconnection.connection.OutboundPipeline;
+import me.tatocaster.nearbyconnection.connection.PayloadCompressor;
+import me.tatocaster.nearbyconnection.connection.Peer;
+import me.tatocaster.nearbyconnection.connection.ReconnectScheduler;
+import me.tatocaster.nearbyconnection.connection.RelayRouter;
+import me.tatocaster.nearbyconnection.connection.SharedSession;
+import me.tatocaster.nearbyconnection.discovery.PeerHistory;
+import me.tatocaster.nearbyconnection.discovery.ScanProfile;
+import me.tatocaster.nearbyconnection.discovery.ScanScheduler;
+import me.tatocaster.nearbyconnection.discovery.WarmStart;
+import me.tatocaster.nearbyconnection.log.DebugLog;
+import me.tatocaster.nearbyconnection.metrics.MetricsDumper;
+import me.tatocaster.nearbyconnection.metrics.MetricsRegistry;
+import me.tatocaster.nearbyconnection.outbox.Outbox;
+import me.tatocaster.nearbyconnection.outbox.OutboxLog;
+import me.tatocaster.nearbyconnection.transfer.ByteArraySink;
+import me.tatocaster.nearbyconnection.transfer.FileSink;
+import me.tatocaster.nearbyconnection.transfer.Transfer;
+import me.tatocaster.nearbyconnection.transfer.TransferManager;
+import me.tatocaster.nearbyconnection.transfer.TransferSink;
+import me.tatocaster.nearbyconnection.transport.NearbyTransport;
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.WakeWindow;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+import me.tatocaster.nearbyconnection.wire.RelayFraming;
+
+/**
+ * The process-wide Nearby session: one GoogleApiClient with the Connections and Messages APIs,
+ * and the peers, channels and transfers on top of it.
+ * <p>
+ * Screens {@link #acquire()} the session in onStart and {@link #release()} it in onStop. The
+ * client connects on the first acquire and disconnects a few seconds after the last release, so
+ * rotating or moving between screens keeps every peer connected, see {@link SharedSession}.
+ * MainActivity attaches as the {@link Ui} for the dialogs; requests that need the user wait
+ * for it to come back. {@link NearbyService} holds the session while the app runs in the
+ * background.
+ * <p>
+ * All of the session's work, Play Services callbacks included, runs on its own HandlerThread
+ * and the public methods post to it, so they can be called from the main thread. A partial wake
+ * lock is held while messages and requests are being handled, see {@link WakeWindow}.
+ */
+public final class NearbySession implements
+        GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener,
+        NearbyTransport.MessageListener {
+
+    private static final String TAG = "NearbySession";
+
+    /**
+     * Possible states of the session:
+     * IDLE - GoogleApiClient not yet connected, can't do anything.
+     * READY - GoogleApiClient connected, ready to use Nearby Connections API.
+     * ADVERTISING - advertising for peers to connect.
+     * DISCOVERING - looking for a peer that is advertising.
+     * CONNECTED - found a peer.
+     */
+    @Retention(RetentionPolicy.CLASS)
+    @IntDef({STATE_IDLE, STATE_READY, STATE_ADVERTISING, STATE_DISCOVERING, STATE_CONNECTED})
+    public @interface NearbyConnectionState {
+    }
+
+    public static final int STATE_IDLE = 1023;
+    public static final int STATE_READY = 1024;
+    public static final int STATE_ADVERTISING = 1025;
+    public static final int STATE_DISCOVERING = 1026;
+    public static final int STATE_CONNECTED = 1027;
+
+    /**
+     * What the session needs from the screen. Called on the main thread, except
+     * {@link #onDebugLogChanged()}.
+     */
+    public interface Ui {
+        void onStateChanged(@NearbyConnectionState int state);
+
+        void onEndpointFound(String endpointId, String endpointName);
+
+        void onEndpointLost(String endpointId);
+
+        /**
+         * Admission policy left this request to the user. Answer with
+         * {@link NearbySession#acceptConnectionRequest} or
+         * {@link NearbySession#rejectConnectionRequest}.
+         */
+        void onConnectionRequest(String endpointId, String endpointName);
+
+        void onConnectionResult(String endpointName, boolean success);
+
+        /**
+         * A debug log entry was added, on the thread that logged it.
+         */
+        void onDebugLogChanged();
+    }
+
+    /**
+     * How long the client stays connected after the last screen let go, enough for a rotation.
+     */
+    private static final long LINGER_MILLIS = 10 * 1000;
+
+    /**
+     * The CPU is kept up this long after the last message or request, long enough for the
+     * outbound pipeline to flush what handling it queued. Link probes do not count, they would
+     * keep it up for good.
+     */
+    private static final long WAKE_WINDOW_MILLIS = 1000;
+
+    /**
+     * How often the links are probed, normally and in background mode, see {@link LinkMonitor}
+     */
+    private static final long PROBE_INTERVAL_MILLIS = 2000;
+    private static final long BACKGROUND_PROBE_INTERVAL_MILLIS = 30 * 1000;
+
+    /**
+     * While the client is connected the metrics are appended to a file in the app's files
+     * directory this often, and once more when it disconnects. Past the size the file is
+     * rotated, keeping one previous file.
+     */
+    private static final long METRICS_DUMP_INTERVAL_MILLIS = 60 * 1000;
+    private static final String METRICS_FILE = "nearby-metrics.log";
+    private static final long METRICS_FILE_MAX_BYTES = 512 * 1024;
+
+    /**
+     * Duty cycle for advertising and discovery. Instead of one fixed 30 second run, each keeps
+     * going in windows whose length and spacing follow how many peers recent windows found, see
+     * {@link ScanScheduler}. LOW_LATENCY suits a busy area, LOW_POWER one that is mostly empty.
+     */
+    private static final ScanProfile SCAN_PROFILE = ScanProfile.BALANCED;
+
+    /**
+     * Peers connected to in earlier sessions are kept in this file, ranked by how often
+     * connecting to them worked and how recently they were seen; a week unseen halves the rank.
+     * When the client connects the most likely few are looked for with a low-latency discovery
+     * and reconnected to, see {@link WarmStart}.
+     */
+    private static final String PEER_HISTORY_FILE = "peer-history.bin";
+    private static final int PEER_HISTORY_CAPACITY = 32;
+    private static final long PEER_HISTORY_HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int WARM_START_PEERS = 3;
+    private static final long WARM_START_TIMEOUT_MILLIS = 20 * 1000;
+
+    /**
+     * Admission of incoming connection requests: a burst of requests beyond the rate limit, or
+     * beyond the peer cap, is rejected without a dialog. Requests from these apps, or carrying
+     * the shared admission_token, are accepted without one.
+     */
+    private static final double ADMISSION_REQUESTS_PER_SECOND = 0.5;
+    private static final int ADMISSION_BURST = 4;
+    private static final int MAX_PEERS = 8;
+    private static final List<String> AUTO_ACCEPT_APP_IDENTIFIERS = Collections.emptyList();
+
+    /**
+     * Entries kept by the debug log.
+     */
+    private static final int DEBUG_LOG_CAPACITY = 1024;
+
+    /**
+     * Channel carrying chunked transfers, and the transfer name used for chat messages too large
+     * for a single Connections message. Chunks leave room for the batch, channel and chunk headers.
+     */
+    private static final int CHANNEL_TRANSFER = 1;
+    private static final String TRANSFER_NAME_CHAT = "chat";
+    private static final int TRANSFER_CHUNK_SIZE = Connections.MAX_RELIABLE_MESSAGE_LEN - 64;
+
+    /**
+     * Largest transfer accepted: chat is held in memory, so it has to announce a length and stay
+     * small; files go to storage. The limits hold for the data received, whatever was announced.
+     */
+    private static final int TRANSFER_MAX_CHAT_LENGTH = 256 * 1024;
+    private static final long TRANSFER_MAX_FILE_LENGTH = 64L * 1024 * 1024;
+
+    /**
+     * Channel carrying relayed chat, and how many links a message may cross. Relay frames fit
+     * in a chunk's room.
+     */
+    private static final int CHANNEL_RELAY = 2;
+    private static final int RELAY_TTL = 8;
+
+    /**
+     * Channel carrying link probes, unreliable so that loss shows as loss.
+     */
+    private static final int CHANNEL_PROBE = 3;
+
+    /**
+     * Channel carrying chat kept for peers that were not connected when it was sent, and the
+     * file that keeps it until they are. Only chat small enough to be relayed is kept, tagged
+     * with its relay message id, see {@link RelayFraming#encodeCopy}.
+     */
+    private static final int CHANNEL_OUTBOX = 4;
+    private static final String OUTBOX_FILE = "outbox.log";
+
+    private final Context mContext;
+    private final String mInstallId;
+
+    /**
+     * The thread the session runs on, and the main thread the {@link Ui} is called on
+     **/
+    private final HandlerThread mSessionThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final WakeWindow mWakeWindow;
+
+    /**
+     * GoogleApiClient for the Nearby APIs, the calls made through it, and who holds it
+     **/
+    private final GoogleApiClient mGoogleApiClient;
+    private final NearbyTransport mTransport;
+    private final SharedSession mSharedSession;
+
+    /**
+     * Bounded debug log shown in the debug panel
+     **/
+    private final DebugLog mDebugLog = new DebugLog(DEBUG_LOG_CAPACITY);
+
+    /**
+     * Latency and traffic metrics, shared with the other screens, and their periodic dump
+     **/
+    private final MetricsRegistry mMetrics;
+    private final MetricsRegistry.Counter mBytesIn;
+    private final MetricsRegistry.Counter mBytesOut;
+    private final MetricsRegistry.Counter mMessagesIn;
+    private final MetricsRegistry.Counter mMessagesOut;
+    private final MetricsDumper mMetricsDumper;
+
+    /**
+     * Every endpoint we are connecting or connected to, the batching send queue in front of the
+     * transport and the thread it sends on
+     **/
+    private final ConnectionManager mConnectionManager;
+    private final OutboundPipeline mOutboundPipeline;
+    private final HandlerThread mSendThread;
+
+    /**
+     * Channels on top of the connections. Older builds send no handshake and know nothing of
+     * channels: their chat arrives on the legacy channel, and ours goes to them there as plain
+     * text instead of through the relay
+     **/
+    private final ChannelMux mChannelMux;
+    private final ChannelMux.Channel mChatChannel;
+    private final Set<String> mLegacyEndpointIds =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Compresses channel payloads for peers that announced support in their handshake
+     **/
+    private final PayloadCompressor mCompressor;
+
+    /**
+     * Large payloads, split into chunks on the transfer channel
+     **/
+    private TransferManager mTransferManager;
+
+    /**
+     * Forwards chat to peers of peers, this device's node id is new for every session
+     **/
+    private RelayRouter mRelayRouter;
+
+    /**
+     * Pings every connected peer to tell slow links from dead ones; relaying skips dead ones
+     **/
+    private LinkMonitor mLinkMonitor;
+
+    /**
+     * Chat for peers we have been connected to but are not now, replayed when they are back;
+     * null until it is opened on the session thread, or if it cannot be. Peers are told apart by
+     * the install id in their handshake, by endpoint id while connected; transfers use the
+     * install id too, see {@link #transferPeerOf}.
+     **/
+    private Outbox mOutbox;
+    private volatile boolean mCanQueueMessages;
+    private final Map<String, String> mDeviceIds = new ConcurrentHashMap<>();
+
+    /**
+     * Decides connection requests by policy, the dialog is only for the ones it leaves open
+     **/
+    private final AdmissionController mAdmissionController;
+
+    /**
+     * Turn advertising and discovery on and off in adaptive windows
+     **/
+    private final ScanScheduler mAdvertiseScan;
+    private final ScanScheduler mDiscoveryScan;
+
+    /**
+     * Backs off reconnecting the GoogleApiClient, and what to restore once it is back. Peers are
+     * only restored by the side that sent the request, found again by name like on a warm start;
+     * advertising and discovery only if they were running when the client was lost.
+     **/
+    private final ReconnectScheduler mReconnectScheduler;
+    private final Set<String> mRequestedEndpointIds = new HashSet<>();
+    private final List<Peer> mPeersToRestore = new ArrayList<>();
+    private boolean mRestoreAdvertising;
+    private boolean mRestoreDiscovery;
+
+    /**
+     * Peers of earlier sessions and reconnecting to them, the install ids they are expected to
+     * have, and the endpoints the reconnect discovery found that the user has not asked to see yet
+     **/
+    private final PeerHistory mPeerHistory;
+    private final WarmStart mWarmStart;
+    private final Map<String, String> mWarmStartDeviceIds = new HashMap<>();
+    private final Map<String, String> mUnlistedEndpoints = new LinkedHashMap<>();
+
+    /**
+     * The attached screen, and what it has to be told again when it comes back: endpoints still
+     * in range and requests still waiting for the user
+     **/
+    private volatile Ui mUi;
+    private final Map<String, String> mFoundEndpoints = new LinkedHashMap<>();
+    private final Map<String, String> mUndecidedRequests = new LinkedHashMap<>();
+
+    @NearbyConnectionState
+    private volatile int mState = STATE_IDLE;
+
+    NearbySession(Context context) {
+        mContext = context.getApplicationContext();
+        mInstallId = NearbyApplication.get(mContext).getInstallId();
+        mSessionThread = new HandlerThread("NearbySession");
+        mSessionThread.start();
+        mHandler = new Handler(mSessionThread.getLooper());
+        mMainHandler = new Handler(mContext.getMainLooper());
+        HandlerScheduler scheduler = new HandlerScheduler(mSessionThread.getLooper());
+
+        mMetrics = NearbyApplication.get(mContext).getMetrics();
+        mBytesIn = mMetrics.counter("connections.bytes_in");
+        mBytesOut = mMetrics.counter("connections.bytes_out");
+        mMessagesIn = mMetrics.counter("connections.messages_in");
+        mMessagesOut = mMetrics.counter("connections.messages_out");
+        mMetricsDumper = new MetricsDumper(mMetrics, () -> {
+            File dir = mContext.getExternalFilesDir(null);
+            return MetricsDumper.openRotating(new File(dir != null ? dir : mContext.getFilesDir(), METRICS_FILE),
+                    METRICS_FILE_MAX_BYTES);
+        }, scheduler, System::currentTimeMillis, METRICS_DUMP_INTERVAL_MILLIS);
+        mMetricsDumper.setErrorListener(e -> mDebugLog.log(DebugLog.WARN, "metricsDump", null, "{}", e));
+
+        final PowerManager.WakeLock wakeLock = ((PowerManager) mContext.getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+        mWakeWindow = new WakeWindow(new WakeWindow.Lock() {
+            @Override
+            public void acquire() {
+                wakeLock.acquire();
+            }
+
+            @Override
+            public void release() {
+                wakeLock.release();
+            }
+        }, scheduler, WAKE_WINDOW_MILLIS);
+
+        mDebugLog.setListener(entry -> {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, entry.toString());
+            }
+            Ui ui = mUi;
+            if (ui != null) {
+                ui.onDebugLogChanged();
+            }
+        });
+
+        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(Nearby.CONNECTIONS_API)
+                .addApi(Nearby.MESSAGES_API)
+                .setHandler(mHandler)
+                .build();
+        mTransport = new PlayServicesTransport(mGoogleApiClient, mContext.getPackageName(), mHandler);
+        mSharedSession = new SharedSession(new SharedSession.Client() {
+            @Override
+            public void open() {
+                debugLog("open");
+                mGoogleApiClient.connect();
+                mMetricsDumper.start();
+            }
+
+            @Override
+            public void close() {
+                debugLog("close");
+                tearDown();
+            }
+        }, scheduler, LINGER_MILLIS);
+
+        // Outgoing messages are batched and handed to Nearby on a background thread
+        mSendThread = new HandlerThread("NearbySend");
+        mSendThread.start();
+        mOutboundPipeline = new OutboundPipeline.Builder((endpointIds, payload, reliable) -> {
+            mMessagesOut.add(endpointIds.size());
+            mBytesOut.add((long) payload.length * endpointIds.size());
+            if (reliable) {
+                mTransport.sendReliableMessage(endpointIds, payload);
+            } else {
+                mTransport.sendUnreliableMessage(endpointIds, payload);
+            }
+        }, new HandlerScheduler(mSendThread.getLooper()))
+                .maxBatchBytes(Connections.MAX_RELIABLE_MESSAGE_LEN, Connections.MAX_UNRELIABLE_MESSAGE_LEN)
+                .build();
+        mConnectionManager = new ConnectionManager(mOutboundPipeline);
+        mConnectionManager.setListener(this::onPeerStateChanged);
+        mChannelMux = new ChannelMux(mConnectionManager, mOutboundPipeline,
+                NearbyApplication.get(mContext).getInboundBufferPool());
+        mCompressor = new PayloadCompressor.Builder(Debug::threadCpuTimeNanos)
+                .dictionary(mContext.getString(R.string.payload_dictionary).getBytes())
+                .build();
+        mChannelMux.setCompressor(mCompressor);
+        mChatChannel = mChannelMux.open(ChannelMux.CHANNEL_LEGACY, ChannelMux.Delivery.ORDERED_RELIABLE,
+                waking((endpointId, channel, message) -> {
+                    // the text is only decoded if it is going to be shown
+                    if (mDebugLog.isLoggable(DebugLog.DEBUG)) {
+                        debugLog("onMessageReceived", endpointId, "{}", message.toUtf8String());
+                    }
+                }));
+        ChannelMux.Channel transferChannel = mChannelMux.open(CHANNEL_TRANSFER,
+                ChannelMux.Delivery.ORDERED_RELIABLE, waking((endpointId, channel, message) ->
+                        mTransferManager.onFrameReceived(transferPeerOf(endpointId), message)));
+        mTransferManager = new TransferManager.Builder(
+                (peer, frame) -> transferChannel.send(Collections.singletonList(endpointIdOfTransferPeer(peer)),
+                        frame) > 0,
+                this::createTransferSink, new HandlerScheduler(mSendThread.getLooper()))
+                .chunkSize(TRANSFER_CHUNK_SIZE)
+                .build();
+        mTransferManager.setListener(mTransferListener);
+        final ChannelMux.Channel relayChannel = mChannelMux.open(CHANNEL_RELAY,
+                ChannelMux.Delivery.ORDERED_RELIABLE, waking((endpointId, channel, message) ->
+                        message.read((buffer, offset, length) -> {
+                            mRelayRouter.onFrameReceived(endpointId, buffer, offset, length);
+                            return null;
+                        })));
+        mRelayRouter = new RelayRouter.Builder(Long.toHexString(new Random().nextLong()),
+                new RelayRouter.Link() {
+                    @Override
+                    public Collection<String> getNeighbors() {
+                        // older builds would show relay frames as text, they get chat raw instead
+                        List<String> neighbors = mLinkMonitor.usable(mConnectionManager.getConnectedEndpointIds());
+                        neighbors.removeAll(mLegacyEndpointIds);
+                        return neighbors;
+                    }
+
+                    @Override
+                    public void send(Collection<String> endpointIds, byte[] frame) {
+                        relayChannel.send(endpointIds, frame);
+                    }
+                }, System::currentTimeMillis)
+                .ttl(RELAY_TTL)
+                .build();
+        final ChannelMux.Channel probeChannel = mChannelMux.open(CHANNEL_PROBE,
+                ChannelMux.Delivery.FIRE_AND_FORGET, (endpointId, channel, message) ->
+                        message.read((buffer, offset, length) -> {
+                            mLinkMonitor.onFrameReceived(endpointId, buffer, offset, length);
+                            return null;
+                        }));
+        mLinkMonitor = new LinkMonitor.Builder(mConnectionManager, (endpointId, frame) ->
+                probeChannel.send(Collections.singletonList(endpointId), frame) > 0, scheduler)
+                .probeIntervalMillis(PROBE_INTERVAL_MILLIS)
+                .build();
+        mLinkMonitor.setListener(mLinkListener);
+        final ChannelMux.Channel outboxChannel = mChannelMux.open(CHANNEL_OUTBOX,
+                ChannelMux.Delivery.ORDERED_RELIABLE, waking((endpointId, channel, message) ->
+                        message.read((buffer, offset, length) -> {
+                            String origin = mDeviceIds.get(endpointId);
+                            if (origin != null && mOutbox != null) {
+                                mOutbox.onFrameReceived(origin, buffer, offset, length);
+                            }
+                            return null;
+                        })));
+        mHandler.post(() -> openOutbox(outboxChannel, scheduler));
+        mRelayRouter.setListener((origin, hops, buffer, offset, length) -> {
+            if (mDebugLog.isLoggable(DebugLog.DEBUG)) {
+                debugLog("onRelayMessage", origin, "{}",
+                        hops + " hop(s): " + new String(buffer, offset, length));
+            }
+        });
+
+        mAdvertiseScan = new ScanScheduler(new ScanScheduler.Radio() {
+            @Override
+            public void start(long windowMillis) {
+                startAdvertising(windowMillis);
+            }
+
+            @Override
+            public void stop() {
+                if (mGoogleApiClient.isConnected()) {
+                    mTransport.stopAdvertising();
+                }
+            }
+        }, scheduler, SCAN_PROFILE);
+        mDiscoveryScan = new ScanScheduler(new ScanScheduler.Radio() {
+            @Override
+            public void start(long windowMillis) {
+                startDiscovery(windowMillis);
+            }
+
+            @Override
+            public void stop() {
+                if (mGoogleApiClient.isConnected()) {
+                    mTransport.stopDiscovery(mContext.getString(R.string.service_id));
+                }
+            }
+        }, scheduler, SCAN_PROFILE);
+        mReconnectScheduler = new ReconnectScheduler.Builder(mGoogleApiClient::reconnect, scheduler)
+                .build();
+        mReconnectScheduler.setListener(mReconnectListener);
+        mPeerHistory = new PeerHistory(new File(mContext.getFilesDir(), PEER_HISTORY_FILE),
+                PEER_HISTORY_CAPACITY, PEER_HISTORY_HALF_LIFE_MILLIS);
+        mHandler.post(this::loadPeerHistory);
+        mWarmStart = new WarmStart.Builder(new WarmStart.Actions() {
+            @Override
+            public void startDiscovery() {
+                mDiscoveryScan.setProfile(ScanProfile.LOW_LATENCY);
+                mDiscoveryScan.start();
+            }
+
+            @Override
+            public void stopDiscovery() {
+                mDiscoveryScan.stop();
+                mDiscoveryScan.setProfile(SCAN_PROFILE);
+                mUnlistedEndpoints.clear();
+            }
+
+            @Override
+            public void connect(String endpointId, String endpointName) {
+                requestConnection(endpointId, endpointName, mWarmStartDeviceIds.get(endpointName));
+            }
+        }, scheduler)
+                .timeoutMillis(WARM_START_TIMEOUT_MILLIS)
+                .build();
+        mAdmissionController = new AdmissionController.Builder(mConnectionManager, scheduler)
+                .rateLimit(ADMISSION_REQUESTS_PER_SECOND, ADMISSION_BURST)
+                .maxPeers(MAX_PEERS)
+                .acceptAppIdentifiers(AUTO_ACCEPT_APP_IDENTIFIERS)
+                .acceptToken(mContext.getString(R.string.admission_token).getBytes())
+                .build();
+
+        mMetrics.register("connections.accept_ms", mAdmissionController.getAcceptLatencyMillis());
+        mMetrics.register("connections.send_queue_ms", mOutboundPipeline.getLatencyMillis());
+        mMetrics.register("relay.hop_ms", mRelayRouter.getHopLatencyMillis());
+        mMetrics.register("relay.hops", mRelayRouter.getHopCounts());
+        mMetrics.register("compression.ratio_pct", mCompressor.getRatioPercent());
+        mMetrics.register("compression.cpu_us", mCompressor.getCompressMicros());
+        mMetrics.register("decompression.cpu_us", mCompressor.getDecompressMicros());
+        mMetrics.register("reconnect.warm_ms", mWarmStart.getWarmMillis());
+        mMetrics.register("reconnect.cold_ms", mWarmStart.getColdMillis());
+    }
+
+    private void loadPeerHistory() {
+        try {
+            mPeerHistory.load();
+        } catch (IOException e) {
+            mDebugLog.log(DebugLog.WARN, "peerHistory", null, "{}", e);
+        }
+        debugLog("loadPeerHistory", null, "{}", mPeerHistory);
+    }
+
+    private void savePeerHistory() {
+        try {
+            mPeerHistory.save();
+        } catch (IOException e) {
+            mDebugLog.log(DebugLog.WARN, "peerHistory", null, "{}", e);
+        }
+    }
+
+    /**
+     * Look for the peers most likely to be around again and reconnect to them, instead of
+     * waiting for the user to find and pick them. They are found by name, so the ones whose
+     * install id is known are dropped again if the handshake brings another.
+     */
+    private void warmStart() {
+        if (mWarmStart.isStarted()) {
+            // a client back from an outage, see mReconnectListener
+            return;
+        }
+        String serviceId = mContext.getString(R.string.service_id);
+        List<String> endpointNames = new ArrayList<>();
+        mWarmStartDeviceIds.clear();
+        for (PeerHistory.Peer peer : mPeerHistory.getLikelyPeers(serviceId, System.currentTimeMillis(),
+                WARM_START_PEERS)) {
+            endpointNames.add(peer.getName());
+            if (!peer.getDeviceId().isEmpty()) {
+                mWarmStartDeviceIds.put(peer.getName(), peer.getDeviceId());
+            }
+        }
+        mWarmStart.start(endpointNames);
+        debugLog("warmStart", null, "{}", mWarmStart);
+    }
+
+    private void openOutbox(final ChannelMux.Channel channel, HandlerScheduler scheduler) {
+        try {
+            mOutbox = new Outbox.Builder(OutboxLog.open(new File(mContext.getFilesDir(), OUTBOX_FILE)),
+                    (destination, frame) -> {
+                        String endpointId = endpointIdOf(destination);
+                        return endpointId != null && channel.send(Collections.singletonList(endpointId), frame) > 0;
+                    }, scheduler)
+                    .build();
+        } catch (IOException e) {
+            mDebugLog.log(DebugLog.WARN, "openOutbox", null, "{}", e);
+            return;
+        }
+        mOutbox.setListener((origin, buffer, offset, length) -> {
+            try {
+                RelayFraming.decodeCopy(buffer, offset, length, (relayOrigin, sequence, text, textOffset,
+                                                                 textLength) -> {
+                    // the relay may have brought it already, through another peer
+                    if (!mRelayRouter.markSeen(relayOrigin, sequence)) {
+                        return;
+                    }
+                    if (mDebugLog.isLoggable(DebugLog.DEBUG)) {
+                        debugLog("onOutboxMessage", origin, "{}", new String(text, textOffset, textLength));
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                debugLog("onOutboxMessage", origin, "malformed: {}", e.getMessage());
+            }
+        });
+        mOutbox.setErrorListener(e -> mDebugLog.log(DebugLog.WARN, "outbox", null, "{}", e));
+        mMetrics.register("outbox.commit_batch", mOutbox.getCommitBatchSizes());
+        mMetrics.register("outbox.sync_ms", mOutbox.getSyncMillis());
+        mCanQueueMessages = !mOutbox.getDestinations().isEmpty();
+        debugLog("openOutbox", null, "{}", mOutbox);
+    }
+
+    /**
+     * Hold the session, connecting the client if nobody held it yet.
+     */
+    public void acquire() {
+        mHandler.post(mSharedSession::acquire);
+    }
+
+    /**
+     * Let go of the session; the last release disconnects the client after a linger period.
+     */
+    public void release() {
+        mHandler.post(mSharedSession::release);
+    }
+
+    /**
+     * Whether {@link NearbyService} runs in background mode, where links are probed less often:
+     * every probe wakes the radio on both ends, and the estimates matter less with the screen off.
+     */
+    public void setBackground(final boolean background) {
+        mHandler.post(() -> mLinkMonitor.setProbeIntervalMillis(
+                background ? BACKGROUND_PROBE_INTERVAL_MILLIS : PROBE_INTERVAL_MILLIS));
+    }
+
+    /**
+     * Attach the screen, and repeat what happened while none was attached. Main thread.
+     */
+    public void attach(Ui ui) {
+        mUi = ui;
+        mHandler.post(() -> {
+            int state = mState;
+            postUi(attached -> attached.onStateChanged(state));
+            for (Map.Entry<String, String> endpoint : mFoundEndpoints.entrySet()) {
+                String endpointId = endpoint.getKey();
+                String endpointName = endpoint.getValue();
+                postUi(attached -> attached.onEndpointFound(endpointId, endpointName));
+            }
+            for (Map.Entry<String, String> request : mUndecidedRequests.entrySet()) {
+                String endpointId = request.getKey();
+                String endpointName = request.getValue();
+                postUi(attached -> attached.onConnectionRequest(endpointId, endpointName));
+            }
+        });
+    }
+
+    /**
+     * Main thread.
+     */
+    public void detach(Ui ui) {
+        if (mUi == ui) {
+            mUi = null;
+        }
+    }
+
+    /**
+     * The shared client, for screens that call the Play Services APIs or listen to its
+     * connection callbacks themselves.
+     */
+    public GoogleApiClient getGoogleApiClient() {
+        return mGoogleApiClient;
+    }
+
+    public NearbyTransport getTransport() {
+        return mTransport;
+    }
+
+    public DebugLog getDebugLog() {
+        return mDebugLog;
+    }
+
+    /**
+     * Link estimates for the connected peers, for any thread.
+     */
+    public Collection<LinkQuality> getLinkQualities() {
+        return mLinkMonitor.getQualities();
+    }
+
+    /**
+     * Per-peer round trip times, keyed by name since endpoint ids change between connections.
+     * Dropped when the peer disconnects, after going to the debug log.
+     */
+    private static String rttMetric(String endpointName) {
+        return "peer.rtt_ms." + endpointName;
+    }
+
+    /**
+     * Whether a message sent while no peer is connected would be kept for one, i.e. whether we
+     * have met a peer that sends its install id. Safe from any thread.
+     */
+    public boolean canQueueMessages() {
+        return mCanQueueMessages;
+    }
+
+    @NearbyConnectionState
+    public int getState() {
+        return mState;
+    }
+
+    @Override
+    public String toString() {
+        return "NearbySession{" + mSharedSession + ", " + mOutboundPipeline + " " + mChannelMux
+                + " " + NearbyApplication.get(mContext).getInboundBufferPool()
+                + ", advertise " + mAdvertiseScan + " discover " + mDiscoveryScan
+                + ", " + mAdmissionController + ", " + mWarmStart + ", " + mWakeWindow + "}";
+    }
+
+    public void startAdvertising() {
+        mHandler.post(mAdvertiseScan::start);
+    }
+
+    public void startDiscovery() {
+        mHandler.post(() -> {
+            if (mWarmStart.isSearchOnly()) {
+                // already running for the reconnect, list what it found so far
+                mDiscoveryScan.setProfile(SCAN_PROFILE);
+                for (Map.Entry<String, String> endpoint : mUnlistedEndpoints.entrySet()) {
+                    String endpointId = endpoint.getKey();
+                    String endpointName = endpoint.getValue();
+                    mFoundEndpoints.put(endpointId, endpointName);
+                    postUi(ui -> ui.onEndpointFound(endpointId, endpointName));
+                }
+                mUnlistedEndpoints.clear();
+            }
+            mWarmStart.onUserDiscovery();
+            mDiscoveryScan.start();
+        });
+    }
+
+    /**
+     * Drop everything tied to the client and disconnect it. When the GoogleAPIClient is
+     * disconnected, any connected peers will get an onDisconnected callback.
+     */
+    private void tearDown() {
+        mAdvertiseScan.stop();
+        mDiscoveryScan.stop();
+        mDiscoveryScan.setProfile(SCAN_PROFILE);
+        mWarmStart.cancel();
+        mWarmStartDeviceIds.clear();
+        savePeerHistory();
+        mConnectionManager.clear();
+        mAdmissionController.clear();
+        mTransferManager.clear();
+        mRelayRouter.clear();
+        mLinkMonitor.stop();
+        mCompressor.clear();
+        mDeviceIds.clear();
+        mLegacyEndpointIds.clear();
+        if (mOutbox != null) {
+            for (String destination : mOutbox.getDestinations()) {
+                mOutbox.onDisconnected(destination);
+            }
+            mOutbox.flush();
+        }
+        mDeviceIds.clear();
+        mOutboundPipeline.clear();
+        mReconnectScheduler.cancel();
+        mRequestedEndpointIds.clear();
+        mPeersToRestore.clear();
+        mFoundEndpoints.clear();
+        mUnlistedEndpoints.clear();
+        mUndecidedRequests.clear();
+        mRestoreAdvertising = false;
+        mRestoreDiscovery = false;
+        mGoogleApiClient.disconnect();
+        mWakeWindow.releaseNow();
+        mMetricsDumper.stop();
+        setState(STATE_IDLE);
+    }
+
+    /**
+     * Check if the device is connected (or connecting) to a WiFi network.
+     *
+     * @return true if connected or connecting, false otherwise.
+     */
+    private boolean isConnectedToNetwork() {
+        ConnectivityManager connManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+
+        return (info != null && info.isConnectedOrConnecting());
+    }
+
+    /**
+     * Begin advertising for Nearby Connections, if possible, for one scan window.
+     */
+    private void startAdvertising(long windowMillis) {
+        debugLog("startAdvertising");
+        if (!isConnectedToNetwork()) {
+            debugLog("startAdvertising", null, "not connected to WiFi network");
+            return;
+        }
+
+        // Advertise for Nearby Connections. This will broadcast the service id defined in
+        // AndroidManifest.xml. By passing 'null' for the name, the Nearby Connections API
+        // will construct a default name based on device model such as 'LGE Nexus 5'. The
+        // transport also advertises the package name, which lets other devices on the network
+        // discover this application and prompt the user to install it.
+        String name = null;
+        final long startedAt = SystemClock.uptimeMillis();
+        mTransport.startAdvertising(name, windowMillis, this::onConnectionRequest,
+                statusCode -> {
+                    Log.d(TAG, "startAdvertising:onResult:" + statusCode);
+                    mMetrics.histogram("connections.advertise.start_ms")
+                            .record(SystemClock.uptimeMillis() - startedAt);
+                    if (statusCode == NearbyTransport.STATUS_OK) {
+                        debugLog("startAdvertising:onResult", null, "SUCCESS");
+
+                        setState(STATE_ADVERTISING);
+                    } else {
+                        debugLog("startAdvertising:onResult", null, "FAILURE {}", statusCode);
+
+                        // If advertising from an earlier window has not stopped yet, the
+                        // error will be STATUS_ALREADY_ADVERTISING
+                        if (statusCode == NearbyTransport.STATUS_ALREADY_ADVERTISING) {
+                            debugLog("STATUS_ALREADY_ADVERTISING");
+                        } else {
+                            setState(STATE_READY);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Begin discovering devices advertising Nearby Connections, if possible, for one scan window.
+     */
+    private void startDiscovery(long windowMillis) {
+        debugLog("startDiscovery");
+        if (!isConnectedToNetwork()) {
+            debugLog("startDiscovery", null, "not connected to WiFi network");
+            return;
+        }
+
+        // Discover nearby apps that are advertising with the required service ID.
+        String serviceId = mContext.getString(R.string.service_id);
+        final long startedAt = SystemClock.uptimeMillis();
+        mTransport.startDiscovery(serviceId, windowMillis, mEndpointDiscoveryListener,
+                statusCode -> {
+                    mMetrics.histogram("connections.discover.start_ms")
+                            .record(SystemClock.uptimeMillis() - startedAt);
+                    if (statusCode == NearbyTransport.STATUS_OK) {
+                        debugLog("startDiscovery:onResult", null, "SUCCESS");
+
+                        setState(STATE_DISCOVERING);
+                    } else {
+                        debugLog("startDiscovery:onResult", null, "FAILURE {}", statusCode);
+
+                        // If discovery from an earlier window has not stopped yet, the
+                        // error will be STATUS_ALREADY_DISCOVERING
+                        if (statusCode == NearbyTransport.STATUS_ALREADY_DISCOVERING) {
+                            debugLog("STATUS_ALREADY_DISCOVERING");
+                        } else {
+                            setState(STATE_READY);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Send a chat message to every connected peer.
+     */
+    public void sendMessage(final String msg) {
+        mHandler.post(() -> send(msg));
+    }
+
+    /**
+     * Send a file, e.g. one the user picked, to every connected peer as a transfer; they write
+     * it to their app's files. {@code file:} and {@code content:} uris are both read.
+     */
+    public void sendFile(final Uri uri) {
+        mHandler.post(() -> {
+            String name = uri.getLastPathSegment();
+            long length = -1;
+            ContentResolver resolver = mContext.getContentResolver();
+            if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                length = new File(uri.getPath()).length();
+            } else {
+                Cursor cursor = resolver.query(uri,
+                        new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            if (!cursor.isNull(0)) {
+                                name = cursor.getString(0);
+                            }
+                            if (!cursor.isNull(1)) {
+                                length = cursor.getLong(1);
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+            if (name == null || name.isEmpty() || TRANSFER_NAME_CHAT.equals(name)) {
+                // the receiver would take it for chat
+                name = "transfer";
+            }
+            if (length > TRANSFER_MAX_FILE_LENGTH) {
+                mDebugLog.log(DebugLog.WARN, "sendFile", null, "{} bytes is too large", length);
+                return;
+            }
+            List<String> endpointIds = mConnectionManager.getConnectedEndpointIds();
+            for (String endpointId : endpointIds) {
+                InputStream in;
+                try {
+                    in = resolver.openInputStream(uri);
+                } catch (FileNotFoundException e) {
+                    mDebugLog.log(DebugLog.WARN, "sendFile", null, "{}", e);
+                    return;
+                }
+                mTransferManager.send(transferPeerOf(endpointId), name, in, length);
+            }
+            debugLog("sendFile", null, "to {} peer(s)", endpointIds.size());
+        });
+    }
+
+    private void send(String msg) {
+        mWakeWindow.touch();
+        // Chat goes out on an ORDERED_RELIABLE channel, which is guaranteed to be delivered
+        // eventually and to respect message ordering from sender to receiver. High-frequency data
+        // where only the newest value matters, such as showing one player's cursor location to
+        // another, belongs on a LATEST_VALUE channel, which sends unreliable messages and drops
+        // stale ones. Unreliable messages are often delivered faster than reliable messages.
+        // Chat is relayed, so it also reaches devices only connected to one of our peers.
+        byte[] payload = msg.getBytes();
+        if (payload.length > TRANSFER_CHUNK_SIZE
+                - RelayFraming.headerLength(mRelayRouter.getNodeId(), Integer.MAX_VALUE, "")) {
+            if (payload.length > TRANSFER_MAX_CHAT_LENGTH) {
+                mDebugLog.log(DebugLog.WARN, "sendMessage", null, "{} bytes is too long for chat", payload.length);
+                return;
+            }
+            // too large for one message, stream it to each peer in chunks
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            for (String endpointId : mConnectionManager.getConnectedEndpointIds()) {
+                mTransferManager.send(transferPeerOf(endpointId), TRANSFER_NAME_CHAT, buffer);
+            }
+            debugLog("sendMessage", null, "{} bytes as a transfer", payload.length);
+            return;
+        }
+        int sequence = mRelayRouter.getNextSequence();
+        int peers = mRelayRouter.broadcast(payload);
+        if (!mLegacyEndpointIds.isEmpty()) {
+            peers += mChatChannel.send(mLegacyEndpointIds, payload);
+        }
+        debugLog("sendMessage", null, "to {} peer(s)", peers);
+        // and kept for the peers we have met that are not here now; the relay may reach some of
+        // them anyway, the relay message id lets them drop the second copy
+        if (mOutbox != null) {
+            byte[] copy = RelayFraming.encodeCopy(mRelayRouter.getNodeId(), sequence, payload);
+            int queued = 0;
+            for (String destination : mOutbox.getDestinations()) {
+                if (!mOutbox.isConnected(destination)) {
+                    mOutbox.enqueue(destination, copy);
+                    queued++;
+                }
+            }
+            if (queued > 0) {
+                debugLog("sendMessage", null, "kept for {} peer(s) not connected", queued);
+            }
+        }
+    }
+
+    /**
+     * Send a connection request to a given endpoint.
+     *
+     * @param endpointId   the endpointId to which you want to connect.
+     * @param endpointName the name of the endpoint to which you want to connect. Not required to
+     *                     make the connection, but used to display after success or failure.
+     */
+    public void connectTo(final String endpointId, final String endpointName) {
+        mHandler.post(() -> requestConnection(endpointId, endpointName, null));
+    }
+
+    /**
+     * @param expectedDeviceId the install id the endpoint has to send in its handshake, or null
+     *                         for any endpoint.
+     */
+    private void requestConnection(String endpointId, final String endpointName,
+                                   final String expectedDeviceId) {
+        debugLog("connectTo", endpointId, "{}", endpointName);
+
+        // Send a connection request to a remote endpoint. By passing 'null' for the name,
+        // the Nearby Connections API will construct a default name based on device model
+        // such as 'LGE Nexus 5'.
+        String myName = null;
+        // lets the advertiser admit us without asking, see AdmissionController, and tells it
+        // what we decompress
+        byte[] myPayload = myHandshake(mContext.getString(R.string.admission_token).getBytes());
+        mConnectionManager.onConnecting(endpointId, endpointName);
+        mRequestedEndpointIds.add(endpointId);
+        final long requestedAt = SystemClock.uptimeMillis();
+        mTransport.sendConnectionRequest(myName, endpointId, myPayload,
+                (endpointId1, statusCode, bytes) -> {
+                    Log.d(TAG, "onConnectionResponse:" + endpointId1 + ":" + statusCode);
+                    mMetrics.histogram("connections.request.response_ms")
+                            .record(SystemClock.uptimeMillis() - requestedAt);
+                    if (statusCode == NearbyTransport.STATUS_OK) {
+                        // the advertiser's handshake, none from older builds
+                        onHandshake(endpointId1, bytes);
+                        String deviceId = mDeviceIds.get(endpointId1);
+                        if (expectedDeviceId != null && !expectedDeviceId.equals(deviceId)) {
+                            // another device that took the name of the one we looked for
+                            mDebugLog.log(DebugLog.WARN, "onConnectionResponse", endpointId1,
+                                    "{} is not the device it was last time, disconnecting", endpointName);
+                            mTransport.disconnectFromEndpoint(endpointId1);
+                            mCompressor.onPeerGone(endpointId1);
+                            mDeviceIds.remove(endpointId1);
+                            mLegacyEndpointIds.remove(endpointId1);
+                            mWarmStart.onConnectFailed(endpointName);
+                            mRequestedEndpointIds.remove(endpointId1);
+                            mConnectionManager.onDisconnected(endpointId1);
+                            return;
+                        }
+                        debugLog("onConnectionResponse", endpointId1, "{} SUCCESS", endpointName);
+                        postUi(ui -> ui.onConnectionResult(endpointName, true));
+                        mConnectionManager.onConnected(endpointId1, endpointName, SystemClock.uptimeMillis());
+                        mDiscoveryScan.onConnectionResult(true);
+                        onConnectionResult(endpointName, deviceId, true);
+                    } else {
+                        debugLog("onConnectionResponse", endpointId1, "{} FAILURE", endpointName);
+                        postUi(ui -> ui.onConnectionResult(endpointName, false));
+                        mDiscoveryScan.onConnectionResult(false);
+                        mWarmStart.onConnectFailed(endpointName);
+                        onConnectionResult(endpointName, null, false);
+                        mRequestedEndpointIds.remove(endpointId1);
+                        mConnectionManager.onDisconnected(endpointId1);
+                    }
+                }, this);
+    }
+
+    /**
+     * Remember how connecting to an advertiser went; only the requesting side keeps a history,
+     * since only it can find the peer again by discovery.
+     */
+    private void onConnectionResult(String endpointName, String deviceId, boolean success) {
+        mPeerHistory.onConnectionResult(mContext.getString(R.string.service_id), endpointName, deviceId,
+                success, System.currentTimeMillis());
+        savePeerHistory();
+    }
+
+    private void onConnectionRequest(final String endpointId, final String endpointName, byte[] payload) {
+        debugLog("onConnectionRequest", endpointId, "{}", endpointName);
+        mWakeWindow.touch();
+        mAdvertiseScan.onPeerFound();
+
+        // This device is advertising and has received a connection request. Policy decides it
+        // if it can; only requests it leaves open are put to the user.
+        AdmissionController.Verdict verdict =
+                mAdmissionController.onConnectionRequest(endpointId, endpointName, payload);
+        switch (verdict.getDecision()) {
+            case REJECT:
+                debugLog("onConnectionRequest", endpointId, "rejected: {}", verdict.getReason());
+                mTransport.rejectConnectionRequest(endpointId);
+                return;
+            case ACCEPT:
+                debugLog("onConnectionRequest", endpointId, "accepted: {}", verdict.getReason());
+                onHandshake(endpointId, payload);
+                mConnectionManager.onConnecting(endpointId, endpointName);
+                accept(endpointId, endpointName);
+                return;
+            default:
+                onHandshake(endpointId, payload);
+                mConnectionManager.onConnecting(endpointId, endpointName);
+                mUndecidedRequests.put(endpointId, endpointName);
+                postUi(ui -> ui.onConnectionRequest(endpointId, endpointName));
+                break;
+        }
+    }
+
+    public void acceptConnectionRequest(final String endpointId, final String endpointName) {
+        mHandler.post(() -> accept(endpointId, endpointName));
+    }
+
+    private void accept(final String endpointId, final String endpointName) {
+        mUndecidedRequests.remove(endpointId);
+        // our own handshake, so the requester learns what we decompress
+        byte[] payload = myHandshake(null);
+        mTransport.acceptConnectionRequest(endpointId, payload, this,
+                statusCode -> {
+                    if (statusCode == NearbyTransport.STATUS_OK) {
+                        debugLog("acceptConnectionRequest", endpointId, "SUCCESS");
+
+                        mConnectionManager.onConnected(endpointId, endpointName, SystemClock.uptimeMillis());
+                        mAdmissionController.onAccepted(endpointId);
+                        mAdvertiseScan.onConnectionResult(true);
+                    } else {
+                        debugLog("acceptConnectionRequest", endpointId, "FAILURE {}", statusCode);
+                        mAdmissionController.onRejected(endpointId, "accept failed");
+                        mCompressor.onPeerGone(endpointId);
+                        mDeviceIds.remove(endpointId);
+                        mLegacyEndpointIds.remove(endpointId);
+                        mAdvertiseScan.onConnectionResult(false);
+                        mConnectionManager.onDisconnected(endpointId);
+                    }
+                });
+    }
+
+    /**
+     * Our handshake: what we decompress and who we are, and on requests the admission token.
+     */
+    private byte[] myHandshake(byte[] token) {
+        return new ConnectionHandshake(mContext.getPackageName(), token, PayloadCompressor.CODECS,
+                mCompressor.getDictionaryIds(), mInstallId).encode();
+    }
+
+    /**
+     * Take in a peer's connection payload; older builds send no handshake, or one without
+     * some of the fields.
+     */
+    private void onHandshake(String endpointId, byte[] payload) {
+        ConnectionHandshake handshake;
+        try {
+            handshake = ConnectionHandshake.decode(payload);
+        } catch (IllegalArgumentException e) {
+            handshake = null;
+        }
+        mCompressor.onHandshake(endpointId, handshake);
+        if (handshake != null && !handshake.getDeviceId().isEmpty()) {
+            mDeviceIds.put(endpointId, handshake.getDeviceId());
+        } else {
+            mDeviceIds.remove(endpointId);
+        }
+        if (handshake == null) {
+            mLegacyEndpointIds.add(endpointId);
+        } else {
+            mLegacyEndpointIds.remove(endpointId);
+        }
+    }
+
+    /**
+     * Transfers are keyed by the peer's install id, which unlike its endpoint id is the same
+     * after a reconnect, so they can resume. Older builds send none and are keyed by endpoint
+     * id. Safe from any thread, the transfer manager sends on the send thread.
+     */
+    private String transferPeerOf(String endpointId) {
+        String deviceId = mDeviceIds.get(endpointId);
+        return deviceId != null ? deviceId : endpointId;
+    }
+
+    private String endpointIdOfTransferPeer(String peer) {
+        String endpointId = endpointIdOf(peer);
+        return endpointId != null ? endpointId : peer;
+    }
+
+    /**
+     * The connected endpoint of an install, null if it is not connected.
+     */
+    private String endpointIdOf(String deviceId) {
+        for (Map.Entry<String, String> entry : mDeviceIds.entrySet()) {
+            if (entry.getValue().equals(deviceId) && mConnectionManager.isConnected(entry.getKey())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    public void rejectConnectionRequest(final String endpointId) {
+        mHandler.post(() -> {
+            mUndecidedRequests.remove(endpointId);
+            mTransport.rejectConnectionRequest(endpointId);
+            mAdmissionController.onRejected(endpointId, "user");
+            mCompressor.onPeerGone(endpointId);
+            mDeviceIds.remove(endpointId);
+            mLegacyEndpointIds.remove(endpointId);
+            mConnectionManager.onDisconnected(endpointId);
+        });
+    }
+
+    @Override
+    public void onMessageReceived(String endpointId, byte[] payload, boolean isReliable) {
+        // A message has been received from a remote endpoint. The channels that do work with
+        // it keep the CPU up, see waking().
+        mMessagesIn.increment();
+        mBytesIn.add(payload.length);
+        mConnectionManager.onMessageReceived(endpointId, payload);
+        try {
+            mChannelMux.onMessageReceived(endpointId, payload, isReliable);
+        } catch (IllegalArgumentException e) {
+            debugLog("onMessageReceived", endpointId, "malformed payload: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A receiver that keeps the CPU up for a while after each message, for the handling it
+     * queued to go out.
+     */
+    private ChannelMux.Receiver waking(final ChannelMux.Receiver receiver) {
+        return (endpointId, channel, message) -> {
+            mWakeWindow.touch();
+            receiver.onChannelMessage(endpointId, channel, message);
+        };
+    }
+
+    @Override
+    public void onDisconnected(String endpointId) {
+        debugLog("onDisconnected", endpointId);
+        if (mState != STATE_IDLE) {
+            // a disconnect caused by losing the client should still be restored
+            mRequestedEndpointIds.remove(endpointId);
+        }
+
+        mUndecidedRequests.remove(endpointId);
+        mLegacyEndpointIds.remove(endpointId);
+        mConnectionManager.onDisconnected(endpointId);
+        mChannelMux.onEndpointGone(endpointId);
+        // after the peer state listener, which still looks the install id up
+        mDeviceIds.remove(endpointId);
+    }
+
+    private final NearbyTransport.EndpointDiscoveryListener mEndpointDiscoveryListener =
+            new NearbyTransport.EndpointDiscoveryListener() {
+                @Override
+                public void onEndpointFound(String endpointId, String serviceId, String endpointName) {
+                    Log.d(TAG, "onEndpointFound:" + endpointId + ":" + endpointName);
+
+                    // This device is discovering endpoints and has located an advertiser. A peer
+                    // of an earlier session is reconnected to without asking; while discovery
+                    // only runs for that, the rest is not shown until the user asks.
+                    mDiscoveryScan.onPeerFound();
+                    mPeerHistory.onSeen(serviceId, endpointName, System.currentTimeMillis());
+                    if (mWarmStart.onEndpointFound(endpointId, endpointName)) {
+                        debugLog("onEndpointFound", endpointId, "reconnecting to {}", endpointName);
+                        return;
+                    }
+                    if (mWarmStart.isSearchOnly()) {
+                        mUnlistedEndpoints.put(endpointId, endpointName);
+                        return;
+                    }
+                    mFoundEndpoints.put(endpointId, endpointName);
+                    postUi(ui -> ui.onEndpointFound(endpointId, endpointName));
+                }
+
+                @Override
+                public void onEndpointLost(String endpointId) {
+                    debugLog("onEndpointLost", endpointId);
+
+                    // An endpoint that was previously available for connection is no longer. It
+                    // may have stopped advertising, gone out of range, or lost connectivity.
+                    mUnlistedEndpoints.remove(endpointId);
+                    if (mFoundEndpoints.remove(endpointId) != null) {
+                        postUi(ui -> ui.onEndpointLost(endpointId));
+                    }
+                }
+            };
+
+    /**
+     * The message UI is shown while at least one peer is connected.
+     */
+    private void onPeerStateChanged(Peer peer, int oldState, int newState) {
+        String deviceId = mDeviceIds.get(peer.getEndpointId());
+        if (newState == Peer.STATE_CONNECTED) {
+            mTransferManager.onPeerConnected(transferPeerOf(peer.getEndpointId()));
+            mWarmStart.onPeerConnected(peer.getName());
+            if (deviceId != null && mOutbox != null) {
+                // remembered from now on, and sent whatever was kept for it
+                mOutbox.onConnected(deviceId);
+                mCanQueueMessages = true;
+            }
+        } else if (oldState == Peer.STATE_CONNECTED) {
+            LongHistogram rtt = mMetrics.unregister(rttMetric(peer.getName()));
+            if (rtt != null) {
+                debugLog("onDisconnected", peer.getEndpointId(), "rtt {}", rtt);
+            }
+            mTransferManager.onPeerDisconnected(transferPeerOf(peer.getEndpointId()));
+            mRelayRouter.onNeighborDisconnected(peer.getEndpointId());
+            if (deviceId != null && mOutbox != null) {
+                mOutbox.onDisconnected(deviceId);
+            }
+        }
+        if (mConnectionManager.getConnectedCount() > 0) {
+            mLinkMonitor.start();
+            if (mState != STATE_CONNECTED) {
+                setState(STATE_CONNECTED);
+            }
+        } else {
+            mLinkMonitor.stop();
+            if (mState == STATE_CONNECTED) {
+                setState(STATE_READY);
+            }
+        }
+    }
+
+    private final LinkMonitor.Listener mLinkListener = new LinkMonitor.Listener() {
+        @Override
+        public void onRoundTrip(String endpointId, long rttMillis) {
+            Peer peer = mConnectionManager.getPeer(endpointId);
+            if (peer != null) {
+                mMetrics.histogram(rttMetric(peer.getName())).record(rttMillis);
+            }
+        }
+
+        @Override
+        public void onStateChanged(LinkQuality quality, int oldState) {
+            mDebugLog.log(quality.getState() == LinkQuality.STATE_UNRESPONSIVE ? DebugLog.WARN : DebugLog.DEBUG,
+                    "linkQuality", quality.getEndpointId(), "{}", quality);
+        }
+    };
+
+    @Override
+    public void onConnected(Bundle bundle) {
+        debugLog("onConnected");
+        setState(STATE_READY);
+        mReconnectScheduler.onConnected();
+        // once per session, a client back from an outage restores its peers itself
+        warmStart();
+    }
+
+    @Override
+    public void onConnectionSuspended(int i) {
+        debugLog("onConnectionSuspended", null, "cause {}", i);
+        rememberSessions();
+        setState(STATE_IDLE);
+
+        // Re-connect with backoff rather than right away, Play Services may be flapping
+        mReconnectScheduler.onConnectionSuspended();
+    }
+
+    @Override
+    public void onConnectionFailed(@NonNull ConnectionResult connectionResult) {
+        debugLog("onConnectionFailed", null, "{}", connectionResult);
+        rememberSessions();
+        setState(STATE_IDLE);
+        if (mSharedSession.isOpen()) {
+            mReconnectScheduler.onConnectionFailed();
+        }
+    }
+
+    /**
+     * Note what was running when the client went away, so it can be restored on recovery. Only
+     * the first loss of an outage counts, later failures find nothing running.
+     */
+    private void rememberSessions() {
+        if (mState == STATE_IDLE) {
+            return;
+        }
+        mRestoreAdvertising = mAdvertiseScan.isRunning();
+        mRestoreDiscovery = mDiscoveryScan.isRunning();
+        mAdvertiseScan.stop();
+        mDiscoveryScan.stop();
+        mPeersToRestore.clear();
+        for (Peer peer : mConnectionManager.getPeers()) {
+            if (peer.isConnected() && mRequestedEndpointIds.contains(peer.getEndpointId())) {
+                mPeersToRestore.add(peer);
+                String deviceId = mDeviceIds.get(peer.getEndpointId());
+                if (deviceId != null) {
+                    mWarmStartDeviceIds.put(peer.getName(), deviceId);
+                }
+            }
+        }
+    }
+
+    private final ReconnectScheduler.Listener mReconnectListener = new ReconnectScheduler.Listener() {
+        @Override
+        public void onRecovered(long downtimeMillis, int attempts) {
+            debugLog("reconnected", null, "{}", mReconnectScheduler);
+            if (mRestoreAdvertising) {
+                mAdvertiseScan.start();
+            }
+            if (mRestoreDiscovery) {
+                mWarmStart.onUserDiscovery();
+                mDiscoveryScan.start();
+            }
+            // the endpoint ids from before the outage are likely gone, so the peers are found
+            // again by name and dropped if their handshake brings another install id
+            List<String> endpointNames = new ArrayList<>();
+            for (Peer peer : mPeersToRestore) {
+                if (!mConnectionManager.isConnected(peer.getEndpointId())) {
+                    endpointNames.add(peer.getName());
+                }
+            }
+            mWarmStart.search(endpointNames);
+            mPeersToRestore.clear();
+            mRestoreAdvertising = false;
+            mRestoreDiscovery = false;
+        }
+
+        @Override
+        public void onCircuitOpen(long retryInMillis) {
+            mDebugLog.log(DebugLog.WARN, "reconnect", null, "giving up for {} ms", retryInMillis);
+        }
+    };
+
+    private void setState(@NearbyConnectionState final int state) {
+        mState = state;
+        postUi(ui -> ui.onStateChanged(state));
+    }
+
+    private interface UiEvent {
+        void deliver(Ui ui);
+    }
+
+    /**
+     * Call the attached screen on the main thread, if one is attached by the time it runs.
+     */
+    private void postUi(final UiEvent event) {
+        mMainHandler.post(() -> {
+            Ui ui = mUi;
+            if (ui != null) {
+                event.deliver(ui);
+            }
+        });
+    }
+
+    /**
+     * Record an event in the debug log and, in debug builds, print it to LogCat.
+     *
+     * @param event the event name.
+     */
+    private void debugLog(String event) {
+        debugLog(event, null, null, null);
+    }
+
+    private void debugLog(String event, String endpointId) {
+        debugLog(event, endpointId, null, null);
+    }
+
+    private void debugLog(String event, String endpointId, String message) {
+        debugLog(event, endpointId, message, null);
+    }
+
+    /**
+     * @param endpointId the endpoint the event is about, or null.
+     * @param format     message with an optional {@code {}} placeholder, formatted only when shown.
+     * @param arg        value for the placeholder.
+     */
+    private void debugLog(String event, String endpointId, String format, Object arg) {
+        mDebugLog.log(DebugLog.DEBUG, event, endpointId, format, arg);
+    }
+
+    /**
+     * Chat overflow is reassembled in memory, anything else is written to the app's files.
+     * Runs on the send thread.
+     */
+    private TransferSink createTransferSink(String endpointId, String name, long totalLength)
+            throws IOException {
+        if (TRANSFER_NAME_CHAT.equals(name)) {
+            if (totalLength < 0 || totalLength > TRANSFER_MAX_CHAT_LENGTH) {
+                debugLog("transferRefused", endpointId, "chat of {} bytes", totalLength);
+                return null;
+            }
+            return new ByteArraySink((int) totalLength);
+        }
+        if (totalLength > TRANSFER_MAX_FILE_LENGTH) {
+            debugLog("transferRefused", endpointId, "file of {} bytes", totalLength);
+            return null;
+        }
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = mContext.getFilesDir();
+        }
+        File received = new File(dir, "received");
+        if (!received.isDirectory() && !received.mkdirs()) {
+            throw new IOException("Cannot create " + received);
+        }
+        // never let the sender pick the directory, nor overwrite what is there
+        String fileName = new File(name).getName();
+        if (fileName.isEmpty() || fileName.equals("..")) {
+            fileName = "transfer";
+        }
+        return new FileSink(createUniqueFile(received, fileName),
+                totalLength >= 0 ? totalLength : TRANSFER_MAX_FILE_LENGTH);
+    }
+
+    /**
+     * Create a file named {@code name} in {@code dir}, or "name (1)", "name (2)"... if taken.
+     */
+    private static File createUniqueFile(File dir, String name) throws IOException {
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 0; i < 1000; i++) {
+            File file = new File(dir, i == 0 ? base + extension : base + " (" + i + ")" + extension);
+            if (file.createNewFile()) {
+                return file;
+            }
+        }
+        throw new IOException("No free name for " + name + " in " + dir);
+    }
+
+    private final TransferManager.Listener mTransferListener = new TransferManager.Listener() {
+        @Override
+        public void onTransferProgress(Transfer transfer) {
+            debugLog("transferProgress", transfer.getEndpointId(), "{}", transfer);
+        }
+
+        @Override
+        public void onTransferComplete(Transfer transfer, TransferSink sink) {
+            if (sink instanceof ByteArraySink && TRANSFER_NAME_CHAT.equals(transfer.getName())) {
+                ByteArraySink chat = (ByteArraySink) sink;
+                debugLog("onMessageReceived", transfer.getEndpointId(), "{}",
+                        new PayloadText(chat.buffer(), 0, chat.size()));
+            } else {
+                debugLog("transferComplete", transfer.getEndpointId(), "{}", transfer);
+            }
+        }
+
+        @Override
+        public void onTransferFailed(Transfer transfer, String reason) {
+            mDebugLog.log(DebugLog.WARN, "transferFailed", transfer.getEndpointId(), "{}: {}",
+                    transfer, reason);
+        }
+    };
+
+    /**
+     * Decodes a received payload for display only when the log entry is rendered.
+     */
+    private static final class PayloadText {
+        private final byte[] mPayload;
+        private final int mOffset;
+        private final int mLength;
+
+        PayloadText(byte[] payload, int offset, int length) {
+            mPayload = payload;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public String toString() {
+            return new String(mPayload, mOffset, mLength);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package me.tatocaster.nearbyconnection;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.AppIdentifier;
+import com.google.android.gms.nearby.connection.AppMetadata;
+import com.google.android.gms.nearby.connection.Connections;
+import com.google.android.gms.nearby.messages.Message;
+import com.google.android.gms.nearby.messages.PublishCallback;
+import com.google.android.gms.nearby.messages.PublishOptions;
+import com.google.android.gms.nearby.messages.Strategy;
+import com.google.android.gms.nearby.messages.SubscribeCallback;
+import com.google.android.gms.nearby.messages.SubscribeOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.transport.NearbyTransport;
+
+/**
+ * {@link NearbyTransport} on top of the Play Services Nearby APIs. The caller owns the
+ * GoogleApiClient, which must have the APIs it uses added and be connected. Listener callbacks
+ * run on the callback handler; result callbacks on the client's own handler.
+ */
+public class PlayServicesTransport implements NearbyTransport {
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final AppMetadata mAppMetadata;
+    private final Handler mCallbackHandler;
+
+    // the listener and message instances Nearby needs back to unsubscribe and unpublish; the
+    // Messages API's MessageListener is spelled out since NearbyTransport has one too
+    private final Map<SubscriptionListener, com.google.android.gms.nearby.messages.MessageListener> mSubscriptions = new HashMap<>();
+    private final List<Message> mPublished = new ArrayList<>();
+
+    /**
+     * @param packageName     advertised so other devices can prompt the user to install the app.
+     * @param callbackHandler where listener callbacks run, e.g. the handler the client was
+     *                        built with, so every callback arrives on one thread.
+     */
+    public PlayServicesTransport(GoogleApiClient googleApiClient, String packageName, Handler callbackHandler) {
+        mGoogleApiClient = googleApiClient;
+        mAppMetadata = new AppMetadata(Collections.singletonList(new AppIdentifier(packageName)));
+        mCallbackHandler = callbackHandler;
+    }
+
+    @Override
+    public void startAdvertising(String name, long timeoutMillis, ConnectionRequestListener listener,
+                                 ResultCallback callback) {
+        Nearby.Connections.startAdvertising(mGoogleApiClient, name, mAppMetadata, timeoutMillis,
+                (endpointId, endpointName, payload) -> deliver(() ->
+                        listener.onConnectionRequest(endpointId, endpointName, payload)))
+                .setResultCallback(result -> callback.onResult(result.getStatus().getStatusCode()));
+    }
+
+    @Override
+    public void stopAdvertising() {
+        Nearby.Connections.stopAdvertising(mGoogleApiClient);
+    }
+
+    @Override
+    public void startDiscovery(String serviceId, long timeoutMillis, final EndpointDiscoveryListener listener,
+                               ResultCallback callback) {
+        Nearby.Connections.startDiscovery(mGoogleApiClient, serviceId, timeoutMillis,
+                new Connections.EndpointDiscoveryListener() {
+                    @Override
+                    public void onEndpointFound(String endpointId, String serviceId, String name) {
+                        deliver(() -> listener.onEndpointFound(endpointId, serviceId, name));
+                    }
+
+                    @Override
+                    public void onEndpointLost(String endpointId) {
+                        deliver(() -> listener.onEndpointLost(endpointId));
+                    }
+                })
+                .setResultCallback(status -> callback.onResult(status.getStatusCode()));
+    }
+
+    @Override
+    public void stopDiscovery(String serviceId) {
+        Nearby.Connections.stopDiscovery(mGoogleApiClient, serviceId);
+    }
+
+    @Override
+    public void sendConnectionRequest(String name, String endpointId, byte[] payload,
+                                      ConnectionResponseListener responseListener,
+                                      MessageListener messageListener) {
+        Nearby.Connections.sendConnectionRequest(mGoogleApiClient, name, endpointId, payload,
+                (remoteEndpointId, status, handshakeData) -> deliver(() ->
+                        responseListener.onConnectionResponse(remoteEndpointId, status.getStatusCode(), handshakeData)),
+                wrap(messageListener));
+    }
+
+    @Override
+    public void acceptConnectionRequest(String endpointId, byte[] payload, MessageListener messageListener,
+                                        ResultCallback callback) {
+        Nearby.Connections.acceptConnectionRequest(mGoogleApiClient, endpointId, payload, wrap(messageListener))
+                .setResultCallback(status -> callback.onResult(status.getStatusCode()));
+    }
+
+    @Override
+    public void rejectConnectionRequest(String endpointId) {
+        Nearby.Connections.rejectConnectionRequest(mGoogleApiClient, endpointId);
+    }
+
+    @Override
+    public void sendReliableMessage(List<String> endpointIds, byte[] payload) {
+        Nearby.Connections.sendReliableMessage(mGoogleApiClient, endpointIds, payload);
+    }
+
+    @Override
+    public void sendUnreliableMessage(List<String> endpointIds, byte[] payload) {
+        Nearby.Connections.sendUnreliableMessage(mGoogleApiClient, endpointIds, payload);
+    }
+
+    @Override
+    public void disconnectFromEndpoint(String endpointId) {
+        Nearby.Connections.disconnectFromEndpoint(mGoogleApiClient, endpointId);
+    }
+
+    @Override
+    public void publish(byte[] content, int ttlSeconds, final PubSubCallback callback) {
+        PublishOptions options = new PublishOptions.Builder()
+                .setStrategy(new Strategy.Builder().setTtlSeconds(ttlSeconds).build())
+                .setCallback(new PublishCallback() {
+                    @Override
+                    public void onExpired() {
+                        super.onExpired();
+                        deliver(callback::onExpired);
+                    }
+                }).build();
+        Message message = new Message(content);
+        synchronized (mPublished) {
+            mPublished.add(message);
+        }
+        Nearby.Messages.publish(mGoogleApiClient, message, options)
+                .setResultCallback(status -> callback.onResult(status.getStatusCode()));
+    }
+
+    @Override
+    public void unpublish(byte[] content) {
+        synchronized (mPublished) {
+            for (int i = mPublished.size() - 1; i >= 0; i--) {
+                Message message = mPublished.get(i);
+                if (Arrays.equals(message.getContent(), content)) {
+                    mPublished.remove(i);
+                    Nearby.Messages.unpublish(mGoogleApiClient, message);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(final SubscriptionListener listener, int ttlSeconds, final PubSubCallback callback) {
+        com.google.android.gms.nearby.messages.MessageListener messageListener;
+        synchronized (mSubscriptions) {
+            messageListener = mSubscriptions.get(listener);
+            if (messageListener == null) {
+                messageListener = new com.google.android.gms.nearby.messages.MessageListener() {
+                    @Override
+                    public void onFound(Message message) {
+                        deliver(() -> listener.onFound(message.getContent()));
+                    }
+
+                    @Override
+                    public void onLost(Message message) {
+                        deliver(() -> listener.onLost(message.getContent()));
+                    }
+                };
+                mSubscriptions.put(listener, messageListener);
+            }
+        }
+        SubscribeOptions options = new SubscribeOptions.Builder()
+                .setStrategy(new Strategy.Builder().setTtlSeconds(ttlSeconds).build())
+                .setCallback(new SubscribeCallback() {
+                    @Override
+                    public void onExpired() {
+                        super.onExpired();
+                        deliver(callback::onExpired);
+                    }
+                }).build();
+        Nearby.Messages.subscribe(mGoogleApiClient, messageListener, options)
+                .setResultCallback(status -> callback.onResult(status.getStatusCode()));
+    }
+
+    @Override
+    public void unsubscribe(SubscriptionListener listener) {
+        com.google.android.gms.nearby.messages.MessageListener messageListener;
+        synchronized (mSubscriptions) {
+            messageListener = mSubscriptions.remove(listener);
+        }
+        if (messageListener != null) {
+            Nearby.Messages.unsubscribe(mGoogleApiClient, messageListener);
+        }
+    }
+
+    private Connections.MessageListener wrap(final MessageListener listener) {
+        return new Connections.MessageListener() {
+            @Override
+            public void onMessageReceived(String endpointId, byte[] payload, boolean isReliable) {
+                deliver(() -> listener.onMessageReceived(endpointId, payload, isReliable));
+            }
+
+            @Override
+            public void onDisconnected(String endpointId) {
+                deliver(() -> listener.onDisconnected(endpointId));
+            }
+        };
+    }
+
+    /**
+     * Run a listener callback on the callback handler, right away if already on its thread.
+     */
+    private void deliver(Runnable callback) {
+        if (Looper.myLooper() == mCallbackHandler.getLooper()) {
+            callback.run();
+        } else {
+            mCallbackHandler.post(callback);
+        }
+    }
+}
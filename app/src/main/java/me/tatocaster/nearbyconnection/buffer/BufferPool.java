@@ -0,0 +1,242 @@
+package me.tatocaster.nearbyconnection.buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of byte arrays for inbound payloads.
+ * <p>
+ * Requests are rounded up to a power of two between {@code minBufferSize} and
+ * {@code maxBufferSize}; each class keeps up to {@code maxPooledPerClass} free arrays. Larger
+ * requests get an exact, unpooled array. The Connections limits (4096 reliable, 1168 unreliable
+ * bytes) fit in the default classes.
+ * <p>
+ * With leak detection on, one buffer in {@code samplingInterval} is tracked and records where it
+ * was acquired. A tracked buffer that becomes unreachable without being released is reported to
+ * the {@link LeakListener} the next time someone acquires a buffer. A leak that happens once per
+ * message is found within a few intervals, at a stack trace per interval instead of per buffer.
+ * A reference kept past release needs no watching: every access after it throws.
+ */
+public final class BufferPool {
+
+    public interface LeakListener {
+        /**
+         * @param allocationSite where the leaked buffer was acquired.
+         */
+        void onLeak(String description, Throwable allocationSite);
+    }
+
+    public static final class Builder {
+        private int mMinBufferSize = 128;
+        private int mMaxBufferSize = 8192;
+        private int mMaxPooledPerClass = 32;
+        private int mLeakSamplingInterval;
+        private LeakListener mLeakListener;
+
+        /**
+         * Smallest and largest pooled array, rounded up to powers of two.
+         */
+        public Builder bufferSizes(int min, int max) {
+            mMinBufferSize = min;
+            mMaxBufferSize = max;
+            return this;
+        }
+
+        public Builder maxPooledPerClass(int maxPooledPerClass) {
+            mMaxPooledPerClass = maxPooledPerClass;
+            return this;
+        }
+
+        /**
+         * @param listener         told about buffers that were never released, may be null to
+         *                         only count.
+         * @param samplingInterval track one buffer in this many, 1 to track all.
+         */
+        public Builder leakDetection(LeakListener listener, int samplingInterval) {
+            mLeakSamplingInterval = samplingInterval;
+            mLeakListener = listener;
+            return this;
+        }
+
+        public BufferPool build() {
+            if (mMinBufferSize <= 0 || mMaxBufferSize < mMinBufferSize || mMaxPooledPerClass < 0) {
+                throw new IllegalArgumentException("bad pool sizes");
+            }
+            if (mLeakSamplingInterval < 0) {
+                throw new IllegalArgumentException("bad leak sampling interval");
+            }
+            return new BufferPool(this);
+        }
+    }
+
+    static final class LeakRef extends WeakReference<PooledBuffer> {
+        final int length;
+        final Throwable allocationSite;
+
+        LeakRef(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            length = buffer.length();
+            allocationSite = new Throwable("Buffer of " + length + " bytes acquired here");
+        }
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final byte[][] free;
+        int count;
+
+        SizeClass(int size, int capacity) {
+            this.size = size;
+            this.free = new byte[capacity][];
+        }
+    }
+
+    private final SizeClass[] mClasses;
+    private final int mMinShift;
+    private final boolean mLeakDetection;
+    private final int mLeakSamplingInterval;
+    private final LeakListener mLeakListener;
+    private final ReferenceQueue<PooledBuffer> mLeakQueue = new ReferenceQueue<>();
+    private final Set<LeakRef> mLiveRefs =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakRef, Boolean>());
+
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mLeaked = new AtomicLong();
+
+    public BufferPool() {
+        this(new Builder());
+    }
+
+    private BufferPool(Builder builder) {
+        int min = roundUp(builder.mMinBufferSize);
+        int max = roundUp(builder.mMaxBufferSize);
+        mMinShift = Integer.numberOfTrailingZeros(min);
+        mClasses = new SizeClass[Integer.numberOfTrailingZeros(max) - mMinShift + 1];
+        for (int i = 0; i < mClasses.length; i++) {
+            mClasses[i] = new SizeClass(min << i, builder.mMaxPooledPerClass);
+        }
+        mLeakDetection = builder.mLeakSamplingInterval > 0;
+        mLeakSamplingInterval = builder.mLeakSamplingInterval;
+        mLeakListener = builder.mLeakListener;
+    }
+
+    /**
+     * A buffer of {@code length} bytes with unspecified content. Package-private since buffers
+     * are read-only outside this package; use {@link #copyOf}.
+     */
+    PooledBuffer acquire(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("negative length " + length);
+        }
+        if (mLeakDetection) {
+            reportLeaks();
+        }
+        long sequence = mAcquired.incrementAndGet();
+        SizeClass sizeClass = sizeClassFor(length);
+        byte[] array = null;
+        if (sizeClass != null) {
+            synchronized (sizeClass) {
+                if (sizeClass.count > 0) {
+                    array = sizeClass.free[--sizeClass.count];
+                    sizeClass.free[sizeClass.count] = null;
+                }
+            }
+        }
+        if (array == null) {
+            mAllocated.incrementAndGet();
+            array = new byte[sizeClass != null ? sizeClass.size : length];
+        }
+        PooledBuffer buffer = new PooledBuffer(this, array, length);
+        if (mLeakDetection && sequence % mLeakSamplingInterval == 0) {
+            buffer.mLeakRef = new LeakRef(buffer, mLeakQueue);
+            mLiveRefs.add(buffer.mLeakRef);
+        }
+        return buffer;
+    }
+
+    /**
+     * A pooled copy of the region, with one reference owned by the caller.
+     */
+    public PooledBuffer copyOf(byte[] source, int offset, int length) {
+        PooledBuffer buffer = acquire(length);
+        System.arraycopy(source, offset, buffer.array(), 0, length);
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer, byte[] array) {
+        mReleased.incrementAndGet();
+        LeakRef leakRef = buffer.mLeakRef;
+        if (leakRef != null) {
+            mLiveRefs.remove(leakRef);
+            leakRef.clear();
+        }
+        SizeClass sizeClass = sizeClassFor(array.length);
+        if (sizeClass == null || sizeClass.size != array.length) {
+            return;
+        }
+        synchronized (sizeClass) {
+            if (sizeClass.count < sizeClass.free.length) {
+                sizeClass.free[sizeClass.count++] = array;
+            }
+        }
+    }
+
+    /**
+     * Buffers acquired and not yet released, leaked ones included.
+     */
+    public long getOutstandingCount() {
+        return mAcquired.get() - mReleased.get();
+    }
+
+    /**
+     * Arrays allocated because the pool had none of the right size.
+     */
+    public long getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    public long getLeakedCount() {
+        return mLeaked.get();
+    }
+
+    /**
+     * Report buffers that were collected without being released. Runs on every acquire when
+     * leak detection is on.
+     */
+    public void reportLeaks() {
+        LeakRef leakRef;
+        while ((leakRef = (LeakRef) mLeakQueue.poll()) != null) {
+            if (mLiveRefs.remove(leakRef)) {
+                mLeaked.incrementAndGet();
+                LeakListener listener = mLeakListener;
+                if (listener != null) {
+                    listener.onLeak("PooledBuffer of " + leakRef.length
+                            + " bytes was garbage collected without release()", leakRef.allocationSite);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{acquired=" + mAcquired.get() + ", allocated=" + mAllocated.get()
+                + ", outstanding=" + getOutstandingCount() + ", leaked=" + mLeaked.get() + "}";
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        int index = length <= 1 ? 0
+                : Math.max(0, 32 - Integer.numberOfLeadingZeros(length - 1) - mMinShift);
+        return index < mClasses.length ? mClasses[index] : null;
+    }
+
+    private static int roundUp(int size) {
+        int rounded = Integer.highestOneBit(size);
+        return rounded < size ? rounded << 1 : rounded;
+    }
+}
@@ -0,0 +1,135 @@
+package me.tatocaster.nearbyconnection.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatocaster.nearbyconnection.wire.Utf8;
+
+/**
+ * Read-only, reference-counted view of bytes held in a {@link BufferPool} array.
+ * <p>
+ * A buffer starts with one reference, owned by whoever acquired it. A consumer that keeps the
+ * buffer beyond the call it was handed in must {@link #retain()} it, and every reference must be
+ * {@link #release() released} exactly once; the last release returns the array to the pool.
+ * Any access after that throws {@link IllegalStateException}.
+ * <p>
+ * Only the array is pooled, each buffer is a small new object, so a handle someone forgot about
+ * can never alias data that was written later.
+ */
+public final class PooledBuffer {
+
+    public interface Reader<T> {
+        /**
+         * The region is the buffer's content, only valid during the call. Do not write to it.
+         */
+        T read(byte[] buffer, int offset, int length);
+    }
+
+    private final BufferPool mPool;
+    private final int mLength;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private volatile byte[] mArray;
+    private String mUtf8;
+
+    // set by the pool when leak detection is on
+    BufferPool.LeakRef mLeakRef;
+
+    PooledBuffer(BufferPool pool, byte[] array, int length) {
+        mPool = pool;
+        mArray = array;
+        mLength = length;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return array()[index];
+    }
+
+    /**
+     * Give {@code reader} direct access to the content, without copying.
+     */
+    public <T> T read(Reader<T> reader) {
+        return reader.read(array(), 0, mLength);
+    }
+
+    public void copyTo(int srcOffset, byte[] dst, int dstOffset, int length) {
+        if (srcOffset < 0 || length < 0 || srcOffset + length > mLength) {
+            throw new IndexOutOfBoundsException("region " + srcOffset + "+" + length + ", length " + mLength);
+        }
+        System.arraycopy(array(), srcOffset, dst, dstOffset, length);
+    }
+
+    /**
+     * A read-only {@link ByteBuffer} over the content, valid until the buffer is released.
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return ByteBuffer.wrap(array(), 0, mLength).asReadOnlyBuffer();
+    }
+
+    /**
+     * Decode the content as UTF-8. Decodes on the first call only.
+     */
+    public String toUtf8String() {
+        byte[] array = array();
+        String utf8 = mUtf8;
+        if (utf8 == null) {
+            utf8 = Utf8.decode(array, 0, mLength);
+            mUtf8 = utf8;
+        }
+        return utf8;
+    }
+
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!mRefCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Drop one reference.
+     *
+     * @return true if that was the last one and the array went back to the pool.
+     */
+    public boolean release() {
+        int count = mRefCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("Buffer released too often");
+        }
+        byte[] array = mArray;
+        mArray = null;
+        mUtf8 = null;
+        mPool.recycle(this, array);
+        return true;
+    }
+
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PooledBuffer{length=" + mLength + ", refCount=" + mRefCount.get() + "}";
+    }
+
+    byte[] array() {
+        byte[] array = mArray;
+        if (array == null) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        return array;
+    }
+}
@@ -0,0 +1,360 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+
+/**
+ * Decides incoming connection requests by policy, so the user is only asked about the ones no
+ * policy has an answer for.
+ * <p>
+ * Rules are checked in a fixed order and the first that applies decides:
+ * <ol>
+ * <li>rate limit: requests beyond the token bucket are rejected before anything else is looked
+ * at, so a flood cannot queue up dialogs;</li>
+ * <li>denylisted endpoint names are rejected;</li>
+ * <li>requests beyond the peer cap are rejected, connecting peers count towards it;</li>
+ * <li>allowlisted endpoint names are accepted;</li>
+ * <li>a {@link ConnectionHandshake} with an accepted app identifier or the shared token is
+ * accepted;</li>
+ * <li>custom {@link Policy policies}, in the order they were added;</li>
+ * <li>otherwise the {@link Builder#whenUndecided undecided} decision, {@link Decision#ASK} by
+ * default.</li>
+ * </ol>
+ * Accept latency, from the request to {@link #onAccepted}, and rejections by reason are kept
+ * for the debug log. Not thread safe; call it from the thread the {@link Scheduler} runs on.
+ */
+public final class AdmissionController {
+
+    public enum Decision {
+        ACCEPT, REJECT, ASK
+    }
+
+    public static final String REASON_RATE_LIMITED = "rate limited";
+    public static final String REASON_DENIED = "denied";
+    public static final String REASON_PEER_LIMIT = "peer limit";
+    public static final String REASON_ALLOWED = "allowed";
+    public static final String REASON_APP_IDENTIFIER = "app identifier";
+    public static final String REASON_TOKEN = "token";
+    public static final String REASON_MALFORMED = "malformed handshake";
+    public static final String REASON_UNDECIDED = "undecided";
+
+    /**
+     * An incoming request as the policies see it.
+     */
+    public static final class Request {
+        private final String mEndpointId;
+        private final String mEndpointName;
+        private final ConnectionHandshake mHandshake;
+
+        Request(String endpointId, String endpointName, ConnectionHandshake handshake) {
+            mEndpointId = endpointId;
+            mEndpointName = endpointName;
+            mHandshake = handshake;
+        }
+
+        public String getEndpointId() {
+            return mEndpointId;
+        }
+
+        public String getEndpointName() {
+            return mEndpointName;
+        }
+
+        /**
+         * @return the handshake in the request payload, or null if the requester sent none.
+         */
+        public ConnectionHandshake getHandshake() {
+            return mHandshake;
+        }
+    }
+
+    public static final class Verdict {
+        private final Decision mDecision;
+        private final String mReason;
+
+        public Verdict(Decision decision, String reason) {
+            mDecision = decision;
+            mReason = reason;
+        }
+
+        public Decision getDecision() {
+            return mDecision;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return mDecision + " (" + mReason + ")";
+        }
+    }
+
+    public interface Policy {
+        /**
+         * @return the verdict, or null to leave the request to the next policy.
+         */
+        Verdict decide(Request request);
+    }
+
+    public static final class Builder {
+        private final ConnectionManager mConnections;
+        private final Scheduler mScheduler;
+        private double mRequestsPerSecond;
+        private int mBurst;
+        private int mMaxPeers = Integer.MAX_VALUE;
+        private final Set<String> mDeniedNames = new HashSet<>();
+        private final Set<String> mAllowedNames = new HashSet<>();
+        private final Set<String> mAcceptedAppIdentifiers = new HashSet<>();
+        private byte[] mToken;
+        private final List<Policy> mPolicies = new ArrayList<>();
+        private Decision mUndecided = Decision.ASK;
+
+        /**
+         * @param connections the peers counted against {@link #maxPeers}.
+         * @param scheduler   clock for the rate limit and accept latency.
+         */
+        public Builder(ConnectionManager connections, Scheduler scheduler) {
+            mConnections = connections;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * Admit at most {@code burst} requests at once, refilled at {@code requestsPerSecond}.
+         * Unlimited if never called.
+         */
+        public Builder rateLimit(double requestsPerSecond, int burst) {
+            if (requestsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("bad rate limit " + requestsPerSecond + "/" + burst);
+            }
+            mRequestsPerSecond = requestsPerSecond;
+            mBurst = burst;
+            return this;
+        }
+
+        public Builder denyNames(Collection<String> endpointNames) {
+            mDeniedNames.addAll(endpointNames);
+            return this;
+        }
+
+        public Builder allowNames(Collection<String> endpointNames) {
+            mAllowedNames.addAll(endpointNames);
+            return this;
+        }
+
+        /**
+         * Reject requests while this many peers are connected or connecting.
+         */
+        public Builder maxPeers(int maxPeers) {
+            if (maxPeers < 1) {
+                throw new IllegalArgumentException("maxPeers " + maxPeers);
+            }
+            mMaxPeers = maxPeers;
+            return this;
+        }
+
+        /**
+         * Accept requesters whose handshake names one of these app identifiers (package names).
+         */
+        public Builder acceptAppIdentifiers(Collection<String> appIdentifiers) {
+            mAcceptedAppIdentifiers.addAll(appIdentifiers);
+            return this;
+        }
+
+        /**
+         * Accept requesters whose handshake carries this token. Null or empty accepts no one.
+         */
+        public Builder acceptToken(byte[] token) {
+            mToken = token != null && token.length > 0 ? token.clone() : null;
+            return this;
+        }
+
+        /**
+         * Consulted after the built-in rules, in the order added.
+         */
+        public Builder addPolicy(Policy policy) {
+            mPolicies.add(policy);
+            return this;
+        }
+
+        /**
+         * What happens to requests no rule decides, {@link Decision#ASK} unless set.
+         */
+        public Builder whenUndecided(Decision decision) {
+            mUndecided = decision;
+            return this;
+        }
+
+        public AdmissionController build() {
+            return new AdmissionController(this);
+        }
+    }
+
+    private final ConnectionManager mConnections;
+    private final Scheduler mScheduler;
+    private final double mRequestsPerSecond;
+    private final int mBurst;
+    private final int mMaxPeers;
+    private final Set<String> mDeniedNames;
+    private final Set<String> mAllowedNames;
+    private final Set<String> mAcceptedAppIdentifiers;
+    private final byte[] mToken;
+    private final List<Policy> mPolicies;
+    private final Verdict mUndecidedVerdict;
+
+    private double mTokens;
+    private long mRefilledAtMillis;
+
+    private final Map<String, Long> mPendingSinceMillis = new HashMap<>();
+    private final LongHistogram mAcceptLatencyMillis = new LongHistogram();
+    private final Map<String, Integer> mRejections = new LinkedHashMap<>();
+    private int mAccepted;
+
+    private AdmissionController(Builder builder) {
+        mConnections = builder.mConnections;
+        mScheduler = builder.mScheduler;
+        mRequestsPerSecond = builder.mRequestsPerSecond;
+        mBurst = builder.mBurst;
+        mMaxPeers = builder.mMaxPeers;
+        mDeniedNames = new HashSet<>(builder.mDeniedNames);
+        mAllowedNames = new HashSet<>(builder.mAllowedNames);
+        mAcceptedAppIdentifiers = new HashSet<>(builder.mAcceptedAppIdentifiers);
+        mToken = builder.mToken;
+        mPolicies = new ArrayList<>(builder.mPolicies);
+        mUndecidedVerdict = new Verdict(builder.mUndecided, REASON_UNDECIDED);
+        mTokens = mBurst;
+        mRefilledAtMillis = mScheduler.now();
+    }
+
+    /**
+     * Decide a request. Call it before the peer is registered as connecting, so it does not
+     * count against its own cap. A REJECT verdict is already counted; for ACCEPT and ASK report
+     * the outcome through {@link #onAccepted} or {@link #onRejected}.
+     */
+    public Verdict onConnectionRequest(String endpointId, String endpointName, byte[] payload) {
+        Verdict verdict = decide(endpointId, endpointName, payload);
+        if (verdict.getDecision() == Decision.REJECT) {
+            countRejection(verdict.getReason());
+        } else {
+            mPendingSinceMillis.put(endpointId, mScheduler.now());
+        }
+        return verdict;
+    }
+
+    /**
+     * The request from {@code endpointId} was accepted and the connection is up.
+     */
+    public void onAccepted(String endpointId) {
+        Long since = mPendingSinceMillis.remove(endpointId);
+        if (since != null) {
+            mAccepted++;
+            mAcceptLatencyMillis.record(mScheduler.now() - since);
+        }
+    }
+
+    /**
+     * A request that was not rejected by policy still did not make it, e.g. the user said no or
+     * accepting failed.
+     */
+    public void onRejected(String endpointId, String reason) {
+        if (mPendingSinceMillis.remove(endpointId) != null) {
+            countRejection(reason);
+        }
+    }
+
+    /**
+     * Forget pending requests, e.g. when the GoogleApiClient disconnects.
+     */
+    public void clear() {
+        mPendingSinceMillis.clear();
+    }
+
+    /**
+     * From the request to {@link #onAccepted}, including any time the user took to answer.
+     */
+    public LongHistogram getAcceptLatencyMillis() {
+        return mAcceptLatencyMillis;
+    }
+
+    /**
+     * Rejections per reason, in the order the reasons first came up.
+     */
+    public Map<String, Integer> getRejections() {
+        return new LinkedHashMap<>(mRejections);
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController{accepted=" + mAccepted + ", latencyMs=" + mAcceptLatencyMillis
+                + ", rejected=" + mRejections + ", pending=" + mPendingSinceMillis.size() + "}";
+    }
+
+    private Verdict decide(String endpointId, String endpointName, byte[] payload) {
+        if (!takeToken()) {
+            return new Verdict(Decision.REJECT, REASON_RATE_LIMITED);
+        }
+        if (mDeniedNames.contains(endpointName)) {
+            return new Verdict(Decision.REJECT, REASON_DENIED);
+        }
+        if (mConnections.getPeer(endpointId) == null && mConnections.getPeers().size() >= mMaxPeers) {
+            return new Verdict(Decision.REJECT, REASON_PEER_LIMIT);
+        }
+        if (mAllowedNames.contains(endpointName)) {
+            return new Verdict(Decision.ACCEPT, REASON_ALLOWED);
+        }
+        ConnectionHandshake handshake;
+        try {
+            handshake = ConnectionHandshake.decode(payload);
+        } catch (IllegalArgumentException e) {
+            return new Verdict(Decision.REJECT, REASON_MALFORMED);
+        }
+        if (handshake != null) {
+            if (mAcceptedAppIdentifiers.contains(handshake.getAppIdentifier())) {
+                return new Verdict(Decision.ACCEPT, REASON_APP_IDENTIFIER);
+            }
+            // constant time, so the token cannot be guessed byte by byte
+            if (mToken != null && MessageDigest.isEqual(mToken, handshake.getToken())) {
+                return new Verdict(Decision.ACCEPT, REASON_TOKEN);
+            }
+        }
+        Request request = new Request(endpointId, endpointName, handshake);
+        for (Policy policy : mPolicies) {
+            Verdict verdict = policy.decide(request);
+            if (verdict != null) {
+                return verdict;
+            }
+        }
+        return mUndecidedVerdict;
+    }
+
+    private boolean takeToken() {
+        if (mRequestsPerSecond <= 0) {
+            return true;
+        }
+        long now = mScheduler.now();
+        mTokens = Math.min(mBurst, mTokens + (now - mRefilledAtMillis) * mRequestsPerSecond / 1000);
+        mRefilledAtMillis = now;
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    private void countRejection(String reason) {
+        Integer count = mRejections.get(reason);
+        mRejections.put(reason, count == null ? 1 : count + 1);
+    }
+}
@@ -0,0 +1,368 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatocaster.nearbyconnection.buffer.BufferPool;
+import me.tatocaster.nearbyconnection.buffer.PooledBuffer;
+import me.tatocaster.nearbyconnection.wire.BatchFraming;
+import me.tatocaster.nearbyconnection.wire.ChannelFraming;
+
+/**
+ * Multiplexes application traffic over the Connections API as numbered channels, each with the
+ * delivery class its data needs:
+ * <ul>
+ * <li>{@link Delivery#ORDERED_RELIABLE}: sendReliableMessage through the batching pipeline.
+ * Chat, commands, anything that must arrive and arrive in order.</li>
+ * <li>{@link Delivery#LATEST_VALUE}: sendUnreliableMessage, and a newer value replaces one that
+ * is still queued. Receivers drop updates older than the newest one they have seen. Cursor
+ * positions, telemetry.</li>
+ * <li>{@link Delivery#FIRE_AND_FORGET}: sendUnreliableMessage, nothing collapsed or dropped on
+ * purpose.</li>
+ * </ul>
+ * On the receiving side {@link #onMessageReceived} unpacks batches, reads the channel header and
+ * checks the transport's isReliable flag against the channel's class. Payloads without a channel
+ * header come from builds without channels and go to {@link #CHANNEL_LEGACY}. Each message is
+ * copied into a {@link PooledBuffer} for its receiver, so nothing downstream keeps the
+ * Connections payload array alive.
+ * <p>
+ * With a {@link PayloadCompressor} set, channel payloads are compressed for the peers that can
+ * decode them; the others are sent the same message, with the same sequence number, raw.
+ * <p>
+ * Sending is thread safe. Receiving is not; call it from the Connections callback thread.
+ */
+public final class ChannelMux {
+
+    /**
+     * Plain payloads from peers that predate channels are delivered here. Messages sent on this
+     * channel go out without a channel header and never batched, so those peers can still read
+     * them.
+     */
+    public static final int CHANNEL_LEGACY = 0;
+
+    public enum Delivery {
+        ORDERED_RELIABLE(true),
+        LATEST_VALUE(false),
+        FIRE_AND_FORGET(false);
+
+        final boolean mReliable;
+
+        Delivery(boolean reliable) {
+            mReliable = reliable;
+        }
+    }
+
+    public interface Receiver {
+        /**
+         * The mux releases {@code message} when this returns. Call {@link PooledBuffer#retain()}
+         * to keep it longer, and release it when done.
+         */
+        void onChannelMessage(String endpointId, Channel channel, PooledBuffer message);
+    }
+
+    public final class Channel {
+        private final int mId;
+        private final Delivery mDelivery;
+        private final Receiver mReceiver;
+        private final AtomicInteger mNextSequence = new AtomicInteger();
+        // receive side, newest sequence seen per endpoint for LATEST_VALUE
+        private final HashMap<String, Integer> mLatestReceived = new HashMap<>();
+
+        Channel(int id, Delivery delivery, Receiver receiver) {
+            mId = id;
+            mDelivery = delivery;
+            mReceiver = receiver;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public Delivery getDelivery() {
+            return mDelivery;
+        }
+
+        /**
+         * Send to every connected peer.
+         *
+         * @return the number of peers addressed.
+         */
+        public int send(byte[] payload) {
+            if (mId == CHANNEL_LEGACY) {
+                return sendAlone(mConnectionManager.getConnectedEndpointIds(), payload);
+            }
+            if (canCompress()) {
+                int peers = sendCompressed(mConnectionManager.getConnectedEndpointIds(), payload);
+                if (peers >= 0) {
+                    return peers;
+                }
+            }
+            byte[] frame = frame(payload);
+            if (mDelivery == Delivery.LATEST_VALUE) {
+                return sendLatest(this, mConnectionManager.getConnectedEndpointIds(), frame);
+            }
+            return mConnectionManager.broadcast(frame, mDelivery.mReliable);
+        }
+
+        /**
+         * Send to the connected subset of {@code endpointIds}.
+         *
+         * @return the number of peers addressed.
+         */
+        public int send(Collection<String> endpointIds, byte[] payload) {
+            if (mId == CHANNEL_LEGACY) {
+                return sendAlone(mConnectionManager.connectedSubset(endpointIds), payload);
+            }
+            if (canCompress()) {
+                int peers = sendCompressed(mConnectionManager.connectedSubset(endpointIds), payload);
+                if (peers >= 0) {
+                    return peers;
+                }
+            }
+            byte[] frame = frame(payload);
+            if (mDelivery == Delivery.LATEST_VALUE) {
+                List<String> targets = mConnectionManager.connectedSubset(endpointIds);
+                return sendLatest(new LatestKey(this, targets), targets, frame);
+            }
+            return mConnectionManager.multicast(endpointIds, frame, mDelivery.mReliable);
+        }
+
+        private byte[] frame(byte[] payload) {
+            return ChannelFraming.encode(mId, nextSequence(), payload);
+        }
+
+        private int sendAlone(List<String> targets, byte[] payload) {
+            if (targets.isEmpty()) {
+                return 0;
+            }
+            if (mPipeline.offerAlone(targets, payload, mDelivery.mReliable)) {
+                mConnectionManager.recordSent(targets, payload.length);
+            }
+            return targets.size();
+        }
+
+        private int nextSequence() {
+            return mNextSequence.getAndIncrement() & Integer.MAX_VALUE;
+        }
+
+        private boolean canCompress() {
+            return mCompressor != null;
+        }
+
+        /**
+         * @return the number of peers addressed, or -1 if nobody would get it compressed.
+         */
+        private int sendCompressed(List<String> targets, byte[] payload) {
+            PayloadCompressor compressor = mCompressor;
+            List<String> capable = compressor.capable(targets);
+            byte[] compressed = capable.isEmpty() ? null : compressor.compress(capable, payload);
+            if (compressed == null) {
+                return -1;
+            }
+            int sequence = nextSequence();
+            int peers = sendFrame(capable, ChannelFraming.encode(mId, sequence, compressed, true));
+            if (capable.size() < targets.size()) {
+                List<String> others = new ArrayList<>(targets);
+                others.removeAll(capable);
+                peers += sendFrame(others, ChannelFraming.encode(mId, sequence, payload));
+            }
+            return peers;
+        }
+
+        private int sendFrame(List<String> targets, byte[] frame) {
+            if (mDelivery == Delivery.LATEST_VALUE) {
+                return sendLatest(new LatestKey(this, targets), targets, frame);
+            }
+            return mConnectionManager.multicast(targets, frame, mDelivery.mReliable);
+        }
+
+        /**
+         * @return true if {@code sequence} is newer than anything seen from the endpoint.
+         */
+        boolean acceptLatest(String endpointId, int sequence) {
+            Integer last = mLatestReceived.get(endpointId);
+            if (last != null) {
+                // sequence numbers wrap at 2^31, compare them in that space
+                int ahead = (sequence - last) & Integer.MAX_VALUE;
+                if (ahead == 0 || ahead > (1 << 30)) {
+                    return false;
+                }
+            }
+            mLatestReceived.put(endpointId, sequence);
+            return true;
+        }
+    }
+
+    private static final class LatestKey {
+        private final Channel mChannel;
+        private final List<String> mTargets;
+
+        LatestKey(Channel channel, List<String> targets) {
+            mChannel = channel;
+            mTargets = targets;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mChannel.hashCode() + mTargets.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LatestKey && ((LatestKey) o).mChannel == mChannel
+                    && ((LatestKey) o).mTargets.equals(mTargets);
+        }
+    }
+
+    private final ConnectionManager mConnectionManager;
+    private final OutboundPipeline mPipeline;
+    private final BufferPool mBufferPool;
+    private final HashMap<Integer, Channel> mChannels = new HashMap<>();
+    private volatile PayloadCompressor mCompressor;
+
+    private long mReceived;
+    private long mDroppedStale;
+    private long mDroppedUnreliable;
+    private long mDroppedUnknown;
+
+    /**
+     * @param pipeline   the pipeline {@code connectionManager} sends through, used directly for
+     *                   latest-value replacement.
+     * @param bufferPool holds inbound messages while receivers look at them.
+     */
+    public ChannelMux(ConnectionManager connectionManager, OutboundPipeline pipeline,
+                      BufferPool bufferPool) {
+        mConnectionManager = connectionManager;
+        mPipeline = pipeline;
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Compress channel payloads for the peers that announced support, null to stop. Compressed
+     * messages are only decoded while a compressor is set.
+     */
+    public void setCompressor(PayloadCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Register a channel. Both sides must open the same id with the same delivery class.
+     *
+     * @param receiver gets the channel's inbound messages, may be null for send-only channels.
+     */
+    public synchronized Channel open(int id, Delivery delivery, Receiver receiver) {
+        if (mChannels.containsKey(id)) {
+            throw new IllegalStateException("Channel " + id + " is already open");
+        }
+        Channel channel = new Channel(id, delivery, receiver);
+        mChannels.put(id, channel);
+        return channel;
+    }
+
+    /**
+     * Demultiplex one Connections payload.
+     *
+     * @throws IllegalArgumentException if a batch or channel header, or a compressed payload, is
+     *                                  malformed.
+     */
+    public void onMessageReceived(final String endpointId, byte[] payload, final boolean isReliable) {
+        if (BatchFraming.isBatch(payload)) {
+            BatchFraming.decode(payload, (buffer, offset, length) ->
+                    dispatch(endpointId, buffer, offset, length, isReliable));
+        } else {
+            dispatch(endpointId, payload, 0, payload.length, isReliable);
+        }
+    }
+
+    /**
+     * Forget what was received from an endpoint, e.g. after it disconnected.
+     */
+    public synchronized void onEndpointGone(String endpointId) {
+        for (Channel channel : mChannels.values()) {
+            channel.mLatestReceived.remove(endpointId);
+        }
+        PayloadCompressor compressor = mCompressor;
+        if (compressor != null) {
+            compressor.onPeerGone(endpointId);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelMux{received=" + mReceived + ", stale=" + mDroppedStale
+                + ", unreliableOnReliable=" + mDroppedUnreliable + ", unknown=" + mDroppedUnknown + "}";
+    }
+
+    private int sendLatest(Object key, List<String> targets, byte[] frame) {
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        if (mPipeline.offerLatest(key, targets, frame, false)) {
+            mConnectionManager.recordSent(targets, frame.length);
+        }
+        return targets.size();
+    }
+
+    private void dispatch(final String endpointId, byte[] buffer, int offset, int length,
+                          final boolean isReliable) {
+        if (!ChannelFraming.isChannelMessage(buffer, offset, length)) {
+            deliver(endpointId, channel(CHANNEL_LEGACY), buffer, offset, length);
+            return;
+        }
+        final boolean compressed = ChannelFraming.isCompressed(buffer, offset);
+        ChannelFraming.decode(buffer, offset, length, (channelId, sequence, b, o, l) -> {
+            Channel channel = channel(channelId);
+            if (channel == null) {
+                mDroppedUnknown++;
+                return;
+            }
+            if (channel.mDelivery.mReliable && !isReliable) {
+                // sent on the wrong transport, ordering and delivery cannot be trusted
+                mDroppedUnreliable++;
+                return;
+            }
+            if (channel.mDelivery == Delivery.LATEST_VALUE && !channel.acceptLatest(endpointId, sequence)) {
+                mDroppedStale++;
+                return;
+            }
+            if (compressed) {
+                byte[] payload = decompress(b, o, l);
+                deliver(endpointId, channel, payload, 0, payload.length);
+                return;
+            }
+            deliver(endpointId, channel, b, o, l);
+        });
+    }
+
+    private void deliver(String endpointId, Channel channel, byte[] buffer, int offset, int length) {
+        if (channel == null) {
+            mDroppedUnknown++;
+            return;
+        }
+        mReceived++;
+        if (channel.mReceiver == null) {
+            return;
+        }
+        PooledBuffer message = mBufferPool.copyOf(buffer, offset, length);
+        try {
+            channel.mReceiver.onChannelMessage(endpointId, channel, message);
+        } finally {
+            message.release();
+        }
+    }
+
+    private byte[] decompress(byte[] buffer, int offset, int length) {
+        PayloadCompressor compressor = mCompressor;
+        if (compressor == null) {
+            throw new IllegalArgumentException("Compressed message, but compression is off");
+        }
+        return compressor.decompress(buffer, offset, length);
+    }
+
+    private synchronized Channel channel(int id) {
+        return mChannels.get(id);
+    }
+}
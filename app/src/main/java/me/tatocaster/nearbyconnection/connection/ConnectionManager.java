@@ -0,0 +1,259 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks every endpoint this device is connecting or connected to, so one advertiser can serve
+ * many discoverers (star topology), and fans messages out to them.
+ * <p>
+ * Peers live in a {@link ConcurrentHashMap}. The ids of connected peers are additionally kept
+ * as an immutable snapshot that is rebuilt only when someone connects or disconnects, so a
+ * broadcast hands the same list to the sender every time and costs no allocation, however many
+ * peers there are.
+ * <p>
+ * Lookups and sends are safe from any thread. State changes are serialized internally.
+ */
+public final class ConnectionManager {
+
+    public interface Listener {
+        /**
+         * @param oldState the previous state, 0 for a new peer.
+         * @param newState the new state, 0 once the peer has been removed.
+         */
+        void onPeerStateChanged(Peer peer, int oldState, int newState);
+    }
+
+    private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<>();
+    private final Object mStateLock = new Object();
+    private final MessageSender mSender;
+
+    private volatile List<String> mConnectedIds = Collections.emptyList();
+    private volatile Listener mListener;
+
+    public ConnectionManager(MessageSender sender) {
+        mSender = sender;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * A connection request was sent to, or received from, {@code endpointId}.
+     */
+    public Peer onConnecting(String endpointId, String endpointName) {
+        Peer peer;
+        int oldState;
+        synchronized (mStateLock) {
+            peer = mPeers.get(endpointId);
+            if (peer == null) {
+                peer = new Peer(endpointId, endpointName, Peer.STATE_CONNECTING);
+                mPeers.put(endpointId, peer);
+                oldState = 0;
+            } else {
+                // already connecting or connected, a repeated request changes nothing
+                peer.setName(endpointName);
+                return peer;
+            }
+        }
+        dispatch(peer, oldState, Peer.STATE_CONNECTING);
+        return peer;
+    }
+
+    /**
+     * The connection to {@code endpointId} was accepted by either side.
+     *
+     * @param nowMillis the time of connection, on the caller's clock.
+     */
+    public Peer onConnected(String endpointId, String endpointName, long nowMillis) {
+        Peer peer;
+        int oldState;
+        synchronized (mStateLock) {
+            peer = mPeers.get(endpointId);
+            if (peer == null) {
+                peer = new Peer(endpointId, endpointName, Peer.STATE_CONNECTED);
+                mPeers.put(endpointId, peer);
+                oldState = 0;
+            } else if (peer.mState == Peer.STATE_CONNECTED) {
+                return peer;
+            } else {
+                peer.setName(endpointName);
+                oldState = peer.mState;
+                peer.mState = Peer.STATE_CONNECTED;
+            }
+            peer.mConnectedAtMillis = nowMillis;
+            rebuildConnectedIds();
+        }
+        dispatch(peer, oldState, Peer.STATE_CONNECTED);
+        return peer;
+    }
+
+    /**
+     * The endpoint disconnected, or a pending request to it failed or was rejected.
+     *
+     * @return the removed peer, or null if it was not tracked.
+     */
+    public Peer onDisconnected(String endpointId) {
+        Peer peer;
+        int oldState;
+        synchronized (mStateLock) {
+            peer = mPeers.remove(endpointId);
+            if (peer == null) {
+                return null;
+            }
+            oldState = peer.mState;
+            peer.mState = 0;
+            if (oldState == Peer.STATE_CONNECTED) {
+                rebuildConnectedIds();
+            }
+        }
+        dispatch(peer, oldState, 0);
+        return peer;
+    }
+
+    /**
+     * Forget every peer without notifying the listener, e.g. when the GoogleApiClient
+     * disconnects and takes all connections with it.
+     */
+    public void clear() {
+        synchronized (mStateLock) {
+            for (Peer peer : mPeers.values()) {
+                peer.mState = 0;
+            }
+            mPeers.clear();
+            mConnectedIds = Collections.emptyList();
+        }
+    }
+
+    public Peer getPeer(String endpointId) {
+        return mPeers.get(endpointId);
+    }
+
+    public boolean isConnected(String endpointId) {
+        Peer peer = mPeers.get(endpointId);
+        return peer != null && peer.isConnected();
+    }
+
+    public int getConnectedCount() {
+        return mConnectedIds.size();
+    }
+
+    /**
+     * @return an immutable snapshot of the connected endpoint ids, in no particular order.
+     */
+    public List<String> getConnectedEndpointIds() {
+        return mConnectedIds;
+    }
+
+    /**
+     * @return every tracked peer, connecting ones included.
+     */
+    public Collection<Peer> getPeers() {
+        return Collections.unmodifiableCollection(mPeers.values());
+    }
+
+    /**
+     * Count an inbound message against its peer.
+     */
+    public void onMessageReceived(String endpointId, byte[] payload) {
+        Peer peer = mPeers.get(endpointId);
+        if (peer != null) {
+            peer.recordReceived(payload.length);
+        }
+    }
+
+    /**
+     * Send to a single connected peer.
+     *
+     * @return false if the endpoint is not connected.
+     */
+    public boolean send(String endpointId, byte[] payload, boolean reliable) {
+        Peer peer = mPeers.get(endpointId);
+        if (peer == null || !peer.isConnected()) {
+            return false;
+        }
+        mSender.send(Collections.singletonList(endpointId), payload, reliable);
+        peer.recordSent(payload.length);
+        return true;
+    }
+
+    /**
+     * Send to every connected peer with a single call to the sender.
+     *
+     * @return the number of peers addressed.
+     */
+    public int broadcast(byte[] payload, boolean reliable) {
+        List<String> targets = mConnectedIds;
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        mSender.send(targets, payload, reliable);
+        recordSent(targets, payload.length);
+        return targets.size();
+    }
+
+    /**
+     * Send to the connected subset of {@code endpointIds} with a single call to the sender.
+     * Ids that are unknown or still connecting are skipped.
+     *
+     * @return the number of peers addressed.
+     */
+    public int multicast(Collection<String> endpointIds, byte[] payload, boolean reliable) {
+        List<String> targets = connectedSubset(endpointIds);
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        mSender.send(targets, payload, reliable);
+        recordSent(targets, payload.length);
+        return targets.size();
+    }
+
+    /**
+     * @return the ids in {@code endpointIds} that are currently connected, in the same order.
+     */
+    public List<String> connectedSubset(Collection<String> endpointIds) {
+        ArrayList<String> targets = new ArrayList<>(endpointIds.size());
+        for (String endpointId : endpointIds) {
+            Peer peer = mPeers.get(endpointId);
+            if (peer != null && peer.isConnected()) {
+                targets.add(endpointId);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Count a payload handed to the pipeline directly, see {@link ChannelMux}.
+     */
+    void recordSent(List<String> endpointIds, int bytes) {
+        for (int i = 0, n = endpointIds.size(); i < n; i++) {
+            Peer peer = mPeers.get(endpointIds.get(i));
+            if (peer != null) {
+                peer.recordSent(bytes);
+            }
+        }
+    }
+
+    private void rebuildConnectedIds() {
+        String[] ids = new String[mPeers.size()];
+        int count = 0;
+        for (Peer peer : mPeers.values()) {
+            if (peer.mState == Peer.STATE_CONNECTED) {
+                ids[count++] = peer.getEndpointId();
+            }
+        }
+        mConnectedIds = Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(ids, count)));
+    }
+
+    private void dispatch(Peer peer, int oldState, int newState) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onPeerStateChanged(peer, oldState, newState);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.LinkProbeFraming;
+
+/**
+ * Probes every connected peer with small pings and keeps a {@link LinkQuality} per peer, so a
+ * slow peer can be told from a dead one long before the Connections API reports it
+ * disconnected.
+ * <p>
+ * Every probe interval each peer gets a ping; peers answer with an echo right away. A ping with
+ * no echo within the probe timeout counts as lost. From that the monitor keeps smoothed RTT,
+ * jitter and loss, plus goodput from the {@link ConnectionManager}'s byte counts, and rates each
+ * link {@link LinkQuality#STATE_GOOD good}, {@link LinkQuality#STATE_DEGRADED degraded} or
+ * {@link LinkQuality#STATE_UNRESPONSIVE unresponsive}. Senders use {@link #usable} and
+ * {@link #byHealth} to leave out dead peers and try healthy ones first.
+ * <p>
+ * Probe frames belong on an unreliable channel, so that a lost ping shows up as loss instead of
+ * as a retransmission delay. Not thread safe; call it from the thread the {@link Scheduler} runs
+ * on. Only the queries ({@link #getQuality}, {@link #getQualities}, {@link #isUsable},
+ * {@link #usable} and {@link #byHealth}) may be called from other threads, such as the UI's.
+ */
+public final class LinkMonitor {
+
+    public interface ProbeSender {
+        /**
+         * @return false if the endpoint is not connected.
+         */
+        boolean send(String endpointId, byte[] frame);
+    }
+
+    public interface Listener {
+        void onRoundTrip(String endpointId, long rttMillis);
+
+        void onStateChanged(LinkQuality quality, int oldState);
+    }
+
+    public static final class Builder {
+        private final ConnectionManager mConnectionManager;
+        private final ProbeSender mSender;
+        private final Scheduler mScheduler;
+        private long mProbeIntervalMillis = 2000;
+        private long mProbeTimeoutMillis = 5000;
+        private double mDegradedLossRate = 0.2;
+        private long mDegradedRttMillis = 1000;
+        private int mUnresponsiveAfter = 3;
+
+        public Builder(ConnectionManager connectionManager, ProbeSender sender, Scheduler scheduler) {
+            mConnectionManager = connectionManager;
+            mSender = sender;
+            mScheduler = scheduler;
+        }
+
+        public Builder probeIntervalMillis(long probeIntervalMillis) {
+            mProbeIntervalMillis = probeIntervalMillis;
+            return this;
+        }
+
+        /**
+         * How long to wait for an echo before the ping counts as lost.
+         */
+        public Builder probeTimeoutMillis(long probeTimeoutMillis) {
+            mProbeTimeoutMillis = probeTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * A link is degraded above this smoothed loss rate or smoothed RTT.
+         */
+        public Builder degradedAbove(double lossRate, long rttMillis) {
+            mDegradedLossRate = lossRate;
+            mDegradedRttMillis = rttMillis;
+            return this;
+        }
+
+        /**
+         * Lost probes in a row after which a link is unresponsive.
+         */
+        public Builder unresponsiveAfter(int lostProbes) {
+            mUnresponsiveAfter = lostProbes;
+            return this;
+        }
+
+        public LinkMonitor build() {
+            if (mProbeIntervalMillis <= 0 || mProbeTimeoutMillis <= 0 || mUnresponsiveAfter <= 0) {
+                throw new IllegalArgumentException("interval, timeout and lost probes must be positive");
+            }
+            return new LinkMonitor(this);
+        }
+    }
+
+    private final class FrameHandler implements LinkProbeFraming.Handler {
+        private final String mEndpointId;
+
+        FrameHandler(String endpointId) {
+            mEndpointId = endpointId;
+        }
+
+        @Override
+        public void onPing(int sequence) {
+            mSender.send(mEndpointId, LinkProbeFraming.encodeEcho(sequence));
+        }
+
+        @Override
+        public void onEcho(int sequence) {
+            LinkQuality quality = mQualities.get(mEndpointId);
+            if (quality != null) {
+                onEchoReceived(quality, sequence);
+            }
+        }
+    }
+
+    /**
+     * Good links first, then degraded, unknown and unresponsive ones; by RTT within a state.
+     */
+    private final Comparator<String> mHealthOrder = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            LinkQuality qa = mQualities.get(a);
+            LinkQuality qb = mQualities.get(b);
+            int ra = rank(qa);
+            int rb = rank(qb);
+            if (ra != rb) {
+                return ra < rb ? -1 : 1;
+            }
+            return qa == null || qb == null ? 0 : Double.compare(qa.getRttMillis(), qb.getRttMillis());
+        }
+
+        private int rank(LinkQuality quality) {
+            int state = quality == null ? LinkQuality.STATE_UNKNOWN : quality.getState();
+            switch (state) {
+                case LinkQuality.STATE_GOOD:
+                    return 0;
+                case LinkQuality.STATE_DEGRADED:
+                    return 1;
+                case LinkQuality.STATE_UNKNOWN:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+    };
+
+    private final ConnectionManager mConnectionManager;
+    private final ProbeSender mSender;
+    private final Scheduler mScheduler;
+    private long mProbeIntervalMillis;
+    private final long mProbeTimeoutMillis;
+    private final double mDegradedLossRate;
+    private final long mDegradedRttMillis;
+    private final int mUnresponsiveAfter;
+    private final Runnable mProbeTask = this::probe;
+    private final Map<String, LinkQuality> mQualities = new ConcurrentHashMap<>();
+    private Listener mListener;
+    private boolean mStarted;
+    private int mNextSequence;
+    private long mLateEchoes;
+
+    private LinkMonitor(Builder builder) {
+        mConnectionManager = builder.mConnectionManager;
+        mSender = builder.mSender;
+        mScheduler = builder.mScheduler;
+        mProbeIntervalMillis = builder.mProbeIntervalMillis;
+        mProbeTimeoutMillis = builder.mProbeTimeoutMillis;
+        mDegradedLossRate = builder.mDegradedLossRate;
+        mDegradedRttMillis = builder.mDegradedRttMillis;
+        mUnresponsiveAfter = builder.mUnresponsiveAfter;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start probing the connected peers, right away and then every interval. No-op if started.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        probe();
+    }
+
+    /**
+     * Probe this often from now on, e.g. less often while nobody is looking at the links.
+     */
+    public void setProbeIntervalMillis(long probeIntervalMillis) {
+        if (probeIntervalMillis <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        mProbeIntervalMillis = probeIntervalMillis;
+        if (mStarted) {
+            mScheduler.cancel(mProbeTask);
+            mScheduler.schedule(mProbeTask, probeIntervalMillis);
+        }
+    }
+
+    /**
+     * Stop probing and forget every estimate.
+     */
+    public void stop() {
+        mStarted = false;
+        mScheduler.cancel(mProbeTask);
+        mQualities.clear();
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Handle a frame from the probe channel. Malformed frames are dropped.
+     */
+    public void onFrameReceived(String endpointId, byte[] buffer, int offset, int length) {
+        try {
+            LinkProbeFraming.decode(buffer, offset, length, new FrameHandler(endpointId));
+        } catch (IllegalArgumentException e) {
+            // not worth an answer, the sender counts it as a lost probe
+        }
+    }
+
+    /**
+     * The estimates for a connected peer, or null before it was first probed.
+     */
+    public LinkQuality getQuality(String endpointId) {
+        return mQualities.get(endpointId);
+    }
+
+    /**
+     * The estimates for every probed peer.
+     */
+    public Collection<LinkQuality> getQualities() {
+        return new ArrayList<>(mQualities.values());
+    }
+
+    /**
+     * Whether to send to the endpoint at all: anything but an unresponsive link.
+     */
+    public boolean isUsable(String endpointId) {
+        LinkQuality quality = mQualities.get(endpointId);
+        return quality == null || quality.getState() != LinkQuality.STATE_UNRESPONSIVE;
+    }
+
+    /**
+     * The usable endpoints among {@code endpointIds}, in their order.
+     */
+    public List<String> usable(Collection<String> endpointIds) {
+        List<String> usable = new ArrayList<>(endpointIds.size());
+        for (String endpointId : endpointIds) {
+            if (isUsable(endpointId)) {
+                usable.add(endpointId);
+            }
+        }
+        return usable;
+    }
+
+    /**
+     * {@code endpointIds} sorted healthiest first: good links by RTT, then degraded, not yet
+     * measured and unresponsive ones.
+     */
+    public List<String> byHealth(Collection<String> endpointIds) {
+        List<String> sorted = new ArrayList<>(endpointIds);
+        Collections.sort(sorted, mHealthOrder);
+        return sorted;
+    }
+
+    /**
+     * Echoes that came back after their ping had been counted as lost.
+     */
+    public long getLateEchoes() {
+        return mLateEchoes;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkMonitor{started=" + mStarted + ", links=" + mQualities.values() + ", late=" + mLateEchoes + "}";
+    }
+
+    private void probe() {
+        if (!mStarted) {
+            return;
+        }
+        long now = mScheduler.now();
+        List<String> connected = mConnectionManager.getConnectedEndpointIds();
+        Iterator<String> known = mQualities.keySet().iterator();
+        while (known.hasNext()) {
+            if (!connected.contains(known.next())) {
+                known.remove();
+            }
+        }
+        for (String endpointId : connected) {
+            LinkQuality quality = mQualities.get(endpointId);
+            if (quality == null) {
+                quality = new LinkQuality(endpointId);
+                mQualities.put(endpointId, quality);
+            }
+            expireProbes(quality, now);
+            sampleGoodput(quality, now);
+            LinkQuality.Probe probe = new LinkQuality.Probe(mNextSequence++ & Integer.MAX_VALUE, now);
+            quality.onProbeSent(probe);
+            mSender.send(endpointId, LinkProbeFraming.encodePing(probe.sequence));
+            updateState(quality);
+        }
+        mScheduler.schedule(mProbeTask, mProbeIntervalMillis);
+    }
+
+    private void expireProbes(LinkQuality quality, long now) {
+        while (!quality.mOutstanding.isEmpty()
+                && now - quality.mOutstanding.peekFirst().sentAtMillis >= mProbeTimeoutMillis) {
+            quality.mOutstanding.pollFirst();
+            quality.onProbeLost();
+        }
+    }
+
+    private void sampleGoodput(LinkQuality quality, long now) {
+        Peer peer = mConnectionManager.getPeer(quality.getEndpointId());
+        if (peer == null) {
+            return;
+        }
+        long bytes = peer.getBytesReceived();
+        if (quality.mBytesReceivedAtSample >= 0 && now > quality.mGoodputSampledAtMillis) {
+            quality.onGoodputSample((bytes - quality.mBytesReceivedAtSample) * 1000.0
+                    / (now - quality.mGoodputSampledAtMillis));
+        }
+        quality.mBytesReceivedAtSample = bytes;
+        quality.mGoodputSampledAtMillis = now;
+    }
+
+    private void onEchoReceived(LinkQuality quality, int sequence) {
+        LinkQuality.Probe probe = null;
+        Iterator<LinkQuality.Probe> it = quality.mOutstanding.iterator();
+        while (it.hasNext()) {
+            LinkQuality.Probe candidate = it.next();
+            if (candidate.sequence == sequence) {
+                probe = candidate;
+                it.remove();
+                break;
+            }
+        }
+        if (probe == null) {
+            mLateEchoes++;
+            return;
+        }
+        long rttMillis = mScheduler.now() - probe.sentAtMillis;
+        quality.onRoundTrip(rttMillis);
+        if (mListener != null) {
+            mListener.onRoundTrip(quality.getEndpointId(), rttMillis);
+        }
+        updateState(quality);
+    }
+
+    private void updateState(LinkQuality quality) {
+        int state;
+        if (quality.mConsecutiveLost >= mUnresponsiveAfter) {
+            state = LinkQuality.STATE_UNRESPONSIVE;
+        } else if (quality.getRttMillis() < 0) {
+            state = LinkQuality.STATE_UNKNOWN;
+        } else if (quality.getLossRate() > mDegradedLossRate || quality.getRttMillis() > mDegradedRttMillis) {
+            state = LinkQuality.STATE_DEGRADED;
+        } else {
+            state = LinkQuality.STATE_GOOD;
+        }
+        int oldState = quality.getState();
+        if (state != oldState) {
+            quality.setState(state);
+            if (mListener != null) {
+                mListener.onStateChanged(quality, oldState);
+            }
+        }
+    }
+}
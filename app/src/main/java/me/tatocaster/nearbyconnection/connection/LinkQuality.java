@@ -0,0 +1,158 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Link health of one connected endpoint, as estimated by the {@link LinkMonitor}.
+ * <p>
+ * Round trip time and jitter are smoothed the way TCP smooths its RTT (RFC 6298): the RTT with
+ * a gain of 1/8, the mean deviation from it, reported as jitter, with a gain of 1/4. Loss is
+ * the share of probes that went unanswered, smoothed with a gain of 1/8; goodput is the
+ * application bytes received from the endpoint per second, smoothed the same way.
+ * <p>
+ * Updated on the monitor's thread; the getters may be called from any thread and each returns
+ * the latest value, not necessarily from the same update as the others.
+ */
+public final class LinkQuality {
+
+    /**
+     * No probe has been answered yet.
+     */
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_GOOD = 1;
+    /**
+     * Answering, but slowly or with loss: prefer other peers.
+     */
+    public static final int STATE_DEGRADED = 2;
+    /**
+     * Several probes in a row went unanswered; the link is probably gone even though it has not
+     * been reported disconnected yet.
+     */
+    public static final int STATE_UNRESPONSIVE = 3;
+
+    static final double RTT_GAIN = 1.0 / 8;
+    static final double JITTER_GAIN = 1.0 / 4;
+    static final double LOSS_GAIN = 1.0 / 8;
+    static final double GOODPUT_GAIN = 1.0 / 8;
+
+    /**
+     * A ping waiting for its echo.
+     */
+    static final class Probe {
+        final int sequence;
+        final long sentAtMillis;
+
+        Probe(int sequence, long sentAtMillis) {
+            this.sequence = sequence;
+            this.sentAtMillis = sentAtMillis;
+        }
+    }
+
+    private final String mEndpointId;
+    private volatile int mState = STATE_UNKNOWN;
+    private volatile double mRttMillis = -1;
+    private volatile double mJitterMillis;
+    private volatile long mMinRttMillis = -1;
+    private volatile double mLossRate;
+    private volatile double mGoodputBytesPerSecond;
+    private volatile long mProbesSent;
+    private volatile long mProbesLost;
+
+    // monitor thread only
+    final ArrayDeque<Probe> mOutstanding = new ArrayDeque<>();
+    int mConsecutiveLost;
+    long mBytesReceivedAtSample = -1;
+    long mGoodputSampledAtMillis;
+
+    LinkQuality(String endpointId) {
+        mEndpointId = endpointId;
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Smoothed round trip time, or -1 before the first echo.
+     */
+    public double getRttMillis() {
+        return mRttMillis;
+    }
+
+    public double getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * The fastest round trip seen, or -1 before the first echo.
+     */
+    public long getMinRttMillis() {
+        return mMinRttMillis;
+    }
+
+    /**
+     * Smoothed share of unanswered probes, between 0 and 1.
+     */
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    public double getGoodputBytesPerSecond() {
+        return mGoodputBytesPerSecond;
+    }
+
+    public long getProbesSent() {
+        return mProbesSent;
+    }
+
+    public long getProbesLost() {
+        return mProbesLost;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "LinkQuality{%s, state=%d, rtt=%.0f ms, jitter=%.0f ms, loss=%.2f, goodput=%.0f B/s, probes=%d/%d lost}",
+                mEndpointId, mState, mRttMillis, mJitterMillis, mLossRate, mGoodputBytesPerSecond,
+                mProbesLost, mProbesSent);
+    }
+
+    void onProbeSent(Probe probe) {
+        mOutstanding.addLast(probe);
+        mProbesSent++;
+    }
+
+    void onRoundTrip(long rttMillis) {
+        if (mRttMillis < 0) {
+            mRttMillis = rttMillis;
+            mJitterMillis = rttMillis / 2.0;
+        } else {
+            mJitterMillis += JITTER_GAIN * (Math.abs(mRttMillis - rttMillis) - mJitterMillis);
+            mRttMillis += RTT_GAIN * (rttMillis - mRttMillis);
+        }
+        if (mMinRttMillis < 0 || rttMillis < mMinRttMillis) {
+            mMinRttMillis = rttMillis;
+        }
+        mConsecutiveLost = 0;
+        mLossRate -= LOSS_GAIN * mLossRate;
+    }
+
+    void onProbeLost() {
+        mProbesLost++;
+        mConsecutiveLost++;
+        mLossRate += LOSS_GAIN * (1 - mLossRate);
+    }
+
+    void onGoodputSample(double bytesPerSecond) {
+        mGoodputBytesPerSecond += GOODPUT_GAIN * (bytesPerSecond - mGoodputBytesPerSecond);
+    }
+
+    void setState(int state) {
+        mState = state;
+    }
+}
@@ -0,0 +1,18 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.List;
+
+/**
+ * The send half of the Nearby Connections API, so the connection layer can be exercised without
+ * Play Services.
+ */
+public interface MessageSender {
+
+    /**
+     * Send one payload to every endpoint in {@code endpointIds}. The list must not be modified
+     * by the implementation.
+     *
+     * @param reliable true for sendReliableMessage, false for sendUnreliableMessage.
+     */
+    void send(List<String> endpointIds, byte[] payload, boolean reliable);
+}
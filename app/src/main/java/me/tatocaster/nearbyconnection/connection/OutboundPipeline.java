@@ -0,0 +1,457 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.BatchFraming;
+
+/**
+ * Bounded outbound queue in front of the Connections API.
+ * <p>
+ * Messages are queued by {@link #send} on any thread and handed to the downstream
+ * {@link MessageSender} on the scheduler's thread. Consecutive messages for the same destination
+ * list and reliability are packed into one {@link BatchFraming} payload of at most the byte
+ * budget. A batch goes out as soon as the queue holds a full budget, otherwise
+ * {@code maxDelayMillis} after its first message was queued. A batch of one is sent without the
+ * batch header, so a lone message reaches the peer exactly as it was queued; messages offered
+ * with {@link #offerAlone} are always sent that way, for peers that cannot unpack a batch.
+ * <p>
+ * Messages offered with {@link #offerLatest} carry a key: while a message with the same key is
+ * still queued, a newer one replaces its payload in place instead of queueing behind it, so
+ * latest-value streams never wait behind their own stale updates.
+ * <p>
+ * When the queue is full the {@link OverflowPolicy} decides: drop the new message, drop the
+ * oldest queued one, or block the caller until there is room. Never use BLOCK from the
+ * scheduler's own thread, it would wait for itself.
+ */
+public final class OutboundPipeline implements MessageSender {
+
+    public enum OverflowPolicy {
+        DROP_NEWEST,
+        DROP_OLDEST,
+        BLOCK
+    }
+
+    public static final class Builder {
+        private final MessageSender mDownstream;
+        private final Scheduler mScheduler;
+        private int mMaxReliableBatchBytes = 4096;
+        private int mMaxUnreliableBatchBytes = 1168;
+        private long mMaxDelayMillis = 5;
+        private int mCapacity = 256;
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private long mBlockTimeoutMillis = 1000;
+
+        public Builder(MessageSender downstream, Scheduler scheduler) {
+            mDownstream = downstream;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * Largest batch payload per reliability class, e.g. the Connections message size limits.
+         */
+        public Builder maxBatchBytes(int reliable, int unreliable) {
+            mMaxReliableBatchBytes = reliable;
+            mMaxUnreliableBatchBytes = unreliable;
+            return this;
+        }
+
+        public Builder maxDelayMillis(long maxDelayMillis) {
+            mMaxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Maximum number of queued messages.
+         */
+        public Builder capacity(int capacity) {
+            mCapacity = capacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy policy) {
+            mOverflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * How long a BLOCK send waits for room before dropping its message.
+         */
+        public Builder blockTimeoutMillis(long blockTimeoutMillis) {
+            mBlockTimeoutMillis = blockTimeoutMillis;
+            return this;
+        }
+
+        public OutboundPipeline build() {
+            if (mCapacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive: " + mCapacity);
+            }
+            if (mMaxReliableBatchBytes <= BatchFraming.MAX_HEADER_LENGTH
+                    || mMaxUnreliableBatchBytes <= BatchFraming.MAX_HEADER_LENGTH) {
+                throw new IllegalArgumentException("batch budget too small");
+            }
+            return new OutboundPipeline(this);
+        }
+    }
+
+    private static final class Outbound {
+        final List<String> endpointIds;
+        final boolean reliable;
+        final long queuedAtMillis;
+        final Object latestKey;
+        final boolean alone;
+        byte[] payload;
+
+        Outbound(List<String> endpointIds, byte[] payload, boolean reliable, long queuedAtMillis,
+                 Object latestKey, boolean alone) {
+            this.endpointIds = endpointIds;
+            this.payload = payload;
+            this.reliable = reliable;
+            this.queuedAtMillis = queuedAtMillis;
+            this.latestKey = latestKey;
+            this.alone = alone;
+        }
+    }
+
+    private final MessageSender mDownstream;
+    private final Scheduler mScheduler;
+    private final int mMaxReliableBatchBytes;
+    private final int mMaxUnreliableBatchBytes;
+    private final long mMaxDelayMillis;
+    private final int mCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    private final long mBlockTimeoutMillis;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+    private final ArrayDeque<Outbound> mQueue = new ArrayDeque<>();
+    private final HashMap<Object, Outbound> mQueuedLatest = new HashMap<>();
+    private final Runnable mFlushTask = this::flush;
+
+    // guarded by mLock
+    private int mQueuedBytes;
+    private boolean mFlushScheduled;
+    private boolean mImmediateFlushScheduled;
+    private int mMaxQueueDepth;
+    private long mQueuedCount;
+    private long mDroppedCount;
+    private long mReplacedCount;
+
+    // only touched on the scheduler thread while flushing
+    private byte[][] mBatchMessages = new byte[16][];
+
+    private final LongHistogram mBatchSizes = new LongHistogram();
+    private final LongHistogram mBatchBytes = new LongHistogram();
+    private final LongHistogram mLatencyMillis = new LongHistogram();
+
+    private OutboundPipeline(Builder builder) {
+        mDownstream = builder.mDownstream;
+        mScheduler = builder.mScheduler;
+        mMaxReliableBatchBytes = builder.mMaxReliableBatchBytes;
+        mMaxUnreliableBatchBytes = builder.mMaxUnreliableBatchBytes;
+        mMaxDelayMillis = builder.mMaxDelayMillis;
+        mCapacity = builder.mCapacity;
+        mOverflowPolicy = builder.mOverflowPolicy;
+        mBlockTimeoutMillis = builder.mBlockTimeoutMillis;
+    }
+
+    /**
+     * Queue a message. Whether it is accepted depends on the overflow policy, see
+     * {@link #offer(List, byte[], boolean)}.
+     */
+    @Override
+    public void send(List<String> endpointIds, byte[] payload, boolean reliable) {
+        offer(endpointIds, payload, reliable);
+    }
+
+    /**
+     * Queue a message for {@code endpointIds}. The list is used as the batching key and must
+     * not change afterwards; passing the same instance for the same destinations lets
+     * consecutive messages share a batch.
+     *
+     * @return false if the message was dropped because the queue is full.
+     */
+    public boolean offer(List<String> endpointIds, byte[] payload, boolean reliable) {
+        return offerInternal(endpointIds, payload, reliable, null, false);
+    }
+
+    /**
+     * Queue a message that is sent in a payload of its own, never packed into a batch.
+     *
+     * @return false if the message was dropped because the queue is full.
+     */
+    public boolean offerAlone(List<String> endpointIds, byte[] payload, boolean reliable) {
+        return offerInternal(endpointIds, payload, reliable, null, true);
+    }
+
+    /**
+     * Queue a message that supersedes any still-queued message with the same {@code key}.
+     * A replaced message keeps its place in the queue and its original queue time.
+     *
+     * @return false if the message was dropped because the queue is full.
+     */
+    public boolean offerLatest(Object key, List<String> endpointIds, byte[] payload, boolean reliable) {
+        mLock.lock();
+        try {
+            Outbound queued = mQueuedLatest.get(key);
+            if (queued != null && queued.reliable == reliable
+                    && queued.endpointIds.equals(endpointIds)) {
+                mQueuedBytes += BatchFraming.framedLength(payload.length)
+                        - BatchFraming.framedLength(queued.payload.length);
+                queued.payload = payload;
+                mReplacedCount++;
+                return true;
+            }
+            // the lock is reentrant, so the check and the insert are one atomic step
+            return offerInternal(endpointIds, payload, reliable, key, false);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean offerInternal(List<String> endpointIds, byte[] payload, boolean reliable,
+                                  Object latestKey, boolean alone) {
+        mLock.lock();
+        try {
+            if (mQueue.size() >= mCapacity && !makeRoom()) {
+                mDroppedCount++;
+                return false;
+            }
+            Outbound outbound = new Outbound(endpointIds, payload, reliable, mScheduler.now(), latestKey,
+                    alone);
+            mQueue.addLast(outbound);
+            if (latestKey != null) {
+                mQueuedLatest.put(latestKey, outbound);
+            }
+            mQueuedBytes += BatchFraming.framedLength(payload.length);
+            mQueuedCount++;
+            if (mQueue.size() > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueue.size();
+            }
+            scheduleFlushLocked();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Send everything that is queued now. Runs on the scheduler's thread; call it directly only
+     * from that thread.
+     */
+    public void flush() {
+        while (true) {
+            Outbound first;
+            int count;
+            int framedBytes;
+            mLock.lock();
+            try {
+                if (mFlushScheduled) {
+                    mScheduler.cancel(mFlushTask);
+                    mFlushScheduled = false;
+                    mImmediateFlushScheduled = false;
+                }
+                first = poll();
+                if (first == null) {
+                    return;
+                }
+                int budget = (first.reliable ? mMaxReliableBatchBytes : mMaxUnreliableBatchBytes)
+                        - BatchFraming.MAX_HEADER_LENGTH;
+                framedBytes = BatchFraming.framedLength(first.payload.length);
+                count = 1;
+                add(0, first.payload);
+                Outbound next;
+                while (!first.alone && (next = mQueue.peekFirst()) != null
+                        && !next.alone
+                        && next.reliable == first.reliable
+                        && (next.endpointIds == first.endpointIds || next.endpointIds.equals(first.endpointIds))
+                        && framedBytes + BatchFraming.framedLength(next.payload.length) <= budget) {
+                    poll();
+                    framedBytes += BatchFraming.framedLength(next.payload.length);
+                    add(count++, next.payload);
+                }
+                mQueuedBytes -= framedBytes;
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+
+            // a message alone goes out as it is, which is what builds without batching read;
+            // only one that would pass for a batch itself needs the header
+            byte[] batch = first.alone || count == 1 && !BatchFraming.isBatch(first.payload) ? first.payload
+                    : BatchFraming.encode(mBatchMessages, 0, count, framedBytes);
+            for (int i = 0; i < count; i++) {
+                mBatchMessages[i] = null;
+            }
+            mDownstream.send(first.endpointIds, batch, first.reliable);
+            mBatchSizes.record(count);
+            mBatchBytes.record(batch.length);
+            // the oldest message in the batch sets its latency
+            mLatencyMillis.record(mScheduler.now() - first.queuedAtMillis);
+        }
+    }
+
+    /**
+     * Drop everything queued, e.g. when all peers are gone.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            mDroppedCount += mQueue.size();
+            mQueue.clear();
+            mQueuedLatest.clear();
+            mQueuedBytes = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        mLock.lock();
+        try {
+            return mMaxQueueDepth;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getQueuedCount() {
+        mLock.lock();
+        try {
+            return mQueuedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        mLock.lock();
+        try {
+            return mDroppedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queued latest-value messages that were superseded before they were sent.
+     */
+    public long getReplacedCount() {
+        mLock.lock();
+        try {
+            return mReplacedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Messages per batch.
+     */
+    public LongHistogram getBatchSizes() {
+        return mBatchSizes;
+    }
+
+    /**
+     * Payload bytes per batch, framing included.
+     */
+    public LongHistogram getBatchBytes() {
+        return mBatchBytes;
+    }
+
+    /**
+     * Milliseconds from queueing a message to handing its batch to the sender.
+     */
+    public LongHistogram getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundPipeline{depth=" + getQueueDepth() + ", maxDepth=" + getMaxQueueDepth()
+                + ", queued=" + getQueuedCount() + ", dropped=" + getDroppedCount()
+                + ", replaced=" + getReplacedCount()
+                + ", batchSize=" + mBatchSizes + ", latencyMs=" + mLatencyMillis + "}";
+    }
+
+    /**
+     * Apply the overflow policy to a full queue.
+     *
+     * @return true if there is room for one more message.
+     */
+    private boolean makeRoom() {
+        switch (mOverflowPolicy) {
+            case DROP_OLDEST:
+                Outbound oldest = poll();
+                mQueuedBytes -= BatchFraming.framedLength(oldest.payload.length);
+                mDroppedCount++;
+                return true;
+            case BLOCK:
+                long remaining = TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMillis);
+                try {
+                    while (mQueue.size() >= mCapacity) {
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        remaining = mNotFull.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return true;
+            case DROP_NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    private Outbound poll() {
+        Outbound outbound = mQueue.pollFirst();
+        if (outbound != null && outbound.latestKey != null) {
+            mQueuedLatest.remove(outbound.latestKey);
+        }
+        return outbound;
+    }
+
+    private void scheduleFlushLocked() {
+        boolean full = mQueuedBytes >= Math.min(mMaxReliableBatchBytes, mMaxUnreliableBatchBytes)
+                - BatchFraming.MAX_HEADER_LENGTH;
+        if (full && !mImmediateFlushScheduled) {
+            if (mFlushScheduled) {
+                mScheduler.cancel(mFlushTask);
+            }
+            mScheduler.schedule(mFlushTask, 0);
+            mFlushScheduled = true;
+            mImmediateFlushScheduled = true;
+        } else if (!mFlushScheduled) {
+            mScheduler.schedule(mFlushTask, mMaxDelayMillis);
+            mFlushScheduled = true;
+        }
+    }
+
+    private void add(int index, byte[] payload) {
+        if (index == mBatchMessages.length) {
+            byte[][] grown = new byte[index * 2][];
+            System.arraycopy(mBatchMessages, 0, grown, 0, index);
+            mBatchMessages = grown;
+        }
+        mBatchMessages[index] = payload;
+    }
+}
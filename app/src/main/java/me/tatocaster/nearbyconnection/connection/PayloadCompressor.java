@@ -0,0 +1,465 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.wire.CompressedFraming;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+import me.tatocaster.nearbyconnection.wire.Lz4Block;
+
+/**
+ * Compresses channel payloads for the peers that can decode them, choosing DEFLATE, LZ4 or no
+ * compression for every message:
+ * <ol>
+ * <li>payloads under the minimum length go as they are, the header would eat the gain;</li>
+ * <li>the others are sampled: up to 1 KB from the middle is LZ4 compressed, and if that saves
+ * less than an eighth the payload goes as it is, it most likely is compressed already;</li>
+ * <li>payloads up to the DEFLATE limit are deflated, as the better ratio is worth the CPU on a
+ * few KB; larger ones use LZ4, which is fast enough not to hold up the send thread;</li>
+ * <li>if the result is no smaller after all, the payload goes as it is.</li>
+ * </ol>
+ * A preset dictionary of strings that recur in our payloads, such as JSON keys, primes both
+ * codecs, so that short messages compress too. Peers announce the methods and dictionaries they
+ * decode in their {@link ConnectionHandshake}; a message is only compressed with what every peer
+ * it goes to announced, and peers that announced nothing, such as older builds, get it raw.
+ * <p>
+ * The ratio of every compressed message and the CPU time spent both ways are kept in
+ * histograms. Thread safe.
+ */
+public final class PayloadCompressor {
+
+    public interface CpuClock {
+        /**
+         * CPU time of the calling thread.
+         */
+        long threadCpuTimeNanos();
+    }
+
+    public static final class Builder {
+        private final CpuClock mClock;
+        private int mMinLength = 64;
+        private int mDeflateMaxLength = 8 * 1024;
+        private int mMaxLength = 1024 * 1024;
+        private int mDeflateLevel = Deflater.DEFAULT_COMPRESSION;
+        private byte[] mDictionary;
+        private final List<byte[]> mOtherDictionaries = new ArrayList<>();
+
+        public Builder(CpuClock clock) {
+            mClock = clock;
+        }
+
+        /**
+         * Shorter payloads are never compressed.
+         */
+        public Builder minLength(int minLength) {
+            mMinLength = minLength;
+            return this;
+        }
+
+        /**
+         * Longer payloads use LZ4 instead of DEFLATE.
+         */
+        public Builder deflateMaxLength(int deflateMaxLength) {
+            mDeflateMaxLength = deflateMaxLength;
+            return this;
+        }
+
+        /**
+         * The largest uncompressed length accepted from a peer, so that a small frame cannot
+         * make us allocate gigabytes.
+         */
+        public Builder maxLength(int maxLength) {
+            mMaxLength = maxLength;
+            return this;
+        }
+
+        public Builder deflateLevel(int deflateLevel) {
+            mDeflateLevel = deflateLevel;
+            return this;
+        }
+
+        /**
+         * The preset dictionary to compress with, for peers that have it too. At most 64 KB is
+         * of use to LZ4.
+         */
+        public Builder dictionary(byte[] dictionary) {
+            mDictionary = dictionary;
+            return this;
+        }
+
+        /**
+         * A dictionary peers may still compress with, such as the one of an older build. Only
+         * used to decompress.
+         */
+        public Builder acceptDictionary(byte[] dictionary) {
+            mOtherDictionaries.add(dictionary);
+            return this;
+        }
+
+        public PayloadCompressor build() {
+            if (mMinLength < 0 || mMaxLength <= 0) {
+                throw new IllegalArgumentException("lengths must not be negative");
+            }
+            return new PayloadCompressor(this);
+        }
+    }
+
+    /**
+     * What this build decodes.
+     */
+    public static final int CODECS = CompressedFraming.codecBit(CompressedFraming.METHOD_DEFLATE)
+            | CompressedFraming.codecBit(CompressedFraming.METHOD_LZ4);
+
+    static final int SAMPLE_LENGTH = 1024;
+
+    /**
+     * Stored with a peer's codecs when it has our dictionary, above any codec bit.
+     */
+    private static final int HAS_DICTIONARY = 1 << 30;
+
+    private final class Inflation implements CompressedFraming.Handler {
+        byte[] mResult;
+
+        @Override
+        public void onCompressed(int method, int dictionaryId, int length, byte[] buffer, int offset,
+                                 int dataLength) {
+            if (length > mMaxLength) {
+                throw new IllegalArgumentException("Uncompressed length " + length + " over the limit");
+            }
+            byte[] dictionary = null;
+            if (dictionaryId != 0) {
+                dictionary = mDictionaries.get(dictionaryId);
+                if (dictionary == null) {
+                    throw new IllegalArgumentException("Unknown dictionary " + Integer.toHexString(dictionaryId));
+                }
+            }
+            mResult = method == CompressedFraming.METHOD_DEFLATE
+                    ? inflate(buffer, offset, dataLength, length, dictionary)
+                    : lz4Decompress(buffer, offset, dataLength, length, dictionary);
+        }
+    }
+
+    private final CpuClock mClock;
+    private final int mMinLength;
+    private final int mDeflateMaxLength;
+    private final int mMaxLength;
+    private final int mDeflateLevel;
+    private final byte[] mDictionary;
+    private final int mDictionaryId;
+    private final Map<Integer, byte[]> mDictionaries = new HashMap<>();
+    // codecs of every peer that sent a handshake, with HAS_DICTIONARY
+    private final Map<String, Integer> mPeers = new HashMap<>();
+    private final LongHistogram mRatioPercent = new LongHistogram();
+    private final LongHistogram mCompressMicros = new LongHistogram();
+    private final LongHistogram mDecompressMicros = new LongHistogram();
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private long mRaw;
+    private long mDeflated;
+    private long mLz4;
+    private long mBytesSaved;
+
+    private PayloadCompressor(Builder builder) {
+        mClock = builder.mClock;
+        mMinLength = builder.mMinLength;
+        mDeflateMaxLength = builder.mDeflateMaxLength;
+        mMaxLength = builder.mMaxLength;
+        mDeflateLevel = builder.mDeflateLevel;
+        mDictionary = builder.mDictionary;
+        mDictionaryId = mDictionary != null ? dictionaryId(mDictionary) : 0;
+        if (mDictionary != null) {
+            mDictionaries.put(mDictionaryId, mDictionary);
+        }
+        for (byte[] dictionary : builder.mOtherDictionaries) {
+            mDictionaries.put(dictionaryId(dictionary), dictionary);
+        }
+    }
+
+    /**
+     * The id a dictionary goes by on the wire: its Adler-32, as in a zlib header.
+     */
+    public static int dictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * The dictionaries this compressor decodes with, to announce in the handshake along with
+     * {@link #CODECS}.
+     */
+    public int[] getDictionaryIds() {
+        int[] dictionaryIds = new int[mDictionaries.size()];
+        int i = 0;
+        for (Integer dictionaryId : mDictionaries.keySet()) {
+            dictionaryIds[i++] = dictionaryId;
+        }
+        return dictionaryIds;
+    }
+
+    /**
+     * Remember what a peer decodes.
+     *
+     * @param handshake the peer's handshake, null if it sent none.
+     */
+    public synchronized void onHandshake(String endpointId, ConnectionHandshake handshake) {
+        int codecs = handshake != null ? handshake.getCodecs() & CODECS : 0;
+        if (codecs == 0) {
+            mPeers.remove(endpointId);
+            return;
+        }
+        if (mDictionary != null) {
+            for (int dictionaryId : handshake.getDictionaryIds()) {
+                if (dictionaryId == mDictionaryId) {
+                    codecs |= HAS_DICTIONARY;
+                }
+            }
+        }
+        mPeers.put(endpointId, codecs);
+    }
+
+    public synchronized void onPeerGone(String endpointId) {
+        mPeers.remove(endpointId);
+    }
+
+    /**
+     * The endpoints among {@code endpointIds} that decode any of our methods, in their order.
+     */
+    public synchronized List<String> capable(Collection<String> endpointIds) {
+        List<String> capable = new ArrayList<>(endpointIds.size());
+        for (String endpointId : endpointIds) {
+            if (mPeers.containsKey(endpointId)) {
+                capable.add(endpointId);
+            }
+        }
+        return capable;
+    }
+
+    /**
+     * Compress a payload for a set of {@link #capable} peers.
+     *
+     * @return the payload behind a {@link CompressedFraming} header, or null to send it as is.
+     */
+    public synchronized byte[] compress(Collection<String> endpointIds, byte[] payload) {
+        if (payload.length < mMinLength || endpointIds.isEmpty()) {
+            return null;
+        }
+        long startedAt = mClock.threadCpuTimeNanos();
+        int codecs = CODECS | HAS_DICTIONARY;
+        for (String endpointId : endpointIds) {
+            Integer peer = mPeers.get(endpointId);
+            codecs &= peer != null ? peer : 0;
+        }
+        byte[] dictionary = (codecs & HAS_DICTIONARY) != 0 ? mDictionary : null;
+        byte[] compressed = null;
+        int method = chooseMethod(payload, codecs, dictionary);
+        if (method == CompressedFraming.METHOD_DEFLATE) {
+            compressed = deflate(payload, dictionary);
+        } else if (method == CompressedFraming.METHOD_LZ4) {
+            compressed = lz4Compress(payload, dictionary);
+        }
+        mCompressMicros.record((mClock.threadCpuTimeNanos() - startedAt) / 1000);
+        if (compressed == null) {
+            mRaw++;
+            return null;
+        }
+        if (method == CompressedFraming.METHOD_DEFLATE) {
+            mDeflated++;
+        } else {
+            mLz4++;
+        }
+        mBytesSaved += payload.length - compressed.length;
+        mRatioPercent.record(compressed.length * 100L / payload.length);
+        return compressed;
+    }
+
+    /**
+     * @return the payload behind a {@link CompressedFraming} header, uncompressed.
+     * @throws IllegalArgumentException if it is malformed, over the length limit or was
+     *                                  compressed with a dictionary we do not have.
+     */
+    public synchronized byte[] decompress(byte[] buffer, int offset, int length) {
+        long startedAt = mClock.threadCpuTimeNanos();
+        Inflation inflation = new Inflation();
+        CompressedFraming.decode(buffer, offset, length, inflation);
+        mDecompressMicros.record((mClock.threadCpuTimeNanos() - startedAt) / 1000);
+        return inflation.mResult;
+    }
+
+    /**
+     * Forget every peer and free the native zlib state, which is set up again when needed.
+     */
+    public synchronized void clear() {
+        mPeers.clear();
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    /**
+     * Compressed size in percent of the original, per compressed message.
+     */
+    public LongHistogram getRatioPercent() {
+        return mRatioPercent;
+    }
+
+    /**
+     * CPU time spent deciding on and compressing each message, in microseconds.
+     */
+    public LongHistogram getCompressMicros() {
+        return mCompressMicros;
+    }
+
+    public LongHistogram getDecompressMicros() {
+        return mDecompressMicros;
+    }
+
+    public synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PayloadCompressor{peers=" + mPeers.size() + ", raw=" + mRaw + ", deflate=" + mDeflated
+                + ", lz4=" + mLz4 + ", saved=" + mBytesSaved + " B, ratio%=" + mRatioPercent
+                + ", cpuUs=" + mCompressMicros + "}";
+    }
+
+    /**
+     * @return the method to compress with, or 0 to send the payload as is.
+     */
+    private int chooseMethod(byte[] payload, int codecs, byte[] dictionary) {
+        boolean deflate = (codecs & CompressedFraming.codecBit(CompressedFraming.METHOD_DEFLATE)) != 0;
+        boolean lz4 = (codecs & CompressedFraming.codecBit(CompressedFraming.METHOD_LZ4)) != 0;
+        if ((!deflate && !lz4) || !isCompressible(payload, dictionary)) {
+            return 0;
+        }
+        if (payload.length <= mDeflateMaxLength) {
+            return deflate ? CompressedFraming.METHOD_DEFLATE : CompressedFraming.METHOD_LZ4;
+        }
+        return lz4 ? CompressedFraming.METHOD_LZ4 : CompressedFraming.METHOD_DEFLATE;
+    }
+
+    private boolean isCompressible(byte[] payload, byte[] dictionary) {
+        int sampleLength = Math.min(payload.length, SAMPLE_LENGTH);
+        int prefix = dictionary != null ? dictionary.length : 0;
+        byte[] sample = new byte[prefix + sampleLength];
+        if (dictionary != null) {
+            System.arraycopy(dictionary, 0, sample, 0, prefix);
+        }
+        System.arraycopy(payload, (payload.length - sampleLength) / 2, sample, prefix, sampleLength);
+        byte[] out = new byte[Lz4Block.maxCompressedLength(sampleLength)];
+        int compressedLength = Lz4Block.compress(sample, prefix, sample.length, out, 0);
+        return compressedLength <= sampleLength - sampleLength / 8;
+    }
+
+    private byte[] deflate(byte[] payload, byte[] dictionary) {
+        if (mDeflater == null) {
+            // raw DEFLATE, the header carries the length and dictionary instead of a zlib wrapper
+            mDeflater = new Deflater(mDeflateLevel, true);
+        }
+        mDeflater.reset();
+        if (dictionary != null) {
+            mDeflater.setDictionary(dictionary);
+        }
+        mDeflater.setInput(payload);
+        mDeflater.finish();
+        int header = CompressedFraming.headerLength(payload.length);
+        // anything that does not fit is not worth sending
+        int room = payload.length - header;
+        if (room <= 0) {
+            return null;
+        }
+        byte[] out = new byte[header + room];
+        int written = 0;
+        while (!mDeflater.finished() && written < room) {
+            written += mDeflater.deflate(out, header + written, room - written);
+        }
+        if (!mDeflater.finished() || written == room) {
+            return null;
+        }
+        CompressedFraming.writeHeader(CompressedFraming.METHOD_DEFLATE,
+                dictionary != null ? mDictionaryId : 0, payload.length, out, 0);
+        return trim(out, header + written);
+    }
+
+    private byte[] inflate(byte[] buffer, int offset, int dataLength, int length, byte[] dictionary) {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        mInflater.reset();
+        if (dictionary != null) {
+            mInflater.setDictionary(dictionary);
+        }
+        mInflater.setInput(buffer, offset, dataLength);
+        byte[] out = new byte[length];
+        int read = 0;
+        try {
+            while (read < length) {
+                int n = mInflater.inflate(out, read, length - read);
+                if (n == 0) {
+                    throw new IllegalArgumentException("DEFLATE stream ends after " + read + " of " + length + " bytes");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed DEFLATE stream: " + e.getMessage());
+        }
+        return out;
+    }
+
+    private byte[] lz4Compress(byte[] payload, byte[] dictionary) {
+        int prefix = dictionary != null ? dictionary.length : 0;
+        byte[] src = payload;
+        if (dictionary != null) {
+            src = new byte[prefix + payload.length];
+            System.arraycopy(dictionary, 0, src, 0, prefix);
+            System.arraycopy(payload, 0, src, prefix, payload.length);
+        }
+        int header = CompressedFraming.headerLength(payload.length);
+        byte[] out = new byte[header + Lz4Block.maxCompressedLength(payload.length)];
+        int written = Lz4Block.compress(src, prefix, src.length, out, header);
+        if (header + written >= payload.length) {
+            return null;
+        }
+        CompressedFraming.writeHeader(CompressedFraming.METHOD_LZ4,
+                dictionary != null ? mDictionaryId : 0, payload.length, out, 0);
+        return trim(out, header + written);
+    }
+
+    private static byte[] lz4Decompress(byte[] buffer, int offset, int dataLength, int length,
+                                        byte[] dictionary) {
+        if (dictionary == null) {
+            byte[] out = new byte[length];
+            Lz4Block.decompress(buffer, offset, dataLength, out, 0, length);
+            return out;
+        }
+        byte[] window = new byte[dictionary.length + length];
+        System.arraycopy(dictionary, 0, window, 0, dictionary.length);
+        Lz4Block.decompress(buffer, offset, dataLength, window, dictionary.length, window.length);
+        return trim(window, dictionary.length, length);
+    }
+
+    private static byte[] trim(byte[] buffer, int length) {
+        return trim(buffer, 0, length);
+    }
+
+    private static byte[] trim(byte[] buffer, int offset, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(buffer, offset, out, 0, length);
+        return out;
+    }
+}
@@ -0,0 +1,112 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * One remote endpoint tracked by the {@link ConnectionManager}.
+ * <p>
+ * Peers follow the per-endpoint part of MainActivity's NearbyConnectionState:
+ * <pre>
+ *   CONNECTING --> CONNECTED --> (removed)
+ *        \----------------------^
+ * </pre>
+ * A peer leaves the manager when the request fails, is rejected or the endpoint disconnects.
+ */
+public final class Peer {
+
+    /**
+     * A connection request was sent to or received from the endpoint.
+     */
+    public static final int STATE_CONNECTING = 1028;
+    /**
+     * Same value as MainActivity's STATE_CONNECTED, messages can be exchanged.
+     */
+    public static final int STATE_CONNECTED = 1027;
+
+    private static final AtomicLongFieldUpdater<Peer> MESSAGES_SENT =
+            AtomicLongFieldUpdater.newUpdater(Peer.class, "mMessagesSent");
+    private static final AtomicLongFieldUpdater<Peer> BYTES_SENT =
+            AtomicLongFieldUpdater.newUpdater(Peer.class, "mBytesSent");
+    private static final AtomicLongFieldUpdater<Peer> MESSAGES_RECEIVED =
+            AtomicLongFieldUpdater.newUpdater(Peer.class, "mMessagesReceived");
+    private static final AtomicLongFieldUpdater<Peer> BYTES_RECEIVED =
+            AtomicLongFieldUpdater.newUpdater(Peer.class, "mBytesReceived");
+
+    private final String mEndpointId;
+    private volatile String mName;
+    volatile int mState;
+    volatile long mConnectedAtMillis;
+
+    // updated through the field updaters above, so a peer costs no extra counter objects
+    private volatile long mMessagesSent;
+    private volatile long mBytesSent;
+    private volatile long mMessagesReceived;
+    private volatile long mBytesReceived;
+
+    Peer(String endpointId, String name, int state) {
+        mEndpointId = endpointId;
+        mName = name;
+        mState = state;
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    void setName(String name) {
+        if (name != null) {
+            mName = name;
+        }
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+    /**
+     * @return the time the peer connected, on the manager's clock, or 0 if it has not.
+     */
+    public long getConnectedAtMillis() {
+        return mConnectedAtMillis;
+    }
+
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getMessagesReceived() {
+        return mMessagesReceived;
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    void recordSent(int bytes) {
+        MESSAGES_SENT.incrementAndGet(this);
+        BYTES_SENT.addAndGet(this, bytes);
+    }
+
+    void recordReceived(int bytes) {
+        MESSAGES_RECEIVED.incrementAndGet(this);
+        BYTES_RECEIVED.addAndGet(this, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "Peer{" + mEndpointId + ", " + mName + ", "
+                + (mState == STATE_CONNECTED ? "CONNECTED" : "CONNECTING") + "}";
+    }
+}
@@ -0,0 +1,284 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Brings the GoogleApiClient back after it was suspended or failed to connect, without the tight
+ * reconnect loop a flaky Play Services can otherwise cause.
+ * <p>
+ * Attempts are spaced by capped exponential backoff with jitter: the n-th retry waits a random
+ * time between half and all of {@code min(initialDelay * 2^n, maxDelay)}, so devices that lost
+ * Play Services together do not retry in lockstep. An attempt that neither connects nor fails
+ * within the attempt timeout counts as failed.
+ * <p>
+ * After {@code failureThreshold} failed attempts in a row the circuit opens: nothing is tried for
+ * the open period, then a single probe is made. A successful probe closes the circuit, a failed
+ * one opens it again for another period.
+ * <p>
+ * Forward every connection callback of the client to the matching {@code on*} method. All calls
+ * must happen on the scheduler's thread.
+ */
+public final class ReconnectScheduler {
+
+    /**
+     * The part of GoogleApiClient the scheduler drives.
+     */
+    public interface ApiClient {
+        /**
+         * Start connecting. The result is reported through {@link #onConnected} or
+         * {@link #onConnectionFailed}.
+         */
+        void reconnect();
+    }
+
+    public interface Listener {
+        /**
+         * The client is connected again after an outage, restore whatever the outage tore down.
+         *
+         * @param downtimeMillis time from the first suspension or failure to this connect.
+         * @param attempts       reconnect attempts it took.
+         */
+        void onRecovered(long downtimeMillis, int attempts);
+
+        /**
+         * Too many attempts failed in a row, the next one is made in {@code retryInMillis}.
+         */
+        void onCircuitOpen(long retryInMillis);
+    }
+
+    public static final int STATE_CONNECTED = 0;
+    public static final int STATE_BACKING_OFF = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CIRCUIT_OPEN = 3;
+
+    public static final class Builder {
+        private final ApiClient mClient;
+        private final Scheduler mScheduler;
+        private long mInitialDelayMillis = 1000;
+        private long mMaxDelayMillis = 60 * 1000;
+        private long mAttemptTimeoutMillis = 30 * 1000;
+        private int mFailureThreshold = 8;
+        private long mOpenMillis = 5 * 60 * 1000;
+        private Random mRandom = new Random();
+
+        public Builder(ApiClient client, Scheduler scheduler) {
+            mClient = client;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * Backoff of the first retry and the cap later retries grow to.
+         */
+        public Builder backoff(long initialDelayMillis, long maxDelayMillis) {
+            mInitialDelayMillis = initialDelayMillis;
+            mMaxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        public Builder attemptTimeoutMillis(long attemptTimeoutMillis) {
+            mAttemptTimeoutMillis = attemptTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Open the circuit after {@code failureThreshold} failed attempts in a row, for
+         * {@code openMillis}.
+         */
+        public Builder circuitBreaker(int failureThreshold, long openMillis) {
+            mFailureThreshold = failureThreshold;
+            mOpenMillis = openMillis;
+            return this;
+        }
+
+        /**
+         * Source of the jitter, seeded in tests.
+         */
+        public Builder random(Random random) {
+            mRandom = random;
+            return this;
+        }
+
+        public ReconnectScheduler build() {
+            if (mInitialDelayMillis <= 0 || mMaxDelayMillis < mInitialDelayMillis
+                    || mAttemptTimeoutMillis <= 0 || mFailureThreshold <= 0 || mOpenMillis <= 0) {
+                throw new IllegalArgumentException("bad reconnect settings");
+            }
+            return new ReconnectScheduler(this);
+        }
+    }
+
+    private final ApiClient mClient;
+    private final Scheduler mScheduler;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mAttemptTimeoutMillis;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final Random mRandom;
+    private final Runnable mAttemptTask = this::attempt;
+    private final Runnable mAttemptTimeoutTask = this::onAttemptTimedOut;
+    private Listener mListener;
+
+    private int mState = STATE_CONNECTED;
+    private long mOutageStartMillis = -1;
+    private int mAttempts;
+    private int mConsecutiveFailures;
+
+    private final LongHistogram mRecoveryMillis = new LongHistogram();
+    private long mAttemptCount;
+    private long mCircuitOpenCount;
+
+    private ReconnectScheduler(Builder builder) {
+        mClient = builder.mClient;
+        mScheduler = builder.mScheduler;
+        mInitialDelayMillis = builder.mInitialDelayMillis;
+        mMaxDelayMillis = builder.mMaxDelayMillis;
+        mAttemptTimeoutMillis = builder.mAttemptTimeoutMillis;
+        mFailureThreshold = builder.mFailureThreshold;
+        mOpenMillis = builder.mOpenMillis;
+        mRandom = builder.mRandom;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The client connected, whether on its own or through one of our attempts.
+     */
+    public void onConnected() {
+        mScheduler.cancel(mAttemptTask);
+        mScheduler.cancel(mAttemptTimeoutTask);
+        mState = STATE_CONNECTED;
+        mConsecutiveFailures = 0;
+        if (mOutageStartMillis < 0) {
+            // first connect, not a recovery
+            return;
+        }
+        long downtime = mScheduler.now() - mOutageStartMillis;
+        int attempts = mAttempts;
+        mOutageStartMillis = -1;
+        mAttempts = 0;
+        mRecoveryMillis.record(downtime);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRecovered(downtime, attempts);
+        }
+    }
+
+    public void onConnectionSuspended() {
+        outage();
+        if (mState == STATE_CONNECTED) {
+            // a suspension is usually brief, the first retry does not count as a failure
+            backOff();
+        }
+    }
+
+    /**
+     * Connecting failed. Failures that need the user, such as a missing Play Services update,
+     * should be resolved instead of reported here.
+     */
+    public void onConnectionFailed() {
+        outage();
+        if (mState == STATE_CIRCUIT_OPEN || mState == STATE_BACKING_OFF) {
+            // already waiting, the client failed on its own
+            return;
+        }
+        mScheduler.cancel(mAttemptTimeoutTask);
+        failed();
+    }
+
+    /**
+     * Stop retrying, e.g. when the client is disconnected on purpose. A pending outage is
+     * forgotten.
+     */
+    public void cancel() {
+        mScheduler.cancel(mAttemptTask);
+        mScheduler.cancel(mAttemptTimeoutTask);
+        mState = STATE_CONNECTED;
+        mOutageStartMillis = -1;
+        mAttempts = 0;
+        mConsecutiveFailures = 0;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Time from losing the client to having it back, per outage, in milliseconds.
+     */
+    public LongHistogram getRecoveryMillis() {
+        return mRecoveryMillis;
+    }
+
+    public long getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    public long getCircuitOpenCount() {
+        return mCircuitOpenCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectScheduler{state=" + mState + ", attempts=" + mAttemptCount
+                + ", circuitOpened=" + mCircuitOpenCount + ", recoveryMs=" + mRecoveryMillis + "}";
+    }
+
+    private void outage() {
+        if (mOutageStartMillis < 0) {
+            mOutageStartMillis = mScheduler.now();
+        }
+    }
+
+    private void failed() {
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures >= mFailureThreshold) {
+            mState = STATE_CIRCUIT_OPEN;
+            mCircuitOpenCount++;
+            mScheduler.schedule(mAttemptTask, mOpenMillis);
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCircuitOpen(mOpenMillis);
+            }
+        } else {
+            backOff();
+        }
+    }
+
+    private void backOff() {
+        mState = STATE_BACKING_OFF;
+        mScheduler.schedule(mAttemptTask, nextDelayMillis());
+    }
+
+    /**
+     * Half to all of the capped exponential delay for the current failure count.
+     */
+    long nextDelayMillis() {
+        long ceiling = mInitialDelayMillis;
+        for (int i = 0; i < mConsecutiveFailures && ceiling < mMaxDelayMillis; i++) {
+            ceiling <<= 1;
+        }
+        ceiling = Math.min(ceiling, mMaxDelayMillis);
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half + 1));
+    }
+
+    private void attempt() {
+        mState = STATE_CONNECTING;
+        mAttempts++;
+        mAttemptCount++;
+        mScheduler.schedule(mAttemptTimeoutTask, mAttemptTimeoutMillis);
+        mClient.reconnect();
+    }
+
+    private void onAttemptTimedOut() {
+        if (mState == STATE_CONNECTING) {
+            failed();
+        }
+    }
+}
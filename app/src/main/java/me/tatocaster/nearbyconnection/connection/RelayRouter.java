@@ -0,0 +1,464 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.wire.RelayFraming;
+
+/**
+ * Carries messages beyond radio range by having every node forward them to its own peers.
+ * <p>
+ * A message floods outwards: each node delivers it if it is addressed to everyone or to this
+ * node, and forwards it to every neighbour except the one it came from, until its TTL runs out.
+ * Nodes remember the ids of the last {@code seenCapacity} messages and drop copies that arrive
+ * over a second path, so a message crosses each link at most once per direction.
+ * <p>
+ * Every received message also teaches a route back to its origin: the neighbour it arrived from
+ * and the number of hops it took, keeping the shortest one seen. A message for a single node
+ * follows the learned route when there is one and floods otherwise, so once two nodes have heard
+ * from each other, their traffic takes the shortest known path and stays off the rest of the
+ * mesh. Routes expire when they are not refreshed, and are dropped with the neighbour they go
+ * through.
+ * <p>
+ * Each frame carries the time the previous hop sent it, which gives the latency of every link
+ * it crossed. Those clocks belong to different devices, so the numbers are only as good as their
+ * clock sync; on the simulator they are exact.
+ * <p>
+ * Not thread safe; call it from the thread that receives Connections callbacks.
+ */
+public final class RelayRouter {
+
+    public interface Link {
+        /**
+         * The endpoint ids of the directly connected peers worth sending to. Learned routes
+         * through any other neighbour are not used.
+         */
+        Collection<String> getNeighbors();
+
+        void send(Collection<String> endpointIds, byte[] frame);
+    }
+
+    public interface Listener {
+        /**
+         * A message for this node arrived, {@code hops} links away from its origin. The payload
+         * region is a view into the received frame, only valid during the call.
+         */
+        void onRelayMessage(String origin, int hops, byte[] buffer, int offset, int length);
+    }
+
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public static final class Builder {
+        private final String mNodeId;
+        private final Link mLink;
+        private final Clock mClock;
+        private int mTtl = 8;
+        private int mSeenCapacity = 4096;
+        private int mRouteCapacity = 1024;
+        private long mRouteExpiryMillis = 60000;
+
+        /**
+         * @param nodeId this node's id on the mesh, unique among the nodes and not an endpoint
+         *               id, which only names a peer to its neighbours.
+         */
+        public Builder(String nodeId, Link link, Clock clock) {
+            mNodeId = nodeId;
+            mLink = link;
+            mClock = clock;
+        }
+
+        /**
+         * Links a message may cross, which bounds how far a flood spreads.
+         */
+        public Builder ttl(int ttl) {
+            mTtl = ttl;
+            return this;
+        }
+
+        /**
+         * Message ids remembered for duplicate detection. Should cover the messages a node sees
+         * in the time a flood takes to die out.
+         */
+        public Builder seenCapacity(int seenCapacity) {
+            mSeenCapacity = seenCapacity;
+            return this;
+        }
+
+        /**
+         * Origins a route is kept for; the first learned go first.
+         */
+        public Builder routeCapacity(int routeCapacity) {
+            mRouteCapacity = routeCapacity;
+            return this;
+        }
+
+        /**
+         * How long a route is used after the last message that confirmed it.
+         */
+        public Builder routeExpiryMillis(long routeExpiryMillis) {
+            mRouteExpiryMillis = routeExpiryMillis;
+            return this;
+        }
+
+        public RelayRouter build() {
+            if (mTtl < 1 || mTtl > RelayFraming.MAX_HOPS) {
+                throw new IllegalArgumentException("ttl must be in [1, " + RelayFraming.MAX_HOPS + "]");
+            }
+            if (mSeenCapacity <= 0 || mRouteCapacity <= 0) {
+                throw new IllegalArgumentException("capacities must be positive");
+            }
+            return new RelayRouter(this);
+        }
+    }
+
+    private static final class MessageId {
+        final String origin;
+        final int sequence;
+
+        MessageId(String origin, int sequence) {
+            this.origin = origin;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MessageId)) {
+                return false;
+            }
+            MessageId other = (MessageId) o;
+            return sequence == other.sequence && origin.equals(other.origin);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * origin.hashCode() + sequence;
+        }
+    }
+
+    private static final class Route {
+        String neighbor;
+        int hops;
+        long confirmedAtMillis;
+    }
+
+    private final class FrameHandler implements RelayFraming.Handler {
+        private final String mFrom;
+        private final int mFrameOffset;
+        private final int mFrameLength;
+
+        FrameHandler(String from, int frameOffset, int frameLength) {
+            mFrom = from;
+            mFrameOffset = frameOffset;
+            mFrameLength = frameLength;
+        }
+
+        @Override
+        public void onData(int ttl, int hops, long sentAtMillis, String origin, int sequence,
+                           String destination, byte[] buffer, int offset, int length) {
+            if (onReceived(mFrom, ttl, hops + 1, sentAtMillis, origin, sequence, destination,
+                    buffer, offset, length)) {
+                forward(mFrom, destination, RelayFraming.forward(buffer, mFrameOffset, mFrameLength,
+                        mClock.currentTimeMillis()));
+            }
+        }
+    }
+
+    private final String mNodeId;
+    private final Link mLink;
+    private final Clock mClock;
+    private final int mTtl;
+    private final long mRouteExpiryMillis;
+    private final Map<MessageId, Boolean> mSeen;
+    private final Map<String, Route> mRoutes;
+    private final Map<String, LongHistogram> mLinkLatency = new HashMap<>();
+    private Listener mListener;
+    private int mNextSequence;
+
+    private final LongHistogram mHopLatencyMillis = new LongHistogram();
+    private final LongHistogram mHopCounts = new LongHistogram();
+    private long mOriginated;
+    private long mDelivered;
+    private long mForwarded;
+    private long mRouted;
+    private long mFlooded;
+    private long mDuplicates;
+    private long mExpired;
+    private long mMalformed;
+
+    private RelayRouter(final Builder builder) {
+        mNodeId = builder.mNodeId;
+        mLink = builder.mLink;
+        mClock = builder.mClock;
+        mTtl = builder.mTtl;
+        mRouteExpiryMillis = builder.mRouteExpiryMillis;
+        mSeen = new LinkedHashMap<MessageId, Boolean>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MessageId, Boolean> eldest) {
+                return size() > builder.mSeenCapacity;
+            }
+        };
+        mRoutes = new LinkedHashMap<String, Route>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+                return size() > builder.mRouteCapacity;
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    /**
+     * The sequence the next message from this node gets, which with the node id identifies it.
+     */
+    public int getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * A message arrived another way than the relay, e.g. through the outbox. It counts as seen,
+     * so a relayed copy arriving later is dropped.
+     *
+     * @return false if it had been seen already, and should be dropped too.
+     */
+    public boolean markSeen(String origin, int sequence) {
+        if (mSeen.put(new MessageId(origin, sequence), Boolean.TRUE) != null) {
+            mDuplicates++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send {@code payload} to every node within the TTL.
+     *
+     * @return the number of neighbours it went out to.
+     */
+    public int broadcast(byte[] payload) {
+        return send("", payload);
+    }
+
+    /**
+     * Send {@code payload} to one node, along the learned route to it if there is one.
+     *
+     * @return the number of neighbours it went out to.
+     */
+    public int send(String destination, byte[] payload) {
+        int sequence = mNextSequence++;
+        mSeen.put(new MessageId(mNodeId, sequence), Boolean.TRUE);
+        mOriginated++;
+        byte[] frame = RelayFraming.encodeData(mTtl, mClock.currentTimeMillis(), mNodeId, sequence,
+                destination, payload, 0, payload.length);
+        return route(destination, frame, null);
+    }
+
+    /**
+     * Handle a frame from the relay channel. Malformed frames are counted and dropped.
+     */
+    public void onFrameReceived(String endpointId, byte[] buffer, int offset, int length) {
+        try {
+            RelayFraming.decode(buffer, offset, length, new FrameHandler(endpointId, offset, length));
+        } catch (IllegalArgumentException e) {
+            mMalformed++;
+        }
+    }
+
+    /**
+     * Stop routing through a neighbour that disconnected.
+     */
+    public void onNeighborDisconnected(String endpointId) {
+        mLinkLatency.remove(endpointId);
+        Iterator<Route> it = mRoutes.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().neighbor.equals(endpointId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget routes and seen messages, e.g. when the session closes. Counters are kept.
+     */
+    public void clear() {
+        mSeen.clear();
+        mRoutes.clear();
+        mLinkLatency.clear();
+    }
+
+    /**
+     * The number of hops to {@code destination} on the learned route, or -1 if there is none.
+     */
+    public int getRouteHops(String destination) {
+        Route route = findRoute(destination);
+        return route == null ? -1 : route.hops;
+    }
+
+    public int getRouteCount() {
+        return mRoutes.size();
+    }
+
+    /**
+     * Latency of every link crossed by the messages this node received, as measured on arrival.
+     */
+    public LongHistogram getHopLatencyMillis() {
+        return mHopLatencyMillis;
+    }
+
+    /**
+     * Latency of the link to one neighbour, or null if nothing arrived from it yet.
+     */
+    public LongHistogram getHopLatencyMillis(String endpointId) {
+        return mLinkLatency.get(endpointId);
+    }
+
+    /**
+     * Hops travelled by the messages delivered to this node.
+     */
+    public LongHistogram getHopCounts() {
+        return mHopCounts;
+    }
+
+    public long getDelivered() {
+        return mDelivered;
+    }
+
+    public long getForwarded() {
+        return mForwarded;
+    }
+
+    /**
+     * Copies dropped because the message had already been seen.
+     */
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Messages not forwarded because their TTL ran out here.
+     */
+    public long getExpired() {
+        return mExpired;
+    }
+
+    @Override
+    public String toString() {
+        return "RelayRouter{node=" + mNodeId + ", originated=" + mOriginated + ", delivered=" + mDelivered
+                + ", forwarded=" + mForwarded + " (routed=" + mRouted + ", flooded=" + mFlooded
+                + "), duplicates=" + mDuplicates + ", expired=" + mExpired + ", malformed=" + mMalformed
+                + ", routes=" + mRoutes.size() + ", hopLatencyMs=" + mHopLatencyMillis + "}";
+    }
+
+    /**
+     * @return whether the frame should be forwarded.
+     */
+    private boolean onReceived(String from, int ttl, int hops, long sentAtMillis, String origin,
+                               int sequence, String destination, byte[] buffer, int offset, int length) {
+        long now = mClock.currentTimeMillis();
+        long latency = now - sentAtMillis;
+        mHopLatencyMillis.record(latency);
+        LongHistogram linkLatency = mLinkLatency.get(from);
+        if (linkLatency == null) {
+            linkLatency = new LongHistogram();
+            mLinkLatency.put(from, linkLatency);
+        }
+        linkLatency.record(latency);
+
+        boolean duplicate = mSeen.put(new MessageId(origin, sequence), Boolean.TRUE) != null;
+        if (!origin.equals(mNodeId)) {
+            // a copy that took another path may still show a shorter way back to the origin
+            learnRoute(origin, from, hops, now, !duplicate);
+        }
+        if (duplicate) {
+            mDuplicates++;
+            return false;
+        }
+
+        boolean toMe = destination.equals(mNodeId);
+        if (toMe || destination.isEmpty()) {
+            mDelivered++;
+            mHopCounts.record(hops);
+            if (mListener != null) {
+                mListener.onRelayMessage(origin, hops, buffer, offset, length);
+            }
+        }
+        if (toMe) {
+            return false;
+        }
+        if (ttl <= 1 || hops >= RelayFraming.MAX_HOPS) {
+            mExpired++;
+            return false;
+        }
+        return true;
+    }
+
+    private void forward(String from, String destination, byte[] frame) {
+        if (route(destination, frame, from) > 0) {
+            mForwarded++;
+        }
+    }
+
+    private int route(String destination, byte[] frame, String from) {
+        Collection<String> neighbors = mLink.getNeighbors();
+        if (!destination.isEmpty()) {
+            Route route = findRoute(destination);
+            if (route != null && !route.neighbor.equals(from) && neighbors.contains(route.neighbor)) {
+                mRouted++;
+                mLink.send(Collections.singletonList(route.neighbor), frame);
+                return 1;
+            }
+        }
+        List<String> targets = new ArrayList<>(neighbors.size());
+        for (String neighbor : neighbors) {
+            if (!neighbor.equals(from)) {
+                targets.add(neighbor);
+            }
+        }
+        if (targets.isEmpty()) {
+            return 0;
+        }
+        mFlooded++;
+        mLink.send(targets, frame);
+        return targets.size();
+    }
+
+    /**
+     * Keep the shorter of the known and the new route. The first copy of a message through the
+     * known route's neighbour refreshes it, even if the path behind that neighbour got longer.
+     */
+    private void learnRoute(String origin, String neighbor, int hops, long now, boolean firstCopy) {
+        Route route = mRoutes.get(origin);
+        if (route == null) {
+            route = new Route();
+            mRoutes.put(origin, route);
+        } else if (hops >= route.hops && now - route.confirmedAtMillis < mRouteExpiryMillis
+                && !(firstCopy && route.neighbor.equals(neighbor))) {
+            return;
+        }
+        route.neighbor = neighbor;
+        route.hops = hops;
+        route.confirmedAtMillis = now;
+    }
+
+    private Route findRoute(String destination) {
+        Route route = mRoutes.get(destination);
+        if (route != null && mClock.currentTimeMillis() - route.confirmedAtMillis >= mRouteExpiryMillis) {
+            mRoutes.remove(destination);
+            return null;
+        }
+        return route;
+    }
+}
@@ -0,0 +1,84 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Reference count for a connection shared by several screens: the first {@link #acquire()}
+ * opens it, and it is closed a linger period after the last {@link #release()}, unless it is
+ * acquired again in between. The linger covers a rotation or a hand-over between two screens,
+ * where one releases before the other acquires.
+ * <p>
+ * Not thread safe; call it from the thread the {@link Scheduler} runs on.
+ */
+public final class SharedSession {
+
+    public interface Client {
+        void open();
+
+        void close();
+    }
+
+    private final Client mClient;
+    private final Scheduler mScheduler;
+    private final long mLingerMillis;
+    private final Runnable mCloseTask = this::close;
+
+    private int mReferences;
+    private boolean mOpen;
+    private int mOpens;
+
+    public SharedSession(Client client, Scheduler scheduler, long lingerMillis) {
+        mClient = client;
+        mScheduler = scheduler;
+        mLingerMillis = lingerMillis;
+    }
+
+    public void acquire() {
+        mReferences++;
+        mScheduler.cancel(mCloseTask);
+        if (!mOpen) {
+            mOpen = true;
+            mOpens++;
+            mClient.open();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if there is no reference left to release.
+     */
+    public void release() {
+        if (mReferences == 0) {
+            throw new IllegalStateException("release without acquire");
+        }
+        if (--mReferences == 0) {
+            mScheduler.schedule(mCloseTask, mLingerMillis);
+        }
+    }
+
+    public int getReferences() {
+        return mReferences;
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * How often the client was opened, one for a session that survived every screen change.
+     */
+    public int getOpens() {
+        return mOpens;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedSession{references=" + mReferences + ", open=" + mOpen + ", opens=" + mOpens + "}";
+    }
+
+    private void close() {
+        if (mOpen && mReferences == 0) {
+            mOpen = false;
+            mClient.close();
+        }
+    }
+}
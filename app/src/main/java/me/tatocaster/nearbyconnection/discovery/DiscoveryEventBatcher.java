@@ -0,0 +1,179 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Collects onEndpointFound/onEndpointLost callbacks into batches, so a discovery burst costs one
+ * list update per frame instead of one per callback.
+ * <p>
+ * A batch is flushed one window after its first event, or as soon as it holds
+ * {@code maxBatchSize} distinct endpoints. Inside a batch only the latest event per endpoint is
+ * kept. An endpoint found and lost again before the flush is still delivered as lost, since the
+ * find may only have refreshed an endpoint an earlier batch listed; the sink has to ignore ids
+ * it does not list.
+ * <p>
+ * Not thread safe; feed it from the thread the {@link Scheduler} runs on.
+ */
+public final class DiscoveryEventBatcher {
+
+    /**
+     * Frame-aligned default window, in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 16L;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    private static final Object LOST = new Object();
+
+    public interface Sink {
+        /**
+         * Apply one batch. The lists are reused after this call returns.
+         *
+         * @param found endpoints found (or renamed) since the last batch, in arrival order.
+         * @param lost  ids of endpoints lost since the last batch, possibly never listed.
+         */
+        void onDiscoveryBatch(List<Found> found, List<String> lost);
+    }
+
+    public static final class Found {
+        private final String mId;
+        private final String mName;
+
+        Found(String id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Sink mSink;
+    private final long mWindowMillis;
+    private final int mMaxBatchSize;
+
+    /**
+     * Pending state per endpoint id: a {@link Found}, or {@link #LOST}.
+     */
+    private final LinkedHashMap<String, Object> mPending = new LinkedHashMap<>();
+    private final ArrayList<Found> mFoundOut = new ArrayList<>();
+    private final ArrayList<String> mLostOut = new ArrayList<>();
+    private final Runnable mFlushTask = this::flush;
+
+    private boolean mFlushScheduled;
+    private long mEventsIn;
+    private long mEventsCoalesced;
+    private long mFlushes;
+
+    public DiscoveryEventBatcher(Scheduler scheduler, Sink sink) {
+        this(scheduler, sink, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public DiscoveryEventBatcher(Scheduler scheduler, Sink sink, long windowMillis, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        mScheduler = scheduler;
+        mSink = sink;
+        mWindowMillis = windowMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public void onEndpointFound(String endpointId, String endpointName) {
+        mEventsIn++;
+        Object previous = mPending.remove(endpointId);
+        if (previous != null) {
+            // renamed, or lost and back again: the endpoint is still there, just refresh it
+            mEventsCoalesced++;
+        }
+        mPending.put(endpointId, new Found(endpointId, endpointName));
+        onPendingChanged();
+    }
+
+    public void onEndpointLost(String endpointId) {
+        mEventsIn++;
+        if (mPending.remove(endpointId) != null) {
+            // only the loss is delivered; a pending find may have been of a listed endpoint
+            mEventsCoalesced++;
+        }
+        mPending.put(endpointId, LOST);
+        onPendingChanged();
+    }
+
+    /**
+     * Deliver the pending batch now, if there is one.
+     */
+    public void flush() {
+        if (mFlushScheduled) {
+            mScheduler.cancel(mFlushTask);
+            mFlushScheduled = false;
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : mPending.entrySet()) {
+            Object event = entry.getValue();
+            if (event == LOST) {
+                mLostOut.add(entry.getKey());
+            } else {
+                mFoundOut.add((Found) event);
+            }
+        }
+        mPending.clear();
+        mFlushes++;
+        try {
+            mSink.onDiscoveryBatch(mFoundOut, mLostOut);
+        } finally {
+            mFoundOut.clear();
+            mLostOut.clear();
+        }
+    }
+
+    /**
+     * Drop pending events without delivering them, e.g. when the client disconnects.
+     */
+    public void cancel() {
+        if (mFlushScheduled) {
+            mScheduler.cancel(mFlushTask);
+            mFlushScheduled = false;
+        }
+        mPending.clear();
+    }
+
+    public long getEventsIn() {
+        return mEventsIn;
+    }
+
+    public long getEventsCoalesced() {
+        return mEventsCoalesced;
+    }
+
+    public long getFlushes() {
+        return mFlushes;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryEventBatcher{in=" + mEventsIn + ", coalesced=" + mEventsCoalesced
+                + ", flushes=" + mFlushes + "}";
+    }
+
+    private void onPendingChanged() {
+        if (mPending.size() >= mMaxBatchSize) {
+            flush();
+        } else if (!mFlushScheduled && !mPending.isEmpty()) {
+            mFlushScheduled = true;
+            mScheduler.schedule(mFlushTask, mWindowMillis);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Discovered endpoints in the order they were found, indexed by endpoint id.
+ * <p>
+ * Add, remove and lookup by id are O(1). Removal only marks the slot, and the list is compacted
+ * the next time a position is read, so a burst of removals costs a single O(n) pass instead of
+ * one per endpoint. Changes made between {@link #beginUpdate()} and {@link #endUpdate()} reach
+ * the {@link Listener} as one notification.
+ * <p>
+ * Not thread safe; the discovery callbacks and the UI both run on the main thread.
+ */
+public final class EndpointRegistry {
+
+    public interface Listener {
+        void onEndpointsChanged();
+    }
+
+    public static final class Endpoint {
+        private final String mId;
+        private final long mStableId;
+        private String mName;
+        private int mPosition;
+
+        Endpoint(String id, String name, long stableId) {
+            mId = id;
+            mName = name;
+            mStableId = stableId;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Unique for the lifetime of the registry, for adapters with stable ids.
+         */
+        public long getStableId() {
+            return mStableId;
+        }
+
+        boolean isRemoved() {
+            return mPosition < 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private final HashMap<String, Endpoint> mById = new HashMap<>();
+    private final ArrayList<Endpoint> mOrdered = new ArrayList<>();
+
+    private Listener mListener;
+    private long mNextStableId;
+    private int mRemovedSlots;
+    private int mUpdateDepth;
+    private boolean mChanged;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add an endpoint at the end of the list, or rename it in place if it is already known.
+     *
+     * @return the endpoint's entry.
+     */
+    public Endpoint put(String id, String name) {
+        Endpoint endpoint = mById.get(id);
+        if (endpoint != null) {
+            if (!name.equals(endpoint.mName)) {
+                endpoint.mName = name;
+                markChanged();
+            }
+            return endpoint;
+        }
+        endpoint = new Endpoint(id, name, mNextStableId++);
+        endpoint.mPosition = mOrdered.size();
+        mOrdered.add(endpoint);
+        mById.put(id, endpoint);
+        markChanged();
+        return endpoint;
+    }
+
+    /**
+     * @return the removed entry, or null if the id was not known.
+     */
+    public Endpoint remove(String id) {
+        Endpoint endpoint = mById.remove(id);
+        if (endpoint == null) {
+            return null;
+        }
+        endpoint.mPosition = -1;
+        mRemovedSlots++;
+        markChanged();
+        return endpoint;
+    }
+
+    public Endpoint get(String id) {
+        return mById.get(id);
+    }
+
+    public boolean contains(String id) {
+        return mById.containsKey(id);
+    }
+
+    public int size() {
+        return mById.size();
+    }
+
+    /**
+     * @return the endpoint at {@code position} in discovery order.
+     */
+    public Endpoint getAt(int position) {
+        compact();
+        return mOrdered.get(position);
+    }
+
+    /**
+     * @return the position of the endpoint in discovery order, or -1 if it is not known.
+     */
+    public int positionOf(String id) {
+        Endpoint endpoint = mById.get(id);
+        if (endpoint == null) {
+            return -1;
+        }
+        compact();
+        return endpoint.mPosition;
+    }
+
+    public void clear() {
+        if (mById.isEmpty()) {
+            return;
+        }
+        for (Endpoint endpoint : mById.values()) {
+            endpoint.mPosition = -1;
+        }
+        mById.clear();
+        mOrdered.clear();
+        mRemovedSlots = 0;
+        markChanged();
+    }
+
+    /**
+     * Hold listener notifications until the matching {@link #endUpdate()}. Calls nest.
+     */
+    public void beginUpdate() {
+        mUpdateDepth++;
+    }
+
+    public void endUpdate() {
+        if (mUpdateDepth == 0) {
+            throw new IllegalStateException("endUpdate without beginUpdate");
+        }
+        if (--mUpdateDepth == 0 && mChanged) {
+            dispatchChanged();
+        }
+    }
+
+    private void markChanged() {
+        mChanged = true;
+        if (mUpdateDepth == 0) {
+            dispatchChanged();
+        }
+    }
+
+    private void dispatchChanged() {
+        mChanged = false;
+        if (mListener != null) {
+            mListener.onEndpointsChanged();
+        }
+    }
+
+    private void compact() {
+        if (mRemovedSlots == 0) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0, n = mOrdered.size(); i < n; i++) {
+            Endpoint endpoint = mOrdered.get(i);
+            if (!endpoint.isRemoved()) {
+                endpoint.mPosition = live;
+                mOrdered.set(live++, endpoint);
+            }
+        }
+        for (int i = mOrdered.size() - 1; i >= live; i--) {
+            mOrdered.remove(i);
+        }
+        mRemovedSlots = 0;
+    }
+}
@@ -0,0 +1,314 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Peers this device connected to, or tried to, in earlier sessions, so a new session can look
+ * for them first. A peer is known by its endpoint name and the service id it advertised, since
+ * its endpoint id is new every session. Names are not unique though, so the install id the peer
+ * sent in its handshake is kept too, for a reconnect to check it found the same device.
+ * <p>
+ * Peers are ranked by their connection success rate, smoothed so that one attempt does not
+ * decide it, times a recency weight that halves every {@code halfLifeMillis} since they were
+ * last seen. Counts are halved once the attempts reach {@link #MAX_ATTEMPTS}, so recent
+ * attempts weigh more than old ones. Past {@code capacity} peers the lowest ranked is dropped.
+ * <p>
+ * Kept in a small binary file, written whole to a temporary file that is renamed over it:
+ * <pre>
+ *   header  4 bytes "NBPH", 1 byte version, 2 bytes peer count
+ *   peer    service id, name and install id as modified UTF-8, 2 bytes attempts,
+ *           2 bytes successes, 8 bytes last seen, wall clock millis
+ *   footer  4 bytes CRC-32 of the rest
+ * </pre>
+ * Version 1 files have no install id. Not thread safe.
+ */
+public final class PeerHistory {
+
+    public static final class Peer {
+        private final String mServiceId;
+        private final String mName;
+        private String mDeviceId = "";
+        private int mAttempts;
+        private int mSuccesses;
+        private long mLastSeenMillis;
+
+        Peer(String serviceId, String name) {
+            mServiceId = serviceId;
+            mName = name;
+        }
+
+        public String getServiceId() {
+            return mServiceId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * The install id of the last successful connection, empty if unknown.
+         */
+        public String getDeviceId() {
+            return mDeviceId;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        public int getSuccesses() {
+            return mSuccesses;
+        }
+
+        public long getLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "@" + mServiceId + " " + mSuccesses + "/" + mAttempts;
+        }
+    }
+
+    static final int MAGIC = 0x4E425048;
+    static final int VERSION = 2;
+    static final int MAX_ATTEMPTS = 64;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final long mHalfLifeMillis;
+    private final LinkedHashMap<String, Peer> mPeers = new LinkedHashMap<>();
+    private boolean mDirty;
+
+    /**
+     * @param capacity       most peers kept.
+     * @param halfLifeMillis time since last seen that halves a peer's rank.
+     */
+    public PeerHistory(File file, int capacity, long halfLifeMillis) {
+        if (capacity <= 0 || halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("bad peer history settings");
+        }
+        mFile = file;
+        mCapacity = capacity;
+        mHalfLifeMillis = halfLifeMillis;
+    }
+
+    /**
+     * Replace the peers with the ones in the file. A missing file is an empty history.
+     *
+     * @throws IOException if the file cannot be read or is not a peer history; the history is
+     *                     left empty.
+     */
+    public void load() throws IOException {
+        mPeers.clear();
+        mDirty = false;
+        byte[] bytes;
+        try {
+            bytes = readFully(mFile);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        if (bytes.length < 4) {
+            throw new IOException(mFile + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        try {
+            int version = in.readInt() == MAGIC ? in.readUnsignedByte() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException(mFile + " is not a peer history");
+            }
+            if ((int) crc.getValue() != readInt(bytes, bytes.length - 4)) {
+                throw new IOException(mFile + " fails its checksum");
+            }
+            for (int i = 0, count = in.readUnsignedShort(); i < count; i++) {
+                Peer peer = new Peer(in.readUTF(), in.readUTF());
+                if (version >= 2) {
+                    peer.mDeviceId = in.readUTF();
+                }
+                peer.mAttempts = in.readUnsignedShort();
+                peer.mSuccesses = Math.min(in.readUnsignedShort(), peer.mAttempts);
+                peer.mLastSeenMillis = in.readLong();
+                mPeers.put(key(peer.mServiceId, peer.mName), peer);
+            }
+        } catch (IOException e) {
+            mPeers.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the history if it changed since it was loaded or last saved.
+     */
+    public void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 48 * mPeers.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(mPeers.size());
+        for (Peer peer : mPeers.values()) {
+            out.writeUTF(peer.mServiceId);
+            out.writeUTF(peer.mName);
+            out.writeUTF(peer.mDeviceId);
+            out.writeShort(peer.mAttempts);
+            out.writeShort(peer.mSuccesses);
+            out.writeLong(peer.mLastSeenMillis);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * The peer was found by discovery. Only peers already in the history are updated; being
+     * seen alone does not put a peer in it.
+     */
+    public void onSeen(String serviceId, String name, long nowMillis) {
+        Peer peer = mPeers.get(key(serviceId, name));
+        if (peer != null) {
+            peer.mLastSeenMillis = nowMillis;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * A connection request to the peer was answered, or failed.
+     *
+     * @param deviceId the install id in the peer's handshake on success, null or empty if it
+     *                 sent none.
+     */
+    public void onConnectionResult(String serviceId, String name, String deviceId, boolean success,
+                                   long nowMillis) {
+        String key = key(serviceId, name);
+        Peer peer = mPeers.get(key);
+        if (peer == null) {
+            if (mPeers.size() >= mCapacity) {
+                mPeers.remove(key(lowest(nowMillis)));
+            }
+            peer = new Peer(serviceId, name);
+            mPeers.put(key, peer);
+        }
+        if (peer.mAttempts >= MAX_ATTEMPTS) {
+            peer.mAttempts /= 2;
+            peer.mSuccesses /= 2;
+        }
+        peer.mAttempts++;
+        if (success) {
+            peer.mSuccesses++;
+            if (deviceId != null && !deviceId.isEmpty()) {
+                peer.mDeviceId = deviceId;
+            }
+        }
+        peer.mLastSeenMillis = nowMillis;
+        mDirty = true;
+    }
+
+    /**
+     * The peers of {@code serviceId} that were connected to at least once, highest ranked
+     * first.
+     *
+     * @param limit most peers returned.
+     */
+    public List<Peer> getLikelyPeers(String serviceId, final long nowMillis, int limit) {
+        List<Peer> peers = new ArrayList<>();
+        for (Peer peer : mPeers.values()) {
+            if (peer.mSuccesses > 0 && peer.mServiceId.equals(serviceId)) {
+                peers.add(peer);
+            }
+        }
+        Collections.sort(peers, (a, b) -> Double.compare(rank(b, nowMillis), rank(a, nowMillis)));
+        return peers.size() > limit ? new ArrayList<>(peers.subList(0, limit)) : peers;
+    }
+
+    /**
+     * Success rate with one success and one failure assumed up front, weighted by recency.
+     */
+    double rank(Peer peer, long nowMillis) {
+        double successRate = (peer.mSuccesses + 1) / (double) (peer.mAttempts + 2);
+        long age = Math.max(0, nowMillis - peer.mLastSeenMillis);
+        return successRate * Math.pow(0.5, age / (double) mHalfLifeMillis);
+    }
+
+    public Peer get(String serviceId, String name) {
+        return mPeers.get(key(serviceId, name));
+    }
+
+    public int size() {
+        return mPeers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PeerHistory{" + mPeers.size() + " peers" + (mDirty ? ", unsaved" : "") + "}";
+    }
+
+    private Peer lowest(long nowMillis) {
+        Peer lowest = null;
+        double lowestRank = Double.MAX_VALUE;
+        for (Peer peer : mPeers.values()) {
+            double rank = rank(peer, nowMillis);
+            if (rank < lowestRank) {
+                lowest = peer;
+                lowestRank = rank;
+            }
+        }
+        return lowest;
+    }
+
+    private static String key(Peer peer) {
+        return key(peer.mServiceId, peer.mName);
+    }
+
+    private static String key(String serviceId, String name) {
+        return serviceId + '\n' + name;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), 64 * 1024));
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+}
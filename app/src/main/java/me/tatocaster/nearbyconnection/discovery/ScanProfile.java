@@ -0,0 +1,111 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+/**
+ * Bounds a {@link ScanScheduler} adapts within. Short idle gaps and long windows find peers
+ * sooner, long gaps and short windows keep the radio off more; profiles pick the trade-off.
+ */
+public final class ScanProfile {
+
+    /**
+     * Scan nearly all the time, for a busy area where peers must be found within seconds.
+     */
+    public static final ScanProfile LOW_LATENCY = new Builder("low-latency")
+            .window(10 * 1000, 60 * 1000)
+            .idle(1000, 10 * 1000)
+            .build();
+
+    public static final ScanProfile BALANCED = new Builder("balanced")
+            .window(5 * 1000, 30 * 1000)
+            .idle(5 * 1000, 2 * 60 * 1000)
+            .build();
+
+    /**
+     * Short probes with long sleeps, for an area that is usually empty.
+     */
+    public static final ScanProfile LOW_POWER = new Builder("low-power")
+            .window(3 * 1000, 15 * 1000)
+            .idle(30 * 1000, 10 * 60 * 1000)
+            .build();
+
+    public static final class Builder {
+        private final String mName;
+        private long mMinWindowMillis;
+        private long mMaxWindowMillis;
+        private long mMinIdleMillis;
+        private long mMaxIdleMillis;
+
+        /**
+         * @param name identifies the profile in the statistics.
+         */
+        public Builder(String name) {
+            mName = name;
+        }
+
+        /**
+         * How long the radio stays on per window: shrinks towards {@code min} while nothing is
+         * found, grows towards {@code max} while peers keep turning up.
+         */
+        public Builder window(long minMillis, long maxMillis) {
+            mMinWindowMillis = minMillis;
+            mMaxWindowMillis = maxMillis;
+            return this;
+        }
+
+        /**
+         * How long the radio sleeps between windows: {@code min} while the area is busy, doubling
+         * up to {@code max} while it is empty.
+         */
+        public Builder idle(long minMillis, long maxMillis) {
+            mMinIdleMillis = minMillis;
+            mMaxIdleMillis = maxMillis;
+            return this;
+        }
+
+        public ScanProfile build() {
+            if (mName == null || mMinWindowMillis <= 0 || mMaxWindowMillis < mMinWindowMillis
+                    || mMinIdleMillis <= 0 || mMaxIdleMillis < mMinIdleMillis) {
+                throw new IllegalArgumentException("bad scan profile " + mName);
+            }
+            return new ScanProfile(this);
+        }
+    }
+
+    private final String mName;
+    private final long mMinWindowMillis;
+    private final long mMaxWindowMillis;
+    private final long mMinIdleMillis;
+    private final long mMaxIdleMillis;
+
+    private ScanProfile(Builder builder) {
+        mName = builder.mName;
+        mMinWindowMillis = builder.mMinWindowMillis;
+        mMaxWindowMillis = builder.mMaxWindowMillis;
+        mMinIdleMillis = builder.mMinIdleMillis;
+        mMaxIdleMillis = builder.mMaxIdleMillis;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getMinWindowMillis() {
+        return mMinWindowMillis;
+    }
+
+    public long getMaxWindowMillis() {
+        return mMaxWindowMillis;
+    }
+
+    public long getMinIdleMillis() {
+        return mMinIdleMillis;
+    }
+
+    public long getMaxIdleMillis() {
+        return mMaxIdleMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,271 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Duty-cycles advertising, discovery or a subscription: the radio is on for a window, then off
+ * for an idle gap, and both adapt to how productive recent windows were.
+ * <p>
+ * Each window scores the peers found in it plus twice the connections that succeeded, minus
+ * the ones that failed. The score is smoothed over windows; while it stays high the idle gap
+ * drops to the profile's minimum and the window grows, while it stays low the gap doubles and
+ * the window shrinks, within the bounds of the {@link ScanProfile}. A run starts optimistic,
+ * with the longest window and shortest gap, so the first peer is found quickly.
+ * <p>
+ * Time to first peer, radio-on time and running time are kept per profile, see
+ * {@link #getStats()}. Not thread safe; call it from the thread the {@link Scheduler} runs on.
+ */
+public final class ScanScheduler {
+
+    public interface Radio {
+        /**
+         * Turn the radio on. It is turned off with {@link #stop()} after {@code windowMillis};
+         * passing the window on as the API's own timeout keeps it bounded even if that never comes.
+         */
+        void start(long windowMillis);
+
+        void stop();
+    }
+
+    /**
+     * What one profile cost and delivered.
+     */
+    public static final class Stats {
+        private final String mProfileName;
+        private final LongHistogram mTimeToFirstPeerMillis = new LongHistogram();
+        private long mRadioOnMillis;
+        private long mRunningMillis;
+        private long mWindows;
+        private long mPeersFound;
+
+        Stats(String profileName) {
+            mProfileName = profileName;
+        }
+
+        public String getProfileName() {
+            return mProfileName;
+        }
+
+        /**
+         * From starting (or switching to) the profile to the first peer found, per run.
+         */
+        public LongHistogram getTimeToFirstPeerMillis() {
+            return mTimeToFirstPeerMillis;
+        }
+
+        public long getRadioOnMillis() {
+            return mRadioOnMillis;
+        }
+
+        public long getRunningMillis() {
+            return mRunningMillis;
+        }
+
+        public long getWindows() {
+            return mWindows;
+        }
+
+        public long getPeersFound() {
+            return mPeersFound;
+        }
+
+        @Override
+        public String toString() {
+            long dutyPercent = mRunningMillis > 0 ? mRadioOnMillis * 100 / mRunningMillis : 0;
+            return mProfileName + "{radioOnMs=" + mRadioOnMillis + ", duty=" + dutyPercent
+                    + "%, windows=" + mWindows + ", peers=" + mPeersFound
+                    + ", firstPeerMs=" + mTimeToFirstPeerMillis + "}";
+        }
+    }
+
+    private static final double BUSY_SCORE = 1.0;
+    private static final double EMPTY_SCORE = 0.25;
+
+    private final Radio mRadio;
+    private final Scheduler mScheduler;
+    private final Runnable mWindowEndTask = this::onWindowEnd;
+    private final Runnable mIdleEndTask = this::startWindow;
+    private final Map<String, Stats> mStats = new LinkedHashMap<>();
+
+    private ScanProfile mProfile;
+    private boolean mRunning;
+    private boolean mRadioOn;
+    private long mWindowMillis;
+    private long mIdleMillis;
+    private double mScore;
+
+    private long mRunStartMillis;
+    private long mWindowStartMillis;
+    private boolean mFirstPeerPending;
+    private int mFoundInWindow;
+    private int mConnectedInWindow;
+    private int mFailedInWindow;
+
+    public ScanScheduler(Radio radio, Scheduler scheduler, ScanProfile profile) {
+        mRadio = radio;
+        mScheduler = scheduler;
+        mProfile = profile;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        beginRun();
+        startWindow();
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        endRun();
+        mRunning = false;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Switch profiles. A running scheduler starts over with a fresh window, and the statistics of
+     * the old profile end here.
+     */
+    public void setProfile(ScanProfile profile) {
+        if (profile == mProfile) {
+            return;
+        }
+        if (!mRunning) {
+            mProfile = profile;
+            return;
+        }
+        endRun();
+        mProfile = profile;
+        beginRun();
+        startWindow();
+    }
+
+    public ScanProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * A peer turned up; counts toward the current window even while the radio is off, since
+     * results trail the radio.
+     */
+    public void onPeerFound() {
+        if (!mRunning) {
+            return;
+        }
+        mFoundInWindow++;
+        stats().mPeersFound++;
+        if (mFirstPeerPending) {
+            mFirstPeerPending = false;
+            stats().mTimeToFirstPeerMillis.record(mScheduler.now() - mRunStartMillis);
+        }
+    }
+
+    public void onConnectionResult(boolean success) {
+        if (!mRunning) {
+            return;
+        }
+        if (success) {
+            mConnectedInWindow++;
+        } else {
+            mFailedInWindow++;
+        }
+    }
+
+    /**
+     * Current window length, for tests and the debug log.
+     */
+    public long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    public long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    /**
+     * One entry per profile used so far, in first-use order. Live objects, read on the
+     * scheduler's thread.
+     */
+    public List<Stats> getStats() {
+        return new ArrayList<>(mStats.values());
+    }
+
+    @Override
+    public String toString() {
+        return "ScanScheduler{" + mProfile + (mRunning ? ", window=" + mWindowMillis + ", idle=" + mIdleMillis : ", stopped")
+                + ", " + mStats.values() + "}";
+    }
+
+    private Stats stats() {
+        Stats stats = mStats.get(mProfile.getName());
+        if (stats == null) {
+            stats = new Stats(mProfile.getName());
+            mStats.put(mProfile.getName(), stats);
+        }
+        return stats;
+    }
+
+    private void beginRun() {
+        mRunStartMillis = mScheduler.now();
+        mFirstPeerPending = true;
+        mWindowMillis = mProfile.getMaxWindowMillis();
+        mIdleMillis = mProfile.getMinIdleMillis();
+        mScore = BUSY_SCORE;
+        stats();
+    }
+
+    private void endRun() {
+        mScheduler.cancel(mWindowEndTask);
+        mScheduler.cancel(mIdleEndTask);
+        radioOff();
+        stats().mRunningMillis += mScheduler.now() - mRunStartMillis;
+    }
+
+    private void startWindow() {
+        mFoundInWindow = 0;
+        mConnectedInWindow = 0;
+        mFailedInWindow = 0;
+        mRadioOn = true;
+        mWindowStartMillis = mScheduler.now();
+        stats().mWindows++;
+        mScheduler.schedule(mWindowEndTask, mWindowMillis);
+        mRadio.start(mWindowMillis);
+    }
+
+    private void onWindowEnd() {
+        radioOff();
+        adapt(Math.max(0, mFoundInWindow + 2 * mConnectedInWindow - mFailedInWindow));
+        mScheduler.schedule(mIdleEndTask, mIdleMillis);
+    }
+
+    private void radioOff() {
+        if (mRadioOn) {
+            mRadioOn = false;
+            stats().mRadioOnMillis += mScheduler.now() - mWindowStartMillis;
+            mRadio.stop();
+        }
+    }
+
+    private void adapt(int windowScore) {
+        mScore = (mScore + windowScore) / 2;
+        if (mScore >= BUSY_SCORE) {
+            mIdleMillis = mProfile.getMinIdleMillis();
+            mWindowMillis = Math.min(mProfile.getMaxWindowMillis(), mWindowMillis + mWindowMillis / 2);
+        } else if (mScore < EMPTY_SCORE) {
+            mIdleMillis = Math.min(mProfile.getMaxIdleMillis(), mIdleMillis * 2);
+            mWindowMillis = Math.max(mProfile.getMinWindowMillis(), mWindowMillis / 2);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Reconnects to the peers of earlier sessions when a session starts, instead of waiting for the
+ * user to discover and pick them again.
+ * <p>
+ * {@link #start} is given the names of the likely peers, see {@link PeerHistory}. If there are
+ * any it starts discovery, and every endpoint found with one of those names is connected to
+ * right away, once per name. The search ends when each name was connected to or failed, or
+ * after the timeout; discovery is then stopped, unless the user asked for it in the meantime.
+ * Endpoints found during the search that are not on the list are left to the caller.
+ * <p>
+ * The time from {@link #start} to the first peer connected is recorded as a warm start if that
+ * peer was reconnected to here, and as a cold start otherwise, e.g. when the user found and
+ * picked it. Not thread safe; call it from the thread the {@link Scheduler} runs on.
+ */
+public final class WarmStart {
+
+    public interface Actions {
+        void startDiscovery();
+
+        void stopDiscovery();
+
+        void connect(String endpointId, String endpointName);
+    }
+
+    public static final class Builder {
+        private final Actions mActions;
+        private final Scheduler mScheduler;
+        private long mTimeoutMillis = 20 * 1000;
+
+        public Builder(Actions actions, Scheduler scheduler) {
+            mActions = actions;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * How long to look for the peers before leaving the rest to the user.
+         */
+        public Builder timeoutMillis(long timeoutMillis) {
+            mTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public WarmStart build() {
+            if (mTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("bad warm start timeout");
+            }
+            return new WarmStart(this);
+        }
+    }
+
+    private final Actions mActions;
+    private final Scheduler mScheduler;
+    private final long mTimeoutMillis;
+    private final Runnable mTimeoutTask = this::finishSearch;
+
+    private final Set<String> mPending = new LinkedHashSet<>();
+    private final Set<String> mConnecting = new HashSet<>();
+    private boolean mStarted;
+    private boolean mSearching;
+    private boolean mUserDiscovery;
+    private long mStartMillis = -1;
+
+    private final LongHistogram mWarmMillis = new LongHistogram();
+    private final LongHistogram mColdMillis = new LongHistogram();
+    private long mReconnectCount;
+
+    private WarmStart(Builder builder) {
+        mActions = builder.mActions;
+        mScheduler = builder.mScheduler;
+        mTimeoutMillis = builder.mTimeoutMillis;
+    }
+
+    /**
+     * The session can connect now. Only the first call after construction or {@link #cancel()}
+     * counts, so a client that comes back after an outage does not start over.
+     *
+     * @param endpointNames the peers to look for, most likely first.
+     */
+    public void start(Collection<String> endpointNames) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartMillis = mScheduler.now();
+        if (endpointNames.isEmpty()) {
+            return;
+        }
+        mPending.addAll(endpointNames);
+        mSearching = true;
+        mScheduler.schedule(mTimeoutTask, mTimeoutMillis);
+        mActions.startDiscovery();
+    }
+
+    /**
+     * Look for more peers within the session, e.g. the ones connected when the client was lost,
+     * whose endpoint ids are stale by the time it is back. They are connected to like the ones
+     * given to {@link #start}, and the timeout starts over; nothing is timed.
+     */
+    public void search(Collection<String> endpointNames) {
+        if (endpointNames.isEmpty()) {
+            return;
+        }
+        mPending.addAll(endpointNames);
+        mScheduler.cancel(mTimeoutTask);
+        mScheduler.schedule(mTimeoutTask, mTimeoutMillis);
+        if (!mSearching) {
+            mSearching = true;
+            mActions.startDiscovery();
+        }
+    }
+
+    /**
+     * Whether {@link #start} was called since construction or {@link #cancel()}.
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * @return true if the endpoint is one of the peers looked for and is being connected to;
+     * false if it is for the caller to handle.
+     */
+    public boolean onEndpointFound(String endpointId, String endpointName) {
+        if (!mSearching || !mPending.remove(endpointName)) {
+            return false;
+        }
+        mConnecting.add(endpointName);
+        mReconnectCount++;
+        mActions.connect(endpointId, endpointName);
+        return true;
+    }
+
+    /**
+     * A connection request to the peer failed, whoever made it.
+     */
+    public void onConnectFailed(String endpointName) {
+        if (mConnecting.remove(endpointName)) {
+            finishSearchIfDone();
+        }
+    }
+
+    /**
+     * A peer connected, whether it was reconnected to here or not.
+     */
+    public void onPeerConnected(String endpointName) {
+        boolean reconnected = mConnecting.remove(endpointName);
+        mPending.remove(endpointName);
+        if (mStartMillis >= 0) {
+            (reconnected ? mWarmMillis : mColdMillis).record(mScheduler.now() - mStartMillis);
+            mStartMillis = -1;
+        }
+        finishSearchIfDone();
+    }
+
+    /**
+     * The user asked for discovery, so it is not stopped when the search ends.
+     */
+    public void onUserDiscovery() {
+        mUserDiscovery = true;
+    }
+
+    /**
+     * Whether discovery runs only for the search, so what it finds is not the user's business.
+     */
+    public boolean isSearchOnly() {
+        return mSearching && !mUserDiscovery;
+    }
+
+    /**
+     * Forget the session, without stopping discovery; the next {@link #start} counts again.
+     */
+    public void cancel() {
+        mScheduler.cancel(mTimeoutTask);
+        mPending.clear();
+        mConnecting.clear();
+        mStarted = false;
+        mSearching = false;
+        mUserDiscovery = false;
+        mStartMillis = -1;
+    }
+
+    /**
+     * Start to first peer connected, per session whose first peer was reconnected to here.
+     */
+    public LongHistogram getWarmMillis() {
+        return mWarmMillis;
+    }
+
+    /**
+     * Start to first peer connected, per session whose first peer was connected otherwise.
+     */
+    public LongHistogram getColdMillis() {
+        return mColdMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmStart{" + (mSearching ? "searching " + mPending + ", connecting " + mConnecting
+                : mStarted ? "done" : "idle")
+                + ", reconnects=" + mReconnectCount + ", warm " + mWarmMillis + ", cold " + mColdMillis + "}";
+    }
+
+    private void finishSearchIfDone() {
+        if (mSearching && mPending.isEmpty() && mConnecting.isEmpty()) {
+            finishSearch();
+        }
+    }
+
+    private void finishSearch() {
+        if (!mSearching) {
+            return;
+        }
+        mScheduler.cancel(mTimeoutTask);
+        mSearching = false;
+        mPending.clear();
+        if (!mUserDiscovery) {
+            mActions.stopDiscovery();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package me.tatocaster.nearbyconnection.log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity, lock-free ring buffer of structured debug entries.
+ * <p>
+ * Writers claim a sequence number with one atomic increment and publish the entry into its slot,
+ * overwriting the oldest one once the buffer is full. Message formatting is deferred until an
+ * entry is rendered or exported, and a call below the minimum level returns before allocating
+ * anything, so disabled levels cost a volatile read. Use the fixed-arity overloads on hot paths;
+ * they avoid the varargs array.
+ * <p>
+ * Messages use {@code {}} placeholders, substituted in order with {@link String#valueOf(Object)}.
+ */
+public final class DebugLog {
+
+    /**
+     * Same values as {@link android.util.Log}.
+     */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final char[] LEVEL_LETTERS = {'?', '?', 'V', 'D', 'I', 'W', 'E'};
+
+    public interface Listener {
+        /**
+         * Called on the logging thread after an entry is published. Keep it cheap, e.g. post a
+         * render instead of rendering.
+         */
+        void onEntryAdded(Entry entry);
+    }
+
+    public static final class Entry {
+        private final long mSequence;
+        private final long mTimeMillis;
+        private final int mLevel;
+        private final String mEvent;
+        private final String mEndpointId;
+        private final String mFormat;
+        private final Object mArg0;
+        private final Object mArg1;
+
+        Entry(long sequence, long timeMillis, int level, String event, String endpointId,
+              String format, Object arg0, Object arg1) {
+            mSequence = sequence;
+            mTimeMillis = timeMillis;
+            mLevel = level;
+            mEvent = event;
+            mEndpointId = endpointId;
+            mFormat = format;
+            mArg0 = arg0;
+            mArg1 = arg1;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        public int getLevel() {
+            return mLevel;
+        }
+
+        public String getEvent() {
+            return mEvent;
+        }
+
+        public String getEndpointId() {
+            return mEndpointId;
+        }
+
+        /**
+         * The formatted message, or an empty string if the entry has none. Formats on every call.
+         */
+        public String getMessage() {
+            StringBuilder sb = new StringBuilder();
+            appendMessage(sb);
+            return sb.toString();
+        }
+
+        /**
+         * Append "event[:endpointId][: message]", the form printed to logcat and the debug panel.
+         */
+        public void appendTo(StringBuilder sb) {
+            sb.append(mEvent);
+            if (mEndpointId != null) {
+                sb.append(':').append(mEndpointId);
+            }
+            if (mFormat != null) {
+                sb.append(": ");
+                appendMessage(sb);
+            }
+        }
+
+        private void appendMessage(StringBuilder sb) {
+            if (mFormat == null) {
+                return;
+            }
+            int argIndex = 0;
+            int start = 0;
+            int placeholder;
+            while ((placeholder = mFormat.indexOf("{}", start)) >= 0 && argIndex < 2) {
+                sb.append(mFormat, start, placeholder);
+                sb.append(argIndex++ == 0 ? mArg0 : mArg1);
+                start = placeholder + 2;
+            }
+            sb.append(mFormat, start, mFormat.length());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            appendTo(sb);
+            return sb.toString();
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final int mMask;
+    private final AtomicLong mNextSequence = new AtomicLong();
+
+    private volatile int mMinLevel = DEBUG;
+    private volatile Listener mListener;
+
+    /**
+     * @param capacity number of entries kept, rounded up to a power of two.
+     */
+    public DebugLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public void setMinLevel(int level) {
+        mMinLevel = level;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public boolean isLoggable(int level) {
+        return level >= mMinLevel;
+    }
+
+    public void log(int level, String event, String endpointId) {
+        if (level >= mMinLevel) {
+            append(level, event, endpointId, null, null, null);
+        }
+    }
+
+    public void log(int level, String event, String endpointId, String format) {
+        if (level >= mMinLevel) {
+            append(level, event, endpointId, format, null, null);
+        }
+    }
+
+    public void log(int level, String event, String endpointId, String format, Object arg0) {
+        if (level >= mMinLevel) {
+            append(level, event, endpointId, format, arg0, null);
+        }
+    }
+
+    public void log(int level, String event, String endpointId, String format, Object arg0,
+                    Object arg1) {
+        if (level >= mMinLevel) {
+            append(level, event, endpointId, format, arg0, arg1);
+        }
+    }
+
+    /**
+     * Total number of entries ever logged, including the ones already overwritten.
+     */
+    public long totalCount() {
+        return mNextSequence.get();
+    }
+
+    /**
+     * Copy up to {@code out.length} of the newest entries into {@code out}, oldest first.
+     * Entries still being written by another thread are skipped.
+     *
+     * @return the number of entries copied.
+     */
+    public int snapshot(Entry[] out) {
+        long end = mNextSequence.get();
+        long start = Math.max(0, end - Math.min(out.length, mMask + 1));
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = mSlots.get((int) (sequence & mMask));
+            if (entry != null && entry.mSequence == sequence) {
+                out[count++] = entry;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Render the newest {@code maxLines} entries, oldest first, one per line. Only these entries
+     * are formatted.
+     */
+    public void render(StringBuilder sb, int maxLines) {
+        Entry[] entries = new Entry[Math.max(0, Math.min(maxLines, mMask + 1))];
+        int count = snapshot(entries);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            entries[i].appendTo(sb);
+        }
+    }
+
+    /**
+     * Write every buffered entry with its timestamp and level, oldest first.
+     */
+    public void export(Writer writer) throws IOException {
+        Entry[] entries = new Entry[mMask + 1];
+        int count = snapshot(entries);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        StringBuilder line = new StringBuilder(128);
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            date.setTime(entry.mTimeMillis);
+            line.setLength(0);
+            line.append(timeFormat.format(date)).append(' ')
+                    .append(LEVEL_LETTERS[Math.min(entry.mLevel, ERROR)]).append(' ');
+            entry.appendTo(line);
+            line.append('\n');
+            writer.append(line);
+        }
+        writer.flush();
+    }
+
+    private void append(int level, String event, String endpointId, String format, Object arg0,
+                        Object arg1) {
+        long sequence = mNextSequence.getAndIncrement();
+        Entry entry = new Entry(sequence, System.currentTimeMillis(), level, event, endpointId,
+                format, arg0, arg1);
+        mSlots.set((int) (sequence & mMask), entry);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEntryAdded(entry);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of decoded Nearby message payloads, keyed by the payload bytes.
+ * <p>
+ * Nearby redelivers the same content every time a publisher drifts in and out of range, so a
+ * repeat sighting returns the instance decoded the first time. Once evicted the same content
+ * decodes to a new instance, so callers must match found and lost messages by value, never by
+ * identity.
+ */
+public final class DecodedMessageCache<T> {
+
+    public interface Decoder<T> {
+        /**
+         * @throws IllegalArgumentException if {@code content} cannot be decoded.
+         */
+        T decode(byte[] content);
+    }
+
+    private final Decoder<T> mDecoder;
+    private final LinkedHashMap<ContentKey, T> mEntries;
+
+    private long mHits;
+    private long mMisses;
+
+    public DecodedMessageCache(final int capacity, Decoder<T> decoder) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mDecoder = decoder;
+        mEntries = new LinkedHashMap<ContentKey, T>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ContentKey, T> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the cached value for {@code content}, decoding and caching it on a miss.
+     * The array must not be modified afterwards; it is kept as the key.
+     *
+     * @throws IllegalArgumentException if the payload cannot be decoded. Failures are not cached.
+     */
+    public synchronized T get(byte[] content) {
+        ContentKey key = new ContentKey(content);
+        T value = mEntries.get(key);
+        if (value != null) {
+            mHits++;
+            return value;
+        }
+        mMisses++;
+        value = mDecoder.decode(content);
+        mEntries.put(key, value);
+        return value;
+    }
+
+    public synchronized long hitCount() {
+        return mHits;
+    }
+
+    public synchronized long missCount() {
+        return mMisses;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecodedMessageCache{size=" + mEntries.size() + ", hits=" + mHits
+                + ", misses=" + mMisses + "}";
+    }
+
+    private static final class ContentKey {
+        private final byte[] mContent;
+        private final int mHash;
+
+        ContentKey(byte[] content) {
+            mContent = content;
+            mHash = Arrays.hashCode(content);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ContentKey)) {
+                return false;
+            }
+            ContentKey other = (ContentKey) o;
+            return mHash == other.mHash && Arrays.equals(mContent, other.mContent);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package me.tatocaster.nearbyconnection.messages;
+
+/**
+ * What the {@link NearbyDeviceStore} needs to know about a decoded message.
+ */
+public interface DeviceInfo {
+
+    /**
+     * Identifies the publishing device across messages, e.g. the UUID it publishes with.
+     */
+    String getDeviceId();
+
+    String getDisplayName();
+}
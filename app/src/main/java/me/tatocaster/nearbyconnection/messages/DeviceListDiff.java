@@ -0,0 +1,73 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import java.util.List;
+
+/**
+ * Turns two {@link NearbyDeviceStore} snapshots into item-level changes, the way DiffUtil
+ * would, but in one linear pass: both lists are ordered by stable id, so walking them side by
+ * side finds every insertion, removal and update without a search.
+ */
+public final class DeviceListDiff {
+
+    /**
+     * Same shape as RecyclerView's ListUpdateCallback. Positions account for the changes
+     * already dispatched.
+     */
+    public interface Callback {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onChanged(int position, int count);
+    }
+
+    private DeviceListDiff() {
+    }
+
+    public static void dispatch(List<NearbyDevice> oldList, List<NearbyDevice> newList, Callback callback) {
+        int oldIndex = 0;
+        int newIndex = 0;
+        int oldSize = oldList.size();
+        int newSize = newList.size();
+        // position in the list as it looks after the changes dispatched so far
+        int position = 0;
+        while (oldIndex < oldSize || newIndex < newSize) {
+            NearbyDevice oldDevice = oldIndex < oldSize ? oldList.get(oldIndex) : null;
+            NearbyDevice newDevice = newIndex < newSize ? newList.get(newIndex) : null;
+            if (newDevice == null || (oldDevice != null && oldDevice.getStableId() < newDevice.getStableId())) {
+                int count = 1;
+                while (oldIndex + count < oldSize && (newDevice == null
+                        || oldList.get(oldIndex + count).getStableId() < newDevice.getStableId())) {
+                    count++;
+                }
+                callback.onRemoved(position, count);
+                oldIndex += count;
+            } else if (oldDevice == null || newDevice.getStableId() < oldDevice.getStableId()) {
+                int count = 1;
+                while (newIndex + count < newSize && (oldDevice == null
+                        || newList.get(newIndex + count).getStableId() < oldDevice.getStableId())) {
+                    count++;
+                }
+                callback.onInserted(position, count);
+                newIndex += count;
+                position += count;
+            } else {
+                int count = 0;
+                while (oldIndex + count < oldSize && newIndex + count < newSize
+                        && oldList.get(oldIndex + count).getStableId() == newList.get(newIndex + count).getStableId()
+                        && oldList.get(oldIndex + count) != newList.get(newIndex + count)) {
+                    count++;
+                }
+                if (count > 0) {
+                    callback.onChanged(position, count);
+                } else {
+                    // same stable id, same instance: unchanged
+                    count = 1;
+                }
+                oldIndex += count;
+                newIndex += count;
+                position += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Decodes Nearby Messages found/lost callbacks on a worker thread, keeps the devices they come
+ * from in a {@link NearbyDeviceStore} and publishes it to the UI thread as immutable snapshots.
+ * <p>
+ * The worker is the only writer of the store. Callbacks are queued to it in arrival order, so the
+ * found and lost events of one message are applied in the order Nearby delivered them. After a
+ * run of events the worker publishes one snapshot; if the UI has not picked up the previous one
+ * yet, the newer snapshot simply replaces it, so a burst of callbacks costs the UI one update.
+ * <p>
+ * A message found again without being lost in between, as happens when a subscription is
+ * renewed, is ignored, so it does not count as a second sighting of its device.
+ * <p>
+ * A subscription that is renewed in windows gets no onLost for a device that left while it was
+ * off. Such a subscriber calls {@link #onWindowStarted()} before each window; every window
+ * finds again what is still there, so a message that was not found in the window before is
+ * taken as lost.
+ * <p>
+ * Both schedulers must share a clock: the time from the oldest callback in a snapshot to the
+ * moment the UI has applied it is recorded in {@link #getLatencyMillis()}.
+ */
+public final class MessageFeed<T extends DeviceInfo> {
+
+    public interface Listener {
+        /**
+         * Called on the UI scheduler's thread. {@code devices} is immutable and stays valid, see
+         * {@link DeviceListDiff} to turn consecutive snapshots into item changes.
+         */
+        void onSnapshot(List<NearbyDevice> devices);
+    }
+
+    public interface FoundListener {
+        /**
+         * A message that was not already found turned up. Called on the worker thread.
+         */
+        void onNewMessage();
+    }
+
+    /**
+     * A found message: whose it is, and the last window it was found in.
+     */
+    private static final class Sighting {
+        final String deviceId;
+        int window;
+
+        Sighting(String deviceId, int window) {
+            this.deviceId = deviceId;
+            this.window = window;
+        }
+    }
+
+    private static final class Snapshot {
+        final List<NearbyDevice> items;
+        final long oldestEventMillis;
+
+        Snapshot(List<NearbyDevice> items, long oldestEventMillis) {
+            this.items = items;
+            this.oldestEventMillis = oldestEventMillis;
+        }
+    }
+
+    private final Scheduler mWorker;
+    private final Scheduler mUi;
+    private final DecodedMessageCache<T> mCache;
+    private final Listener mListener;
+    private final AtomicReference<Snapshot> mPendingSnapshot = new AtomicReference<>();
+    private final LongHistogram mLatencyMillis = new LongHistogram();
+    private final Runnable mPublishTask = this::publish;
+    private final Runnable mDeliverTask = this::deliver;
+
+    // only touched on the worker thread
+    private final NearbyDeviceStore mStore = new NearbyDeviceStore();
+    private final Map<ByteBuffer, Sighting> mFoundContent = new HashMap<>();
+    private int mWindow;
+    private long mOldestUnpublishedMillis = -1;
+    private boolean mPublishScheduled;
+    private long mDecodeFailures;
+    private long mSwept;
+    private volatile FoundListener mFoundListener;
+
+    public MessageFeed(Scheduler worker, Scheduler ui, DecodedMessageCache<T> cache, Listener listener) {
+        mWorker = worker;
+        mUi = ui;
+        mCache = cache;
+        mListener = listener;
+    }
+
+    public void setFoundListener(FoundListener foundListener) {
+        mFoundListener = foundListener;
+    }
+
+    /**
+     * A message was found. Safe from any thread, {@code content} must not change afterwards.
+     */
+    public void onFound(final byte[] content) {
+        final long eventMillis = mUi.now();
+        mWorker.schedule(() -> {
+            T item = decode(content);
+            if (item == null) {
+                return;
+            }
+            ByteBuffer key = ByteBuffer.wrap(content);
+            Sighting sighting = mFoundContent.get(key);
+            if (sighting != null) {
+                sighting.window = mWindow;
+                return;
+            }
+            mFoundContent.put(key, new Sighting(item.getDeviceId(), mWindow));
+            mStore.found(item.getDeviceId(), item.getDisplayName(), eventMillis);
+            changed(eventMillis);
+            FoundListener listener = mFoundListener;
+            if (listener != null) {
+                listener.onNewMessage();
+            }
+        }, 0);
+    }
+
+    /**
+     * A message was lost. Safe from any thread, {@code content} must not change afterwards.
+     */
+    public void onLost(final byte[] content) {
+        final long eventMillis = mUi.now();
+        mWorker.schedule(() -> {
+            T item = decode(content);
+            if (item != null && mFoundContent.remove(ByteBuffer.wrap(content)) != null
+                    && mStore.lost(item.getDeviceId()) != null) {
+                changed(eventMillis);
+            }
+        }, 0);
+    }
+
+    /**
+     * A subscription window starts: the messages not found again in the window before are lost.
+     * Safe from any thread.
+     */
+    public void onWindowStarted() {
+        final long eventMillis = mUi.now();
+        mWorker.schedule(() -> {
+            boolean removed = false;
+            if (mWindow > 0) {
+                for (Iterator<Sighting> it = mFoundContent.values().iterator(); it.hasNext(); ) {
+                    Sighting sighting = it.next();
+                    if (sighting.window < mWindow) {
+                        it.remove();
+                        mSwept++;
+                        removed |= mStore.lost(sighting.deviceId) != null;
+                    }
+                }
+            }
+            mWindow++;
+            if (removed) {
+                changed(eventMillis);
+            }
+        }, 0);
+    }
+
+    /**
+     * Empty the list, e.g. when subscribing again.
+     */
+    public void clear() {
+        final long eventMillis = mUi.now();
+        mWorker.schedule(() -> {
+            mStore.clear();
+            mFoundContent.clear();
+            mWindow = 0;
+            changed(eventMillis);
+        }, 0);
+    }
+
+    /**
+     * Callback-to-applied latency per snapshot, in milliseconds.
+     */
+    public LongHistogram getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageFeed{" + mCache + ", decodeFailures=" + mDecodeFailures + ", swept=" + mSwept
+                + ", latencyMs=" + mLatencyMillis + "}";
+    }
+
+    private T decode(byte[] content) {
+        try {
+            return mCache.get(content);
+        } catch (IllegalArgumentException e) {
+            // not one of ours
+            mDecodeFailures++;
+            return null;
+        }
+    }
+
+    private void changed(long eventMillis) {
+        if (mOldestUnpublishedMillis < 0) {
+            mOldestUnpublishedMillis = eventMillis;
+        }
+        if (!mPublishScheduled) {
+            // queued behind the events already waiting, so they land in the same snapshot
+            mPublishScheduled = true;
+            mWorker.schedule(mPublishTask, 0);
+        }
+    }
+
+    private void publish() {
+        mPublishScheduled = false;
+        Snapshot snapshot = new Snapshot(mStore.snapshot(), mOldestUnpublishedMillis);
+        mOldestUnpublishedMillis = -1;
+        Snapshot replaced = mPendingSnapshot.getAndSet(snapshot);
+        if (replaced == null) {
+            mUi.schedule(mDeliverTask, 0);
+        } else {
+            // the UI never saw the replaced one, its events are now part of this snapshot
+            mPendingSnapshot.compareAndSet(snapshot, new Snapshot(snapshot.items,
+                    Math.min(replaced.oldestEventMillis, snapshot.oldestEventMillis)));
+        }
+    }
+
+    private void deliver() {
+        Snapshot snapshot = mPendingSnapshot.getAndSet(null);
+        if (snapshot == null) {
+            return;
+        }
+        mListener.onSnapshot(snapshot.items);
+        mLatencyMillis.record(mUi.now() - snapshot.oldestEventMillis);
+    }
+}
@@ -0,0 +1,50 @@
+package me.tatocaster.nearbyconnection.messages;
+
+/**
+ * Immutable view of one device in a {@link NearbyDeviceStore}. An update produces a new
+ * instance with the same stable id, so snapshots handed to the UI never change underneath it.
+ */
+public final class NearbyDevice {
+
+    private final String mId;
+    private final String mName;
+    private final long mStableId;
+    private final long mFirstSeenMillis;
+    private final long mLastSeenMillis;
+
+    NearbyDevice(String id, String name, long stableId, long firstSeenMillis, long lastSeenMillis) {
+        mId = id;
+        mName = name;
+        mStableId = stableId;
+        mFirstSeenMillis = firstSeenMillis;
+        mLastSeenMillis = lastSeenMillis;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Unique for the lifetime of the store, for adapters with stable ids.
+     */
+    public long getStableId() {
+        return mStableId;
+    }
+
+    public long getFirstSeenMillis() {
+        return mFirstSeenMillis;
+    }
+
+    public long getLastSeenMillis() {
+        return mLastSeenMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,113 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Devices seen through Nearby Messages in the order they were first found, indexed by device id.
+ * <p>
+ * Found, lost and lookup are O(1). A device may be visible through more than one message at a
+ * time, e.g. right after it republished with a new name, so it is only removed once every
+ * message it was found with is lost. Removal only marks the slot; the ordered list is compacted
+ * when the next snapshot is taken.
+ * <p>
+ * Not thread safe, meant to be owned by a single writer such as {@link MessageFeed}'s worker.
+ */
+public final class NearbyDeviceStore {
+
+    private static final class Entry {
+        NearbyDevice device;
+        int sightings;
+        boolean removed;
+
+        Entry(NearbyDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final HashMap<String, Entry> mById = new HashMap<>();
+    private final ArrayList<Entry> mOrdered = new ArrayList<>();
+    private long mNextStableId;
+    private int mRemovedSlots;
+
+    /**
+     * Add a device at the end, or refresh its name and last-seen time.
+     */
+    public NearbyDevice found(String id, String name, long nowMillis) {
+        Entry entry = mById.get(id);
+        if (entry == null) {
+            entry = new Entry(new NearbyDevice(id, name, mNextStableId++, nowMillis, nowMillis));
+            mById.put(id, entry);
+            mOrdered.add(entry);
+        } else {
+            NearbyDevice old = entry.device;
+            entry.device = new NearbyDevice(id, name, old.getStableId(), old.getFirstSeenMillis(), nowMillis);
+        }
+        entry.sightings++;
+        return entry.device;
+    }
+
+    /**
+     * One of the device's messages is no longer visible.
+     *
+     * @return the removed device, or null if it is unknown or still visible through another
+     * message.
+     */
+    public NearbyDevice lost(String id) {
+        Entry entry = mById.get(id);
+        if (entry == null || --entry.sightings > 0) {
+            return null;
+        }
+        mById.remove(id);
+        entry.removed = true;
+        mRemovedSlots++;
+        return entry.device;
+    }
+
+    public NearbyDevice get(String id) {
+        Entry entry = mById.get(id);
+        return entry != null ? entry.device : null;
+    }
+
+    public int size() {
+        return mById.size();
+    }
+
+    public void clear() {
+        mById.clear();
+        mOrdered.clear();
+        mRemovedSlots = 0;
+    }
+
+    /**
+     * @return an immutable copy of the devices in first-seen order, so ascending stable ids.
+     */
+    public List<NearbyDevice> snapshot() {
+        compact();
+        NearbyDevice[] devices = new NearbyDevice[mOrdered.size()];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = mOrdered.get(i).device;
+        }
+        return Collections.unmodifiableList(Arrays.asList(devices));
+    }
+
+    private void compact() {
+        if (mRemovedSlots == 0) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0, n = mOrdered.size(); i < n; i++) {
+            Entry entry = mOrdered.get(i);
+            if (!entry.removed) {
+                mOrdered.set(live++, entry);
+            }
+        }
+        for (int i = mOrdered.size() - 1; i >= live; i--) {
+            mOrdered.remove(i);
+        }
+        mRemovedSlots = 0;
+    }
+}
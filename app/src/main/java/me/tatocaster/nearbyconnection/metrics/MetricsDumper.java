@@ -0,0 +1,135 @@
+package me.tatocaster.nearbyconnection.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * Appends a {@link MetricsRegistry} dump to a file every interval while started, and once more
+ * on {@link #stop()}, so a field session can be profiled afterwards from the file alone. Each
+ * dump starts with a {@code ---} line carrying the wall-clock time it was taken.
+ * <p>
+ * The file is opened for each dump and closed right after, so nothing is held open between
+ * dumps; {@link #openRotating} keeps it from growing for good. The dump runs on the scheduler's
+ * thread; call the methods from that thread too.
+ */
+public final class MetricsDumper {
+
+    public interface Output {
+        /**
+         * A writer appending to the dump file.
+         */
+        Writer open() throws IOException;
+    }
+
+    public interface ErrorListener {
+        void onDumpFailed(IOException e);
+    }
+
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    private final MetricsRegistry mRegistry;
+    private final Output mOutput;
+    private final Scheduler mScheduler;
+    private final Clock mClock;
+    private final long mIntervalMillis;
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private final Runnable mDumpTask = this::onInterval;
+    private ErrorListener mErrorListener;
+    private boolean mStarted;
+    private int mDumps;
+
+    /**
+     * @param clock the wall clock the dumps are stamped with.
+     */
+    public MetricsDumper(MetricsRegistry registry, Output output, Scheduler scheduler, Clock clock,
+                         long intervalMillis) {
+        mRegistry = registry;
+        mOutput = output;
+        mScheduler = scheduler;
+        mClock = clock;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * A writer appending to {@code file}. Once the file holds {@code maxBytes} it is renamed to
+     * {@code <name>.1}, replacing the one before, and a new file is started, so the dumps take
+     * at most twice that.
+     */
+    public static Writer openRotating(File file, long maxBytes) throws IOException {
+        if (file.length() >= maxBytes) {
+            File previous = new File(file.getPath() + ".1");
+            if (previous.exists() && !previous.delete() || !file.renameTo(previous)) {
+                throw new IOException("Could not rotate " + file);
+            }
+        }
+        return new FileWriter(file, true);
+    }
+
+    public void setErrorListener(ErrorListener errorListener) {
+        mErrorListener = errorListener;
+    }
+
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mScheduler.schedule(mDumpTask, mIntervalMillis);
+    }
+
+    /**
+     * Stop dumping, after a last dump if started.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mScheduler.cancel(mDumpTask);
+        dump();
+    }
+
+    public int getDumps() {
+        return mDumps;
+    }
+
+    private void onInterval() {
+        if (mStarted) {
+            dump();
+            mScheduler.schedule(mDumpTask, mIntervalMillis);
+        }
+    }
+
+    private void dump() {
+        Writer writer = null;
+        try {
+            StringBuilder text = new StringBuilder(1024);
+            text.append("--- ").append(mTimeFormat.format(new Date(mClock.currentTimeMillis())))
+                    .append('\n');
+            mRegistry.dump(text, mScheduler.now());
+            writer = mOutput.open();
+            writer.append(text);
+            mDumps++;
+        } catch (IOException e) {
+            if (mErrorListener != null) {
+                mErrorListener.onDumpFailed(e);
+            }
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
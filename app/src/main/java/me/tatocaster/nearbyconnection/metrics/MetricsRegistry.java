@@ -0,0 +1,126 @@
+package me.tatocaster.nearbyconnection.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+
+/**
+ * Named counters and latency histograms for the whole process, for the metrics overlay and the
+ * periodic dump.
+ * <p>
+ * Metrics are created on first use and live as long as the registry, except histograms that
+ * are {@link #unregister unregistered}, e.g. per-peer ones once the peer is gone. Looking one up
+ * is a concurrent map read, updating it is lock-free, so hot paths may keep the returned
+ * instance or look it up on every event. Components that already keep a {@link LongHistogram} are
+ * {@link #register(String, LongHistogram) registered} under a name instead of copied.
+ * <p>
+ * Names are dotted, e.g. {@code connections.bytes_out}; the dump lists them sorted.
+ */
+public final class MetricsRegistry {
+
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongHistogram> mHistograms = new ConcurrentHashMap<>();
+    private final long mStartedAtMillis;
+
+    /**
+     * @param startedAtMillis the time counter rates are computed from.
+     */
+    public MetricsRegistry(long startedAtMillis) {
+        mStartedAtMillis = startedAtMillis;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LongHistogram histogram(String name) {
+        LongHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            LongHistogram created = new LongHistogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Show a histogram owned by a component under {@code name}, replacing what was there.
+     */
+    public void register(String name, LongHistogram histogram) {
+        mHistograms.put(name, histogram);
+    }
+
+    /**
+     * Drop a histogram, so metrics named after something short-lived do not pile up. Whoever
+     * still holds it may keep recording into it, unseen.
+     *
+     * @return the histogram, or null if there was none by that name.
+     */
+    public LongHistogram unregister(String name) {
+        return mHistograms.remove(name);
+    }
+
+    /**
+     * Write every metric, one per line: counters with their rate per minute since the start,
+     * then histograms with their count, mean, p50, p99 and max.
+     */
+    public void dump(Appendable out, long nowMillis) throws IOException {
+        long elapsedMillis = Math.max(1, nowMillis - mStartedAtMillis);
+        out.append("uptime ").append(Long.toString(elapsedMillis / 1000)).append(" s\n");
+        for (String name : sorted(mCounters.keySet())) {
+            long value = mCounters.get(name).get();
+            out.append(name).append(' ').append(Long.toString(value)).append(" (")
+                    .append(String.format(Locale.US, "%.1f", value * 60000.0 / elapsedMillis))
+                    .append("/min)\n");
+        }
+        for (String name : sorted(mHistograms.keySet())) {
+            out.append(name).append(' ').append(mHistograms.get(name).toString()).append('\n');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsRegistry{counters=" + mCounters.size() + ", histograms=" + mHistograms.size() + "}";
+    }
+
+    private static List<String> sorted(Iterable<String> names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) {
+            list.add(name);
+        }
+        Collections.sort(list);
+        return list;
+    }
+}
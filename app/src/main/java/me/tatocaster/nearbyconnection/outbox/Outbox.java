@@ -0,0 +1,556 @@
+package me.tatocaster.nearbyconnection.outbox;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.OutboxFraming;
+import me.tatocaster.nearbyconnection.wire.Utf8;
+import me.tatocaster.nearbyconnection.wire.Varint;
+import me.tatocaster.nearbyconnection.wire.WireReader;
+
+/**
+ * Durable store-and-forward queues of messages for other devices, so that a message sent while
+ * a peer is out of reach gets to it once it connects again, even if either app was restarted in
+ * between.
+ * <p>
+ * Destinations are named by something that stays the same across sessions, such as the install
+ * id from the connection handshake; endpoint ids do not. Every message is appended to the
+ * {@link OutboxLog} and queued for its destination. A connected destination is sent it right
+ * away, and on every connect the whole queue is replayed in order. The receiver acks each
+ * message, and an ack drops that message and everything before it from the queue and the log.
+ * Delivery is at least once: a message whose ack was lost is replayed, and receivers drop the
+ * repeats they have seen since they started. Sequence numbers are shared by all destinations
+ * and never go back, not even for a destination that was forgotten and tracked again, so a
+ * receiver that saw its earlier messages does not take the new ones for repeats.
+ * <p>
+ * Appends are forced to storage in groups: the first append after a sync schedules the next one
+ * a commit delay later, so a burst of messages costs one fsync. A message goes out before its
+ * sync; if the device dies in that window the message is lost, the process dying is survived
+ * by the mapping.
+ * <p>
+ * Once the log has grown past the compaction threshold and is mostly acked or dropped messages,
+ * it is rewritten with just the queued ones; this is checked after every ack, enqueue and
+ * forgotten destination, and once on open. A rewrite waits for the log to double again. Past the per-destination limit the oldest messages are
+ * dropped, and past the destination limit the destination seen longest ago is forgotten along
+ * with its queue, so the log stays bounded even if a peer never comes back.
+ * <p>
+ * Not thread safe; call it from the thread the {@link Scheduler} runs on.
+ */
+public final class Outbox {
+
+    public interface Sender {
+        /**
+         * @return false if the destination is not connected.
+         */
+        boolean send(String destination, byte[] frame);
+    }
+
+    public interface Listener {
+        /**
+         * A message from another device's outbox, each delivered once while this outbox lives
+         * even if it is replayed. The payload region is a view into the received frame, only
+         * valid during the call.
+         */
+        void onOutboxMessage(String origin, byte[] buffer, int offset, int length);
+    }
+
+    public interface ErrorListener {
+        /**
+         * The log could not be written. Messages are still queued, but only until the process
+         * ends.
+         */
+        void onStorageFailed(IOException e);
+    }
+
+    public static final class Builder {
+        private final OutboxLog mLog;
+        private final Sender mSender;
+        private final Scheduler mScheduler;
+        private long mCommitDelayMillis = 50;
+        private int mMaxMessagesPerDestination = 256;
+        private int mMaxDestinations = 32;
+        private int mCompactAboveBytes = 256 * 1024;
+
+        /**
+         * @param log the log to keep the queues in; whatever it holds is queued again.
+         */
+        public Builder(OutboxLog log, Sender sender, Scheduler scheduler) {
+            mLog = log;
+            mSender = sender;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * How long appends wait to be synced together.
+         */
+        public Builder commitDelayMillis(long commitDelayMillis) {
+            mCommitDelayMillis = commitDelayMillis;
+            return this;
+        }
+
+        public Builder maxMessagesPerDestination(int maxMessagesPerDestination) {
+            mMaxMessagesPerDestination = maxMessagesPerDestination;
+            return this;
+        }
+
+        public Builder maxDestinations(int maxDestinations) {
+            mMaxDestinations = maxDestinations;
+            return this;
+        }
+
+        /**
+         * The log size from which it is compacted, once less than half of it is still queued.
+         */
+        public Builder compactAboveBytes(int compactAboveBytes) {
+            mCompactAboveBytes = compactAboveBytes;
+            return this;
+        }
+
+        public Outbox build() {
+            if (mCommitDelayMillis < 0 || mMaxMessagesPerDestination <= 0 || mMaxDestinations <= 0) {
+                throw new IllegalArgumentException("limits must be positive");
+            }
+            return new Outbox(this);
+        }
+    }
+
+    /**
+     * Log records.
+     * <pre>
+     *   TRACK     type 1, destination string
+     *   MESSAGE   type 2, destination string, sequence varint, payload the rest
+     *   TRUNCATE  type 3, destination string, sequence varint: everything up to it is gone
+     *   FORGET    type 4, destination string
+     *   SEQUENCE  type 5, empty string, sequence varint: sequences up to it were used
+     * </pre>
+     */
+    private static final int RECORD_TRACK = 1;
+    private static final int RECORD_MESSAGE = 2;
+    private static final int RECORD_TRUNCATE = 3;
+    private static final int RECORD_FORGET = 4;
+    private static final int RECORD_SEQUENCE = 5;
+
+    /**
+     * Roughly what a destination's records cost besides its payloads.
+     */
+    private static final int DESTINATION_OVERHEAD = 64;
+
+    private static final class Entry {
+        final int sequence;
+        final byte[] payload;
+
+        Entry(int sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Destination {
+        final String mId;
+        final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+        // one past the last sequence given to this destination
+        int mNextSequence = 1;
+        boolean mConnected;
+
+        Destination(String id) {
+            mId = id;
+        }
+
+        /**
+         * The sequence everything before the queue was acked or dropped up to.
+         */
+        int truncatedUpTo() {
+            return (mQueue.isEmpty() ? mNextSequence : mQueue.peekFirst().sequence) - 1;
+        }
+    }
+
+    private final class FrameHandler implements OutboxFraming.Handler {
+        private final String mOrigin;
+
+        FrameHandler(String origin) {
+            mOrigin = origin;
+        }
+
+        @Override
+        public void onMessage(int sequence, byte[] buffer, int offset, int length) {
+            Integer delivered = mDelivered.get(mOrigin);
+            if (delivered != null && sequence <= delivered) {
+                mDuplicates++;
+            } else {
+                mDelivered.put(mOrigin, sequence);
+                if (mListener != null) {
+                    mListener.onOutboxMessage(mOrigin, buffer, offset, length);
+                }
+            }
+            // acked again if it was a repeat, the first ack may be what got lost
+            mSender.send(mOrigin, OutboxFraming.encodeAck(sequence));
+        }
+
+        @Override
+        public void onAck(int sequence) {
+            Destination destination = mDestinations.get(mOrigin);
+            if (destination != null && truncate(destination, sequence) > 0) {
+                mAcked++;
+                maybeCompact();
+            }
+        }
+    }
+
+    private final OutboxLog mLog;
+    private final Sender mSender;
+    private final Scheduler mScheduler;
+    private final long mCommitDelayMillis;
+    private final int mMaxMessagesPerDestination;
+    private final int mMaxDestinations;
+    private final int mCompactAboveBytes;
+    private final Runnable mCommitTask = this::commit;
+    // least recently connected or tracked first
+    private final LinkedHashMap<String, Destination> mDestinations = new LinkedHashMap<>();
+    // receive side, newest sequence delivered per origin
+    private final Map<String, Integer> mDelivered = new HashMap<>();
+    private final LongHistogram mCommitBatchSizes = new LongHistogram();
+    private final LongHistogram mSyncMillis = new LongHistogram();
+    private Listener mListener;
+    private ErrorListener mErrorListener;
+    private boolean mCommitScheduled;
+    // the last sequence given to any destination
+    private int mLastSequence;
+    private long mQueuedBytes;
+    private long mReplayed;
+    private long mAcked;
+    private long mDropped;
+    private long mDuplicates;
+    private long mCompactions;
+    private int mCompactedSize;
+    private long mMalformed;
+
+    private Outbox(Builder builder) {
+        mLog = builder.mLog;
+        mSender = builder.mSender;
+        mScheduler = builder.mScheduler;
+        mCommitDelayMillis = builder.mCommitDelayMillis;
+        mMaxMessagesPerDestination = builder.mMaxMessagesPerDestination;
+        mMaxDestinations = builder.mMaxDestinations;
+        mCompactAboveBytes = builder.mCompactAboveBytes;
+        mLog.forEach(this::restore);
+        maybeCompact();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setErrorListener(ErrorListener errorListener) {
+        mErrorListener = errorListener;
+    }
+
+    /**
+     * Remember a destination, so that {@link #getDestinations()} lists it from now on, also
+     * after a restart. Forgets the destination seen longest ago if there are too many.
+     */
+    public void track(String destination) {
+        destination(destination);
+    }
+
+    /**
+     * Queue a message for a destination, and send it right away if it is connected.
+     *
+     * @return its sequence number.
+     */
+    public int enqueue(String destination, byte[] payload) {
+        Destination d = destination(destination);
+        Entry entry = new Entry(++mLastSequence, payload);
+        d.mNextSequence = mLastSequence + 1;
+        append(record(RECORD_MESSAGE, destination, entry.sequence, payload));
+        d.mQueue.addLast(entry);
+        mQueuedBytes += payload.length;
+        while (d.mQueue.size() > mMaxMessagesPerDestination) {
+            mDropped++;
+            truncate(d, d.mQueue.peekFirst().sequence);
+        }
+        if (d.mConnected) {
+            mSender.send(destination, OutboxFraming.encodeMessage(entry.sequence, payload));
+        }
+        // a peer that never comes back never acks, what it was sent and dropped counts here
+        maybeCompact();
+        return entry.sequence;
+    }
+
+    /**
+     * A destination connected: send it its whole queue, in order.
+     */
+    public void onConnected(String destination) {
+        Destination d = destination(destination);
+        d.mConnected = true;
+        // a copy, acks may come back before the loop is done
+        for (Entry entry : new ArrayList<>(d.mQueue)) {
+            if (!mSender.send(destination, OutboxFraming.encodeMessage(entry.sequence, entry.payload))) {
+                break;
+            }
+            mReplayed++;
+        }
+    }
+
+    public void onDisconnected(String destination) {
+        Destination d = mDestinations.get(destination);
+        if (d != null) {
+            d.mConnected = false;
+        }
+    }
+
+    public boolean isConnected(String destination) {
+        Destination d = mDestinations.get(destination);
+        return d != null && d.mConnected;
+    }
+
+    /**
+     * Handle a frame from the outbox channel. Malformed frames are dropped.
+     *
+     * @param origin the sender's name, as used for it as a destination.
+     */
+    public void onFrameReceived(String origin, byte[] buffer, int offset, int length) {
+        try {
+            OutboxFraming.decode(buffer, offset, length, new FrameHandler(origin));
+        } catch (IllegalArgumentException e) {
+            mMalformed++;
+        }
+    }
+
+    /**
+     * Every tracked destination, the one seen longest ago first.
+     */
+    public List<String> getDestinations() {
+        return new ArrayList<>(mDestinations.keySet());
+    }
+
+    public int getQueuedCount(String destination) {
+        Destination d = mDestinations.get(destination);
+        return d != null ? d.mQueue.size() : 0;
+    }
+
+    public int getQueuedCount() {
+        int count = 0;
+        for (Destination d : mDestinations.values()) {
+            count += d.mQueue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Records forced to storage by each sync.
+     */
+    public LongHistogram getCommitBatchSizes() {
+        return mCommitBatchSizes;
+    }
+
+    public LongHistogram getSyncMillis() {
+        return mSyncMillis;
+    }
+
+    /**
+     * Sync whatever was appended now, instead of at the scheduled commit.
+     */
+    public void flush() {
+        mScheduler.cancel(mCommitTask);
+        commit();
+    }
+
+    /**
+     * Sync and close the log. The outbox cannot be used after this.
+     */
+    public void close() {
+        mScheduler.cancel(mCommitTask);
+        mCommitScheduled = false;
+        try {
+            mLog.close();
+        } catch (IOException e) {
+            onStorageFailed(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Outbox{destinations=" + mDestinations.size() + ", queued=" + getQueuedCount()
+                + ", replayed=" + mReplayed + ", acked=" + mAcked + ", dropped=" + mDropped
+                + ", duplicates=" + mDuplicates + ", compactions=" + mCompactions + ", " + mLog + "}";
+    }
+
+    private Destination destination(String id) {
+        Destination d = mDestinations.remove(id);
+        if (d == null) {
+            d = new Destination(id);
+            append(record(RECORD_TRACK, id, -1, null));
+        }
+        mDestinations.put(id, d);
+        if (mDestinations.size() > mMaxDestinations) {
+            Iterator<Destination> oldest = mDestinations.values().iterator();
+            Destination forgotten = oldest.next();
+            oldest.remove();
+            mDropped += forgotten.mQueue.size();
+            for (Entry entry : forgotten.mQueue) {
+                mQueuedBytes -= entry.payload.length;
+            }
+            append(record(RECORD_FORGET, forgotten.mId, -1, null));
+            maybeCompact();
+        }
+        return d;
+    }
+
+    /**
+     * Drop the queued messages up to {@code sequence}.
+     *
+     * @return how many were dropped.
+     */
+    private int truncate(Destination d, int sequence) {
+        int dropped = 0;
+        while (!d.mQueue.isEmpty() && d.mQueue.peekFirst().sequence <= sequence) {
+            mQueuedBytes -= d.mQueue.pollFirst().payload.length;
+            dropped++;
+        }
+        if (dropped > 0) {
+            append(record(RECORD_TRUNCATE, d.mId, sequence, null));
+        }
+        return dropped;
+    }
+
+    private void maybeCompact() {
+        int size = mLog.size();
+        long live = mQueuedBytes + (long) DESTINATION_OVERHEAD * mDestinations.size();
+        // the last rewrite's size bounds the live records better than their payloads do
+        if (size < mCompactAboveBytes || live * 2 > size || size < 2L * mCompactedSize) {
+            return;
+        }
+        List<byte[]> records = new ArrayList<>();
+        // forgotten destinations may have used the highest sequences
+        if (mLastSequence > 0) {
+            records.add(record(RECORD_SEQUENCE, "", mLastSequence, null));
+        }
+        for (Destination d : mDestinations.values()) {
+            records.add(record(RECORD_TRACK, d.mId, -1, null));
+            if (d.truncatedUpTo() > 0) {
+                // keeps the sequence numbers going where they were
+                records.add(record(RECORD_TRUNCATE, d.mId, d.truncatedUpTo(), null));
+            }
+            for (Entry entry : d.mQueue) {
+                records.add(record(RECORD_MESSAGE, d.mId, entry.sequence, entry.payload));
+            }
+        }
+        mScheduler.cancel(mCommitTask);
+        mCommitScheduled = false;
+        try {
+            mLog.rewrite(records);
+            mCompactions++;
+            mCompactedSize = mLog.size();
+        } catch (IOException e) {
+            onStorageFailed(e);
+        }
+    }
+
+    private void append(byte[] record) {
+        try {
+            mLog.append(record);
+        } catch (IOException e) {
+            onStorageFailed(e);
+            return;
+        }
+        if (!mCommitScheduled) {
+            mCommitScheduled = true;
+            mScheduler.schedule(mCommitTask, mCommitDelayMillis);
+        }
+    }
+
+    private void commit() {
+        mCommitScheduled = false;
+        long startedAt = mScheduler.now();
+        int records = mLog.sync();
+        if (records > 0) {
+            mCommitBatchSizes.record(records);
+            mSyncMillis.record(mScheduler.now() - startedAt);
+        }
+    }
+
+    private void onStorageFailed(IOException e) {
+        if (mErrorListener != null) {
+            mErrorListener.onStorageFailed(e);
+        }
+    }
+
+    private void restore(byte[] buffer, int offset, int length) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        try {
+            int type = reader.readByte();
+            String id = reader.readString();
+            if (type == RECORD_SEQUENCE) {
+                mLastSequence = Math.max(mLastSequence, reader.readVarint());
+                return;
+            }
+            if (type == RECORD_FORGET) {
+                Destination forgotten = mDestinations.remove(id);
+                if (forgotten != null) {
+                    for (Entry entry : forgotten.mQueue) {
+                        mQueuedBytes -= entry.payload.length;
+                    }
+                }
+                return;
+            }
+            Destination d = mDestinations.get(id);
+            if (d == null) {
+                d = new Destination(id);
+                mDestinations.put(id, d);
+            }
+            if (type == RECORD_MESSAGE) {
+                int sequence = reader.readVarint();
+                byte[] payload = new byte[reader.remaining()];
+                System.arraycopy(buffer, reader.position(), payload, 0, payload.length);
+                d.mQueue.addLast(new Entry(sequence, payload));
+                mQueuedBytes += payload.length;
+                d.mNextSequence = Math.max(d.mNextSequence, sequence + 1);
+                mLastSequence = Math.max(mLastSequence, d.mNextSequence - 1);
+            } else if (type == RECORD_TRUNCATE) {
+                int sequence = reader.readVarint();
+                while (!d.mQueue.isEmpty() && d.mQueue.peekFirst().sequence <= sequence) {
+                    mQueuedBytes -= d.mQueue.pollFirst().payload.length;
+                }
+                d.mNextSequence = Math.max(d.mNextSequence, sequence + 1);
+                mLastSequence = Math.max(mLastSequence, d.mNextSequence - 1);
+            }
+        } catch (IllegalArgumentException e) {
+            // passed its checksum, so written by a newer or broken build; nothing to recover
+            mMalformed++;
+        }
+    }
+
+    /**
+     * @param sequence -1 for records without one.
+     * @param payload  null for records without one.
+     */
+    private static byte[] record(int type, String destination, int sequence, byte[] payload) {
+        int idLength = Utf8.encodedLength(destination);
+        int length = 1 + Varint.sizeOf(idLength) + idLength;
+        if (sequence >= 0) {
+            length += Varint.sizeOf(sequence);
+        }
+        if (payload != null) {
+            length += payload.length;
+        }
+        byte[] out = new byte[length];
+        out[0] = (byte) type;
+        int p = Varint.write(idLength, out, 1);
+        p = Utf8.encode(destination, out, p);
+        if (sequence >= 0) {
+            p = Varint.write(sequence, out, p);
+        }
+        if (payload != null) {
+            System.arraycopy(payload, 0, out, p, payload.length);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,283 @@
+package me.tatocaster.nearbyconnection.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records in a memory-mapped file.
+ * <pre>
+ *   file header  4 bytes "NBOX", 4 bytes version
+ *   record       4 bytes length of the data, 4 bytes CRC-32 of the data, data
+ * </pre>
+ * The file is mapped larger than its records and grows by doubling; the unused tail is zero,
+ * and a zero length ends the log. An append is a copy into the mapping, so it survives the
+ * process dying right after; {@link #sync()} forces it to storage, which is what makes it
+ * survive the device dying too. The length goes in last, and on open a record that is cut off
+ * or fails its checksum, such as one that was being written when the device died, ends the log
+ * and is wiped along with everything after it. A file whose header is still zero was being
+ * created when the device died, and is started over as an empty log.
+ * <p>
+ * The log only ever grows; {@link #rewrite} replaces it with the records still needed, written
+ * to a new file that is renamed over the old one once it is on storage. Not thread safe.
+ */
+public final class OutboxLog {
+
+    public interface RecordHandler {
+        /**
+         * The record is a view into a buffer, only valid during the call.
+         */
+        void onRecord(byte[] buffer, int offset, int length);
+    }
+
+    private static final int MAGIC = 0x4E424F58;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final File mFile;
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private int mEnd;
+    private int mUnsyncedRecords;
+    private int mRecords;
+    private long mSyncs;
+
+    /**
+     * Open the log, creating it if there is none.
+     *
+     * @throws IOException if it cannot be mapped, or the file is not a log.
+     */
+    public static OutboxLog open(File file) throws IOException {
+        OutboxLog log = new OutboxLog(file);
+        log.map();
+        return log;
+    }
+
+    private OutboxLog(File file) {
+        mFile = file;
+    }
+
+    public void append(byte[] record) throws IOException {
+        append(record, 0, record.length);
+    }
+
+    /**
+     * Copy a record to the end of the log. It is durable once {@link #sync()} returns.
+     */
+    public void append(byte[] record, int offset, int length) throws IOException {
+        int recordEnd = mEnd + RECORD_HEADER_LENGTH + length;
+        if (length <= 0 || recordEnd < 0) {
+            throw new IllegalArgumentException("Bad record length " + length);
+        }
+        // leave the zero length after the record that ends the log
+        if (recordEnd + 4 > mMap.capacity()) {
+            grow(recordEnd + 4);
+        }
+        ByteBuffer data = mMap.duplicate();
+        data.position(mEnd + RECORD_HEADER_LENGTH);
+        data.put(record, offset, length);
+        mCrc.reset();
+        mCrc.update(record, offset, length);
+        mMap.putInt(mEnd + 4, (int) mCrc.getValue());
+        mMap.putInt(mEnd, length);
+        mEnd = recordEnd;
+        mRecords++;
+        mUnsyncedRecords++;
+    }
+
+    /**
+     * Force the appended records to storage, one fsync for all of them.
+     *
+     * @return the number of records that were not on storage yet.
+     */
+    public int sync() {
+        int records = mUnsyncedRecords;
+        if (records > 0) {
+            mMap.force();
+            mUnsyncedRecords = 0;
+            mSyncs++;
+        }
+        return records;
+    }
+
+    /**
+     * Hand every record to {@code handler}, oldest first.
+     */
+    public void forEach(RecordHandler handler) {
+        byte[] records = new byte[mEnd];
+        ByteBuffer view = mMap.duplicate();
+        view.position(0);
+        view.get(records, 0, mEnd);
+        for (int p = FILE_HEADER_LENGTH; p < mEnd; ) {
+            int length = readInt(records, p);
+            handler.onRecord(records, p + RECORD_HEADER_LENGTH, length);
+            p += RECORD_HEADER_LENGTH + length;
+        }
+    }
+
+    /**
+     * Replace the log with {@code records}. The new log is on storage when this returns.
+     */
+    public void rewrite(List<byte[]> records) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (byte[] record : records) {
+                mCrc.reset();
+                mCrc.update(record, 0, record.length);
+                out.writeInt(record.length);
+                out.writeInt((int) mCrc.getValue());
+                out.write(record);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        unmap();
+        if (!temp.renameTo(mFile)) {
+            map();
+            throw new IOException("Cannot replace " + mFile);
+        }
+        map();
+    }
+
+    /**
+     * Bytes in use, headers included.
+     */
+    public int size() {
+        return mEnd;
+    }
+
+    public int getRecordCount() {
+        return mRecords;
+    }
+
+    public long getSyncCount() {
+        return mSyncs;
+    }
+
+    /**
+     * Sync and unmap. The log cannot be used after this.
+     */
+    public void close() throws IOException {
+        sync();
+        unmap();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboxLog{" + mFile.getName() + ", " + mEnd + " B, records=" + mRecords
+                + ", unsynced=" + mUnsyncedRecords + ", syncs=" + mSyncs + "}";
+    }
+
+    private void map() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        long length = mRandomAccessFile.length();
+        if (length > Integer.MAX_VALUE) {
+            unmap();
+            throw new IOException(mFile + " is too large for an outbox log");
+        }
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(length, MIN_CAPACITY));
+        // a zero header is a log whose creation never reached storage, the device died first
+        boolean created = length == 0 || mMap.getInt(0) == 0 && mMap.getInt(4) == 0;
+        if (created) {
+            if (length > 0) {
+                wipe(FILE_HEADER_LENGTH);
+            }
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, VERSION);
+            mEnd = FILE_HEADER_LENGTH;
+            mRecords = 0;
+            mUnsyncedRecords = 1;
+            return;
+        }
+        if (mMap.getInt(0) != MAGIC || mMap.getInt(4) != VERSION) {
+            unmap();
+            throw new IOException(mFile + " is not an outbox log");
+        }
+        recover();
+    }
+
+    private void recover() {
+        int capacity = mMap.capacity();
+        int p = FILE_HEADER_LENGTH;
+        int records = 0;
+        byte[] data = new byte[0];
+        while (p + RECORD_HEADER_LENGTH <= capacity) {
+            int length = mMap.getInt(p);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > capacity - p - RECORD_HEADER_LENGTH) {
+                wipe(p);
+                break;
+            }
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            ByteBuffer view = mMap.duplicate();
+            view.position(p + RECORD_HEADER_LENGTH);
+            view.get(data, 0, length);
+            mCrc.reset();
+            mCrc.update(data, 0, length);
+            if ((int) mCrc.getValue() != mMap.getInt(p + 4)) {
+                wipe(p);
+                break;
+            }
+            p += RECORD_HEADER_LENGTH + length;
+            records++;
+        }
+        mEnd = p;
+        mRecords = records;
+        mUnsyncedRecords = 0;
+    }
+
+    /**
+     * Zero a torn record and whatever follows it, so a later append over it cannot be read
+     * together with its remains.
+     */
+    private void wipe(int from) {
+        for (int i = from, capacity = mMap.capacity(); i < capacity; i++) {
+            mMap.put(i, (byte) 0);
+        }
+        mMap.force();
+    }
+
+    private void grow(int needed) throws IOException {
+        int capacity = mMap.capacity();
+        while (capacity < needed) {
+            capacity = capacity > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : capacity * 2;
+        }
+        // whatever is mapped now must reach storage with the rest at the next sync
+        mMap.force();
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void unmap() throws IOException {
+        mMap = null;
+        mChannel = null;
+        RandomAccessFile file = mRandomAccessFile;
+        mRandomAccessFile = null;
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+}
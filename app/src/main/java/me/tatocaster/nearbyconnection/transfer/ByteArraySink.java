@@ -0,0 +1,66 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reassembles a transfer in memory. The array grows with the data that actually arrived, never
+ * to a length the sender merely announced, and a transfer larger than {@code maxLength} fails.
+ */
+public final class ByteArraySink implements TransferSink {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int mMaxLength;
+    private byte[] mBuffer;
+    private int mSize;
+
+    /**
+     * @param maxLength the most data accepted.
+     */
+    public ByteArraySink(int maxLength) {
+        if (maxLength < 0 || maxLength > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bad maximum length: " + maxLength);
+        }
+        mMaxLength = maxLength;
+        mBuffer = new byte[Math.min(INITIAL_CAPACITY, maxLength)];
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length > mMaxLength - mSize) {
+            throw new IOException("Transfer exceeds " + mMaxLength + " bytes");
+        }
+        if (mBuffer.length - mSize < length) {
+            int capacity = (int) Math.min(mMaxLength, Math.max(mBuffer.length * 2L, mSize + length));
+            mBuffer = Arrays.copyOf(mBuffer, capacity);
+        }
+        System.arraycopy(buffer, offset, mBuffer, mSize, length);
+        mSize += length;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void abort() {
+        mBuffer = new byte[0];
+        mSize = 0;
+    }
+
+    /**
+     * The backing array, valid up to {@link #size()}. Not a copy.
+     */
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+}
@@ -0,0 +1,59 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a transfer straight into a file. The file stays open across a pause so a resumed
+ * transfer keeps appending; an aborted transfer deletes it, as does one that grows past
+ * {@code maxLength}.
+ */
+public final class FileSink implements TransferSink {
+
+    private final File mFile;
+    private final long mMaxLength;
+    private final OutputStream mOut;
+    private long mSize;
+
+    /**
+     * @param maxLength the most data accepted.
+     */
+    public FileSink(File file, long maxLength) throws FileNotFoundException {
+        mFile = file;
+        mMaxLength = maxLength;
+        mOut = new BufferedOutputStream(new FileOutputStream(file), 16 * 1024);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length > mMaxLength - mSize) {
+            throw new IOException("Transfer exceeds " + mMaxLength + " bytes");
+        }
+        mSize += length;
+        mOut.write(buffer, offset, length);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mOut.close();
+    }
+
+    @Override
+    public void abort() {
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+            // deleting it anyway
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+}
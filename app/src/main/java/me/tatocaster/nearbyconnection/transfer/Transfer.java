@@ -0,0 +1,93 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+/**
+ * One chunked transfer to or from a peer, as tracked by the {@link TransferManager}.
+ * <pre>
+ *   ACTIVE <--> PAUSED (peer disconnected, waiting for it to come back)
+ *      |           |
+ *      v           v
+ *   COMPLETE    FAILED
+ * </pre>
+ * Fields are written on the manager's scheduler thread; the getters may be read from any thread.
+ */
+public final class Transfer {
+
+    public static final int STATE_ACTIVE = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETE = 3;
+    public static final int STATE_FAILED = 4;
+
+    private final int mId;
+    private final String mEndpointId;
+    private final String mName;
+    private final boolean mOutgoing;
+    private final long mTotalLength;
+    private final long mStartedAtMillis;
+
+    volatile int mState = STATE_ACTIVE;
+    volatile long mBytesTransferred;
+    volatile long mUpdatedAtMillis;
+
+    Transfer(int id, String endpointId, String name, boolean outgoing, long totalLength,
+             long startedAtMillis) {
+        mId = id;
+        mEndpointId = endpointId;
+        mName = name;
+        mOutgoing = outgoing;
+        mTotalLength = totalLength;
+        mStartedAtMillis = startedAtMillis;
+        mUpdatedAtMillis = startedAtMillis;
+    }
+
+    /**
+     * Assigned by the sending side, unique per sender.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    /**
+     * @return the size announced by the sender, or -1 if it streams data of unknown length.
+     */
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Bytes the receiver has confirmed (outgoing) or written to its sink (incoming).
+     */
+    public long getBytesTransferred() {
+        return mBytesTransferred;
+    }
+
+    /**
+     * Average rate from the start to the latest progress, pauses included.
+     */
+    public long getBytesPerSecond() {
+        long elapsed = mUpdatedAtMillis - mStartedAtMillis;
+        return elapsed > 0 ? mBytesTransferred * 1000 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return (mOutgoing ? "send#" : "recv#") + mId + "{" + mName + ", " + mBytesTransferred
+                + (mTotalLength >= 0 ? "/" + mTotalLength : "") + " B, "
+                + getBytesPerSecond() / 1024 + " KiB/s}";
+    }
+}
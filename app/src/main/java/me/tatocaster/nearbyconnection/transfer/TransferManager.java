@@ -0,0 +1,692 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.tatocaster.nearbyconnection.buffer.PooledBuffer;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.TransferFraming;
+
+/**
+ * Moves payloads larger than a Connections message between peers as a stream of numbered chunks.
+ * <p>
+ * The sender reads its source one chunk at a time and keeps at most {@code windowChunks} of them
+ * in flight. The receiver appends chunks to a {@link TransferSink} as they arrive and
+ * acknowledges cumulatively every half window, which frees the sender to read further. Neither
+ * side ever holds more than a window of the payload in memory, unless the sink chooses to.
+ * <p>
+ * When a peer disconnects its transfers pause. The sender keeps the unacknowledged chunks, the
+ * receiver keeps its sink open. If the peer connects again within the resume timeout, the
+ * sender re-offers the transfer, the receiver answers with the index it needs next and the
+ * transfer continues from there; otherwise both sides give up. A re-offer must match the paused
+ * transfer's name, length, chunk size and nonce; an offer that reuses the id of a paused transfer
+ * otherwise, e.g. from a sender that restarted, fails the paused one and starts afresh. The
+ * receiver remembers the last {@value #COMPLETED_CAPACITY} transfers it completed, so a sender
+ * whose final ack was lost gets it again when it re-offers one of them.
+ * <p>
+ * Peers are named by whatever id the caller passes as {@code endpointId}; it must be the same
+ * after the reconnect for a transfer to resume. Nearby endpoint ids are not, so the caller
+ * should pass something stable such as the install id from the peer's handshake.
+ * <p>
+ * Frames must travel over an ordered, reliable channel. All state lives on the scheduler's
+ * thread, which also does the reading and writing; public methods may be called from any thread.
+ */
+public final class TransferManager {
+
+    public interface FrameSender {
+        /**
+         * @return false if the endpoint is not connected.
+         */
+        boolean send(String endpointId, byte[] frame);
+    }
+
+    public interface SinkFactory {
+        /**
+         * Called on the scheduler thread for every new incoming transfer.
+         *
+         * @param totalLength the announced length, or -1 if unknown.
+         * @return where to write the data, or null to refuse the transfer.
+         */
+        TransferSink create(String endpointId, String name, long totalLength) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the scheduler thread about once per half window.
+         */
+        void onTransferProgress(Transfer transfer);
+
+        /**
+         * @param sink the incoming transfer's sink, null for outgoing transfers.
+         */
+        void onTransferComplete(Transfer transfer, TransferSink sink);
+
+        void onTransferFailed(Transfer transfer, String reason);
+    }
+
+    public static final class Builder {
+        private final FrameSender mSender;
+        private final SinkFactory mSinkFactory;
+        private final Scheduler mScheduler;
+        private int mChunkSize = 4000;
+        private int mWindowChunks = 8;
+        private long mResumeTimeoutMillis = 60000;
+
+        public Builder(FrameSender sender, SinkFactory sinkFactory, Scheduler scheduler) {
+            mSender = sender;
+            mSinkFactory = sinkFactory;
+            mScheduler = scheduler;
+        }
+
+        /**
+         * Data bytes per chunk. A chunk frame adds up to
+         * {@link TransferFraming#MAX_CHUNK_HEADER_LENGTH}, plus whatever the channel adds.
+         */
+        public Builder chunkSize(int chunkSize) {
+            mChunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Unacknowledged chunks a sender may have in flight per transfer.
+         */
+        public Builder windowChunks(int windowChunks) {
+            mWindowChunks = windowChunks;
+            return this;
+        }
+
+        /**
+         * How long a paused transfer waits for its peer to reconnect.
+         */
+        public Builder resumeTimeoutMillis(long resumeTimeoutMillis) {
+            mResumeTimeoutMillis = resumeTimeoutMillis;
+            return this;
+        }
+
+        public TransferManager build() {
+            if (mChunkSize <= 0 || mWindowChunks <= 0) {
+                throw new IllegalArgumentException("chunk size and window must be positive");
+            }
+            return new TransferManager(this);
+        }
+    }
+
+    private static final class Chunk {
+        final int index;
+        final byte[] data;
+        final boolean last;
+
+        Chunk(int index, byte[] data, boolean last) {
+            this.index = index;
+            this.data = data;
+            this.last = last;
+        }
+    }
+
+    private final class Outgoing implements Runnable {
+        final Transfer transfer;
+        final InputStream in;
+        final long nonce;
+        final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+        int lookahead = -1;
+        boolean endOfInput;
+        int nextReadIndex;
+        int nextSendIndex;
+        boolean awaitingAck;
+
+        Outgoing(Transfer transfer, InputStream in, long nonce) {
+            this.transfer = transfer;
+            this.in = in;
+            this.nonce = nonce;
+        }
+
+        @Override
+        public void run() {
+            // resume timeout
+            if (transfer.mState == Transfer.STATE_PAUSED) {
+                failOutgoing(this, "peer did not come back", false);
+            }
+        }
+    }
+
+    /**
+     * What is kept of an incoming transfer once it completed.
+     */
+    private static final class Completed {
+        final long totalLength;
+        final int chunkSize;
+        final String name;
+        final long nonce;
+        final int nextIndex;
+
+        Completed(Incoming incoming) {
+            totalLength = incoming.transfer.getTotalLength();
+            chunkSize = incoming.chunkSize;
+            name = incoming.transfer.getName();
+            nonce = incoming.nonce;
+            nextIndex = incoming.nextIndex;
+        }
+
+        boolean isOffered(long totalLength, int chunkSize, String name, long nonce) {
+            return this.totalLength == totalLength && this.chunkSize == chunkSize
+                    && this.name.equals(name) && this.nonce == nonce;
+        }
+    }
+
+    private final class Incoming implements Runnable {
+        final Transfer transfer;
+        final TransferSink sink;
+        final int chunkSize;
+        final long nonce;
+        int nextIndex;
+
+        Incoming(Transfer transfer, TransferSink sink, int chunkSize, long nonce) {
+            this.transfer = transfer;
+            this.sink = sink;
+            this.chunkSize = chunkSize;
+            this.nonce = nonce;
+        }
+
+        /**
+         * Whether an offer is this transfer offered again, rather than a new one reusing its id.
+         */
+        boolean isOffered(long totalLength, int chunkSize, String name, long nonce) {
+            return transfer.getTotalLength() == totalLength && this.chunkSize == chunkSize
+                    && transfer.getName().equals(name) && this.nonce == nonce;
+        }
+
+        @Override
+        public void run() {
+            // resume timeout
+            if (transfer.mState == Transfer.STATE_PAUSED) {
+                failIncoming(this, "peer did not come back", false);
+            }
+        }
+    }
+
+    static final int COMPLETED_CAPACITY = 32;
+
+    private final FrameSender mSender;
+    private final SinkFactory mSinkFactory;
+    private final Scheduler mScheduler;
+    private final int mChunkSize;
+    private final int mWindowChunks;
+    private final int mAckEvery;
+    private final long mResumeTimeoutMillis;
+    private final AtomicInteger mNextTransferId = new AtomicInteger();
+    private final Random mRandom = new Random();
+
+    private volatile Listener mListener;
+
+    // only touched on the scheduler thread
+    private final HashMap<Integer, Outgoing> mOutgoing = new HashMap<>();
+    private final HashMap<String, HashMap<Integer, Incoming>> mIncoming = new HashMap<>();
+    private final LinkedHashMap<String, Completed> mCompleted =
+            new LinkedHashMap<String, Completed>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Completed> eldest) {
+                    return size() > COMPLETED_CAPACITY;
+                }
+            };
+
+    private TransferManager(Builder builder) {
+        mSender = builder.mSender;
+        mSinkFactory = builder.mSinkFactory;
+        mScheduler = builder.mScheduler;
+        mChunkSize = builder.mChunkSize;
+        mWindowChunks = builder.mWindowChunks;
+        mAckEvery = Math.max(1, mWindowChunks / 2);
+        mResumeTimeoutMillis = builder.mResumeTimeoutMillis;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stream {@code in} to a peer. The stream is read and closed on the scheduler thread.
+     *
+     * @param length the number of bytes {@code in} will deliver, or -1 if unknown.
+     */
+    public Transfer send(String endpointId, String name, InputStream in, long length) {
+        final Transfer transfer = new Transfer(mNextTransferId.getAndIncrement(), endpointId, name,
+                true, length, mScheduler.now());
+        final Outgoing outgoing = new Outgoing(transfer, in, mRandom.nextLong());
+        mScheduler.schedule(() -> start(outgoing), 0);
+        return transfer;
+    }
+
+    /**
+     * Send the remaining bytes of {@code buffer}. The buffer must not change until the transfer
+     * completes.
+     */
+    public Transfer send(String endpointId, String name, ByteBuffer buffer) {
+        return send(endpointId, name, new ByteBufferInputStream(buffer.duplicate()), buffer.remaining());
+    }
+
+    public Transfer send(String endpointId, File file) throws FileNotFoundException {
+        return send(endpointId, file.getName(), new FileInputStream(file), file.length());
+    }
+
+    /**
+     * Abort a transfer in either direction and tell the peer.
+     */
+    public void cancel(final Transfer transfer) {
+        mScheduler.schedule(() -> {
+            if (transfer.isOutgoing()) {
+                Outgoing outgoing = mOutgoing.get(transfer.getId());
+                if (outgoing != null && outgoing.transfer == transfer) {
+                    failOutgoing(outgoing, "cancelled", true);
+                }
+            } else {
+                Incoming incoming = incoming(transfer.getEndpointId(), transfer.getId());
+                if (incoming != null && incoming.transfer == transfer) {
+                    failIncoming(incoming, "cancelled", true);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Hand over one transfer frame received from {@code endpointId}. The frame is retained until
+     * the scheduler thread has decoded it, the caller keeps its own reference.
+     */
+    public void onFrameReceived(final String endpointId, PooledBuffer frame) {
+        final PooledBuffer retained = frame.retain();
+        mScheduler.schedule(() -> {
+            try {
+                retained.read((buffer, offset, length) -> {
+                    TransferFraming.decode(buffer, offset, length, new FrameHandler(endpointId));
+                    return null;
+                });
+            } catch (IllegalArgumentException e) {
+                // a malformed frame cannot be attributed to a transfer, leave them to time out
+            } finally {
+                retained.release();
+            }
+        }, 0);
+    }
+
+    /**
+     * Resume every transfer paused for {@code endpointId}.
+     */
+    public void onPeerConnected(final String endpointId) {
+        mScheduler.schedule(() -> {
+            for (Outgoing outgoing : new ArrayList<>(mOutgoing.values())) {
+                Transfer transfer = outgoing.transfer;
+                if (transfer.mState == Transfer.STATE_PAUSED && transfer.getEndpointId().equals(endpointId)) {
+                    mScheduler.cancel(outgoing);
+                    transfer.mState = Transfer.STATE_ACTIVE;
+                    // the receiver answers with the index it needs, everything after that is resent
+                    outgoing.awaitingAck = true;
+                    offer(outgoing);
+                }
+            }
+            // incoming transfers resume when the sender re-offers them
+        }, 0);
+    }
+
+    /**
+     * Pause every transfer with {@code endpointId} until it reconnects or the resume timeout
+     * passes.
+     */
+    public void onPeerDisconnected(final String endpointId) {
+        mScheduler.schedule(() -> {
+            for (Outgoing outgoing : mOutgoing.values()) {
+                if (outgoing.transfer.getEndpointId().equals(endpointId)) {
+                    pause(outgoing.transfer, outgoing);
+                }
+            }
+            HashMap<Integer, Incoming> incoming = mIncoming.get(endpointId);
+            if (incoming != null) {
+                for (Incoming transfer : incoming.values()) {
+                    pause(transfer.transfer, transfer);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Abort every transfer without notifying peers, e.g. when the GoogleApiClient disconnects.
+     */
+    public void clear() {
+        mScheduler.schedule(() -> {
+            for (Outgoing outgoing : new ArrayList<>(mOutgoing.values())) {
+                failOutgoing(outgoing, "cleared", false);
+            }
+            for (HashMap<Integer, Incoming> incoming : new ArrayList<>(mIncoming.values())) {
+                for (Incoming transfer : new ArrayList<>(incoming.values())) {
+                    failIncoming(transfer, "cleared", false);
+                }
+            }
+            mCompleted.clear();
+        }, 0);
+    }
+
+    private final class FrameHandler implements TransferFraming.Handler {
+        private final String mEndpointId;
+
+        FrameHandler(String endpointId) {
+            mEndpointId = endpointId;
+        }
+
+        @Override
+        public void onOffer(int transferId, long totalLength, int chunkSize, String name, long nonce) {
+            Incoming incoming = incoming(mEndpointId, transferId);
+            if (incoming != null && !incoming.isOffered(totalLength, chunkSize, name, nonce)) {
+                // the sender started over and reused the id, what was paused cannot be finished
+                failIncoming(incoming, "replaced by a new transfer", false);
+                incoming = null;
+            }
+            if (incoming == null) {
+                Completed completed = mCompleted.get(completedKey(mEndpointId, transferId));
+                if (completed != null && completed.isOffered(totalLength, chunkSize, name, nonce)) {
+                    // finished here, but the final ack never reached the sender
+                    mSender.send(mEndpointId, TransferFraming.encodeAck(transferId, completed.nextIndex));
+                    return;
+                }
+                TransferSink sink = null;
+                try {
+                    sink = mSinkFactory.create(mEndpointId, name, totalLength);
+                } catch (IOException e) {
+                    // refused below
+                }
+                if (sink == null) {
+                    mSender.send(mEndpointId, TransferFraming.encodeCancel(transferId));
+                    return;
+                }
+                incoming = new Incoming(new Transfer(transferId, mEndpointId, name, false,
+                        totalLength, mScheduler.now()), sink, chunkSize, nonce);
+                HashMap<Integer, Incoming> byId = mIncoming.get(mEndpointId);
+                if (byId == null) {
+                    byId = new HashMap<>();
+                    mIncoming.put(mEndpointId, byId);
+                }
+                byId.put(transferId, incoming);
+            } else {
+                mScheduler.cancel(incoming);
+                incoming.transfer.mState = Transfer.STATE_ACTIVE;
+            }
+            mSender.send(mEndpointId, TransferFraming.encodeAck(transferId, incoming.nextIndex));
+        }
+
+        @Override
+        public void onChunk(int transferId, int index, boolean last, byte[] buffer, int offset, int length) {
+            Incoming incoming = incoming(mEndpointId, transferId);
+            if (incoming == null || index < incoming.nextIndex) {
+                // unknown, or resent after a resume and already written
+                return;
+            }
+            if (index > incoming.nextIndex) {
+                failIncoming(incoming, "missing chunk " + incoming.nextIndex, true);
+                return;
+            }
+            Transfer transfer = incoming.transfer;
+            try {
+                incoming.sink.write(buffer, offset, length);
+                if (last) {
+                    incoming.sink.finish();
+                }
+            } catch (IOException e) {
+                failIncoming(incoming, e.toString(), true);
+                return;
+            }
+            incoming.nextIndex++;
+            transfer.mBytesTransferred += length;
+            transfer.mUpdatedAtMillis = mScheduler.now();
+            if (last) {
+                removeIncoming(incoming);
+                mCompleted.put(completedKey(mEndpointId, transferId), new Completed(incoming));
+                transfer.mState = Transfer.STATE_COMPLETE;
+                mSender.send(mEndpointId, TransferFraming.encodeAck(transferId, incoming.nextIndex));
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onTransferComplete(transfer, incoming.sink);
+                }
+            } else if (incoming.nextIndex % mAckEvery == 0) {
+                mSender.send(mEndpointId, TransferFraming.encodeAck(transferId, incoming.nextIndex));
+                dispatchProgress(transfer);
+            }
+        }
+
+        @Override
+        public void onAck(int transferId, int nextIndex) {
+            Outgoing outgoing = mOutgoing.get(transferId);
+            if (outgoing == null || !outgoing.transfer.getEndpointId().equals(mEndpointId)) {
+                return;
+            }
+            Chunk first = outgoing.unacked.peekFirst();
+            int base = first != null ? first.index : outgoing.nextReadIndex;
+            if (nextIndex < base) {
+                failOutgoing(outgoing, "receiver lost chunks before " + base, true);
+                return;
+            }
+            if (nextIndex > outgoing.nextReadIndex) {
+                failOutgoing(outgoing, "receiver acked chunk " + nextIndex + " never sent", true);
+                return;
+            }
+            Transfer transfer = outgoing.transfer;
+            while (!outgoing.unacked.isEmpty() && outgoing.unacked.peekFirst().index < nextIndex) {
+                transfer.mBytesTransferred += outgoing.unacked.pollFirst().data.length;
+            }
+            transfer.mUpdatedAtMillis = mScheduler.now();
+            outgoing.nextSendIndex = Math.max(outgoing.nextSendIndex, nextIndex);
+            outgoing.awaitingAck = false;
+            if (outgoing.endOfInput && outgoing.unacked.isEmpty()) {
+                mOutgoing.remove(transferId);
+                transfer.mState = Transfer.STATE_COMPLETE;
+                closeQuietly(outgoing.in);
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onTransferComplete(transfer, null);
+                }
+                return;
+            }
+            dispatchProgress(transfer);
+            pump(outgoing);
+        }
+
+        @Override
+        public void onCancel(int transferId) {
+            Outgoing outgoing = mOutgoing.get(transferId);
+            if (outgoing != null && outgoing.transfer.getEndpointId().equals(mEndpointId)) {
+                failOutgoing(outgoing, "refused by peer", false);
+            }
+            Incoming incoming = incoming(mEndpointId, transferId);
+            if (incoming != null) {
+                failIncoming(incoming, "cancelled by peer", false);
+            }
+        }
+    }
+
+    private void start(Outgoing outgoing) {
+        mOutgoing.put(outgoing.transfer.getId(), outgoing);
+        // chunks follow the offer without waiting for an answer
+        if (offer(outgoing)) {
+            pump(outgoing);
+        }
+    }
+
+    private boolean offer(Outgoing outgoing) {
+        Transfer transfer = outgoing.transfer;
+        if (!mSender.send(transfer.getEndpointId(), TransferFraming.encodeOffer(transfer.getId(),
+                transfer.getTotalLength(), mChunkSize, transfer.getName(), outgoing.nonce))) {
+            pause(transfer, outgoing);
+            return false;
+        }
+        Chunk first = outgoing.unacked.peekFirst();
+        outgoing.nextSendIndex = first != null ? first.index : outgoing.nextReadIndex;
+        return true;
+    }
+
+    /**
+     * Send retained chunks the receiver has not seen, then read new ones while the window allows.
+     */
+    private void pump(Outgoing outgoing) {
+        Transfer transfer = outgoing.transfer;
+        for (Iterator<Chunk> it = outgoing.unacked.iterator(); it.hasNext(); ) {
+            Chunk chunk = it.next();
+            if (transfer.mState != Transfer.STATE_ACTIVE || outgoing.awaitingAck) {
+                return;
+            }
+            if (chunk.index >= outgoing.nextSendIndex) {
+                transmit(outgoing, chunk);
+            }
+        }
+        while (transfer.mState == Transfer.STATE_ACTIVE && !outgoing.awaitingAck
+                && !outgoing.endOfInput && outgoing.unacked.size() < mWindowChunks) {
+            Chunk chunk;
+            try {
+                chunk = read(outgoing);
+            } catch (IOException e) {
+                failOutgoing(outgoing, e.toString(), true);
+                return;
+            }
+            outgoing.unacked.addLast(chunk);
+            transmit(outgoing, chunk);
+        }
+    }
+
+    private void transmit(Outgoing outgoing, Chunk chunk) {
+        Transfer transfer = outgoing.transfer;
+        if (mSender.send(transfer.getEndpointId(), TransferFraming.encodeChunk(transfer.getId(),
+                chunk.index, chunk.last, chunk.data, 0, chunk.data.length))) {
+            outgoing.nextSendIndex = chunk.index + 1;
+        } else {
+            pause(transfer, outgoing);
+        }
+    }
+
+    private Chunk read(Outgoing outgoing) throws IOException {
+        byte[] buffer = new byte[mChunkSize];
+        int filled = 0;
+        if (outgoing.lookahead >= 0) {
+            buffer[filled++] = (byte) outgoing.lookahead;
+            outgoing.lookahead = -1;
+        }
+        int n;
+        while (filled < buffer.length && (n = outgoing.in.read(buffer, filled, buffer.length - filled)) > 0) {
+            filled += n;
+        }
+        // a full chunk is only the last one if the stream ends right after it
+        if (filled == buffer.length) {
+            outgoing.lookahead = outgoing.in.read();
+            outgoing.endOfInput = outgoing.lookahead < 0;
+        } else {
+            outgoing.endOfInput = true;
+            byte[] data = new byte[filled];
+            System.arraycopy(buffer, 0, data, 0, filled);
+            buffer = data;
+        }
+        return new Chunk(outgoing.nextReadIndex++, buffer, outgoing.endOfInput);
+    }
+
+    private void pause(Transfer transfer, Runnable timeout) {
+        if (transfer.mState == Transfer.STATE_ACTIVE) {
+            transfer.mState = Transfer.STATE_PAUSED;
+            mScheduler.schedule(timeout, mResumeTimeoutMillis);
+        }
+    }
+
+    private void failOutgoing(Outgoing outgoing, String reason, boolean notifyPeer) {
+        Transfer transfer = outgoing.transfer;
+        mOutgoing.remove(transfer.getId());
+        mScheduler.cancel(outgoing);
+        outgoing.unacked.clear();
+        closeQuietly(outgoing.in);
+        if (notifyPeer) {
+            mSender.send(transfer.getEndpointId(), TransferFraming.encodeCancel(transfer.getId()));
+        }
+        dispatchFailed(transfer, reason);
+    }
+
+    private void failIncoming(Incoming incoming, String reason, boolean notifyPeer) {
+        Transfer transfer = incoming.transfer;
+        removeIncoming(incoming);
+        mScheduler.cancel(incoming);
+        incoming.sink.abort();
+        if (notifyPeer) {
+            mSender.send(transfer.getEndpointId(), TransferFraming.encodeCancel(transfer.getId()));
+        }
+        dispatchFailed(transfer, reason);
+    }
+
+    private Incoming incoming(String endpointId, int transferId) {
+        HashMap<Integer, Incoming> byId = mIncoming.get(endpointId);
+        return byId != null ? byId.get(transferId) : null;
+    }
+
+    private static String completedKey(String endpointId, int transferId) {
+        return endpointId + '/' + transferId;
+    }
+
+    private void removeIncoming(Incoming incoming) {
+        Transfer transfer = incoming.transfer;
+        HashMap<Integer, Incoming> byId = mIncoming.get(transfer.getEndpointId());
+        if (byId != null) {
+            byId.remove(transfer.getId());
+            if (byId.isEmpty()) {
+                mIncoming.remove(transfer.getEndpointId());
+            }
+        }
+    }
+
+    private void dispatchProgress(Transfer transfer) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTransferProgress(transfer);
+        }
+    }
+
+    private void dispatchFailed(Transfer transfer, String reason) {
+        transfer.mState = Transfer.STATE_FAILED;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTransferFailed(transfer, reason);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // nothing left to read anyway
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, n);
+            return n;
+        }
+    }
+}
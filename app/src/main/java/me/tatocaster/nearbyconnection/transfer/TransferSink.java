@@ -0,0 +1,22 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+import java.io.IOException;
+
+/**
+ * Destination of an incoming transfer. Data arrives in order and exactly once, resumed transfers
+ * included, so a sink only ever appends.
+ */
+public interface TransferSink {
+
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * The last chunk has been written.
+     */
+    void finish() throws IOException;
+
+    /**
+     * The transfer failed or was cancelled; release resources and discard partial data.
+     */
+    void abort();
+}
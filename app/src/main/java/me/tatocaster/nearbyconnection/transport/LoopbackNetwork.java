@@ -0,0 +1,208 @@
+package me.tatocaster.nearbyconnection.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.util.Scheduler;
+
+/**
+ * In-process stand-in for the radio between devices: every {@link LoopbackTransport} created
+ * here is one virtual device, and they can advertise, discover, connect, message and pub/sub
+ * with each other with no phones involved.
+ * <p>
+ * Links are simulated with a fixed latency plus uniform jitter, a loss rate and a per-device
+ * send bandwidth shared by all of its links. A lost unreliable message is gone; a lost reliable
+ * message or control event is retransmitted one round trip later, and reliable traffic between
+ * two devices is never reordered. Everything runs on one {@link Scheduler}, which makes runs on a
+ * FakeScheduler deterministic for a given random seed; all transport calls must happen on the
+ * scheduler's thread.
+ */
+public final class LoopbackNetwork {
+
+    /**
+     * The Connections payload limits, enforced so load tests fail where phones would.
+     */
+    public static final int MAX_RELIABLE_MESSAGE_LEN = 4096;
+    public static final int MAX_UNRELIABLE_MESSAGE_LEN = 1168;
+
+    /**
+     * Bytes charged to the link for a control event such as a discovery or connection response.
+     */
+    static final int CONTROL_EVENT_BYTES = 64;
+
+    public static final class Builder {
+        private final Scheduler mScheduler;
+        private long mLatencyMillis = 10;
+        private long mJitterMillis;
+        private double mLossRate;
+        private long mBytesPerSecond;
+        private Random mRandom = new Random();
+
+        public Builder(Scheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        /**
+         * One-way delay of every delivery, plus up to {@code jitterMillis} more.
+         */
+        public Builder latency(long latencyMillis, long jitterMillis) {
+            mLatencyMillis = latencyMillis;
+            mJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Chance in [0, 1) that one transmission is lost.
+         */
+        public Builder lossRate(double lossRate) {
+            mLossRate = lossRate;
+            return this;
+        }
+
+        /**
+         * Send bandwidth of each device, 0 for unlimited.
+         */
+        public Builder bandwidth(long bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public Builder random(Random random) {
+            mRandom = random;
+            return this;
+        }
+
+        public LoopbackNetwork build() {
+            if (mLatencyMillis < 0 || mJitterMillis < 0 || mLossRate < 0 || mLossRate >= 1
+                    || mBytesPerSecond < 0) {
+                throw new IllegalArgumentException("bad link conditions");
+            }
+            return new LoopbackNetwork(this);
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final long mLatencyMillis;
+    private final long mJitterMillis;
+    private final double mLossRate;
+    private final long mBytesPerSecond;
+    private final Random mRandom;
+
+    private final List<LoopbackTransport> mTransports = new ArrayList<>();
+    private int mNextId;
+
+    private long mDelivered;
+    private long mDeliveredBytes;
+    private long mDropped;
+    private long mRetransmitted;
+
+    private LoopbackNetwork(Builder builder) {
+        mScheduler = builder.mScheduler;
+        mLatencyMillis = builder.mLatencyMillis;
+        mJitterMillis = builder.mJitterMillis;
+        mLossRate = builder.mLossRate;
+        mBytesPerSecond = builder.mBytesPerSecond;
+        mRandom = builder.mRandom;
+    }
+
+    /**
+     * Add a device.
+     *
+     * @param name      its advertised name when it does not pass one.
+     * @param serviceId the service id it advertises, as in its manifest.
+     */
+    public LoopbackTransport newTransport(String name, String serviceId) {
+        LoopbackTransport transport = new LoopbackTransport(this, "loop-" + mNextId++, name, serviceId);
+        mTransports.add(transport);
+        return transport;
+    }
+
+    public List<LoopbackTransport> getTransports() {
+        return Collections.unmodifiableList(mTransports);
+    }
+
+    /**
+     * Messages and events that arrived, not counting those their receiver no longer wanted.
+     */
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    public long getDeliveredBytes() {
+        return mDeliveredBytes;
+    }
+
+    /**
+     * Unreliable messages lost on the way.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getRetransmittedCount() {
+        return mRetransmitted;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackNetwork{devices=" + mTransports.size() + ", delivered=" + mDelivered
+                + ", bytes=" + mDeliveredBytes + ", dropped=" + mDropped
+                + ", retransmitted=" + mRetransmitted + "}";
+    }
+
+    Scheduler scheduler() {
+        return mScheduler;
+    }
+
+    LoopbackTransport find(String endpointId) {
+        for (int i = 0; i < mTransports.size(); i++) {
+            LoopbackTransport transport = mTransports.get(i);
+            if (transport.getEndpointId().equals(endpointId)) {
+                return transport;
+            }
+        }
+        return null;
+    }
+
+    void remove(LoopbackTransport transport) {
+        mTransports.remove(transport);
+    }
+
+    /**
+     * Run {@code delivery} on the scheduler once {@code bytes} sent by {@code from} would have
+     * reached {@code to}.
+     */
+    void send(LoopbackTransport from, LoopbackTransport to, int bytes, boolean reliable,
+              final Runnable delivery) {
+        long now = mScheduler.now();
+        long start = Math.max(now, from.mLinkFreeAtMillis);
+        long transmitMillis = mBytesPerSecond > 0 ? bytes * 1000L / mBytesPerSecond : 0;
+        from.mLinkFreeAtMillis = start + transmitMillis;
+        long arrival = start + transmitMillis + latency();
+        while (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+            if (!reliable) {
+                mDropped++;
+                return;
+            }
+            // noticed missing after a round trip, then sent again
+            mRetransmitted++;
+            arrival += 2 * mLatencyMillis + transmitMillis;
+        }
+        if (reliable) {
+            arrival = from.orderReliable(to.getEndpointId(), arrival);
+        }
+        final int length = bytes;
+        mScheduler.schedule(() -> {
+            mDelivered++;
+            mDeliveredBytes += length;
+            delivery.run();
+        }, arrival - now);
+    }
+
+    private long latency() {
+        return mJitterMillis > 0 ? mLatencyMillis + (long) (mRandom.nextDouble() * (mJitterMillis + 1))
+                : mLatencyMillis;
+    }
+}
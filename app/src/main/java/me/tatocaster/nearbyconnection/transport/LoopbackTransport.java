@@ -0,0 +1,458 @@
+package me.tatocaster.nearbyconnection.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One virtual device on a {@link LoopbackNetwork}. Behaves like the Play Services transport as
+ * far as the app can tell: results and remote events arrive asynchronously, requests need the
+ * other side to accept, messages to endpoints that are not connected are dropped, and a local
+ * disconnect does not call the local {@link MessageListener#onDisconnected}.
+ */
+public final class LoopbackTransport implements NearbyTransport {
+
+    private static final class OutgoingRequest {
+        final ConnectionResponseListener responseListener;
+        final MessageListener messageListener;
+
+        OutgoingRequest(ConnectionResponseListener responseListener, MessageListener messageListener) {
+            this.responseListener = responseListener;
+            this.messageListener = messageListener;
+        }
+    }
+
+    private static final class Publication {
+        final LoopbackTransport owner;
+        final byte[] content;
+        final Runnable expiry;
+
+        Publication(LoopbackTransport owner, byte[] content, Runnable expiry) {
+            this.owner = owner;
+            this.content = content;
+            this.expiry = expiry;
+        }
+    }
+
+    private static final class Subscription {
+        final SubscriptionListener listener;
+        final Runnable expiry;
+        // publications this subscriber has been told about
+        final Set<Publication> found = new HashSet<>();
+
+        Subscription(SubscriptionListener listener, Runnable expiry) {
+            this.listener = listener;
+            this.expiry = expiry;
+        }
+    }
+
+    private final LoopbackNetwork mNetwork;
+    private final String mEndpointId;
+    private final String mName;
+    private final String mServiceId;
+
+    private ConnectionRequestListener mAdvertiser;
+    private String mAdvertisedName;
+    private final Runnable mStopAdvertisingTask = this::stopAdvertising;
+    private EndpointDiscoveryListener mDiscoverer;
+    private String mDiscoveryServiceId;
+    private final Runnable mStopDiscoveryTask = () -> stopDiscovery(mDiscoveryServiceId);
+
+    private final Map<String, OutgoingRequest> mOutgoingRequests = new HashMap<>();
+    private final Set<String> mIncomingRequests = new HashSet<>();
+    private final Map<String, MessageListener> mConnections = new HashMap<>();
+
+    private final List<Publication> mPublications = new ArrayList<>();
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    // link state, maintained by the network
+    long mLinkFreeAtMillis;
+    private final Map<String, Long> mLastReliableArrival = new HashMap<>();
+
+    LoopbackTransport(LoopbackNetwork network, String endpointId, String name, String serviceId) {
+        mNetwork = network;
+        mEndpointId = endpointId;
+        mName = name;
+        mServiceId = serviceId;
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isConnectedTo(String endpointId) {
+        return mConnections.containsKey(endpointId);
+    }
+
+    public int getConnectedCount() {
+        return mConnections.size();
+    }
+
+    @Override
+    public void startAdvertising(String name, long timeoutMillis, ConnectionRequestListener listener,
+                                 ResultCallback callback) {
+        if (mAdvertiser != null) {
+            result(callback, STATUS_ALREADY_ADVERTISING);
+            return;
+        }
+        mAdvertiser = listener;
+        mAdvertisedName = name != null ? name : mName;
+        if (timeoutMillis > 0) {
+            mNetwork.scheduler().schedule(mStopAdvertisingTask, timeoutMillis);
+        }
+        result(callback, STATUS_OK);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            if (other.isDiscovering(mServiceId)) {
+                other.endpointFound(this);
+            }
+        }
+    }
+
+    @Override
+    public void stopAdvertising() {
+        if (mAdvertiser == null) {
+            return;
+        }
+        mAdvertiser = null;
+        mNetwork.scheduler().cancel(mStopAdvertisingTask);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            if (other.isDiscovering(mServiceId)) {
+                other.endpointLost(this);
+            }
+        }
+    }
+
+    @Override
+    public void startDiscovery(String serviceId, long timeoutMillis, EndpointDiscoveryListener listener,
+                               ResultCallback callback) {
+        if (mDiscoverer != null) {
+            result(callback, STATUS_ALREADY_DISCOVERING);
+            return;
+        }
+        mDiscoverer = listener;
+        mDiscoveryServiceId = serviceId;
+        if (timeoutMillis > 0) {
+            mNetwork.scheduler().schedule(mStopDiscoveryTask, timeoutMillis);
+        }
+        result(callback, STATUS_OK);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            if (other != this && other.mAdvertiser != null && serviceId.equals(other.mServiceId)) {
+                endpointFound(other);
+            }
+        }
+    }
+
+    @Override
+    public void stopDiscovery(String serviceId) {
+        if (mDiscoverer != null && mDiscoveryServiceId.equals(serviceId)) {
+            mDiscoverer = null;
+            mDiscoveryServiceId = null;
+            mNetwork.scheduler().cancel(mStopDiscoveryTask);
+        }
+    }
+
+    @Override
+    public void sendConnectionRequest(String name, final String endpointId, final byte[] payload,
+                                      final ConnectionResponseListener responseListener,
+                                      MessageListener messageListener) {
+        final LoopbackTransport target = mNetwork.find(endpointId);
+        if (target == null || target.mAdvertiser == null) {
+            mNetwork.scheduler().schedule(() ->
+                    responseListener.onConnectionResponse(endpointId, STATUS_ERROR, null), 0);
+            return;
+        }
+        if (mConnections.containsKey(endpointId)) {
+            mNetwork.scheduler().schedule(() -> responseListener.onConnectionResponse(endpointId,
+                    STATUS_ALREADY_CONNECTED_TO_ENDPOINT, null), 0);
+            return;
+        }
+        mOutgoingRequests.put(endpointId, new OutgoingRequest(responseListener, messageListener));
+        final String requesterName = name != null ? name : mName;
+        final byte[] copy = copyOf(payload);
+        mNetwork.send(this, target, controlBytes(copy), true, () -> {
+            if (target.mAdvertiser != null) {
+                target.mIncomingRequests.add(mEndpointId);
+                target.mAdvertiser.onConnectionRequest(mEndpointId, requesterName, copy);
+            } else {
+                target.respond(this, STATUS_ERROR, null);
+            }
+        });
+    }
+
+    @Override
+    public void acceptConnectionRequest(String endpointId, byte[] payload, MessageListener messageListener,
+                                        ResultCallback callback) {
+        LoopbackTransport requester = mNetwork.find(endpointId);
+        if (!mIncomingRequests.remove(endpointId) || requester == null) {
+            result(callback, STATUS_NOT_CONNECTED_TO_ENDPOINT);
+            return;
+        }
+        mConnections.put(endpointId, messageListener);
+        result(callback, STATUS_OK);
+        respond(requester, STATUS_OK, copyOf(payload));
+    }
+
+    @Override
+    public void rejectConnectionRequest(String endpointId) {
+        LoopbackTransport requester = mNetwork.find(endpointId);
+        if (mIncomingRequests.remove(endpointId) && requester != null) {
+            respond(requester, STATUS_CONNECTION_REJECTED, null);
+        }
+    }
+
+    @Override
+    public void sendReliableMessage(List<String> endpointIds, byte[] payload) {
+        send(endpointIds, payload, true);
+    }
+
+    @Override
+    public void sendUnreliableMessage(List<String> endpointIds, byte[] payload) {
+        send(endpointIds, payload, false);
+    }
+
+    @Override
+    public void disconnectFromEndpoint(String endpointId) {
+        if (mConnections.remove(endpointId) == null) {
+            return;
+        }
+        LoopbackTransport peer = mNetwork.find(endpointId);
+        if (peer != null) {
+            mNetwork.send(this, peer, LoopbackNetwork.CONTROL_EVENT_BYTES, true, () -> {
+                MessageListener listener = peer.mConnections.remove(mEndpointId);
+                if (listener != null) {
+                    listener.onDisconnected(mEndpointId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void publish(byte[] content, int ttlSeconds, PubSubCallback callback) {
+        final byte[] copy = copyOf(content);
+        final Publication[] self = new Publication[1];
+        Runnable expiry = () -> {
+            if (mPublications.contains(self[0])) {
+                withdraw(self[0]);
+                callback.onExpired();
+            }
+        };
+        Publication publication = new Publication(this, copy, expiry);
+        self[0] = publication;
+        mPublications.add(publication);
+        scheduleExpiry(expiry, ttlSeconds);
+        result(callback, STATUS_OK);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            if (other != this) {
+                for (Subscription subscription : other.mSubscriptions) {
+                    other.found(subscription, publication);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unpublish(byte[] content) {
+        for (int i = mPublications.size() - 1; i >= 0; i--) {
+            Publication publication = mPublications.get(i);
+            if (Arrays.equals(publication.content, content)) {
+                withdraw(publication);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(SubscriptionListener listener, int ttlSeconds, PubSubCallback callback) {
+        if (findSubscription(listener) != null) {
+            result(callback, STATUS_OK);
+            return;
+        }
+        final Subscription[] self = new Subscription[1];
+        Runnable expiry = () -> {
+            if (mSubscriptions.remove(self[0])) {
+                callback.onExpired();
+            }
+        };
+        Subscription subscription = new Subscription(listener, expiry);
+        self[0] = subscription;
+        mSubscriptions.add(subscription);
+        scheduleExpiry(expiry, ttlSeconds);
+        result(callback, STATUS_OK);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            if (other != this) {
+                for (Publication publication : other.mPublications) {
+                    found(subscription, publication);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unsubscribe(SubscriptionListener listener) {
+        Subscription subscription = findSubscription(listener);
+        if (subscription != null) {
+            mSubscriptions.remove(subscription);
+            mNetwork.scheduler().cancel(subscription.expiry);
+        }
+    }
+
+    /**
+     * Take the device off the network, as if it was switched off: peers see it disconnect,
+     * discoverers lose it and subscribers lose its messages.
+     */
+    public void close() {
+        stopAdvertising();
+        stopDiscovery(mDiscoveryServiceId);
+        for (String endpointId : new ArrayList<>(mConnections.keySet())) {
+            disconnectFromEndpoint(endpointId);
+        }
+        for (int i = mPublications.size() - 1; i >= 0; i--) {
+            withdraw(mPublications.get(i));
+        }
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            unsubscribe(mSubscriptions.get(i).listener);
+        }
+        mOutgoingRequests.clear();
+        mIncomingRequests.clear();
+        mNetwork.remove(this);
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackTransport{" + mEndpointId + ", " + mName + ", connections=" + mConnections.size() + "}";
+    }
+
+    long orderReliable(String toEndpointId, long arrivalMillis) {
+        Long last = mLastReliableArrival.get(toEndpointId);
+        if (last != null && last > arrivalMillis) {
+            arrivalMillis = last;
+        }
+        mLastReliableArrival.put(toEndpointId, arrivalMillis);
+        return arrivalMillis;
+    }
+
+    private boolean isDiscovering(String serviceId) {
+        return mDiscoverer != null && mDiscoveryServiceId.equals(serviceId);
+    }
+
+    private void endpointFound(final LoopbackTransport advertiser) {
+        final EndpointDiscoveryListener listener = mDiscoverer;
+        final String serviceId = mDiscoveryServiceId;
+        final String name = advertiser.mAdvertisedName;
+        mNetwork.send(advertiser, this, LoopbackNetwork.CONTROL_EVENT_BYTES, true, () -> {
+            if (mDiscoverer == listener) {
+                listener.onEndpointFound(advertiser.mEndpointId, serviceId, name);
+            }
+        });
+    }
+
+    private void endpointLost(final LoopbackTransport advertiser) {
+        final EndpointDiscoveryListener listener = mDiscoverer;
+        mNetwork.send(advertiser, this, LoopbackNetwork.CONTROL_EVENT_BYTES, true, () -> {
+            if (mDiscoverer == listener) {
+                listener.onEndpointLost(advertiser.mEndpointId);
+            }
+        });
+    }
+
+    /**
+     * Answer {@code requester}'s connection request.
+     */
+    private void respond(final LoopbackTransport requester, final int statusCode, final byte[] payload) {
+        mNetwork.send(this, requester, controlBytes(payload), true, () -> {
+            OutgoingRequest request = requester.mOutgoingRequests.remove(mEndpointId);
+            if (request == null) {
+                return;
+            }
+            if (statusCode == STATUS_OK) {
+                requester.mConnections.put(mEndpointId, request.messageListener);
+            }
+            request.responseListener.onConnectionResponse(mEndpointId, statusCode, payload);
+        });
+    }
+
+    private void send(List<String> endpointIds, byte[] payload, final boolean reliable) {
+        int limit = reliable ? LoopbackNetwork.MAX_RELIABLE_MESSAGE_LEN : LoopbackNetwork.MAX_UNRELIABLE_MESSAGE_LEN;
+        if (payload.length > limit) {
+            throw new IllegalArgumentException("payload of " + payload.length + " bytes exceeds " + limit);
+        }
+        final byte[] copy = copyOf(payload);
+        for (int i = 0; i < endpointIds.size(); i++) {
+            if (!mConnections.containsKey(endpointIds.get(i))) {
+                continue;
+            }
+            final LoopbackTransport peer = mNetwork.find(endpointIds.get(i));
+            if (peer == null) {
+                continue;
+            }
+            mNetwork.send(this, peer, copy.length, reliable, () -> {
+                MessageListener listener = peer.mConnections.get(mEndpointId);
+                if (listener != null) {
+                    listener.onMessageReceived(mEndpointId, copy, reliable);
+                }
+            });
+        }
+    }
+
+    private void found(final Subscription subscription, final Publication publication) {
+        mNetwork.send(publication.owner, this, controlBytes(publication.content), true, () -> {
+            if (mSubscriptions.contains(subscription) && publication.owner.mPublications.contains(publication)
+                    && subscription.found.add(publication)) {
+                subscription.listener.onFound(publication.content);
+            }
+        });
+    }
+
+    private void withdraw(final Publication publication) {
+        mPublications.remove(publication);
+        mNetwork.scheduler().cancel(publication.expiry);
+        for (LoopbackTransport other : mNetwork.getTransports()) {
+            for (final Subscription subscription : other.mSubscriptions) {
+                if (!subscription.found.contains(publication)) {
+                    continue;
+                }
+                mNetwork.send(this, other, LoopbackNetwork.CONTROL_EVENT_BYTES, true, () -> {
+                    if (subscription.found.remove(publication)) {
+                        subscription.listener.onLost(publication.content);
+                    }
+                });
+            }
+        }
+    }
+
+    private Subscription findSubscription(SubscriptionListener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.listener == listener) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleExpiry(Runnable expiry, int ttlSeconds) {
+        if (ttlSeconds > 0 && ttlSeconds != Integer.MAX_VALUE) {
+            mNetwork.scheduler().schedule(expiry, ttlSeconds * 1000L);
+        }
+    }
+
+    private void result(final ResultCallback callback, final int statusCode) {
+        if (callback != null) {
+            mNetwork.scheduler().schedule(() -> callback.onResult(statusCode), 0);
+        }
+    }
+
+    private static int controlBytes(byte[] payload) {
+        return LoopbackNetwork.CONTROL_EVENT_BYTES + (payload != null ? payload.length : 0);
+    }
+
+    private static byte[] copyOf(byte[] payload) {
+        return payload != null ? payload.clone() : null;
+    }
+}
@@ -0,0 +1,105 @@
+package me.tatocaster.nearbyconnection.transport;
+
+import java.util.List;
+
+/**
+ * The Nearby Connections and Nearby Messages calls the app makes, so the same activity code can
+ * run against Play Services on a phone or a {@link LoopbackNetwork} on a plain JVM.
+ * <p>
+ * Methods mirror {@code Nearby.Connections} and {@code Nearby.Messages} with the client argument
+ * bound. Results are reported as Nearby status codes; the constants below are the ones the app
+ * looks at and have the values of {@code ConnectionsStatusCodes}.
+ */
+public interface NearbyTransport {
+
+    int STATUS_OK = 0;
+    int STATUS_ERROR = 13;
+    int STATUS_NETWORK_NOT_CONNECTED = 8000;
+    int STATUS_ALREADY_ADVERTISING = 8001;
+    int STATUS_ALREADY_DISCOVERING = 8002;
+    int STATUS_ALREADY_CONNECTED_TO_ENDPOINT = 8003;
+    int STATUS_CONNECTION_REJECTED = 8004;
+    int STATUS_NOT_CONNECTED_TO_ENDPOINT = 8005;
+
+    interface ResultCallback {
+        void onResult(int statusCode);
+    }
+
+    interface ConnectionRequestListener {
+        void onConnectionRequest(String endpointId, String endpointName, byte[] payload);
+    }
+
+    interface EndpointDiscoveryListener {
+        void onEndpointFound(String endpointId, String serviceId, String endpointName);
+
+        void onEndpointLost(String endpointId);
+    }
+
+    interface ConnectionResponseListener {
+        void onConnectionResponse(String endpointId, int statusCode, byte[] payload);
+    }
+
+    interface MessageListener {
+        void onMessageReceived(String endpointId, byte[] payload, boolean reliable);
+
+        void onDisconnected(String endpointId);
+    }
+
+    /**
+     * Result of a publish or subscribe, and the end of its time to live.
+     */
+    interface PubSubCallback extends ResultCallback {
+        void onExpired();
+    }
+
+    interface SubscriptionListener {
+        void onFound(byte[] content);
+
+        void onLost(byte[] content);
+    }
+
+    /**
+     * @param name          shown to discoverers, null for a default based on the device.
+     * @param timeoutMillis 0 to advertise until stopped.
+     */
+    void startAdvertising(String name, long timeoutMillis, ConnectionRequestListener listener,
+                          ResultCallback callback);
+
+    void stopAdvertising();
+
+    /**
+     * @param timeoutMillis 0 to discover until stopped.
+     */
+    void startDiscovery(String serviceId, long timeoutMillis, EndpointDiscoveryListener listener,
+                        ResultCallback callback);
+
+    void stopDiscovery(String serviceId);
+
+    void sendConnectionRequest(String name, String endpointId, byte[] payload,
+                               ConnectionResponseListener responseListener, MessageListener messageListener);
+
+    void acceptConnectionRequest(String endpointId, byte[] payload, MessageListener messageListener,
+                                 ResultCallback callback);
+
+    void rejectConnectionRequest(String endpointId);
+
+    /**
+     * Endpoints in {@code endpointIds} that are not connected are skipped.
+     */
+    void sendReliableMessage(List<String> endpointIds, byte[] payload);
+
+    void sendUnreliableMessage(List<String> endpointIds, byte[] payload);
+
+    void disconnectFromEndpoint(String endpointId);
+
+    /**
+     * Publish {@code content} to nearby subscribers for {@code ttlSeconds}.
+     */
+    void publish(byte[] content, int ttlSeconds, PubSubCallback callback);
+
+    void unpublish(byte[] content);
+
+    void subscribe(SubscriptionListener listener, int ttlSeconds, PubSubCallback callback);
+
+    void unsubscribe(SubscriptionListener listener);
+}
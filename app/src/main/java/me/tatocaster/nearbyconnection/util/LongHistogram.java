@@ -0,0 +1,116 @@
+package me.tatocaster.nearbyconnection.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs with log-linear buckets, in the manner of
+ * HdrHistogram: values below 8 have a bucket each, and every power of two above is split into
+ * 8 equal buckets. Quantiles are reported as the upper bound of their bucket, so they are
+ * accurate to within 12.5% at any magnitude, in a fixed 4 KB.
+ */
+public final class LongHistogram {
+
+    /**
+     * Buckets per power of two, and its log.
+     */
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    public double mean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param quantile in [0, 1], e.g. 0.99.
+     * @return the upper bound of the bucket holding the quantile, capped at {@link #max()}.
+     */
+    public long quantile(double quantile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Number of recorded values in the bucket holding {@code value}.
+     */
+    public long countAt(long value) {
+        return mCounts.get(bucketOf(Math.max(0, value)));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "{n=" + count() + ", mean=" + Math.round(mean()) + ", p50=" + quantile(0.5)
+                + ", p99=" + quantile(0.99) + ", max=" + max() + "}";
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,20 @@
+package me.tatocaster.nearbyconnection.util;
+
+/**
+ * Runs work after a delay on a single thread, the way {@link android.os.Handler} does. Keeps the
+ * pipelines that only need timers free of Android classes so they can run in JVM tests.
+ */
+public interface Scheduler {
+
+    /**
+     * Current time in milliseconds on the clock used for delays.
+     */
+    long now();
+
+    void schedule(Runnable task, long delayMillis);
+
+    /**
+     * Remove pending runs of {@code task}. No-op if it is not scheduled.
+     */
+    void cancel(Runnable task);
+}
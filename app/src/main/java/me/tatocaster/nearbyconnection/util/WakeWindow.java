@@ -0,0 +1,104 @@
+package me.tatocaster.nearbyconnection.util;
+
+/**
+ * Holds a wake lock only while work is coming in, batching bursts into one hold.
+ * <p>
+ * {@link #touch()} takes the lock if it is not held and keeps it for {@code windowMillis} after
+ * the last touch. A burst of messages is one acquire and one release instead of one per message,
+ * and the CPU may sleep as soon as the burst has been processed. Touching costs a lock and a
+ * field write while the window is open; the release timer is only rescheduled when it fires.
+ * Safe to call from any thread; the release runs on the scheduler's thread.
+ */
+public final class WakeWindow {
+
+    /**
+     * The wake lock, e.g. a partial {@code PowerManager.WakeLock}.
+     */
+    public interface Lock {
+        void acquire();
+
+        void release();
+    }
+
+    private final Lock mLock;
+    private final Scheduler mScheduler;
+    private final long mWindowMillis;
+    private final Runnable mReleaseTask = this::onWindowEnd;
+
+    private boolean mHeld;
+    private long mHeldSinceMillis;
+    private long mLastTouchMillis;
+    private long mAcquisitions;
+    private long mTouches;
+    private long mHeldMillis;
+
+    public WakeWindow(Lock lock, Scheduler scheduler, long windowMillis) {
+        mLock = lock;
+        mScheduler = scheduler;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Work arrived; keep the CPU up for one more window.
+     */
+    public synchronized void touch() {
+        mTouches++;
+        mLastTouchMillis = mScheduler.now();
+        if (!mHeld) {
+            mHeld = true;
+            mHeldSinceMillis = mLastTouchMillis;
+            mAcquisitions++;
+            mLock.acquire();
+            mScheduler.schedule(mReleaseTask, mWindowMillis);
+        }
+    }
+
+    /**
+     * Release right away, e.g. when the session closes.
+     */
+    public synchronized void releaseNow() {
+        if (mHeld) {
+            mScheduler.cancel(mReleaseTask);
+            release();
+        }
+    }
+
+    public synchronized boolean isHeld() {
+        return mHeld;
+    }
+
+    /**
+     * Total time the lock was held, open window excluded.
+     */
+    public synchronized long getHeldMillis() {
+        return mHeldMillis;
+    }
+
+    public synchronized long getAcquisitions() {
+        return mAcquisitions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WakeWindow{held=" + mHeld + ", acquisitions=" + mAcquisitions + ", touches=" + mTouches
+                + ", heldMs=" + mHeldMillis + "}";
+    }
+
+    private synchronized void onWindowEnd() {
+        if (!mHeld) {
+            return;
+        }
+        long remaining = mLastTouchMillis + mWindowMillis - mScheduler.now();
+        if (remaining > 0) {
+            mScheduler.schedule(mReleaseTask, remaining);
+        } else {
+            release();
+        }
+    }
+
+    private void release() {
+        mHeld = false;
+        mHeldMillis += mScheduler.now() - mHeldSinceMillis;
+        mLock.release();
+    }
+}
@@ -0,0 +1,87 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Several application messages packed into one Connections payload.
+ * <pre>
+ *   magic    1 byte   0xBA, a UTF-8 continuation byte, so no text message starts with it
+ *   version  1 byte
+ *   count    varint
+ *   count x (varint length + bytes)
+ * </pre>
+ */
+public final class BatchFraming {
+
+    public interface MessageHandler {
+        /**
+         * Called once per message, in order. The region is a view into the batch payload and is
+         * only valid during the call.
+         */
+        void onMessage(byte[] buffer, int offset, int length);
+    }
+
+    static final int MAGIC = 0xBA;
+    static final int VERSION_1 = 1;
+
+    /**
+     * magic + version + the largest count varint.
+     */
+    public static final int MAX_HEADER_LENGTH = 2 + Varint.MAX_LENGTH;
+
+    private BatchFraming() {
+    }
+
+    /**
+     * Bytes one message adds to a batch.
+     */
+    public static int framedLength(int messageLength) {
+        return Varint.sizeOf(messageLength) + messageLength;
+    }
+
+    public static boolean isBatch(byte[] payload) {
+        return payload.length >= 2 && (payload[0] & 0xFF) == MAGIC;
+    }
+
+    /**
+     * Pack {@code count} messages from {@code messages}, starting at {@code from}.
+     *
+     * @param framedBytes sum of {@link #framedLength(int)} over those messages.
+     */
+    public static byte[] encode(byte[][] messages, int from, int count, int framedBytes) {
+        byte[] out = new byte[2 + Varint.sizeOf(count) + framedBytes];
+        int p = 0;
+        out[p++] = (byte) MAGIC;
+        out[p++] = (byte) VERSION_1;
+        p = Varint.write(count, out, p);
+        for (int i = from; i < from + count; i++) {
+            byte[] message = messages[i];
+            p = Varint.write(message.length, out, p);
+            System.arraycopy(message, 0, out, p, message.length);
+            p += message.length;
+        }
+        return out;
+    }
+
+    /**
+     * Hand every message in {@code payload} to {@code handler}, without copying.
+     *
+     * @return the number of messages.
+     * @throws IllegalArgumentException if the batch is malformed.
+     */
+    public static int decode(byte[] payload, MessageHandler handler) {
+        WireReader reader = new WireReader(payload);
+        if (reader.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a message batch");
+        }
+        int version = reader.readByte();
+        if (version != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported batch version: " + version);
+        }
+        int count = reader.readVarint();
+        for (int i = 0; i < count; i++) {
+            int length = reader.readVarint();
+            int offset = reader.skip(length);
+            handler.onMessage(payload, offset, length);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,72 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Header that tags an application message with its channel.
+ * <pre>
+ *   magic     1 byte   0xC1, or 0xC2 if the payload is compressed; never valid in UTF-8, so plain
+ *                      text messages are told apart
+ *   channel   varint
+ *   sequence  varint   per-channel send counter, lets latest-value receivers drop stale updates
+ *   payload   the rest, behind a {@link CompressedFraming} header if compressed
+ * </pre>
+ * Only peers that listed a compression method in their {@link ConnectionHandshake} are sent
+ * 0xC2; older builds would take it for plain text.
+ */
+public final class ChannelFraming {
+
+    public interface MessageHandler {
+        /**
+         * The payload region is a view into the received buffer, only valid during the call.
+         */
+        void onMessage(int channel, int sequence, byte[] buffer, int offset, int length);
+    }
+
+    static final int MAGIC = 0xC1;
+    static final int MAGIC_COMPRESSED = 0xC2;
+
+    private ChannelFraming() {
+    }
+
+    public static boolean isChannelMessage(byte[] buffer, int offset, int length) {
+        return length >= 3 && ((buffer[offset] & 0xFF) == MAGIC || isCompressed(buffer, offset));
+    }
+
+    /**
+     * Whether the payload of a channel message is compressed.
+     */
+    public static boolean isCompressed(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) == MAGIC_COMPRESSED;
+    }
+
+    public static byte[] encode(int channel, int sequence, byte[] payload) {
+        return encode(channel, sequence, payload, false);
+    }
+
+    /**
+     * @param compressed whether {@code payload} starts with a {@link CompressedFraming} header.
+     */
+    public static byte[] encode(int channel, int sequence, byte[] payload, boolean compressed) {
+        byte[] out = new byte[1 + Varint.sizeOf(channel) + Varint.sizeOf(sequence) + payload.length];
+        int p = 0;
+        out[p++] = (byte) (compressed ? MAGIC_COMPRESSED : MAGIC);
+        p = Varint.write(channel, out, p);
+        p = Varint.write(sequence, out, p);
+        System.arraycopy(payload, 0, out, p, payload.length);
+        return out;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the header is malformed.
+     */
+    public static void decode(byte[] buffer, int offset, int length, MessageHandler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int magic = reader.readByte();
+        if (magic != MAGIC && magic != MAGIC_COMPRESSED) {
+            throw new IllegalArgumentException("Not a channel message");
+        }
+        int channel = reader.readVarint();
+        int sequence = reader.readVarint();
+        int start = reader.position();
+        handler.onMessage(channel, sequence, buffer, start, reader.remaining());
+    }
+}
@@ -0,0 +1,65 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Header of a compressed channel payload.
+ * <pre>
+ *   method      1 byte    {@link #METHOD_DEFLATE} or {@link #METHOD_LZ4}
+ *   dictionary  4 bytes   Adler-32 of the preset dictionary, 0 if none
+ *   length      varint    uncompressed length
+ *   data        the rest, a raw DEFLATE stream or an {@link Lz4Block}
+ * </pre>
+ * Peers list the methods they decode in the {@link ConnectionHandshake} as a bit mask of
+ * {@code 1 << method}.
+ */
+public final class CompressedFraming {
+
+    public interface Handler {
+        /**
+         * The data region is a view into the received buffer, only valid during the call.
+         */
+        void onCompressed(int method, int dictionaryId, int length, byte[] buffer, int offset, int dataLength);
+    }
+
+    public static final int METHOD_DEFLATE = 1;
+    public static final int METHOD_LZ4 = 2;
+
+    private CompressedFraming() {
+    }
+
+    public static int codecBit(int method) {
+        return 1 << method;
+    }
+
+    public static int headerLength(int length) {
+        return 5 + Varint.sizeOf(length);
+    }
+
+    /**
+     * @return the offset of the data, right after the header.
+     */
+    public static int writeHeader(int method, int dictionaryId, int length, byte[] out, int offset) {
+        int p = offset;
+        out[p++] = (byte) method;
+        out[p++] = (byte) (dictionaryId >>> 24);
+        out[p++] = (byte) (dictionaryId >>> 16);
+        out[p++] = (byte) (dictionaryId >>> 8);
+        out[p++] = (byte) dictionaryId;
+        return Varint.write(length, out, p);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the header is malformed or the method unknown.
+     */
+    public static void decode(byte[] buffer, int offset, int length, Handler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int method = reader.readByte();
+        if (method != METHOD_DEFLATE && method != METHOD_LZ4) {
+            throw new IllegalArgumentException("Unknown compression method " + method);
+        }
+        int dictionaryId = reader.readByte() << 24 | reader.readByte() << 16
+                | reader.readByte() << 8 | reader.readByte();
+        int uncompressedLength = reader.readVarint();
+        int start = reader.position();
+        handler.onCompressed(method, dictionaryId, uncompressedLength, buffer, start, reader.remaining());
+    }
+}
@@ -0,0 +1,150 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Payload of a connection request, so the advertiser can admit the requester without asking.
+ * <pre>
+ *   magic           1 byte   0xC0, never valid in UTF-8
+ *   version         1 byte
+ *   appIdentifier   varint length + UTF-8, the requester's package name
+ *   token           varint length + bytes, empty if the requester has none
+ *   codecs          varint   bit mask of the {@link CompressedFraming} methods the sender decodes
+ *   dictionaries    varint count, then 4 bytes each: Adler-32 of every preset dictionary it has
+ *   deviceId        varint length + UTF-8, the sender's install id, stable across sessions;
+ *                   left out when there is none
+ * </pre>
+ * Older builds send no payload at all, or stop after the token; version 1 readers ignore the
+ * trailing fields, so they were added without a new version; readers take missing ones as
+ * empty. A version this build does not know is treated like no handshake at all, so a newer
+ * peer is left to the user rather than turned away. The advertiser answers with its
+ * own handshake in the accept payload, so both sides learn what the other decodes.
+ */
+public final class ConnectionHandshake {
+
+    static final int MAGIC = 0xC0;
+    static final int VERSION_1 = 1;
+
+    private final String mAppIdentifier;
+    private final byte[] mToken;
+    private final int mCodecs;
+    private final int[] mDictionaryIds;
+    private final String mDeviceId;
+
+    public ConnectionHandshake(String appIdentifier, byte[] token) {
+        this(appIdentifier, token, 0, null, "");
+    }
+
+    /**
+     * @param codecs        bit mask of {@link CompressedFraming#codecBit} for each method decoded.
+     * @param dictionaryIds Adler-32 of each preset dictionary, may be null.
+     * @param deviceId      the install id, unlike the endpoint id the same in every session.
+     */
+    public ConnectionHandshake(String appIdentifier, byte[] token, int codecs, int[] dictionaryIds,
+                               String deviceId) {
+        mAppIdentifier = appIdentifier;
+        mToken = token != null ? token : new byte[0];
+        mCodecs = codecs;
+        mDictionaryIds = dictionaryIds != null ? dictionaryIds : new int[0];
+        mDeviceId = deviceId != null ? deviceId : "";
+    }
+
+    public String getAppIdentifier() {
+        return mAppIdentifier;
+    }
+
+    /**
+     * The token as sent; do not modify.
+     */
+    public byte[] getToken() {
+        return mToken;
+    }
+
+    /**
+     * The compression methods the sender decodes, 0 for older builds.
+     */
+    public int getCodecs() {
+        return mCodecs;
+    }
+
+    /**
+     * The preset dictionaries the sender has; do not modify.
+     */
+    public int[] getDictionaryIds() {
+        return mDictionaryIds;
+    }
+
+    /**
+     * The sender's install id, empty for older builds.
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public byte[] encode() {
+        int appLength = Utf8.encodedLength(mAppIdentifier);
+        int deviceIdLength = Utf8.encodedLength(mDeviceId);
+        byte[] out = new byte[2 + Varint.sizeOf(appLength) + appLength
+                + Varint.sizeOf(mToken.length) + mToken.length
+                + Varint.sizeOf(mCodecs) + Varint.sizeOf(mDictionaryIds.length) + 4 * mDictionaryIds.length
+                + (deviceIdLength > 0 ? Varint.sizeOf(deviceIdLength) + deviceIdLength : 0)];
+        int p = 0;
+        out[p++] = (byte) MAGIC;
+        out[p++] = (byte) VERSION_1;
+        p = Varint.write(appLength, out, p);
+        p = Utf8.encode(mAppIdentifier, out, p);
+        p = Varint.write(mToken.length, out, p);
+        System.arraycopy(mToken, 0, out, p, mToken.length);
+        p += mToken.length;
+        p = Varint.write(mCodecs, out, p);
+        p = Varint.write(mDictionaryIds.length, out, p);
+        for (int dictionaryId : mDictionaryIds) {
+            out[p++] = (byte) (dictionaryId >>> 24);
+            out[p++] = (byte) (dictionaryId >>> 16);
+            out[p++] = (byte) (dictionaryId >>> 8);
+            out[p++] = (byte) dictionaryId;
+        }
+        if (deviceIdLength > 0) {
+            p = Varint.write(deviceIdLength, out, p);
+            Utf8.encode(mDeviceId, out, p);
+        }
+        return out;
+    }
+
+    /**
+     * @return the handshake, or null if {@code payload} is not one, e.g. from an older build, or
+     * is of a version this build cannot read.
+     * @throws IllegalArgumentException if it is a version 1 handshake but malformed.
+     */
+    public static ConnectionHandshake decode(byte[] payload) {
+        if (payload == null || payload.length < 2 || (payload[0] & 0xFF) != MAGIC) {
+            return null;
+        }
+        WireReader reader = new WireReader(payload);
+        reader.readByte();
+        int version = reader.readByte();
+        if (version != VERSION_1) {
+            // a newer build; its layout is unknown, so none of it can be trusted
+            return null;
+        }
+        String appIdentifier = reader.readString();
+        int tokenLength = reader.readVarint();
+        // checked against the payload before allocating
+        int tokenOffset = reader.skip(tokenLength);
+        byte[] token = new byte[tokenLength];
+        System.arraycopy(payload, tokenOffset, token, 0, tokenLength);
+        if (reader.remaining() == 0) {
+            return new ConnectionHandshake(appIdentifier, token);
+        }
+        int codecs = reader.readVarint();
+        int count = reader.readVarint();
+        if (count > reader.remaining() / 4) {
+            throw new IllegalArgumentException("Truncated dictionary list: " + count);
+        }
+        int[] dictionaryIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            dictionaryIds[i] = reader.readByte() << 24 | reader.readByte() << 16
+                    | reader.readByte() << 8 | reader.readByte();
+        }
+        String deviceId = reader.remaining() > 0 ? reader.readString() : "";
+        return new ConnectionHandshake(appIdentifier, token, codecs, dictionaryIds, deviceId);
+    }
+}
@@ -0,0 +1,198 @@
+package me.tatocaster.nearbyconnection.wire;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Binary wire format for the payload published through Nearby Messages.
+ * <p>
+ * Version 1 layout:
+ * <pre>
+ *   magic    1 byte   0xDB, never the first byte of a JSON document
+ *   version  1 byte
+ *   flags    1 byte   bit 0 set: the UUID is stored as 16 raw bytes
+ *   uuid     16 bytes (raw) or varint length + UTF-8 (any other instance id)
+ *   body     varint length + UTF-8
+ * </pre>
+ * Payloads starting with '{' are the Gson JSON published by older builds and are still decoded,
+ * so peers running the old app keep showing up. Those builds cannot read anything else and do
+ * not survive trying, so the app keeps publishing {@link #encodeLegacy} until they are gone and
+ * reads both forms meanwhile.
+ */
+public final class DeviceMessageCodec {
+
+    /**
+     * Builds the decoded value, so the codec does not depend on the Nearby {@code Message} type.
+     */
+    public interface Factory<T> {
+        T create(String uuid, String messageBody);
+    }
+
+    static final int MAGIC = 0xDB;
+    static final int VERSION_1 = 1;
+
+    private static final int FLAG_RAW_UUID = 1;
+    private static final int HEADER_LENGTH = 3;
+    private static final int UUID_STRING_LENGTH = 36;
+    private static final int UUID_BYTES = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Gson gson = new Gson();
+
+    private DeviceMessageCodec() {
+    }
+
+    public static byte[] encode(String uuid, String messageBody) {
+        boolean rawUuid = isCanonicalUuid(uuid);
+        int uuidLength = rawUuid ? UUID_BYTES : Utf8.encodedLength(uuid);
+        int bodyLength = Utf8.encodedLength(messageBody);
+
+        int size = HEADER_LENGTH
+                + (rawUuid ? UUID_BYTES : Varint.sizeOf(uuidLength) + uuidLength)
+                + Varint.sizeOf(bodyLength) + bodyLength;
+        byte[] out = new byte[size];
+
+        int p = 0;
+        out[p++] = (byte) MAGIC;
+        out[p++] = (byte) VERSION_1;
+        out[p++] = (byte) (rawUuid ? FLAG_RAW_UUID : 0);
+        if (rawUuid) {
+            p = writeUuid(uuid, out, p);
+        } else {
+            p = Varint.write(uuidLength, out, p);
+            p = Utf8.encode(uuid, out, p);
+        }
+        p = Varint.write(bodyLength, out, p);
+        Utf8.encode(messageBody, out, p);
+        return out;
+    }
+
+    /**
+     * Decode either a binary or a legacy JSON payload.
+     *
+     * @throws IllegalArgumentException if the payload is neither.
+     */
+    public static <T> T decode(byte[] content, Factory<T> factory) {
+        int first = firstNonWhitespace(content);
+        if (first < 0) {
+            throw new IllegalArgumentException("Empty DeviceMessage payload");
+        }
+        if (content[first] == '{') {
+            return decodeLegacy(content, factory);
+        }
+
+        WireReader reader = new WireReader(content);
+        if (reader.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a DeviceMessage payload");
+        }
+        int version = reader.readByte();
+        if (version != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported DeviceMessage version: " + version);
+        }
+        int flags = reader.readByte();
+        String uuid;
+        if ((flags & FLAG_RAW_UUID) != 0) {
+            uuid = readUuid(content, reader.skip(UUID_BYTES));
+        } else {
+            uuid = reader.readString();
+        }
+        return factory.create(uuid, reader.readString());
+    }
+
+    /**
+     * The JSON document older builds published and read, see the class comment.
+     */
+    public static String encodeLegacy(String uuid, String messageBody) {
+        return gson.toJson(new LegacyDeviceMessage(uuid, messageBody));
+    }
+
+    private static <T> T decodeLegacy(byte[] content, Factory<T> factory) {
+        LegacyDeviceMessage legacy;
+        try {
+            legacy = gson.fromJson(Utf8.decode(content, 0, content.length).trim(),
+                    LegacyDeviceMessage.class);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Malformed legacy DeviceMessage payload", e);
+        }
+        if (legacy == null) {
+            throw new IllegalArgumentException("Empty legacy DeviceMessage payload");
+        }
+        return factory.create(legacy.mUUID, legacy.mMessageBody);
+    }
+
+    private static int firstNonWhitespace(byte[] content) {
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * True for the lower- or upper-case 8-4-4-4-12 form produced by {@link java.util.UUID}.
+     * Upper case is accepted but decodes as lower case.
+     */
+    static boolean isCanonicalUuid(String s) {
+        if (s.length() != UUID_STRING_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UUID_STRING_LENGTH; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int writeUuid(String uuid, byte[] dst, int offset) {
+        int nibble = 0;
+        int value = 0;
+        for (int i = 0; i < UUID_STRING_LENGTH; i++) {
+            char c = uuid.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            value = (value << 4) | Character.digit(c, 16);
+            if ((++nibble & 1) == 0) {
+                dst[offset++] = (byte) value;
+                value = 0;
+            }
+        }
+        return offset;
+    }
+
+    private static String readUuid(byte[] src, int offset) {
+        char[] chars = new char[UUID_STRING_LENGTH];
+        int c = 0;
+        for (int i = 0; i < UUID_BYTES; i++) {
+            if (i == 4 || i == 6 || i == 8 || i == 10) {
+                chars[c++] = '-';
+            }
+            int b = src[offset + i] & 0xFF;
+            chars[c++] = HEX[b >>> 4];
+            chars[c++] = HEX[b & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Mirrors the field names Gson used when it serialized {@code DeviceMessage} directly.
+     */
+    private static final class LegacyDeviceMessage {
+        private final String mUUID;
+        private final String mMessageBody;
+
+        LegacyDeviceMessage(String uuid, String messageBody) {
+            mUUID = uuid;
+            mMessageBody = messageBody;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Ping and echo frames of the link probe. The pinging side keeps the send time of each
+ * sequence number, so round trips are measured on one clock and the frames stay a few bytes.
+ * <pre>
+ *   PING  type 1, sequence varint
+ *   ECHO  type 2, sequence varint (copied from the ping)
+ * </pre>
+ */
+public final class LinkProbeFraming {
+
+    public interface Handler {
+        void onPing(int sequence);
+
+        void onEcho(int sequence);
+    }
+
+    static final int TYPE_PING = 1;
+    static final int TYPE_ECHO = 2;
+
+    private LinkProbeFraming() {
+    }
+
+    public static byte[] encodePing(int sequence) {
+        return encode(TYPE_PING, sequence);
+    }
+
+    public static byte[] encodeEcho(int sequence) {
+        return encode(TYPE_ECHO, sequence);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown type.
+     */
+    public static void decode(byte[] buffer, int offset, int length, Handler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int type = reader.readByte();
+        int sequence = reader.readVarint();
+        switch (type) {
+            case TYPE_PING:
+                handler.onPing(sequence);
+                break;
+            case TYPE_ECHO:
+                handler.onEcho(sequence);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown probe frame type " + type);
+        }
+    }
+
+    private static byte[] encode(int type, int sequence) {
+        byte[] out = new byte[1 + Varint.sizeOf(sequence)];
+        out[0] = (byte) type;
+        Varint.write(sequence, out, 1);
+        return out;
+    }
+}
@@ -0,0 +1,61 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Frames of the outbox channel. Sequence numbers count per sender and destination, from 1, and
+ * an ack covers every message up to its sequence.
+ * <pre>
+ *   MESSAGE  type 1, sequence varint, payload the rest
+ *   ACK      type 2, sequence varint
+ * </pre>
+ */
+public final class OutboxFraming {
+
+    public interface Handler {
+        /**
+         * The payload region is a view into the received buffer, only valid during the call.
+         */
+        void onMessage(int sequence, byte[] buffer, int offset, int length);
+
+        void onAck(int sequence);
+    }
+
+    static final int TYPE_MESSAGE = 1;
+    static final int TYPE_ACK = 2;
+
+    private OutboxFraming() {
+    }
+
+    public static byte[] encodeMessage(int sequence, byte[] payload) {
+        byte[] out = new byte[1 + Varint.sizeOf(sequence) + payload.length];
+        out[0] = (byte) TYPE_MESSAGE;
+        int p = Varint.write(sequence, out, 1);
+        System.arraycopy(payload, 0, out, p, payload.length);
+        return out;
+    }
+
+    public static byte[] encodeAck(int sequence) {
+        byte[] out = new byte[1 + Varint.sizeOf(sequence)];
+        out[0] = (byte) TYPE_ACK;
+        Varint.write(sequence, out, 1);
+        return out;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown type.
+     */
+    public static void decode(byte[] buffer, int offset, int length, Handler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int type = reader.readByte();
+        int sequence = reader.readVarint();
+        switch (type) {
+            case TYPE_MESSAGE:
+                handler.onMessage(sequence, buffer, reader.position(), reader.remaining());
+                break;
+            case TYPE_ACK:
+                handler.onAck(sequence);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown outbox frame type " + type);
+        }
+    }
+}
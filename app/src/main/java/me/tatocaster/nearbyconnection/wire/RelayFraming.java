@@ -0,0 +1,148 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Frames of the multi-hop relay. The fields a relay changes come first, at fixed offsets, so
+ * forwarding is a copy and three writes.
+ * <pre>
+ *   DATA  type 1, ttl 1 byte, hops 1 byte, sent at 8 bytes, origin string, sequence varint,
+ *         destination string (empty = every node), payload the rest
+ * </pre>
+ * {@code ttl} is how many more links the frame may cross, {@code hops} how many it has crossed
+ * and {@code sent at} when the previous hop put it on the link, in that hop's clock.
+ */
+public final class RelayFraming {
+
+    public interface Handler {
+        /**
+         * The payload region is a view into the received buffer, only valid during the call.
+         */
+        void onData(int ttl, int hops, long sentAtMillis, String origin, int sequence,
+                    String destination, byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * A copy of a relayed payload that also travels another way, e.g. kept in the outbox for a
+     * peer that was away. The id lets the receiver drop whichever copy arrives second.
+     */
+    public interface CopyHandler {
+        /**
+         * The payload region is a view into the buffer, only valid during the call.
+         */
+        void onCopy(String origin, int sequence, byte[] buffer, int offset, int length);
+    }
+
+    static final int TYPE_DATA = 1;
+
+    private static final int OFFSET_TTL = 1;
+    private static final int OFFSET_HOPS = 2;
+    private static final int OFFSET_SENT_AT = 3;
+    private static final int FIXED_LENGTH = OFFSET_SENT_AT + 8;
+
+    /**
+     * The most links a frame can cross, and the largest TTL.
+     */
+    public static final int MAX_HOPS = 255;
+
+    private RelayFraming() {
+    }
+
+    /**
+     * Bytes a data frame adds to its payload.
+     */
+    public static int headerLength(String origin, int sequence, String destination) {
+        int originLength = Utf8.encodedLength(origin);
+        int destinationLength = Utf8.encodedLength(destination);
+        return FIXED_LENGTH + Varint.sizeOf(originLength) + originLength + Varint.sizeOf(sequence)
+                + Varint.sizeOf(destinationLength) + destinationLength;
+    }
+
+    public static byte[] encodeData(int ttl, long sentAtMillis, String origin, int sequence,
+                                    String destination, byte[] payload, int offset, int length) {
+        if (ttl < 1 || ttl > MAX_HOPS) {
+            throw new IllegalArgumentException("ttl " + ttl);
+        }
+        byte[] out = new byte[headerLength(origin, sequence, destination) + length];
+        out[0] = TYPE_DATA;
+        out[OFFSET_TTL] = (byte) ttl;
+        out[OFFSET_HOPS] = 0;
+        writeLong(sentAtMillis, out, OFFSET_SENT_AT);
+        int p = FIXED_LENGTH;
+        p = Varint.write(Utf8.encodedLength(origin), out, p);
+        p = Utf8.encode(origin, out, p);
+        p = Varint.write(sequence, out, p);
+        p = Varint.write(Utf8.encodedLength(destination), out, p);
+        p = Utf8.encode(destination, out, p);
+        System.arraycopy(payload, offset, out, p, length);
+        return out;
+    }
+
+    /**
+     * A copy of a received data frame for the next hop: one less TTL, one more hop, stamped with
+     * this hop's clock.
+     *
+     * @throws IllegalArgumentException if the frame has no TTL left.
+     */
+    public static byte[] forward(byte[] buffer, int offset, int length, long sentAtMillis) {
+        int ttl = buffer[offset + OFFSET_TTL] & 0xFF;
+        int hops = buffer[offset + OFFSET_HOPS] & 0xFF;
+        if (ttl <= 1 || hops >= MAX_HOPS) {
+            throw new IllegalArgumentException("No hops left");
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(buffer, offset, out, 0, length);
+        out[OFFSET_TTL] = (byte) (ttl - 1);
+        out[OFFSET_HOPS] = (byte) (hops + 1);
+        writeLong(sentAtMillis, out, OFFSET_SENT_AT);
+        return out;
+    }
+
+    /**
+     * A relayed payload with its message id: origin string, sequence varint, payload the rest.
+     */
+    public static byte[] encodeCopy(String origin, int sequence, byte[] payload) {
+        int originLength = Utf8.encodedLength(origin);
+        byte[] out = new byte[Varint.sizeOf(originLength) + originLength + Varint.sizeOf(sequence)
+                + payload.length];
+        int p = Varint.write(originLength, out, 0);
+        p = Utf8.encode(origin, out, p);
+        p = Varint.write(sequence, out, p);
+        System.arraycopy(payload, 0, out, p, payload.length);
+        return out;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the copy is malformed.
+     */
+    public static void decodeCopy(byte[] buffer, int offset, int length, CopyHandler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        String origin = reader.readString();
+        int sequence = reader.readVarint();
+        handler.onCopy(origin, sequence, buffer, reader.position(), reader.remaining());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown type.
+     */
+    public static void decode(byte[] buffer, int offset, int length, Handler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int type = reader.readByte();
+        if (type != TYPE_DATA) {
+            throw new IllegalArgumentException("Unknown relay frame type " + type);
+        }
+        int ttl = reader.readByte();
+        int hops = reader.readByte();
+        long sentAtMillis = reader.readLong();
+        String origin = reader.readString();
+        int sequence = reader.readVarint();
+        String destination = reader.readString();
+        int payloadLength = reader.remaining();
+        handler.onData(ttl, hops, sentAtMillis, origin, sequence, destination, buffer,
+                reader.skip(payloadLength), payloadLength);
+    }
+
+    private static void writeLong(long value, byte[] out, int p) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[p++] = (byte) (value >>> shift);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Control and data frames of a chunked transfer. Every frame starts with its type and the
+ * sender-assigned transfer id.
+ * <pre>
+ *   OFFER   type 1, id varint, total length 8 bytes (-1 if unknown), chunk size varint, name string,
+ *           nonce 8 bytes
+ *   CHUNK   type 2, id varint, index varint, flags 1 byte (bit 0 = last), data the rest
+ *   ACK     type 3, id varint, next expected index varint
+ *   CANCEL  type 4, id varint
+ * </pre>
+ * Ids restart from 0 with the sender, so the offer carries a random nonce that tells a re-offer
+ * of a paused transfer from a new transfer that reuses its id. Older builds end the offer at the
+ * name; their nonce reads as 0.
+ */
+public final class TransferFraming {
+
+    public interface Handler {
+        void onOffer(int transferId, long totalLength, int chunkSize, String name, long nonce);
+
+        /**
+         * The data region is a view into the received buffer, only valid during the call.
+         */
+        void onChunk(int transferId, int index, boolean last, byte[] buffer, int offset, int length);
+
+        void onAck(int transferId, int nextIndex);
+
+        void onCancel(int transferId);
+    }
+
+    static final int TYPE_OFFER = 1;
+    static final int TYPE_CHUNK = 2;
+    static final int TYPE_ACK = 3;
+    static final int TYPE_CANCEL = 4;
+
+    static final int FLAG_LAST = 1;
+
+    /**
+     * type + id + index + flags, the most a chunk adds to its data.
+     */
+    public static final int MAX_CHUNK_HEADER_LENGTH = 2 + 2 * Varint.MAX_LENGTH;
+
+    private TransferFraming() {
+    }
+
+    public static byte[] encodeOffer(int transferId, long totalLength, int chunkSize, String name,
+                                     long nonce) {
+        int nameLength = Utf8.encodedLength(name);
+        byte[] out = new byte[1 + Varint.sizeOf(transferId) + 8 + Varint.sizeOf(chunkSize)
+                + Varint.sizeOf(nameLength) + nameLength + 8];
+        int p = 0;
+        out[p++] = TYPE_OFFER;
+        p = Varint.write(transferId, out, p);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[p++] = (byte) (totalLength >>> shift);
+        }
+        p = Varint.write(chunkSize, out, p);
+        p = Varint.write(nameLength, out, p);
+        p = Utf8.encode(name, out, p);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[p++] = (byte) (nonce >>> shift);
+        }
+        return out;
+    }
+
+    public static byte[] encodeChunk(int transferId, int index, boolean last, byte[] data, int offset,
+                                     int length) {
+        byte[] out = new byte[1 + Varint.sizeOf(transferId) + Varint.sizeOf(index) + 1 + length];
+        int p = 0;
+        out[p++] = TYPE_CHUNK;
+        p = Varint.write(transferId, out, p);
+        p = Varint.write(index, out, p);
+        out[p++] = (byte) (last ? FLAG_LAST : 0);
+        System.arraycopy(data, offset, out, p, length);
+        return out;
+    }
+
+    public static byte[] encodeAck(int transferId, int nextIndex) {
+        byte[] out = new byte[1 + Varint.sizeOf(transferId) + Varint.sizeOf(nextIndex)];
+        out[0] = TYPE_ACK;
+        Varint.write(nextIndex, out, Varint.write(transferId, out, 1));
+        return out;
+    }
+
+    public static byte[] encodeCancel(int transferId) {
+        byte[] out = new byte[1 + Varint.sizeOf(transferId)];
+        out[0] = TYPE_CANCEL;
+        Varint.write(transferId, out, 1);
+        return out;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is malformed or of an unknown type.
+     */
+    public static void decode(byte[] buffer, int offset, int length, Handler handler) {
+        WireReader reader = new WireReader(buffer, offset, length);
+        int type = reader.readByte();
+        int transferId = reader.readVarint();
+        switch (type) {
+            case TYPE_OFFER:
+                long totalLength = reader.readLong();
+                int chunkSize = reader.readVarint();
+                String name = reader.readString();
+                long nonce = reader.remaining() > 0 ? reader.readLong() : 0;
+                handler.onOffer(transferId, totalLength, chunkSize, name, nonce);
+                break;
+            case TYPE_CHUNK:
+                int index = reader.readVarint();
+                boolean last = (reader.readByte() & FLAG_LAST) != 0;
+                int dataLength = reader.remaining();
+                handler.onChunk(transferId, index, last, buffer, reader.skip(dataLength), dataLength);
+                break;
+            case TYPE_ACK:
+                handler.onAck(transferId, reader.readVarint());
+                break;
+            case TYPE_CANCEL:
+                handler.onCancel(transferId);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transfer frame type " + type);
+        }
+    }
+}
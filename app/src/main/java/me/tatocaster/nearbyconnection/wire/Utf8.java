@@ -0,0 +1,81 @@
+package me.tatocaster.nearbyconnection.wire;
+
+import java.nio.charset.Charset;
+
+/**
+ * UTF-8 helpers that write straight into a caller-owned buffer, so encoding a string does not
+ * need the intermediate array that {@link String#getBytes(Charset)} allocates.
+ */
+public final class Utf8 {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Utf8() {
+    }
+
+    /**
+     * Number of bytes {@code s} occupies when encoded as UTF-8. Unpaired surrogates count as the
+     * single '?' replacement byte, same as {@link String#getBytes(Charset)}.
+     */
+    public static int encodedLength(String s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // two chars, four bytes
+                bytes += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, encoded as '?'
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encode {@code s} into {@code dst} starting at {@code offset}. The caller must have sized
+     * {@code dst} with {@link #encodedLength(String)}.
+     *
+     * @return the offset just past the last written byte.
+     */
+    public static int encode(String s, byte[] dst, int offset) {
+        int length = s.length();
+        int p = offset;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[p++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[p++] = (byte) (0xC0 | (c >> 6));
+                dst[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[p++] = (byte) (0xF0 | (cp >> 18));
+                dst[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                dst[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                dst[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dst[p++] = (byte) '?';
+            } else {
+                dst[p++] = (byte) (0xE0 | (c >> 12));
+                dst[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return p;
+    }
+
+    public static String decode(byte[] src, int offset, int length) {
+        return new String(src, offset, length, UTF_8);
+    }
+}
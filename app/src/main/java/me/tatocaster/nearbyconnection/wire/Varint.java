@@ -0,0 +1,44 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Unsigned LEB128 varints, as used for every length prefix in the wire formats of this app.
+ * Values are non-negative ints, so a varint is at most five bytes long.
+ */
+public final class Varint {
+
+    public static final int MAX_LENGTH = 5;
+
+    private Varint() {
+    }
+
+    /**
+     * Number of bytes needed to encode {@code value}.
+     */
+    public static int sizeOf(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint: " + value);
+        }
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write {@code value} into {@code dst} at {@code offset}.
+     *
+     * @return the offset just past the last written byte.
+     */
+    public static int write(int value, byte[] dst, int offset) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint: " + value);
+        }
+        while ((value & ~0x7F) != 0) {
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+}
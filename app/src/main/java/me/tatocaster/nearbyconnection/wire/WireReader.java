@@ -0,0 +1,93 @@
+package me.tatocaster.nearbyconnection.wire;
+
+/**
+ * Forward-only cursor over a byte array holding one of the app's binary wire formats.
+ * Every read is bounds-checked against the readable region and fails with
+ * {@link IllegalArgumentException} on truncated or malformed input.
+ */
+public final class WireReader {
+
+    private final byte[] mBuffer;
+    private final int mLimit;
+    private int mPosition;
+
+    public WireReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public WireReader(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mLimit = offset + length;
+    }
+
+    public int position() {
+        return mPosition;
+    }
+
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    public int readByte() {
+        require(1);
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    public long readLong() {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (mBuffer[mPosition++] & 0xFF);
+        }
+        return value;
+    }
+
+    public int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 7 * Varint.MAX_LENGTH; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at " + mPosition);
+    }
+
+    /**
+     * Read a varint length prefix followed by that many UTF-8 bytes.
+     */
+    public String readString() {
+        int length = readVarint();
+        require(length);
+        String value = Utf8.decode(mBuffer, mPosition, length);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Skip {@code length} bytes and return the offset where they started, so callers can view
+     * the region in place instead of copying it.
+     */
+    public int skip(int length) {
+        require(length);
+        int start = mPosition;
+        mPosition += length;
+        return start;
+    }
+
+    private void require(int length) {
+        if (length < 0 || mLimit - mPosition < length) {
+            throw new IllegalArgumentException("Truncated input: need " + length + " bytes at "
+                    + mPosition + ", have " + (mLimit - mPosition));
+        }
+    }
+}
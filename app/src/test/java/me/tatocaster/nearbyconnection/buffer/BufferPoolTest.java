@@ -0,0 +1,76 @@
+package me.tatocaster.nearbyconnection.buffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedArray_isReusedWithinItsSizeClass() throws Exception {
+        BufferPool pool = new BufferPool.Builder().bufferSizes(128, 1024).build();
+        PooledBuffer first = pool.acquire(100);
+        byte[] array = first.array();
+        assertEquals(128, array.length);
+        first.release();
+
+        PooledBuffer second = pool.acquire(128);
+        assertSame(array, second.array());
+        assertNotSame(first, second);
+        assertEquals(1, pool.getAllocatedCount());
+
+        PooledBuffer larger = pool.acquire(129);
+        assertEquals(256, larger.array().length);
+        PooledBuffer oversized = pool.acquire(5000);
+        assertEquals(5000, oversized.array().length);
+    }
+
+    @Test
+    public void content_isReadOnlyViewUntilLastRelease() throws Exception {
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.copyOf("xhellox".getBytes(), 1, 5);
+        assertEquals("hello", buffer.toUtf8String());
+        assertTrue(buffer.asReadOnlyBuffer().isReadOnly());
+        assertEquals('e', buffer.byteAt(1));
+
+        buffer.retain();
+        assertFalse(buffer.release());
+        assertTrue(buffer.release());
+        assertEquals(0, pool.getOutstandingCount());
+        try {
+            buffer.toUtf8String();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void leakDetection_reportsUnreleasedSampledBuffers() throws Exception {
+        final List<String> leaks = new ArrayList<>();
+        BufferPool pool = new BufferPool.Builder()
+                .leakDetection((description, site) -> leaks.add(description), 2)
+                .build();
+
+        // every second buffer is tracked: of these only the released one and the last
+        pool.acquire(10);
+        pool.copyOf(new byte[10], 0, 10).release();
+        pool.acquire(30);
+        pool.acquire(20);
+        // the unreleased buffer is unreachable now, wait for the collector to notice
+        for (int i = 0; i < 50 && leaks.isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.reportLeaks();
+        }
+        assertEquals(1, leaks.size());
+        assertTrue(leaks.get(0).contains("20 bytes"));
+    }
+}
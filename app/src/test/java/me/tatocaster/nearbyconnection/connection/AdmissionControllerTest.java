@@ -0,0 +1,153 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AdmissionControllerTest {
+
+    private static final byte[] TOKEN = {1, 2, 3, 4};
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final ConnectionManager mConnections = new ConnectionManager((endpointIds, payload, reliable) -> {
+    });
+
+    private static byte[] handshake(String appIdentifier, byte[] token) {
+        return new ConnectionHandshake(appIdentifier, token).encode();
+    }
+
+    private AdmissionController.Decision decide(AdmissionController controller, String endpointId,
+                                                String name, byte[] payload) {
+        return controller.onConnectionRequest(endpointId, name, payload).getDecision();
+    }
+
+    @Test
+    public void handshake_roundTripsAndIgnoresLegacyPayloads() throws Exception {
+        ConnectionHandshake decoded = ConnectionHandshake.decode(handshake("me.app", TOKEN));
+        assertEquals("me.app", decoded.getAppIdentifier());
+        assertArrayEquals(TOKEN, decoded.getToken());
+
+        assertNull(ConnectionHandshake.decode(null));
+        assertNull(ConnectionHandshake.decode("hello".getBytes()));
+    }
+
+    @Test
+    public void handshake_ofAnUnknownVersion_isLeftToTheUser() throws Exception {
+        byte[] payload = handshake("other.app", TOKEN);
+        payload[1] = 2;
+        assertNull(ConnectionHandshake.decode(payload));
+
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler)
+                .acceptToken(TOKEN)
+                .build();
+        assertEquals(AdmissionController.Decision.ASK, decide(controller, "a", "A", payload));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void handshake_rejectsTokenRunningPastPayload() throws Exception {
+        byte[] payload = handshake("a", TOKEN);
+        ConnectionHandshake.decode(Arrays.copyOf(payload, payload.length - 1));
+    }
+
+    @Test
+    public void undecidedRequestsAreLeftToTheUser() throws Exception {
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler)
+                .acceptToken(TOKEN)
+                .build();
+
+        assertEquals(AdmissionController.Decision.ASK, decide(controller, "a", "A", null));
+        assertEquals(AdmissionController.Decision.ASK,
+                decide(controller, "b", "B", handshake("other.app", new byte[]{1, 2, 3, 5})));
+        assertEquals(AdmissionController.Decision.ACCEPT,
+                decide(controller, "c", "C", handshake("other.app", TOKEN)));
+    }
+
+    @Test
+    public void rulesApplyInOrder() throws Exception {
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler)
+                .denyNames(Collections.singleton("Mallory"))
+                .allowNames(Arrays.asList("Alice", "Mallory"))
+                .acceptAppIdentifiers(Collections.singleton("me.app"))
+                .addPolicy(request -> request.getEndpointName().startsWith("Kiosk")
+                        ? new AdmissionController.Verdict(AdmissionController.Decision.ACCEPT, "kiosk") : null)
+                .whenUndecided(AdmissionController.Decision.REJECT)
+                .build();
+
+        assertEquals(AdmissionController.Decision.REJECT, decide(controller, "m", "Mallory", null));
+        assertEquals(AdmissionController.Decision.ACCEPT, decide(controller, "a", "Alice", null));
+        assertEquals(AdmissionController.Decision.ACCEPT,
+                decide(controller, "b", "Bob", handshake("me.app", null)));
+        assertEquals(AdmissionController.Decision.ACCEPT, decide(controller, "k", "Kiosk 3", null));
+        assertEquals(AdmissionController.Decision.REJECT, decide(controller, "e", "Eve", null));
+        assertEquals(AdmissionController.Decision.REJECT,
+                decide(controller, "x", "X", new byte[]{(byte) 0xC0, 1}));
+
+        assertEquals(Integer.valueOf(1), controller.getRejections().get(AdmissionController.REASON_DENIED));
+        assertEquals(Integer.valueOf(1), controller.getRejections().get(AdmissionController.REASON_UNDECIDED));
+        assertEquals(Integer.valueOf(1), controller.getRejections().get(AdmissionController.REASON_MALFORMED));
+    }
+
+    @Test
+    public void peerCapCountsConnectingPeersButNotTheRequesterItself() throws Exception {
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler)
+                .allowNames(Collections.singleton("A"))
+                .maxPeers(2)
+                .build();
+        mConnections.onConnected("p1", "P1", 0);
+        mConnections.onConnecting("p2", "P2");
+
+        assertEquals(AdmissionController.Decision.REJECT, decide(controller, "a", "A", null));
+        // already connecting to it, e.g. both sides sent a request
+        assertEquals(AdmissionController.Decision.ASK, decide(controller, "p2", "P2", null));
+
+        mConnections.onDisconnected("p2");
+        assertEquals(AdmissionController.Decision.ACCEPT, decide(controller, "a", "A", null));
+    }
+
+    @Test
+    public void floodIsRateLimitedBeforeAnyOtherRule() throws Exception {
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler)
+                .rateLimit(1, 3)
+                .allowNames(Collections.singleton("A"))
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(AdmissionController.Decision.ACCEPT, decide(controller, "a" + i, "A", null));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(AdmissionController.Decision.REJECT, decide(controller, "f" + i, "A", null));
+        }
+        mScheduler.advance(999);
+        assertEquals(AdmissionController.Decision.REJECT, decide(controller, "b", "A", null));
+        mScheduler.advance(1);
+        assertEquals(AdmissionController.Decision.ACCEPT, decide(controller, "c", "A", null));
+        assertEquals(Integer.valueOf(11),
+                controller.getRejections().get(AdmissionController.REASON_RATE_LIMITED));
+    }
+
+    @Test
+    public void recordsAcceptLatencyAndLaterRejections() throws Exception {
+        AdmissionController controller = new AdmissionController.Builder(mConnections, mScheduler).build();
+
+        decide(controller, "a", "A", null);
+        decide(controller, "b", "B", null);
+        mScheduler.advance(1500);
+        controller.onAccepted("a");
+        controller.onRejected("b", "user");
+        // nothing pending for these
+        controller.onAccepted("b");
+        controller.onRejected("zz", "user");
+
+        assertEquals(1, controller.getAcceptLatencyMillis().count());
+        assertEquals(1500, controller.getAcceptLatencyMillis().max());
+        assertEquals(Collections.singletonMap("user", 1), controller.getRejections());
+    }
+}
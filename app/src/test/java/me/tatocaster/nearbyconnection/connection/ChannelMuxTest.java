@@ -0,0 +1,148 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.buffer.BufferPool;
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+import me.tatocaster.nearbyconnection.wire.BatchFraming;
+import me.tatocaster.nearbyconnection.wire.ChannelFraming;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelMuxTest {
+
+    private static final int CURSOR = 7;
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<byte[]> mSent = new ArrayList<>();
+    private final List<Boolean> mSentReliable = new ArrayList<>();
+    private final List<String> mReceived = new ArrayList<>();
+    private final ChannelMux.Receiver mReceiver = (endpointId, channel, message) ->
+            mReceived.add(channel.getId() + ":" + message.toUtf8String());
+    private final BufferPool mBufferPool = new BufferPool();
+
+    private ConnectionManager mManager;
+    private ChannelMux mMux;
+
+    @Before
+    public void setUp() throws Exception {
+        OutboundPipeline pipeline = new OutboundPipeline.Builder((endpointIds, payload, reliable) -> {
+            if (BatchFraming.isBatch(payload)) {
+                BatchFraming.decode(payload, (buffer, offset, length) ->
+                        mSent.add(Arrays.copyOfRange(buffer, offset, offset + length)));
+            } else {
+                mSent.add(payload);
+            }
+            mSentReliable.add(reliable);
+        }, mScheduler).build();
+        mManager = new ConnectionManager(pipeline);
+        mManager.onConnected("a", "A", 0);
+        mMux = new ChannelMux(mManager, pipeline, mBufferPool);
+    }
+
+    @Test
+    public void deliveryClass_picksTransport() throws Exception {
+        mMux.open(1, ChannelMux.Delivery.ORDERED_RELIABLE, null).send("r".getBytes());
+        mScheduler.advance(5);
+        mMux.open(2, ChannelMux.Delivery.FIRE_AND_FORGET, null).send("f".getBytes());
+        mScheduler.advance(5);
+        mMux.open(3, ChannelMux.Delivery.LATEST_VALUE, null).send("l".getBytes());
+        mScheduler.advance(5);
+
+        assertEquals(Arrays.asList(true, false, false), mSentReliable);
+    }
+
+    @Test
+    public void latestValue_collapsesQueuedUpdates() throws Exception {
+        ChannelMux.Channel cursor = mMux.open(CURSOR, ChannelMux.Delivery.LATEST_VALUE, null);
+        cursor.send("1".getBytes());
+        cursor.send("2".getBytes());
+        cursor.send("3".getBytes());
+        mScheduler.advance(5);
+
+        assertEquals(1, mSent.size());
+        assertArrayEquals(ChannelFraming.encode(CURSOR, 2, "3".getBytes()), mSent.get(0));
+    }
+
+    @Test
+    public void latestValue_dropsStaleAndDuplicateSequences() throws Exception {
+        mMux.open(CURSOR, ChannelMux.Delivery.LATEST_VALUE, mReceiver);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, 5, "5".getBytes()), false);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, 4, "4".getBytes()), false);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, 5, "5".getBytes()), false);
+        mMux.onMessageReceived("b", ChannelFraming.encode(CURSOR, 1, "1".getBytes()), false);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, 6, "6".getBytes()), false);
+
+        assertEquals(Arrays.asList("7:5", "7:1", "7:6"), mReceived);
+    }
+
+    @Test
+    public void latestValue_sequenceWrapsAround() throws Exception {
+        mMux.open(CURSOR, ChannelMux.Delivery.LATEST_VALUE, mReceiver);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, Integer.MAX_VALUE, "a".getBytes()), false);
+        mMux.onMessageReceived("a", ChannelFraming.encode(CURSOR, 0, "b".getBytes()), false);
+
+        assertEquals(Arrays.asList("7:a", "7:b"), mReceived);
+    }
+
+    @Test
+    public void reliableChannel_rejectsUnreliableDelivery() throws Exception {
+        mMux.open(1, ChannelMux.Delivery.ORDERED_RELIABLE, mReceiver);
+        mMux.onMessageReceived("a", ChannelFraming.encode(1, 0, "x".getBytes()), false);
+        mMux.onMessageReceived("a", ChannelFraming.encode(1, 1, "y".getBytes()), true);
+
+        assertEquals(Arrays.asList("1:y"), mReceived);
+    }
+
+    @Test
+    public void legacyChannel_sendsAndReceivesPlainPayloads() throws Exception {
+        ChannelMux.Channel chat = mMux.open(ChannelMux.CHANNEL_LEGACY,
+                ChannelMux.Delivery.ORDERED_RELIABLE, mReceiver);
+        chat.send("hi".getBytes());
+        chat.send("there".getBytes());
+        mScheduler.advance(5);
+        // one plain payload each, older builds cannot unpack a batch
+        assertEquals(2, mSentReliable.size());
+        assertArrayEquals("hi".getBytes(), mSent.get(0));
+        assertArrayEquals("there".getBytes(), mSent.get(1));
+
+        mMux.onMessageReceived("a", "hello".getBytes(), true);
+        mMux.onMessageReceived("a", ChannelFraming.encode(99, 0, "?".getBytes()), true);
+
+        assertEquals(Arrays.asList("0:hello"), mReceived);
+        assertEquals(0, mBufferPool.getOutstandingCount());
+    }
+
+    @Test
+    public void compression_onlyForPeersThatAnnouncedIt() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor.Builder(System::nanoTime).build();
+        compressor.onHandshake("b", new ConnectionHandshake("me.app", null, PayloadCompressor.CODECS, null, "b"));
+        mManager.onConnected("b", "B", 0);
+        mMux.setCompressor(compressor);
+        ChannelMux.Channel channel = mMux.open(1, ChannelMux.Delivery.ORDERED_RELIABLE, mReceiver);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("the same words again ");
+        }
+        byte[] payload = text.toString().getBytes();
+        assertEquals(2, channel.send(payload));
+        mScheduler.advance(5);
+
+        // "a" sent no handshake and gets it raw, "b" compressed, both with sequence 0
+        assertEquals(2, mSent.size());
+        byte[] raw = ChannelFraming.encode(1, 0, payload);
+        byte[] compressed = Arrays.equals(raw, mSent.get(0)) ? mSent.get(1) : mSent.get(0);
+        assertTrue(ChannelFraming.isCompressed(compressed, 0));
+        assertTrue(compressed.length < raw.length / 4);
+        mMux.onMessageReceived("b", compressed, true);
+        assertEquals(Arrays.asList("1:" + text), mReceived);
+    }
+}
@@ -0,0 +1,84 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionManagerTest {
+
+    private final List<List<String>> mSends = new ArrayList<>();
+    private final ConnectionManager mManager = new ConnectionManager(
+            (endpointIds, payload, reliable) -> mSends.add(endpointIds));
+
+    @Test
+    public void broadcast_reachesOnlyConnectedPeersInOneSend() throws Exception {
+        mManager.onConnected("a", "A", 1);
+        mManager.onConnected("b", "B", 2);
+        mManager.onConnecting("c", "C");
+
+        assertEquals(2, mManager.broadcast(new byte[3], true));
+        assertEquals(1, mSends.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(mSends.get(0)));
+        assertEquals(3, mManager.getPeer("a").getBytesSent());
+        assertEquals(0, mManager.getPeer("c").getMessagesSent());
+    }
+
+    @Test
+    public void broadcast_reusesConnectedSnapshotUntilMembershipChanges() throws Exception {
+        mManager.onConnected("a", "A", 1);
+        mManager.broadcast(new byte[1], true);
+        mManager.broadcast(new byte[1], false);
+        assertSame(mSends.get(0), mSends.get(1));
+
+        mManager.onDisconnected("a");
+        assertEquals(0, mManager.broadcast(new byte[1], true));
+        assertEquals(2, mSends.size());
+    }
+
+    @Test
+    public void multicast_skipsUnknownAndConnectingPeers() throws Exception {
+        mManager.onConnected("a", "A", 1);
+        mManager.onConnected("b", "B", 1);
+        mManager.onConnecting("c", "C");
+
+        assertEquals(1, mManager.multicast(Arrays.asList("b", "c", "zz"), new byte[1], true));
+        assertEquals(Arrays.asList("b"), mSends.get(0));
+    }
+
+    @Test
+    public void stateChanges_areReported() throws Exception {
+        final List<String> transitions = new ArrayList<>();
+        mManager.setListener((peer, oldState, newState) ->
+                transitions.add(peer.getEndpointId() + ":" + oldState + "->" + newState));
+
+        mManager.onConnecting("a", "A");
+        mManager.onConnecting("a", "A");
+        mManager.onConnected("a", "A", 5);
+        mManager.onDisconnected("a");
+
+        assertEquals(Arrays.asList(
+                "a:0->" + Peer.STATE_CONNECTING,
+                "a:" + Peer.STATE_CONNECTING + "->" + Peer.STATE_CONNECTED,
+                "a:" + Peer.STATE_CONNECTED + "->0"), transitions);
+        assertNull(mManager.getPeer("a"));
+    }
+
+    @Test
+    public void send_toUnconnectedPeerIsRefused() throws Exception {
+        mManager.onConnecting("a", "A");
+
+        assertFalse(mManager.send("a", new byte[1], true));
+        mManager.onConnected("a", "A", 1);
+        assertTrue(mManager.send("a", new byte[1], true));
+        assertEquals(1, mSends.size());
+    }
+}
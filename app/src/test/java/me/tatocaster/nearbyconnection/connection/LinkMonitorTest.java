@@ -0,0 +1,161 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LinkMonitorTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final ConnectionManager mConnections = new ConnectionManager((endpointIds, payload, reliable) -> {
+    });
+    // round trip per endpoint, -1 drops everything
+    private final Map<String, Long> mRoundTrips = new HashMap<>();
+    private final Map<String, Integer> mRoundTripCounts = new HashMap<>();
+    private LinkMonitor mMonitor;
+    private LinkMonitor mPeers;
+
+    @Before
+    public void setUp() throws Exception {
+        // one monitor answers for every peer; it only ever echoes
+        mPeers = new LinkMonitor.Builder(new ConnectionManager((endpointIds, payload, reliable) -> {
+        }), (endpointId, frame) -> deliver(endpointId, frame, false), mScheduler).build();
+        mMonitor = new LinkMonitor.Builder(mConnections,
+                (endpointId, frame) -> deliver(endpointId, frame, true), mScheduler)
+                .probeIntervalMillis(1000)
+                .probeTimeoutMillis(3000)
+                .degradedAbove(0.2, 500)
+                .build();
+        mMonitor.setListener(new LinkMonitor.Listener() {
+            @Override
+            public void onRoundTrip(String endpointId, long rttMillis) {
+                Integer count = mRoundTripCounts.get(endpointId);
+                mRoundTripCounts.put(endpointId, count == null ? 1 : count + 1);
+            }
+
+            @Override
+            public void onStateChanged(LinkQuality quality, int oldState) {
+            }
+        });
+    }
+
+    private boolean deliver(final String endpointId, final byte[] frame, final boolean toPeer) {
+        long roundTrip = mRoundTrips.get(endpointId);
+        if (roundTrip < 0) {
+            return true;
+        }
+        mScheduler.schedule(() -> (toPeer ? mPeers : mMonitor).onFrameReceived(endpointId, frame, 0,
+                frame.length), roundTrip / 2);
+        return true;
+    }
+
+    private void connect(String endpointId, long roundTripMillis) {
+        mRoundTrips.put(endpointId, roundTripMillis);
+        mConnections.onConnected(endpointId, endpointId, mScheduler.now());
+    }
+
+    @Test
+    public void links_areRatedBySpeedAndResponsiveness() throws Exception {
+        connect("fast", 40);
+        connect("slow", 1200);
+        connect("dead", -1);
+        mMonitor.start();
+        mScheduler.advance(20000);
+
+        LinkQuality fast = mMonitor.getQuality("fast");
+        assertEquals(LinkQuality.STATE_GOOD, fast.getState());
+        assertEquals(40, fast.getRttMillis(), 0.5);
+        assertEquals(40, fast.getMinRttMillis());
+        assertTrue(fast.getJitterMillis() < 1);
+        assertEquals(0, fast.getLossRate(), 0);
+
+        LinkQuality slow = mMonitor.getQuality("slow");
+        assertEquals(LinkQuality.STATE_DEGRADED, slow.getState());
+        assertEquals(1200, slow.getRttMillis(), 0.5);
+
+        LinkQuality dead = mMonitor.getQuality("dead");
+        assertEquals(LinkQuality.STATE_UNRESPONSIVE, dead.getState());
+        assertTrue(dead.getLossRate() > 0.5);
+        assertFalse(mMonitor.isUsable("dead"));
+
+        assertEquals(Arrays.asList("fast", "slow"), mMonitor.usable(Arrays.asList("dead", "fast", "slow")));
+        assertEquals(Arrays.asList("fast", "slow", "dead"), mMonitor.byHealth(Arrays.asList("dead", "slow", "fast")));
+        assertNull(mRoundTripCounts.get("dead"));
+    }
+
+    @Test
+    public void unresponsiveLink_recoversWhenEchoesReturn() throws Exception {
+        connect("flaky", -1);
+        mMonitor.start();
+        mScheduler.advance(10000);
+        assertEquals(LinkQuality.STATE_UNRESPONSIVE, mMonitor.getQuality("flaky").getState());
+
+        mRoundTrips.put("flaky", 100L);
+        mScheduler.advance(2000);
+        // answering again, but the losses still weigh on it
+        assertEquals(LinkQuality.STATE_DEGRADED, mMonitor.getQuality("flaky").getState());
+
+        mScheduler.advance(30000);
+        assertEquals(LinkQuality.STATE_GOOD, mMonitor.getQuality("flaky").getState());
+    }
+
+    @Test
+    public void echoesAfterTheTimeout_countAsLossAndLate() throws Exception {
+        connect("far", 4000);
+        mMonitor.start();
+        mScheduler.advance(20000);
+
+        LinkQuality far = mMonitor.getQuality("far");
+        assertTrue(far.getProbesLost() > 10);
+        assertTrue(mMonitor.getLateEchoes() > 10);
+        assertEquals(LinkQuality.STATE_UNRESPONSIVE, far.getState());
+    }
+
+    @Test
+    public void goodput_followsTheBytesReceived() throws Exception {
+        connect("peer", 20);
+        mMonitor.start();
+        for (int i = 0; i < 120; i++) {
+            mConnections.onMessageReceived("peer", new byte[500]);
+            mScheduler.advance(500);
+        }
+
+        assertEquals(1000, mMonitor.getQuality("peer").getGoodputBytesPerSecond(), 10);
+    }
+
+    @Test
+    public void longerInterval_probesLessOften() throws Exception {
+        connect("peer", 20);
+        mMonitor.start();
+        mScheduler.advance(9999);
+        assertEquals(Integer.valueOf(10), mRoundTripCounts.get("peer"));
+
+        // the next probes are five seconds apart, counting from now
+        mMonitor.setProbeIntervalMillis(5000);
+        mScheduler.advance(10100);
+        assertEquals(Integer.valueOf(12), mRoundTripCounts.get("peer"));
+    }
+
+    @Test
+    public void disconnectedPeers_areForgotten() throws Exception {
+        connect("a", 20);
+        mMonitor.start();
+        mScheduler.advance(2000);
+        mConnections.onDisconnected("a");
+        mScheduler.advance(1000);
+
+        assertNull(mMonitor.getQuality("a"));
+        mMonitor.stop();
+        assertEquals(0, mScheduler.pendingCount());
+    }
+}
@@ -0,0 +1,146 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+import me.tatocaster.nearbyconnection.wire.BatchFraming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundPipelineTest {
+
+    private static final List<String> PEER_A = Collections.singletonList("a");
+    private static final List<String> PEER_B = Collections.singletonList("b");
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mSent = new ArrayList<>();
+    private final MessageSender mDownstream = (endpointIds, payload, reliable) -> {
+        final StringBuilder batch = new StringBuilder(endpointIds + (reliable ? "R" : "U") + ":");
+        if (BatchFraming.isBatch(payload)) {
+            BatchFraming.decode(payload, (buffer, offset, length) ->
+                    batch.append(new String(buffer, offset, length)).append(','));
+        } else {
+            batch.append(new String(payload)).append('!');
+        }
+        mSent.add(batch.toString());
+    };
+
+    private OutboundPipeline.Builder builder() {
+        return new OutboundPipeline.Builder(mDownstream, mScheduler).maxDelayMillis(5);
+    }
+
+    @Test
+    public void smallMessages_areBatchedUntilDeadline() throws Exception {
+        OutboundPipeline pipeline = builder().build();
+        pipeline.send(PEER_A, "one".getBytes(), true);
+        pipeline.send(PEER_A, "two".getBytes(), true);
+        mScheduler.advance(4);
+        assertEquals(0, mSent.size());
+
+        mScheduler.advance(1);
+        assertEquals(Arrays.asList("[a]R:one,two,"), mSent);
+        assertEquals(1, pipeline.getBatchSizes().count());
+        assertEquals(2, pipeline.getBatchSizes().max());
+        assertEquals(5, pipeline.getLatencyMillis().max());
+    }
+
+    @Test
+    public void batches_splitOnDestinationReliabilityAndBudget() throws Exception {
+        OutboundPipeline pipeline = builder().maxBatchBytes(18, 18).build();
+        pipeline.send(PEER_A, "1".getBytes(), true);
+        pipeline.send(PEER_B, "2".getBytes(), true);
+        pipeline.send(PEER_B, "3".getBytes(), false);
+        pipeline.send(PEER_B, "4444".getBytes(), false);
+        pipeline.send(PEER_B, "5555".getBytes(), false);
+        mScheduler.advance(5);
+
+        assertEquals(Arrays.asList("[a]R:1!", "[b]R:2!", "[b]U:3,4444,", "[b]U:5555!"), mSent);
+    }
+
+    @Test
+    public void loneMessage_goesOutWithoutBatchHeader() throws Exception {
+        OutboundPipeline pipeline = builder().build();
+        pipeline.send(PEER_A, "hello".getBytes(), true);
+        // looks like a batch, so it must be framed to be read back as one message
+        pipeline.send(PEER_B, new byte[]{(byte) 0xBA, 1}, true);
+        mScheduler.advance(5);
+
+        assertEquals("[a]R:hello!", mSent.get(0));
+        assertTrue(mSent.get(1).endsWith(","));
+    }
+
+    @Test
+    public void fullBudget_flushesWithoutWaitingForDeadline() throws Exception {
+        OutboundPipeline pipeline = builder().maxBatchBytes(25, 25).build();
+        pipeline.send(PEER_A, new byte[10], true);
+        mScheduler.advance(0);
+        assertEquals(0, mSent.size());
+
+        pipeline.send(PEER_A, new byte[10], true);
+        mScheduler.advance(0);
+        assertEquals(2, mSent.size());
+    }
+
+    @Test
+    public void dropNewest_rejectsWhenFull() throws Exception {
+        OutboundPipeline pipeline = builder().capacity(2)
+                .overflowPolicy(OutboundPipeline.OverflowPolicy.DROP_NEWEST).build();
+
+        assertTrue(pipeline.offer(PEER_A, "1".getBytes(), true));
+        assertTrue(pipeline.offer(PEER_A, "2".getBytes(), true));
+        assertFalse(pipeline.offer(PEER_A, "3".getBytes(), true));
+        mScheduler.advance(5);
+
+        assertEquals(Arrays.asList("[a]R:1,2,"), mSent);
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(2, pipeline.getMaxQueueDepth());
+    }
+
+    @Test
+    public void dropOldest_evictsHeadWhenFull() throws Exception {
+        OutboundPipeline pipeline = builder().capacity(2)
+                .overflowPolicy(OutboundPipeline.OverflowPolicy.DROP_OLDEST).build();
+
+        pipeline.offer(PEER_A, "1".getBytes(), true);
+        pipeline.offer(PEER_A, "2".getBytes(), true);
+        assertTrue(pipeline.offer(PEER_A, "3".getBytes(), true));
+        mScheduler.advance(5);
+
+        assertEquals(Arrays.asList("[a]R:2,3,"), mSent);
+    }
+
+    @Test
+    public void offerLatest_replacesQueuedValueInPlace() throws Exception {
+        OutboundPipeline pipeline = builder().build();
+        pipeline.offerLatest("cursor", PEER_A, "x1".getBytes(), false);
+        pipeline.offer(PEER_A, "chat".getBytes(), false);
+        pipeline.offerLatest("cursor", PEER_A, "x2".getBytes(), false);
+        pipeline.offerLatest("cursor", PEER_A, "x3".getBytes(), false);
+        mScheduler.advance(5);
+
+        assertEquals(Arrays.asList("[a]U:x3,chat,"), mSent);
+        assertEquals(2, pipeline.getReplacedCount());
+
+        // once sent, the next value queues again
+        pipeline.offerLatest("cursor", PEER_A, "x4".getBytes(), false);
+        mScheduler.advance(5);
+        assertEquals("[a]U:x4!", mSent.get(1));
+    }
+
+    @Test
+    public void block_timesOutWhenNothingDrains() throws Exception {
+        OutboundPipeline pipeline = builder().capacity(1).blockTimeoutMillis(10)
+                .overflowPolicy(OutboundPipeline.OverflowPolicy.BLOCK).build();
+
+        assertTrue(pipeline.offer(PEER_A, "1".getBytes(), true));
+        assertFalse(pipeline.offer(PEER_A, "2".getBytes(), true));
+        assertEquals(1, pipeline.getDroppedCount());
+    }
+}
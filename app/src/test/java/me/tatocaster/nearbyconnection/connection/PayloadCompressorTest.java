@@ -0,0 +1,143 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.wire.CompressedFraming;
+import me.tatocaster.nearbyconnection.wire.ConnectionHandshake;
+import me.tatocaster.nearbyconnection.wire.Lz4Block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    private static final byte[] DICTIONARY = "{\"name\":\"\",\"text\":\"\",\"time\":\"\"}".getBytes();
+    private static final List<String> PEER = Collections.singletonList("peer");
+
+    private PayloadCompressor mSender;
+    private PayloadCompressor mReceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        mSender = compressor(DICTIONARY);
+        mReceiver = compressor(DICTIONARY);
+        mSender.onHandshake("peer", handshakeOf(mReceiver));
+    }
+
+    private static PayloadCompressor compressor(byte[] dictionary) {
+        return new PayloadCompressor.Builder(System::nanoTime)
+                .minLength(32)
+                .deflateMaxLength(4096)
+                .dictionary(dictionary)
+                .build();
+    }
+
+    private static ConnectionHandshake handshakeOf(PayloadCompressor compressor) {
+        return new ConnectionHandshake("me.app", null, PayloadCompressor.CODECS,
+                compressor.getDictionaryIds(), "install");
+    }
+
+    private static byte[] json(int records) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            json.append("{\"name\":\"device ").append(i % 7).append("\",\"text\":\"hello there\",\"time\":\"")
+                    .append(1000 + i).append("\"},");
+        }
+        return json.append("]").toString().getBytes();
+    }
+
+    private byte[] roundTrip(byte[] payload) {
+        byte[] compressed = mSender.compress(PEER, payload);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < payload.length);
+        return mReceiver.decompress(compressed, 0, compressed.length);
+    }
+
+    @Test
+    public void methodIsChosenBySize() throws Exception {
+        byte[] small = json(20);
+        byte[] large = json(2000);
+
+        assertEquals(CompressedFraming.METHOD_DEFLATE, mSender.compress(PEER, small)[0]);
+        assertEquals(CompressedFraming.METHOD_LZ4, mSender.compress(PEER, large)[0]);
+        assertArrayEquals(small, roundTrip(small));
+        assertArrayEquals(large, roundTrip(large));
+        assertEquals(4, mSender.getRatioPercent().count());
+        assertEquals(2, mReceiver.getDecompressMicros().count());
+    }
+
+    @Test
+    public void dictionary_compressesShortMessages() throws Exception {
+        byte[] message = "{\"name\":\"Pixel\",\"text\":\"hi\",\"time\":\"12:00\"}".getBytes();
+        assertArrayEquals(message, roundTrip(message));
+
+        // a peer with another dictionary is sent messages compressed without ours
+        PayloadCompressor other = compressor("something else".getBytes());
+        mSender.onHandshake("peer", handshakeOf(other));
+        byte[] compressed = mSender.compress(PEER, json(20));
+        assertArrayEquals(json(20), other.decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void incompressibleAndShortPayloads_goRaw() throws Exception {
+        byte[] noise = new byte[10000];
+        new Random(1).nextBytes(noise);
+
+        assertNull(mSender.compress(PEER, noise));
+        assertNull(mSender.compress(PEER, "short".getBytes()));
+        assertEquals(0, mSender.getRatioPercent().count());
+    }
+
+    @Test
+    public void peersWithoutTheCapability_areNotCompressedFor() throws Exception {
+        mSender.onHandshake("old", ConnectionHandshake.decode(new ConnectionHandshake("me.app", null).encode()));
+        mSender.onHandshake("none", null);
+
+        assertEquals(PEER, mSender.capable(Arrays.asList("old", "peer", "none")));
+        mSender.onPeerGone("peer");
+        assertNull(mSender.compress(PEER, json(20)));
+    }
+
+    @Test
+    public void handshake_carriesCodecsAndDictionaries() throws Exception {
+        ConnectionHandshake handshake = ConnectionHandshake.decode(new ConnectionHandshake("me.app",
+                "token".getBytes(), PayloadCompressor.CODECS, mReceiver.getDictionaryIds(), "install").encode());
+
+        assertEquals("me.app", handshake.getAppIdentifier());
+        assertArrayEquals("token".getBytes(), handshake.getToken());
+        assertEquals(PayloadCompressor.CODECS, handshake.getCodecs());
+        assertArrayEquals(new int[]{PayloadCompressor.dictionaryId(DICTIONARY)}, handshake.getDictionaryIds());
+        assertEquals("install", handshake.getDeviceId());
+        assertEquals("", ConnectionHandshake.decode(new ConnectionHandshake("me.app", null).encode()).getDeviceId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedPayload_isRejected() throws Exception {
+        byte[] compressed = mSender.compress(PEER, json(2000));
+        mReceiver.decompress(compressed, 0, compressed.length - 3);
+    }
+
+    @Test
+    public void lz4Block_roundTripsOverlappingMatches() throws Exception {
+        byte[] src = new byte[5000];
+        for (int i = 0; i < src.length; i++) {
+            // a run first, its match overlaps the bytes it copies
+            src[i] = (byte) (i < 300 ? 'x' : i % 3 == 0 ? 'a' : i % 251);
+        }
+        byte[] out = new byte[Lz4Block.maxCompressedLength(src.length)];
+        int length = Lz4Block.compress(src, 0, src.length, out, 0);
+        byte[] decoded = new byte[src.length];
+        Lz4Block.decompress(out, 0, length, decoded, 0, decoded.length);
+
+        assertArrayEquals(src, decoded);
+    }
+}
@@ -0,0 +1,153 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectSchedulerTest {
+
+    /**
+     * Stands in for GoogleApiClient: each reconnect() takes 100 ms and then connects, fails or
+     * never answers, as scripted.
+     */
+    private final class FakeApiClient implements ReconnectScheduler.ApiClient {
+        static final int CONNECT = 0;
+        static final int FAIL = 1;
+        static final int HANG = 2;
+
+        final LinkedList<Integer> outcomes = new LinkedList<>();
+        final List<Long> reconnectTimes = new ArrayList<>();
+
+        @Override
+        public void reconnect() {
+            reconnectTimes.add(mScheduler.now());
+            int outcome = outcomes.isEmpty() ? CONNECT : outcomes.removeFirst();
+            if (outcome == CONNECT) {
+                mScheduler.schedule(() -> mReconnect.onConnected(), 100);
+            } else if (outcome == FAIL) {
+                mScheduler.schedule(() -> mReconnect.onConnectionFailed(), 100);
+            }
+        }
+    }
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final FakeApiClient mClient = new FakeApiClient();
+    private final List<String> mEvents = new ArrayList<>();
+    private final ReconnectScheduler mReconnect = new ReconnectScheduler.Builder(mClient, mScheduler)
+            .backoff(1000, 8000)
+            .attemptTimeoutMillis(5000)
+            .circuitBreaker(4, 60000)
+            .random(new Random(42))
+            .build();
+
+    {
+        mReconnect.setListener(new ReconnectScheduler.Listener() {
+            @Override
+            public void onRecovered(long downtimeMillis, int attempts) {
+                mEvents.add("recovered " + downtimeMillis + "ms/" + attempts);
+            }
+
+            @Override
+            public void onCircuitOpen(long retryInMillis) {
+                mEvents.add("open " + retryInMillis);
+            }
+        });
+    }
+
+    @Test
+    public void suspension_doesNotReconnectImmediately() throws Exception {
+        mReconnect.onConnected();
+        mReconnect.onConnectionSuspended();
+        mScheduler.advance(0);
+
+        assertEquals(0, mClient.reconnectTimes.size());
+        assertEquals(ReconnectScheduler.STATE_BACKING_OFF, mReconnect.getState());
+    }
+
+    @Test
+    public void backoff_growsWithJitterUpToCap() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mClient.outcomes.add(FakeApiClient.FAIL);
+        }
+        mReconnect.onConnectionSuspended();
+        mScheduler.advance(60000);
+
+        // suspension, then 3 failures; each wait is in [ceiling / 2, ceiling]
+        long[] ceilings = {1000, 2000, 4000, 8000};
+        long previousEnd = 0;
+        assertEquals(4, mClient.reconnectTimes.size());
+        for (int i = 0; i < ceilings.length; i++) {
+            long wait = mClient.reconnectTimes.get(i) - previousEnd;
+            assertTrue("wait " + wait, wait >= ceilings[i] / 2 && wait <= ceilings[i]);
+            previousEnd = mClient.reconnectTimes.get(i) + 100;
+        }
+        assertEquals(ReconnectScheduler.STATE_CONNECTED, mReconnect.getState());
+    }
+
+    @Test
+    public void recovery_reportsDowntimeAndAttempts() throws Exception {
+        mClient.outcomes.add(FakeApiClient.FAIL);
+        mReconnect.onConnectionSuspended();
+        mScheduler.advance(60000);
+
+        assertEquals(1, mEvents.size());
+        long recoveredAt = mClient.reconnectTimes.get(1) + 100;
+        assertEquals("recovered " + recoveredAt + "ms/2", mEvents.get(0));
+        assertEquals(1, mReconnect.getRecoveryMillis().count());
+        assertEquals(recoveredAt, mReconnect.getRecoveryMillis().max());
+    }
+
+    @Test
+    public void repeatedFailures_openCircuitThenProbe() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mClient.outcomes.add(FakeApiClient.FAIL);
+        }
+        mReconnect.onConnectionFailed();
+        mScheduler.advance(30000);
+
+        // the initial failure and three attempts reach the threshold
+        assertEquals(3, mClient.reconnectTimes.size());
+        assertEquals(ReconnectScheduler.STATE_CIRCUIT_OPEN, mReconnect.getState());
+        assertEquals("open 60000", mEvents.get(0));
+
+        // the probe fails and reopens the circuit, the next one succeeds
+        mScheduler.advance(60000);
+        assertEquals(4, mClient.reconnectTimes.size());
+        assertEquals(2, mReconnect.getCircuitOpenCount());
+        mScheduler.advance(60000);
+        assertEquals(ReconnectScheduler.STATE_CIRCUIT_OPEN, mReconnect.getState());
+        assertEquals(3, mReconnect.getCircuitOpenCount());
+        mScheduler.advance(60000);
+        assertEquals(ReconnectScheduler.STATE_CONNECTED, mReconnect.getState());
+    }
+
+    @Test
+    public void hangingAttempt_timesOutAsFailure() throws Exception {
+        mClient.outcomes.add(FakeApiClient.HANG);
+        mReconnect.onConnectionSuspended();
+        mScheduler.advance(1000 + 5000);
+
+        assertEquals(ReconnectScheduler.STATE_BACKING_OFF, mReconnect.getState());
+        mScheduler.advance(60000);
+        assertEquals(2, mClient.reconnectTimes.size());
+        assertEquals(ReconnectScheduler.STATE_CONNECTED, mReconnect.getState());
+    }
+
+    @Test
+    public void cancel_stopsRetrying() throws Exception {
+        mReconnect.onConnectionSuspended();
+        mReconnect.cancel();
+        mScheduler.advance(60000);
+
+        assertEquals(0, mClient.reconnectTimes.size());
+        assertEquals(0, mScheduler.pendingCount());
+    }
+}
@@ -0,0 +1,271 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.transport.LoopbackNetwork;
+import me.tatocaster.nearbyconnection.transport.LoopbackTransport;
+import me.tatocaster.nearbyconnection.transport.NearbyTransport;
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+import me.tatocaster.nearbyconnection.wire.RelayFraming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RelayRouterTest {
+
+    private static final String SERVICE = "service";
+    private static final int COLUMNS = 20;
+    private static final int ROWS = 15;
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mEvents = new ArrayList<>();
+    private int mFramesSent;
+
+    /**
+     * One device of the simulated venue.
+     */
+    private final class Node implements NearbyTransport.MessageListener {
+        final LoopbackTransport transport;
+        final List<String> neighbors = new ArrayList<>();
+        final RelayRouter router;
+        int received;
+
+        Node(LoopbackNetwork network, String name, int ttl) {
+            transport = network.newTransport(name, SERVICE);
+            router = new RelayRouter.Builder(name, new RelayRouter.Link() {
+                @Override
+                public Collection<String> getNeighbors() {
+                    return neighbors;
+                }
+
+                @Override
+                public void send(Collection<String> endpointIds, byte[] frame) {
+                    mFramesSent += endpointIds.size();
+                    transport.sendReliableMessage(new ArrayList<>(endpointIds), frame);
+                }
+            }, mScheduler::now).ttl(ttl).build();
+            router.setListener((origin, hops, buffer, offset, length) -> received++);
+            transport.startAdvertising(null, 0, (endpointId, endpointName, payload) ->
+                    transport.acceptConnectionRequest(endpointId, null, this, statusCode ->
+                            neighbors.add(endpointId)), null);
+        }
+
+        void connect(final Node other) {
+            transport.sendConnectionRequest(null, other.transport.getEndpointId(), null,
+                    (endpointId, statusCode, payload) -> neighbors.add(endpointId), this);
+        }
+
+        @Override
+        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+            router.onFrameReceived(endpointId, payload, 0, payload.length);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            neighbors.remove(endpointId);
+            router.onNeighborDisconnected(endpointId);
+        }
+    }
+
+    /**
+     * A grid where every node is in range of the nodes left, right, above and below it.
+     */
+    private Node[][] grid(int ttl) {
+        LoopbackNetwork network = new LoopbackNetwork.Builder(mScheduler).latency(10, 0)
+                .random(new Random(7)).build();
+        Node[][] nodes = new Node[ROWS][COLUMNS];
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                nodes[row][column] = new Node(network, row + ":" + column, ttl);
+            }
+        }
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                if (column + 1 < COLUMNS) {
+                    nodes[row][column].connect(nodes[row][column + 1]);
+                }
+                if (row + 1 < ROWS) {
+                    nodes[row][column].connect(nodes[row + 1][column]);
+                }
+            }
+        }
+        mScheduler.advance(1000);
+        assertEquals(2, nodes[0][0].neighbors.size());
+        assertEquals(4, nodes[1][1].neighbors.size());
+        return nodes;
+    }
+
+    @Test
+    public void broadcast_reachesEveryNodeOnceOverTheShortestPaths() throws Exception {
+        Node[][] nodes = grid(64);
+        Node corner = nodes[0][0];
+        Node farCorner = nodes[ROWS - 1][COLUMNS - 1];
+
+        corner.router.broadcast("hello venue".getBytes());
+        mScheduler.advance(1000);
+
+        long duplicates = 0;
+        for (Node[] row : nodes) {
+            for (Node node : row) {
+                assertEquals(node == corner ? 0 : 1, node.received);
+                duplicates += node.router.getDuplicates();
+            }
+        }
+        // every link carries the flood once each way at most
+        int links = ROWS * (COLUMNS - 1) + COLUMNS * (ROWS - 1);
+        assertTrue(mFramesSent <= 2 * links);
+        assertEquals(mFramesSent - (ROWS * COLUMNS - 1), duplicates);
+
+        assertEquals(ROWS - 1 + COLUMNS - 1, farCorner.router.getHopCounts().max());
+        assertEquals(10.0, farCorner.router.getHopLatencyMillis().mean(), 0);
+        assertEquals(10, farCorner.router.getHopLatencyMillis(
+                nodes[ROWS - 2][COLUMNS - 1].transport.getEndpointId()).max());
+    }
+
+    @Test
+    public void unicast_followsTheLearnedRouteOnceTheOriginIsKnown() throws Exception {
+        Node[][] nodes = grid(64);
+        Node corner = nodes[0][0];
+        Node farCorner = nodes[ROWS - 1][COLUMNS - 1];
+        int distance = ROWS - 1 + COLUMNS - 1;
+
+        // nothing is known about the corner yet, the first message floods
+        farCorner.router.send(corner.router.getNodeId(), "anyone there?".getBytes());
+        mScheduler.advance(1000);
+        assertEquals(1, corner.received);
+        assertTrue(mFramesSent > distance);
+        assertEquals(distance, corner.router.getRouteHops(farCorner.router.getNodeId()));
+
+        // the corner answers along the route it learned, hop by hop
+        mFramesSent = 0;
+        corner.router.send(farCorner.router.getNodeId(), "here".getBytes());
+        mScheduler.advance(1000);
+        assertEquals(1, farCorner.received);
+        assertEquals(distance, mFramesSent);
+        assertEquals(distance, farCorner.router.getHopCounts().max());
+
+        // and from now on both ways stay on the shortest path
+        mFramesSent = 0;
+        farCorner.router.send(corner.router.getNodeId(), "thanks".getBytes());
+        mScheduler.advance(1000);
+        assertEquals(2, corner.received);
+        assertEquals(distance, mFramesSent);
+        assertEquals(0, nodes[1][1].received);
+    }
+
+    @Test
+    public void ttl_boundsHowFarAFloodSpreads() throws Exception {
+        Node[][] nodes = grid(3);
+        nodes[0][0].router.broadcast("nearby only".getBytes());
+        mScheduler.advance(1000);
+
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                int distance = row + column;
+                assertEquals(row + ":" + column, distance >= 1 && distance <= 3 ? 1 : 0,
+                        nodes[row][column].received);
+            }
+        }
+        assertTrue(nodes[1][2].router.getExpired() > 0);
+    }
+
+    @Test
+    public void seenSet_isBoundedAndDropsOnlyRecentDuplicates() throws Exception {
+        RelayRouter router = new RelayRouter.Builder("me", link(), mScheduler::now)
+                .seenCapacity(2).build();
+        router.setListener((origin, hops, buffer, offset, length) ->
+                mEvents.add(origin + " " + new String(buffer, offset, length) + " " + hops));
+
+        byte[] first = frame("a", 1, "", "one");
+        router.onFrameReceived("x", first, 0, first.length);
+        router.onFrameReceived("y", first, 0, first.length);
+        receive(router, frame("a", 2, "", "two"));
+        receive(router, frame("a", 3, "", "three"));
+        // "one" fell out of the seen set
+        router.onFrameReceived("y", first, 0, first.length);
+
+        assertEquals("[a one 1, a two 1, a three 1, a one 1]", mEvents.toString());
+        assertEquals(1, router.getDuplicates());
+    }
+
+    @Test
+    public void copiesSentAnotherWay_shareTheSeenSet() throws Exception {
+        RelayRouter router = new RelayRouter.Builder("me", link(), mScheduler::now).build();
+        router.setListener((origin, hops, buffer, offset, length) ->
+                mEvents.add(origin + " " + new String(buffer, offset, length) + " " + hops));
+
+        // relayed first, then the outbox copy
+        receive(router, frame("a", 1, "", "one"));
+        byte[] copy = RelayFraming.encodeCopy("a", 1, "one".getBytes());
+        RelayFraming.decodeCopy(copy, 0, copy.length, (origin, sequence, buffer, offset, length) -> {
+            assertEquals("one", new String(buffer, offset, length));
+            assertFalse(router.markSeen(origin, sequence));
+        });
+        // the outbox copy first, then relayed
+        assertTrue(router.markSeen("a", 2));
+        receive(router, frame("a", 2, "", "two"));
+
+        assertEquals("[a one 1]", mEvents.toString());
+        assertEquals(2, router.getDuplicates());
+    }
+
+    @Test
+    public void disconnectedNeighbor_takesItsRoutesAlong() throws Exception {
+        final List<String> sentTo = new ArrayList<>();
+        RelayRouter router = new RelayRouter.Builder("me", new RelayRouter.Link() {
+            @Override
+            public Collection<String> getNeighbors() {
+                return Arrays.asList("x", "y", "z");
+            }
+
+            @Override
+            public void send(Collection<String> endpointIds, byte[] frame) {
+                sentTo.add(endpointIds.toString());
+            }
+        }, mScheduler::now).routeExpiryMillis(5000).build();
+
+        byte[] viaY = frame("far", 1, "", "hi");
+        router.onFrameReceived("y", viaY, 0, viaY.length);
+        router.send("far", "back".getBytes());
+        router.onNeighborDisconnected("y");
+        router.send("far", "again".getBytes());
+
+        byte[] viaZ = frame("far", 2, "", "hi");
+        router.onFrameReceived("z", viaZ, 0, viaZ.length);
+        mScheduler.advance(5000);
+        router.send("far", "expired".getBytes());
+
+        assertEquals("[[x, z], [y], [x, y, z], [x, y], [x, y, z]]", sentTo.toString());
+    }
+
+    private void receive(RelayRouter router, byte[] frame) {
+        router.onFrameReceived("x", frame, 0, frame.length);
+    }
+
+    private byte[] frame(String origin, int sequence, String destination, String payload) {
+        byte[] bytes = payload.getBytes();
+        return RelayFraming.encodeData(8, mScheduler.now(), origin, sequence, destination, bytes, 0,
+                bytes.length);
+    }
+
+    private RelayRouter.Link link() {
+        return new RelayRouter.Link() {
+            @Override
+            public Collection<String> getNeighbors() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void send(Collection<String> endpointIds, byte[] frame) {
+            }
+        };
+    }
+}
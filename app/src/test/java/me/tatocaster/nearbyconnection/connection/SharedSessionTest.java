@@ -0,0 +1,72 @@
+package me.tatocaster.nearbyconnection.connection;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSessionTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mCalls = new ArrayList<>();
+    private final SharedSession mSession = new SharedSession(new SharedSession.Client() {
+        @Override
+        public void open() {
+            mCalls.add("open");
+        }
+
+        @Override
+        public void close() {
+            mCalls.add("close");
+        }
+    }, mScheduler, 5000);
+
+    @Test
+    public void handOverBetweenScreens_keepsTheClientOpen() throws Exception {
+        mSession.acquire();
+        // the next screen starts before the first one stops
+        mSession.acquire();
+        mSession.release();
+        mScheduler.advance(60000);
+
+        assertEquals(Arrays.asList("open"), mCalls);
+        assertEquals(1, mSession.getReferences());
+    }
+
+    @Test
+    public void rotation_reacquiresWithinTheLinger() throws Exception {
+        mSession.acquire();
+        mSession.release();
+        mScheduler.advance(4999);
+        mSession.acquire();
+        mScheduler.advance(60000);
+
+        assertEquals(Arrays.asList("open"), mCalls);
+        assertEquals(1, mSession.getOpens());
+    }
+
+    @Test
+    public void lastRelease_closesAfterTheLingerAndReopensOnDemand() throws Exception {
+        mSession.acquire();
+        mSession.release();
+        mScheduler.advance(5000);
+        assertFalse(mSession.isOpen());
+
+        mSession.acquire();
+        assertTrue(mSession.isOpen());
+        assertEquals(Arrays.asList("open", "close", "open"), mCalls);
+        assertEquals(0, mScheduler.pendingCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseWithoutAcquire_throws() throws Exception {
+        mSession.release();
+    }
+}
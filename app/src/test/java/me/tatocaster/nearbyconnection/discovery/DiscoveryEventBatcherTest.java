@@ -0,0 +1,85 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiscoveryEventBatcherTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mBatches = new ArrayList<>();
+    private final DiscoveryEventBatcher mBatcher = new DiscoveryEventBatcher(mScheduler,
+            (found, lost) -> {
+                StringBuilder batch = new StringBuilder();
+                for (DiscoveryEventBatcher.Found f : found) {
+                    batch.append('+').append(f.getId()).append('=').append(f.getName()).append(' ');
+                }
+                for (String id : lost) {
+                    batch.append('-').append(id).append(' ');
+                }
+                mBatches.add(batch.toString().trim());
+            }, 16, 4);
+
+    @Test
+    public void eventsInsideWindow_flushOnce() throws Exception {
+        mBatcher.onEndpointFound("a", "A");
+        mBatcher.onEndpointFound("b", "B");
+        mBatcher.onEndpointLost("c");
+        mScheduler.advance(15);
+        assertEquals(0, mBatches.size());
+
+        mScheduler.advance(1);
+        assertEquals(1, mBatches.size());
+        assertEquals("+a=A +b=B -c", mBatches.get(0));
+        assertEquals(1, mBatcher.getFlushes());
+    }
+
+    @Test
+    public void foundThenLost_isDeliveredAsLost() throws Exception {
+        mBatcher.onEndpointFound("a", "A");
+        mScheduler.advance(16);
+        // refreshed and then lost in the next batch: the listed "a" has to go
+        mBatcher.onEndpointFound("a", "A2");
+        mBatcher.onEndpointFound("b", "B");
+        mBatcher.onEndpointLost("a");
+        mScheduler.advance(16);
+
+        assertEquals("+b=B -a", mBatches.get(1));
+        assertEquals(4, mBatcher.getEventsIn());
+        assertEquals(1, mBatcher.getEventsCoalesced());
+    }
+
+    @Test
+    public void lostThenFound_isDeliveredAsFound() throws Exception {
+        mBatcher.onEndpointLost("a");
+        mBatcher.onEndpointFound("a", "A2");
+        mScheduler.advance(16);
+
+        assertEquals("+a=A2", mBatches.get(0));
+        assertEquals(1, mBatcher.getEventsCoalesced());
+    }
+
+    @Test
+    public void fullBatch_flushesImmediately() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            mBatcher.onEndpointFound("id" + i, "N");
+        }
+
+        assertEquals(1, mBatches.size());
+        assertEquals(0, mScheduler.pendingCount());
+    }
+
+    @Test
+    public void cancel_dropsPending() throws Exception {
+        mBatcher.onEndpointFound("a", "A");
+        mBatcher.cancel();
+        mScheduler.advance(100);
+
+        assertEquals(0, mBatches.size());
+    }
+}
@@ -0,0 +1,81 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EndpointRegistryTest {
+
+    private final EndpointRegistry mRegistry = new EndpointRegistry();
+    private int mNotifications;
+
+    @Test
+    public void sameNameDifferentIds_areKeptApart() throws Exception {
+        mRegistry.put("a", "Nexus 5");
+        mRegistry.put("b", "Nexus 5");
+
+        assertEquals(2, mRegistry.size());
+        assertEquals("a", mRegistry.getAt(0).getId());
+        assertEquals("b", mRegistry.getAt(1).getId());
+    }
+
+    @Test
+    public void remove_keepsDiscoveryOrder() throws Exception {
+        mRegistry.put("a", "A");
+        mRegistry.put("b", "B");
+        mRegistry.put("c", "C");
+        mRegistry.put("d", "D");
+
+        mRegistry.remove("b");
+        mRegistry.remove("d");
+
+        assertEquals(2, mRegistry.size());
+        assertEquals("C", mRegistry.getAt(1).getName());
+        assertEquals(1, mRegistry.positionOf("c"));
+        assertEquals(-1, mRegistry.positionOf("b"));
+        assertNull(mRegistry.get("d"));
+    }
+
+    @Test
+    public void put_existingIdRenamesInPlace() throws Exception {
+        EndpointRegistry.Endpoint first = mRegistry.put("a", "old");
+        mRegistry.put("b", "B");
+
+        assertSame(first, mRegistry.put("a", "new"));
+        assertEquals("new", mRegistry.getAt(0).getName());
+        assertEquals(2, mRegistry.size());
+    }
+
+    @Test
+    public void batchedChanges_notifyOnce() throws Exception {
+        mRegistry.setListener(() -> mNotifications++);
+
+        mRegistry.beginUpdate();
+        for (int i = 0; i < 100; i++) {
+            mRegistry.put("id" + i, "name");
+        }
+        for (int i = 0; i < 100; i += 2) {
+            mRegistry.remove("id" + i);
+        }
+        mRegistry.endUpdate();
+
+        assertEquals(1, mNotifications);
+        assertEquals(50, mRegistry.size());
+        assertEquals("id99", mRegistry.getAt(49).getId());
+    }
+
+    @Test
+    public void noOpBatch_doesNotNotify() throws Exception {
+        mRegistry.put("a", "A");
+        mRegistry.setListener(() -> mNotifications++);
+
+        mRegistry.beginUpdate();
+        mRegistry.remove("missing");
+        mRegistry.put("a", "A");
+        mRegistry.endUpdate();
+
+        assertEquals(0, mNotifications);
+    }
+}
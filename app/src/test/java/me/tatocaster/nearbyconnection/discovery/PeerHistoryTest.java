@@ -0,0 +1,136 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PeerHistoryTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private PeerHistory history(File file) {
+        return new PeerHistory(file, 4, 7 * DAY);
+    }
+
+    private static List<String> names(List<PeerHistory.Peer> peers) {
+        List<String> names = new ArrayList<>();
+        for (PeerHistory.Peer peer : peers) {
+            names.add(peer.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void peers_surviveSaveAndLoad() throws Exception {
+        File file = new File(mFolder.getRoot(), "peers");
+        PeerHistory history = history(file);
+        history.load();
+        history.onConnectionResult("service", "Pixel", "pixel-id", true, 1000);
+        history.onConnectionResult("service", "Pixel", null, false, 2000);
+        history.onConnectionResult("service", "Nexus \u00e9", "", true, 3000);
+        history.save();
+
+        PeerHistory loaded = history(file);
+        loaded.load();
+        PeerHistory.Peer pixel = loaded.get("service", "Pixel");
+        assertEquals(2, pixel.getAttempts());
+        assertEquals(1, pixel.getSuccesses());
+        assertEquals(2000, pixel.getLastSeenMillis());
+        // a failure does not forget who it was
+        assertEquals("pixel-id", pixel.getDeviceId());
+        assertEquals("", loaded.get("service", "Nexus \u00e9").getDeviceId());
+        assertEquals(Arrays.asList("Nexus \u00e9", "Pixel"), names(loaded.getLikelyPeers("service", 3000, 5)));
+    }
+
+    @Test
+    public void ranking_weighsSuccessRateByRecency() throws Exception {
+        PeerHistory history = history(new File(mFolder.getRoot(), "peers"));
+        long now = 100 * DAY;
+        for (int i = 0; i < 4; i++) {
+            history.onConnectionResult("service", "reliable", null, true, now - 14 * DAY);
+            history.onConnectionResult("service", "flaky", null, i < 2, now - DAY);
+        }
+        history.onConnectionResult("service", "never", null, false, now);
+        history.onConnectionResult("other", "elsewhere", null, true, now);
+
+        // 5/6 two half-lives ago ranks below 3/6 from yesterday
+        assertEquals(Arrays.asList("flaky", "reliable"), names(history.getLikelyPeers("service", now, 5)));
+        history.onSeen("service", "reliable", now);
+        assertEquals(Arrays.asList("reliable"), names(history.getLikelyPeers("service", now, 1)));
+
+        // full, so a new peer takes the place of the lowest ranked
+        history.onConnectionResult("service", "new", null, true, now);
+        assertNull(history.get("service", "never"));
+        assertEquals(4, history.size());
+    }
+
+    @Test
+    public void versionOneFile_loadsWithoutInstallIds() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(PeerHistory.MAGIC);
+        out.writeByte(1);
+        out.writeShort(1);
+        out.writeUTF("service");
+        out.writeUTF("Pixel");
+        out.writeShort(3);
+        out.writeShort(2);
+        out.writeLong(1000);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        File file = new File(mFolder.getRoot(), "peers");
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+
+        PeerHistory loaded = history(file);
+        loaded.load();
+        assertEquals(2, loaded.get("service", "Pixel").getSuccesses());
+        assertEquals("", loaded.get("service", "Pixel").getDeviceId());
+    }
+
+    @Test
+    public void corruptFile_isAnEmptyHistory() throws Exception {
+        File file = new File(mFolder.getRoot(), "peers");
+        PeerHistory history = history(file);
+        history.onConnectionResult("service", "Pixel", "pixel-id", true, 1000);
+        history.save();
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(raw.length() - 6);
+            raw.write('?');
+        } finally {
+            raw.close();
+        }
+
+        PeerHistory loaded = history(file);
+        try {
+            loaded.load();
+        } catch (IOException expected) {
+            assertEquals(0, loaded.size());
+            return;
+        }
+        throw new AssertionError("corruption not detected");
+    }
+}
@@ -0,0 +1,93 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ScanSchedulerTest {
+
+    private static final ScanProfile PROFILE = new ScanProfile.Builder("test")
+            .window(1000, 8000)
+            .idle(1000, 16000)
+            .build();
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mRadio = new ArrayList<>();
+    private final ScanScheduler mScan = new ScanScheduler(new ScanScheduler.Radio() {
+        @Override
+        public void start(long windowMillis) {
+            mRadio.add(mScheduler.now() + ":on " + windowMillis);
+        }
+
+        @Override
+        public void stop() {
+            mRadio.add(mScheduler.now() + ":off");
+        }
+    }, mScheduler, PROFILE);
+
+    @Test
+    public void emptyArea_backsOffToShortWindowsAndLongGaps() throws Exception {
+        mScan.start();
+        mScheduler.advance(100000);
+
+        assertEquals("0:on 8000", mRadio.get(0));
+        assertEquals("8000:off", mRadio.get(1));
+        assertEquals(1000, mScan.getWindowMillis());
+        assertEquals(16000, mScan.getIdleMillis());
+        ScanScheduler.Stats stats = mScan.getStats().get(0);
+        assertEquals(0, stats.getTimeToFirstPeerMillis().count());
+        // three full windows before the score drops, then halving down to 1 s windows
+        assertEquals(3 * 8000 + 4000 + 2000 + 4 * 1000, stats.getRadioOnMillis());
+    }
+
+    @Test
+    public void busyArea_keepsGapsShortAndWindowsLong() throws Exception {
+        mScan.start();
+        for (int i = 0; i < 20; i++) {
+            mScheduler.advance(500);
+            mScan.onPeerFound();
+            mScheduler.advance(500);
+        }
+        assertEquals(8000, mScan.getWindowMillis());
+        assertEquals(1000, mScan.getIdleMillis());
+        assertEquals(500, mScan.getStats().get(0).getTimeToFirstPeerMillis().max());
+    }
+
+    @Test
+    public void successfulConnections_countTowardYield() throws Exception {
+        mScan.start();
+        mScheduler.advance(20000);
+        long idleWhenEmpty = mScan.getIdleMillis();
+
+        mScan.onConnectionResult(true);
+        mScan.onConnectionResult(true);
+        mScheduler.advance(idleWhenEmpty + mScan.getWindowMillis());
+        assertEquals(1000, mScan.getIdleMillis());
+    }
+
+    @Test
+    public void stop_turnsRadioOffAndSwitchingProfileKeepsSeparateStats() throws Exception {
+        mScan.start();
+        mScheduler.advance(3000);
+        mScan.setProfile(ScanProfile.LOW_POWER);
+        assertEquals("3000:off", mRadio.get(1));
+        assertEquals("3000:on " + ScanProfile.LOW_POWER.getMaxWindowMillis(), mRadio.get(2));
+        mScheduler.advance(1000);
+        mScan.stop();
+
+        assertFalse(mScan.isRunning());
+        assertEquals("4000:off", mRadio.get(mRadio.size() - 1));
+        assertEquals(0, mScheduler.pendingCount());
+        List<ScanScheduler.Stats> stats = mScan.getStats();
+        assertEquals("test", stats.get(0).getProfileName());
+        assertEquals(3000, stats.get(0).getRadioOnMillis());
+        assertEquals(1000, stats.get(1).getRadioOnMillis());
+        assertEquals(1000, stats.get(1).getRunningMillis());
+    }
+}
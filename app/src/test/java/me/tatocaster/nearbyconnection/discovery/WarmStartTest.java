@@ -0,0 +1,103 @@
+package me.tatocaster.nearbyconnection.discovery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WarmStartTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mActions = new ArrayList<>();
+    private final WarmStart mWarmStart = new WarmStart.Builder(new WarmStart.Actions() {
+        @Override
+        public void startDiscovery() {
+            mActions.add(mScheduler.now() + ":discover");
+        }
+
+        @Override
+        public void stopDiscovery() {
+            mActions.add(mScheduler.now() + ":stop");
+        }
+
+        @Override
+        public void connect(String endpointId, String endpointName) {
+            mActions.add(mScheduler.now() + ":connect " + endpointName);
+        }
+    }, mScheduler)
+            .timeoutMillis(10000)
+            .build();
+
+    @Test
+    public void knownPeers_areReconnectedToOnceFound() throws Exception {
+        mWarmStart.start(Arrays.asList("a", "b"));
+        mScheduler.advance(300);
+        assertTrue(mWarmStart.onEndpointFound("1", "a"));
+        assertFalse(mWarmStart.onEndpointFound("2", "stranger"));
+        assertFalse(mWarmStart.onEndpointFound("3", "a"));
+        mScheduler.advance(200);
+        mWarmStart.onPeerConnected("a");
+        assertTrue(mWarmStart.onEndpointFound("4", "b"));
+        mWarmStart.onConnectFailed("b");
+
+        assertEquals(Arrays.asList("0:discover", "300:connect a", "500:connect b", "500:stop"), mActions);
+        assertEquals(500, mWarmStart.getWarmMillis().max());
+        assertEquals(0, mWarmStart.getColdMillis().count());
+        // an outage does not start it over
+        mWarmStart.start(Arrays.asList("a", "b"));
+        assertFalse(mWarmStart.onEndpointFound("5", "b"));
+    }
+
+    @Test
+    public void search_endsAfterTheTimeout_butNotTheUsersDiscovery() throws Exception {
+        mWarmStart.start(Collections.singletonList("a"));
+        assertTrue(mWarmStart.isSearchOnly());
+        mScheduler.advance(10000);
+        assertEquals(Arrays.asList("0:discover", "10000:stop"), mActions);
+
+        mWarmStart.cancel();
+        mActions.clear();
+        mWarmStart.start(Collections.singletonList("a"));
+        mWarmStart.onUserDiscovery();
+        assertFalse(mWarmStart.isSearchOnly());
+        mScheduler.advance(10000);
+        assertEquals(Arrays.asList("10000:discover"), mActions);
+    }
+
+    @Test
+    public void searchAfterAnOutage_findsThePeersAgainByName() throws Exception {
+        mWarmStart.start(Collections.singletonList("a"));
+        assertTrue(mWarmStart.onEndpointFound("1", "a"));
+        mWarmStart.onPeerConnected("a");
+        // the client was lost and is back, "1" is stale
+        mScheduler.advance(1000);
+        mWarmStart.search(Collections.singletonList("a"));
+        assertTrue(mWarmStart.onEndpointFound("2", "a"));
+        mScheduler.advance(10000);
+
+        assertEquals(Arrays.asList("0:discover", "0:connect a", "0:stop", "1000:discover",
+                "1000:connect a", "11000:stop"), mActions);
+        assertEquals(1, mWarmStart.getWarmMillis().count());
+    }
+
+    @Test
+    public void peersPickedByTheUser_countAsColdStarts() throws Exception {
+        mWarmStart.start(Collections.<String>emptyList());
+        mScheduler.advance(4000);
+        mWarmStart.onPeerConnected("a");
+        mScheduler.advance(1000);
+        mWarmStart.onPeerConnected("b");
+
+        assertTrue(mActions.isEmpty());
+        assertEquals(1, mWarmStart.getColdMillis().count());
+        assertEquals(4000, mWarmStart.getColdMillis().max());
+    }
+}
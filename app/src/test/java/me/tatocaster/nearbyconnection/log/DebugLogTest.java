@@ -0,0 +1,71 @@
+package me.tatocaster.nearbyconnection.log;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DebugLogTest {
+
+    private final DebugLog mLog = new DebugLog(4);
+
+    @Test
+    public void render_showsNewestEntriesOldestFirst() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mLog.log(DebugLog.DEBUG, "event", "ep" + i);
+        }
+
+        StringBuilder text = new StringBuilder();
+        mLog.render(text, 2);
+
+        assertEquals("event:ep8\nevent:ep9", text.toString());
+        assertEquals(10, mLog.totalCount());
+    }
+
+    @Test
+    public void snapshot_isBoundedByCapacity() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mLog.log(DebugLog.DEBUG, "e" + i, null);
+        }
+
+        DebugLog.Entry[] entries = new DebugLog.Entry[16];
+        assertEquals(4, mLog.snapshot(entries));
+        assertEquals("e6", entries[0].getEvent());
+    }
+
+    @Test
+    public void formatting_isDeferredUntilRendered() throws Exception {
+        final boolean[] formatted = {false};
+        Object arg = new Object() {
+            @Override
+            public String toString() {
+                formatted[0] = true;
+                return "payload";
+            }
+        };
+
+        mLog.log(DebugLog.DEBUG, "onMessageReceived", "ep", "got {} ({} bytes)", arg, 7);
+        assertFalse(formatted[0]);
+
+        StringBuilder text = new StringBuilder();
+        mLog.render(text, 1);
+        assertTrue(formatted[0]);
+        assertEquals("onMessageReceived:ep: got payload (7 bytes)", text.toString());
+    }
+
+    @Test
+    public void disabledLevel_recordsNothing() throws Exception {
+        mLog.setMinLevel(DebugLog.WARN);
+        mLog.log(DebugLog.DEBUG, "quiet", null);
+        mLog.log(DebugLog.ERROR, "loud", null);
+
+        StringWriter out = new StringWriter();
+        mLog.export(out);
+
+        assertEquals(1, mLog.totalCount());
+        assertTrue(out.toString().trim().endsWith(" E loud"));
+    }
+}
@@ -0,0 +1,45 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class DecodedMessageCacheTest {
+
+    private final DecodedMessageCache<String> mCache = new DecodedMessageCache<>(2, String::new);
+
+    @Test
+    public void repeatSighting_returnsSameInstanceWithoutDecoding() throws Exception {
+        String found = mCache.get(new byte[]{'a'});
+        String lost = mCache.get(new byte[]{'a'});
+
+        assertSame(found, lost);
+        assertEquals(1, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        String a = mCache.get(new byte[]{'a'});
+        mCache.get(new byte[]{'b'});
+        mCache.get(new byte[]{'a'});
+        mCache.get(new byte[]{'c'});
+
+        assertEquals(2, mCache.size());
+        assertSame(a, mCache.get(new byte[]{'a'}));
+        mCache.get(new byte[]{'b'});
+        assertEquals(4, mCache.missCount());
+    }
+
+    @Test
+    public void sameHashDifferentContent_areDistinct() throws Exception {
+        // "Aa" and "BB" collide under Arrays.hashCode
+        String aa = mCache.get(new byte[]{'A', 'a'});
+        String bb = mCache.get(new byte[]{'B', 'B'});
+
+        assertNotSame(aa, bb);
+        assertEquals("BB", bb);
+    }
+}
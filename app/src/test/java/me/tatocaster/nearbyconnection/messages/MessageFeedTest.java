@@ -0,0 +1,142 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageFeedTest {
+
+    /**
+     * Payloads are "id:name".
+     */
+    private static final class TestDevice implements DeviceInfo {
+        private final String[] mParts;
+
+        TestDevice(byte[] content) {
+            mParts = new String(content).split(":");
+            if (mParts.length != 2) {
+                throw new IllegalArgumentException("not id:name");
+            }
+        }
+
+        @Override
+        public String getDeviceId() {
+            return mParts[0];
+        }
+
+        @Override
+        public String getDisplayName() {
+            return mParts[1];
+        }
+    }
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<List<String>> mSnapshots = new ArrayList<>();
+    private final MessageFeed<TestDevice> mFeed = new MessageFeed<>(mScheduler, mScheduler,
+            new DecodedMessageCache<>(16, TestDevice::new), devices -> {
+                List<String> names = new ArrayList<>();
+                for (NearbyDevice device : devices) {
+                    names.add(device.getName());
+                }
+                mSnapshots.add(names);
+            });
+
+    @Test
+    public void burstOfCallbacks_isPublishedAsOneSnapshot() throws Exception {
+        mFeed.onFound("1:a".getBytes());
+        mFeed.onFound("2:b".getBytes());
+        mFeed.onLost("1:a".getBytes());
+        mFeed.onFound("3:c".getBytes());
+        assertEquals(0, mSnapshots.size());
+
+        mScheduler.advance(0);
+        assertEquals(Arrays.asList(Arrays.asList("b", "c")), mSnapshots);
+    }
+
+    @Test
+    public void eventsOfOneMessage_keepTheirOrder() throws Exception {
+        mFeed.onFound("1:a".getBytes());
+        mFeed.onLost("1:a".getBytes());
+        mFeed.onFound("1:a".getBytes());
+        mScheduler.advance(0);
+
+        assertEquals(Arrays.asList("a"), mSnapshots.get(mSnapshots.size() - 1));
+    }
+
+    @Test
+    public void lostAfterEviction_stillRemovesTheDevice() throws Exception {
+        MessageFeed<TestDevice> feed = new MessageFeed<>(mScheduler, mScheduler,
+                new DecodedMessageCache<>(1, TestDevice::new), devices -> mSnapshots.add(
+                        Arrays.asList(String.valueOf(devices.size()))));
+        feed.onFound("1:a".getBytes());
+        feed.onFound("2:b".getBytes());
+        // "1:a" was evicted by "2:b" and decodes to a new instance
+        feed.onLost("1:a".getBytes());
+        mScheduler.advance(0);
+
+        assertEquals(Arrays.asList("1"), mSnapshots.get(mSnapshots.size() - 1));
+    }
+
+    @Test
+    public void sameModelOnTwoDevices_isListedTwice() throws Exception {
+        mFeed.onFound("1:Pixel".getBytes());
+        mFeed.onFound("2:Pixel".getBytes());
+        mScheduler.advance(0);
+        mFeed.onLost("1:Pixel".getBytes());
+        mScheduler.advance(0);
+
+        assertEquals(Arrays.asList(Arrays.asList("Pixel", "Pixel"), Arrays.asList("Pixel")), mSnapshots);
+    }
+
+    @Test
+    public void renewedSubscription_doesNotCountMessageTwice() throws Exception {
+        mFeed.onFound("1:a".getBytes());
+        mFeed.onFound("1:a".getBytes());
+        mFeed.onLost("1:a".getBytes());
+        mScheduler.advance(0);
+
+        assertEquals(Arrays.asList(), mSnapshots.get(mSnapshots.size() - 1));
+    }
+
+    @Test
+    public void devicesNotFoundAgainInAWindow_areSweptAtTheNext() throws Exception {
+        final int[] newMessages = new int[1];
+        mFeed.setFoundListener(() -> newMessages[0]++);
+        mFeed.onWindowStarted();
+        mFeed.onFound("1:a".getBytes());
+        mFeed.onFound("2:b".getBytes());
+        // "b" left while unsubscribed, only "a" is found again
+        mFeed.onWindowStarted();
+        mFeed.onFound("1:a".getBytes());
+        mScheduler.advance(0);
+        assertEquals(Arrays.asList("a", "b"), mSnapshots.get(mSnapshots.size() - 1));
+
+        mFeed.onWindowStarted();
+        mScheduler.advance(0);
+        assertEquals(Arrays.asList("a"), mSnapshots.get(mSnapshots.size() - 1));
+        // the repeat of "a" was not news
+        assertEquals(2, newMessages[0]);
+    }
+
+    @Test
+    public void undecodableAndUnknownMessages_publishNothing() throws Exception {
+        mFeed.onFound("garbage".getBytes());
+        mFeed.onLost("9:never-found".getBytes());
+        mScheduler.advance(0);
+
+        assertEquals(0, mSnapshots.size());
+    }
+
+    @Test
+    public void latency_isRecordedPerSnapshot() throws Exception {
+        mFeed.onFound("1:a".getBytes());
+        mScheduler.advance(0);
+        assertEquals(1, mFeed.getLatencyMillis().count());
+    }
+}
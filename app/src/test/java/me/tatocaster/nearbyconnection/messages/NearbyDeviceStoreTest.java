@@ -0,0 +1,87 @@
+package me.tatocaster.nearbyconnection.messages;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class NearbyDeviceStoreTest {
+
+    private final NearbyDeviceStore mStore = new NearbyDeviceStore();
+    private final List<String> mChanges = new ArrayList<>();
+    private final DeviceListDiff.Callback mRecorder = new DeviceListDiff.Callback() {
+        @Override
+        public void onInserted(int position, int count) {
+            mChanges.add("+" + position + "x" + count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mChanges.add("-" + position + "x" + count);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            mChanges.add("~" + position + "x" + count);
+        }
+    };
+
+    @Test
+    public void found_upsertsInPlaceAndTracksLastSeen() throws Exception {
+        NearbyDevice first = mStore.found("u1", "Pixel", 10);
+        mStore.found("u2", "Nexus", 20);
+        NearbyDevice renamed = mStore.found("u1", "Pixel 2", 30);
+
+        assertNotSame(first, renamed);
+        assertEquals(first.getStableId(), renamed.getStableId());
+        assertEquals(10, renamed.getFirstSeenMillis());
+        assertEquals(30, renamed.getLastSeenMillis());
+        assertEquals("[Pixel 2, Nexus]", mStore.snapshot().toString());
+    }
+
+    @Test
+    public void lost_removesOnlyWhenEveryMessageIsGone() throws Exception {
+        mStore.found("u1", "old name", 1);
+        mStore.found("u1", "new name", 2);
+
+        assertNull(mStore.lost("u1"));
+        assertEquals(1, mStore.size());
+        assertEquals("new name", mStore.lost("u1").getName());
+        assertEquals(0, mStore.snapshot().size());
+    }
+
+    @Test
+    public void diff_reportsInsertRemoveAndChangeRanges() throws Exception {
+        mStore.found("a", "A", 0);
+        mStore.found("b", "B", 0);
+        mStore.found("c", "C", 0);
+        mStore.found("d", "D", 0);
+        List<NearbyDevice> before = mStore.snapshot();
+
+        mStore.lost("a");
+        mStore.lost("b");
+        mStore.found("d", "D2", 1);
+        mStore.found("e", "E", 1);
+        mStore.found("f", "F", 1);
+        List<NearbyDevice> after = mStore.snapshot();
+
+        DeviceListDiff.dispatch(before, after, mRecorder);
+        assertEquals(Arrays.asList("-0x2", "~1x1", "+2x2"), mChanges);
+    }
+
+    @Test
+    public void diff_ofEmptyLists() throws Exception {
+        mStore.found("a", "A", 0);
+        List<NearbyDevice> one = mStore.snapshot();
+        DeviceListDiff.dispatch(new ArrayList<NearbyDevice>(), one, mRecorder);
+        DeviceListDiff.dispatch(one, one, mRecorder);
+        DeviceListDiff.dispatch(one, new ArrayList<NearbyDevice>(), mRecorder);
+
+        assertEquals(Arrays.asList("+0x1", "-0x1"), mChanges);
+    }
+}
@@ -0,0 +1,137 @@
+package me.tatocaster.nearbyconnection.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+import me.tatocaster.nearbyconnection.util.LongHistogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final MetricsRegistry mRegistry = new MetricsRegistry(0);
+
+    @Test
+    public void metrics_areCreatedOnceByName() throws Exception {
+        mRegistry.counter("a").increment();
+        mRegistry.counter("a").add(2);
+        assertEquals(3, mRegistry.counter("a").get());
+        assertSame(mRegistry.histogram("h"), mRegistry.histogram("h"));
+
+        LongHistogram owned = new LongHistogram();
+        mRegistry.register("h", owned);
+        assertSame(owned, mRegistry.histogram("h"));
+
+        assertSame(owned, mRegistry.unregister("h"));
+        assertNull(mRegistry.unregister("h"));
+        StringBuilder text = new StringBuilder();
+        mRegistry.dump(text, 0);
+        assertFalse(text.toString().contains("h {"));
+    }
+
+    @Test
+    public void dump_listsCountersWithRatesThenHistograms() throws Exception {
+        mRegistry.counter("b.lost").add(3);
+        mRegistry.counter("a.found").add(30);
+        mRegistry.histogram("latency_ms").record(12);
+
+        StringBuilder text = new StringBuilder();
+        mRegistry.dump(text, 120000);
+
+        assertEquals("uptime 120 s\n"
+                + "a.found 30 (15.0/min)\n"
+                + "b.lost 3 (1.5/min)\n"
+                + "latency_ms {n=1, mean=12, p50=12, p99=12, max=12}\n", text.toString());
+    }
+
+    @Test
+    public void dumper_appendsEveryIntervalAndOnStop() throws Exception {
+        final StringWriter file = new StringWriter();
+        MetricsDumper dumper = new MetricsDumper(mRegistry, () -> new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                file.write(buffer, offset, length);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, mScheduler, () -> 1500000000000L + mScheduler.now(), 60000);
+        mRegistry.counter("sent").increment();
+
+        dumper.start();
+        mScheduler.advance(150000);
+        dumper.stop();
+        mScheduler.advance(60000);
+
+        assertEquals(3, dumper.getDumps());
+        String[] dumps = file.toString().split("--- ", -1);
+        assertEquals(4, dumps.length);
+        // each stamped with the wall clock, to the millisecond
+        assertTrue(dumps[3].matches("(?s)\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.000\n.*"));
+        assertTrue(file.toString().endsWith("uptime 150 s\nsent 1 (0.4/min)\n"));
+    }
+
+    @Test
+    public void dumper_reportsFailuresAndKeepsGoing() throws Exception {
+        final int[] failures = {0};
+        MetricsDumper dumper = new MetricsDumper(mRegistry, () -> {
+            throw new IOException("disk full");
+        }, mScheduler, System::currentTimeMillis, 1000);
+        dumper.setErrorListener(e -> failures[0]++);
+
+        dumper.start();
+        mScheduler.advance(3000);
+
+        assertEquals(3, failures[0]);
+        assertEquals(0, dumper.getDumps());
+    }
+
+    @Test
+    public void rotatingFile_keepsOnePreviousFile() throws Exception {
+        File file = new File(mFolder.getRoot(), "metrics.log");
+        for (int i = 0; i < 5; i++) {
+            Writer writer = MetricsDumper.openRotating(file, 10);
+            writer.write("dump " + i + "\n");
+            writer.close();
+        }
+
+        assertEquals("dump 4\n", read(file));
+        assertEquals("dump 2\ndump 3\n", read(new File(file.getPath() + ".1")));
+        assertEquals(2, mFolder.getRoot().list().length);
+    }
+
+    private static String read(File file) throws IOException {
+        FileReader reader = new FileReader(file);
+        try {
+            StringBuilder text = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                text.append((char) c);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package me.tatocaster.nearbyconnection.outbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    // devices that are connected to each other, both ways
+    private final Set<String> mLinks = new HashSet<>();
+    private final List<String> mReceived = new ArrayList<>();
+    private Outbox mAlice;
+    private Outbox mBob;
+    private int mMaxDestinations = 32;
+
+    private Outbox open(final String name, File file, int compactAboveBytes) throws Exception {
+        final Outbox[] self = new Outbox[1];
+        self[0] = new Outbox.Builder(OutboxLog.open(file), (destination, frame) -> {
+            if (!mLinks.contains(name + ">" + destination)) {
+                return false;
+            }
+            mScheduler.schedule(() -> peer(destination).onFrameReceived(name, frame, 0, frame.length), 5);
+            return true;
+        }, mScheduler)
+                .commitDelayMillis(50)
+                .maxMessagesPerDestination(100)
+                .maxDestinations(mMaxDestinations)
+                .compactAboveBytes(compactAboveBytes)
+                .build();
+        self[0].setListener((origin, buffer, offset, length) ->
+                mReceived.add(origin + ":" + new String(buffer, offset, length)));
+        return self[0];
+    }
+
+    private Outbox peer(String name) {
+        return name.equals("alice") ? mAlice : mBob;
+    }
+
+    private void connect(boolean connected) {
+        if (connected) {
+            mLinks.addAll(Arrays.asList("alice>bob", "bob>alice"));
+            mAlice.onConnected("bob");
+            mBob.onConnected("alice");
+        } else {
+            mLinks.clear();
+            mAlice.onDisconnected("bob");
+            mBob.onDisconnected("alice");
+        }
+    }
+
+    @Test
+    public void queuedMessages_surviveARestartAndReplayInOrder() throws Exception {
+        File aliceLog = mFolder.newFile("alice");
+        mAlice = open("alice", aliceLog, 1 << 20);
+        mBob = open("bob", mFolder.newFile("bob"), 1 << 20);
+        mAlice.track("bob");
+        for (int i = 1; i <= 3; i++) {
+            mAlice.enqueue("bob", ("m" + i).getBytes());
+        }
+
+        // the process dies before the commit: the mapping still has the records
+        mAlice = open("alice", aliceLog, 1 << 20);
+        assertEquals(3, mAlice.getQueuedCount("bob"));
+        connect(true);
+        mScheduler.advance(100);
+
+        assertEquals(Arrays.asList("alice:m1", "alice:m2", "alice:m3"), mReceived);
+        assertEquals(0, mAlice.getQueuedCount("bob"));
+        // acked for good, and the sequence numbers go on from there
+        mAlice.close();
+        mAlice = open("alice", aliceLog, 1 << 20);
+        assertEquals(0, mAlice.getQueuedCount("bob"));
+        assertEquals(Arrays.asList("bob"), mAlice.getDestinations());
+        assertEquals(4, mAlice.enqueue("bob", "m4".getBytes()));
+    }
+
+    @Test
+    public void replays_areDeliveredOnce() throws Exception {
+        mAlice = open("alice", mFolder.newFile("alice"), 1 << 20);
+        mBob = open("bob", mFolder.newFile("bob"), 1 << 20);
+        mAlice.enqueue("bob", "hi".getBytes());
+        connect(true);
+        // bob gets it but the ack is lost with the link
+        mLinks.remove("bob>alice");
+        mScheduler.advance(100);
+        connect(false);
+        connect(true);
+        mScheduler.advance(100);
+
+        assertEquals(Arrays.asList("alice:hi"), mReceived);
+        assertEquals(0, mAlice.getQueuedCount("bob"));
+    }
+
+    @Test
+    public void appends_areSyncedTogether() throws Exception {
+        mAlice = open("alice", mFolder.newFile("alice"), 1 << 20);
+        for (int i = 0; i < 10; i++) {
+            mAlice.enqueue("bob", ("m" + i).getBytes());
+            mScheduler.advance(1);
+        }
+        mScheduler.advance(100);
+
+        // the file header, the destination and ten messages, in one sync
+        assertEquals(1, mAlice.getCommitBatchSizes().count());
+        assertEquals(12, mAlice.getCommitBatchSizes().max());
+    }
+
+    @Test
+    public void compaction_keepsTheLogBounded() throws Exception {
+        File aliceLog = mFolder.newFile("alice");
+        mAlice = open("alice", aliceLog, 4096);
+        mBob = open("bob", mFolder.newFile("bob"), 4096);
+        connect(true);
+        byte[] payload = new byte[200];
+        for (int i = 0; i < 500; i++) {
+            mAlice.enqueue("bob", payload);
+            mScheduler.advance(10);
+        }
+        connect(false);
+        mAlice.enqueue("bob", "kept".getBytes());
+        mAlice.flush();
+
+        assertEquals(500, mReceived.size());
+        assertTrue(aliceLog.length() < 64 * 1024 + 1);
+        mAlice = open("alice", aliceLog, 4096);
+        assertEquals(1, mAlice.getQueuedCount("bob"));
+        assertEquals(502, mAlice.enqueue("bob", "next".getBytes()));
+    }
+
+    @Test
+    public void peerThatNeverComesBack_doesNotGrowTheLog() throws Exception {
+        File aliceLog = mFolder.newFile("alice");
+        mAlice = open("alice", aliceLog, 4096);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < 5000; i++) {
+            mAlice.enqueue("bob", payload);
+        }
+        mAlice.flush();
+
+        // 100 queued messages of 100 bytes, the rest dropped
+        assertEquals(100, mAlice.getQueuedCount("bob"));
+        assertTrue(aliceLog.length() <= 64 * 1024);
+        mAlice.close();
+        mAlice = open("alice", aliceLog, 4096);
+        assertEquals(100, mAlice.getQueuedCount("bob"));
+        assertEquals(5001, mAlice.enqueue("bob", payload));
+    }
+
+    @Test
+    public void forgottenAndTrackedAgain_keepsSequencesGoing() throws Exception {
+        mMaxDestinations = 1;
+        File aliceLog = mFolder.newFile("alice");
+        mAlice = open("alice", aliceLog, 1 << 20);
+        mBob = open("bob", mFolder.newFile("bob"), 1 << 20);
+        connect(true);
+        mAlice.enqueue("bob", "one".getBytes());
+        mAlice.enqueue("bob", "two".getBytes());
+        mScheduler.advance(100);
+
+        // bob is forgotten for carol, then comes back while his outbox still runs
+        mAlice.track("carol");
+        mAlice.onConnected("bob");
+        mAlice.enqueue("bob", "three".getBytes());
+        mScheduler.advance(100);
+
+        assertEquals(Arrays.asList("alice:one", "alice:two", "alice:three"), mReceived);
+        assertEquals(0, mAlice.getQueuedCount("bob"));
+        // and after a restart too
+        mAlice.close();
+        mAlice = open("alice", aliceLog, 1 << 20);
+        assertEquals(4, mAlice.enqueue("carol", "four".getBytes()));
+    }
+
+    @Test
+    public void tornRecord_endsTheLog() throws Exception {
+        File aliceLog = mFolder.newFile("alice");
+        mAlice = open("alice", aliceLog, 1 << 20);
+        mAlice.enqueue("bob", "one".getBytes());
+        mAlice.enqueue("bob", "two".getBytes());
+        mAlice.close();
+        // the device died while the second message was being written
+        RandomAccessFile file = new RandomAccessFile(aliceLog, "rw");
+        try {
+            OutboxLog log = OutboxLog.open(aliceLog);
+            int end = log.size();
+            log.close();
+            file.seek(end - 2);
+            file.write(new byte[]{'?', '?'});
+        } finally {
+            file.close();
+        }
+
+        mAlice = open("alice", aliceLog, 1 << 20);
+        assertEquals(1, mAlice.getQueuedCount("bob"));
+        mAlice.enqueue("bob", "three".getBytes());
+        mAlice.close();
+        assertEquals(2, open("alice", aliceLog, 1 << 20).getQueuedCount("bob"));
+    }
+
+    @Test
+    public void zeroFilledFile_isANewLog() throws Exception {
+        // created and sized, but the device died before the header reached storage
+        File aliceLog = mFolder.newFile("alice");
+        RandomAccessFile file = new RandomAccessFile(aliceLog, "rw");
+        try {
+            file.setLength(64 * 1024);
+        } finally {
+            file.close();
+        }
+
+        mAlice = open("alice", aliceLog, 1 << 20);
+        mAlice.enqueue("bob", "hi".getBytes());
+        mAlice.close();
+        assertEquals(1, open("alice", aliceLog, 1 << 20).getQueuedCount("bob"));
+    }
+
+    @Test
+    public void limits_dropTheOldest() throws Exception {
+        mAlice = new Outbox.Builder(OutboxLog.open(mFolder.newFile("alice")), (destination, frame) -> false,
+                mScheduler)
+                .maxMessagesPerDestination(2)
+                .maxDestinations(2)
+                .build();
+        for (int i = 0; i < 5; i++) {
+            mAlice.enqueue("bob", ("m" + i).getBytes());
+        }
+        mAlice.track("carol");
+        mAlice.track("dave");
+
+        assertEquals(Arrays.asList("carol", "dave"), mAlice.getDestinations());
+        assertEquals(0, mAlice.getQueuedCount());
+    }
+}
@@ -0,0 +1,245 @@
+package me.tatocaster.nearbyconnection.transfer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import me.tatocaster.nearbyconnection.buffer.BufferPool;
+import me.tatocaster.nearbyconnection.buffer.PooledBuffer;
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransferManagerTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final BufferPool mBufferPool = new BufferPool();
+    private final List<String> mEvents = new ArrayList<>();
+    private ByteArraySink mReceived;
+    private boolean mLinkUp = true;
+    private int mChunksInFlight;
+    private int mMaxChunksInFlight;
+
+    private TransferManager mSender;
+    private TransferManager mReceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        // "a" and "b" are the endpoint ids each side sees the other as
+        mSender = new TransferManager.Builder((endpointId, frame) -> {
+            if (!mLinkUp) {
+                return false;
+            }
+            if (frame[0] == 2) {
+                mMaxChunksInFlight = Math.max(mMaxChunksInFlight, ++mChunksInFlight);
+            }
+            deliver(mReceiver, "a", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> null, mScheduler).chunkSize(4).windowChunks(4).build();
+        mReceiver = new TransferManager.Builder((endpointId, frame) -> {
+            if (!mLinkUp) {
+                return false;
+            }
+            mChunksInFlight = 0;
+            deliver(mSender, "b", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> mReceived = new ByteArraySink(1 << 20), mScheduler)
+                .chunkSize(4).windowChunks(4).resumeTimeoutMillis(1000).build();
+        mSender.setListener(new RecordingListener("send"));
+        mReceiver.setListener(new RecordingListener("recv"));
+    }
+
+    @Test
+    public void payload_isReassembledWithinWindow() throws Exception {
+        byte[] payload = bytes(37);
+        Transfer transfer = mSender.send("b", "blob", ByteBuffer.wrap(payload));
+        mScheduler.advance(0);
+
+        assertArrayEquals(payload, mReceived.toByteArray());
+        assertEquals(Transfer.STATE_COMPLETE, transfer.getState());
+        assertEquals(37, transfer.getBytesTransferred());
+        assertTrue(mMaxChunksInFlight <= 4);
+        assertTrue(mEvents.contains("send:complete"));
+        assertTrue(mEvents.contains("recv:complete"));
+        assertEquals(0, mBufferPool.getOutstandingCount());
+    }
+
+    @Test
+    public void exactMultipleOfChunkSize_endsWithLastChunk() throws Exception {
+        byte[] payload = bytes(8);
+        mSender.send("b", "blob", ByteBuffer.wrap(payload));
+        mScheduler.advance(0);
+
+        assertArrayEquals(payload, mReceived.toByteArray());
+    }
+
+    @Test
+    public void disconnect_resumesFromReceiverPosition() throws Exception {
+        byte[] payload = bytes(40);
+        // drop the link after the first three chunks
+        final int[] sent = {0};
+        TransferManager sender = new TransferManager.Builder((endpointId, frame) -> {
+            if (!mLinkUp || (frame[0] == 2 && ++sent[0] > 3)) {
+                mLinkUp = false;
+                return false;
+            }
+            deliver(mReceiver, "a", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> null, mScheduler).chunkSize(4).windowChunks(4).build();
+        mSender = sender;
+        Transfer transfer = sender.send("b", "blob", ByteBuffer.wrap(payload));
+        mScheduler.advance(0);
+        sender.onPeerDisconnected("b");
+        mReceiver.onPeerDisconnected("a");
+        mScheduler.advance(0);
+        assertEquals(Transfer.STATE_PAUSED, transfer.getState());
+        assertEquals(12, mReceived.size());
+
+        mLinkUp = true;
+        sent[0] = Integer.MIN_VALUE;
+        sender.onPeerConnected("b");
+        mScheduler.advance(0);
+
+        assertArrayEquals(payload, mReceived.toByteArray());
+        assertEquals(Transfer.STATE_COMPLETE, transfer.getState());
+    }
+
+    @Test
+    public void lostFinalAck_isSentAgainWhenTheSenderReoffers() throws Exception {
+        final boolean[] acksLost = {true};
+        mReceiver = new TransferManager.Builder((endpointId, frame) -> {
+            if (!acksLost[0]) {
+                deliver(mSender, "b", frame);
+            }
+            return true;
+        }, (endpointId, name, totalLength) -> mReceived = new ByteArraySink(1 << 20), mScheduler)
+                .chunkSize(4).windowChunks(4).build();
+        mReceiver.setListener(new RecordingListener("recv"));
+        byte[] payload = bytes(10);
+        Transfer transfer = mSender.send("b", "blob", ByteBuffer.wrap(payload));
+        mScheduler.advance(0);
+        assertEquals(Transfer.STATE_ACTIVE, transfer.getState());
+
+        mSender.onPeerDisconnected("b");
+        mReceiver.onPeerDisconnected("a");
+        mScheduler.advance(0);
+        acksLost[0] = false;
+        mSender.onPeerConnected("b");
+        mScheduler.advance(0);
+
+        assertEquals(Transfer.STATE_COMPLETE, transfer.getState());
+        assertArrayEquals(payload, mReceived.toByteArray());
+        assertEquals(1, Collections.frequency(mEvents, "recv:complete"));
+    }
+
+    @Test
+    public void restartedSender_reusingTheId_startsAfresh() throws Exception {
+        mLinkUp = true;
+        final int[] sent = {0};
+        TransferManager sender = new TransferManager.Builder((endpointId, frame) -> {
+            if (frame[0] == 2 && ++sent[0] > 3) {
+                return false;
+            }
+            deliver(mReceiver, "a", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> null, mScheduler).chunkSize(4).windowChunks(4).build();
+        sender.send("b", "blob", ByteBuffer.wrap(bytes(40)));
+        mScheduler.advance(0);
+        mReceiver.onPeerDisconnected("a");
+        mScheduler.advance(0);
+
+        // the sender's process restarted, its ids start over
+        byte[] payload = bytes(20);
+        Transfer transfer = mSender.send("b", "blob", ByteBuffer.wrap(payload));
+        mScheduler.advance(0);
+
+        assertArrayEquals(payload, mReceived.toByteArray());
+        assertEquals(Transfer.STATE_COMPLETE, transfer.getState());
+        assertTrue(mEvents.contains("recv:failed"));
+    }
+
+    @Test
+    public void pausedTransfer_failsAfterResumeTimeout() throws Exception {
+        mLinkUp = false;
+        Transfer transfer = mSender.send("b", "blob", ByteBuffer.wrap(bytes(10)));
+        mScheduler.advance(0);
+        assertEquals(Transfer.STATE_PAUSED, transfer.getState());
+
+        mScheduler.advance(60000);
+        assertEquals(Transfer.STATE_FAILED, transfer.getState());
+        assertTrue(mEvents.contains("send:failed"));
+    }
+
+    @Test
+    public void refusedOffer_failsSender() throws Exception {
+        mReceiver = new TransferManager.Builder((endpointId, frame) -> {
+            deliver(mSender, "b", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> null, mScheduler).build();
+        Transfer transfer = mSender.send("b", "blob", ByteBuffer.wrap(bytes(10)));
+        mScheduler.advance(0);
+
+        assertEquals(Transfer.STATE_FAILED, transfer.getState());
+        assertNull(mReceived);
+    }
+
+    @Test
+    public void dataPastTheSinkLimit_failsBothSides() throws Exception {
+        mReceiver = new TransferManager.Builder((endpointId, frame) -> {
+            deliver(mSender, "b", frame);
+            return true;
+        }, (endpointId, name, totalLength) -> mReceived = new ByteArraySink(10), mScheduler)
+                .chunkSize(4).windowChunks(4).build();
+        // announced as 10 bytes, but the sender's stream has more
+        Transfer transfer = mSender.send("b", "blob", new ByteArrayInputStream(bytes(40)), 10);
+        mScheduler.advance(0);
+
+        assertEquals(Transfer.STATE_FAILED, transfer.getState());
+        assertEquals(0, mReceived.size());
+    }
+
+    private void deliver(TransferManager to, String fromEndpointId, byte[] frame) {
+        PooledBuffer buffer = mBufferPool.copyOf(frame, 0, frame.length);
+        to.onFrameReceived(fromEndpointId, buffer);
+        buffer.release();
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private final class RecordingListener implements TransferManager.Listener {
+        private final String mSide;
+
+        RecordingListener(String side) {
+            mSide = side;
+        }
+
+        @Override
+        public void onTransferProgress(Transfer transfer) {
+            mEvents.add(mSide + ":progress");
+        }
+
+        @Override
+        public void onTransferComplete(Transfer transfer, TransferSink sink) {
+            mEvents.add(mSide + ":complete");
+        }
+
+        @Override
+        public void onTransferFailed(Transfer transfer, String reason) {
+            mEvents.add(mSide + ":failed");
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package me.tatocaster.nearbyconnection.transport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import me.tatocaster.nearbyconnection.connection.ConnectionManager;
+import me.tatocaster.nearbyconnection.connection.OutboundPipeline;
+import me.tatocaster.nearbyconnection.util.FakeScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackNetworkTest {
+
+    private static final String SERVICE = "service";
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mEvents = new ArrayList<>();
+
+    private LoopbackNetwork.Builder network() {
+        return new LoopbackNetwork.Builder(mScheduler).latency(10, 0).random(new Random(7));
+    }
+
+    @Test
+    public void discoverConnectAndMessage() throws Exception {
+        LoopbackNetwork network = network().build();
+        final LoopbackTransport host = network.newTransport("host", SERVICE);
+        LoopbackTransport guest = network.newTransport("guest", SERVICE);
+
+        host.startAdvertising(null, 0, (endpointId, name, payload) -> {
+            mEvents.add("request " + name);
+            host.acceptConnectionRequest(endpointId, null, recorder("host"), null);
+        }, null);
+        guest.startDiscovery(SERVICE, 0, new NearbyTransport.EndpointDiscoveryListener() {
+            @Override
+            public void onEndpointFound(String endpointId, String serviceId, String endpointName) {
+                mEvents.add("found " + endpointName);
+                guest.sendConnectionRequest(null, endpointId, null, (id, statusCode, payload) -> {
+                    mEvents.add("response " + statusCode);
+                    guest.sendReliableMessage(Collections.singletonList(id), "hi".getBytes());
+                }, recorder("guest"));
+            }
+
+            @Override
+            public void onEndpointLost(String endpointId) {
+                mEvents.add("lost");
+            }
+        }, null);
+        mScheduler.advance(1000);
+
+        assertEquals("[found host, request guest, response 0, host: hi]", mEvents.toString());
+        assertTrue(host.isConnectedTo(guest.getEndpointId()));
+
+        guest.close();
+        mScheduler.advance(1000);
+        assertEquals("host: disconnected", mEvents.get(mEvents.size() - 1));
+        assertEquals(0, host.getConnectedCount());
+    }
+
+    @Test
+    public void reliableMessages_surviveLossInOrder() throws Exception {
+        LoopbackNetwork network = network().latency(10, 20).lossRate(0.3).build();
+        LoopbackTransport[] pair = connectedPair(network);
+        List<String> to = Collections.singletonList(pair[1].getEndpointId());
+        for (int i = 0; i < 50; i++) {
+            pair[0].sendReliableMessage(to, Integer.toString(i).getBytes());
+            pair[0].sendUnreliableMessage(to, "u".getBytes());
+        }
+        mScheduler.advance(10000);
+
+        List<String> reliable = new ArrayList<>();
+        int unreliable = 0;
+        for (String event : mEvents) {
+            if (event.equals("b: u")) {
+                unreliable++;
+            } else if (event.startsWith("b: ")) {
+                reliable.add(event.substring(3));
+            }
+        }
+        assertEquals(50, reliable.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.toString(i), reliable.get(i));
+        }
+        assertEquals(50, unreliable + network.getDroppedCount());
+        assertTrue(network.getDroppedCount() > 0);
+        assertTrue(network.getRetransmittedCount() > 0);
+    }
+
+    @Test
+    public void bandwidth_spacesOutLargeMessages() throws Exception {
+        LoopbackNetwork network = network().bandwidth(10000).build();
+        LoopbackTransport[] pair = connectedPair(network);
+        List<String> to = Collections.singletonList(pair[1].getEndpointId());
+        for (int i = 0; i < 10; i++) {
+            pair[0].sendReliableMessage(to, new byte[1000]);
+        }
+
+        // 100 ms on the link each, plus 10 ms latency
+        mScheduler.advance(1009);
+        assertEquals(9, countPrefix("b: "));
+        mScheduler.advance(1);
+        assertEquals(10, countPrefix("b: "));
+    }
+
+    @Test
+    public void pubSub_foundLostAndExpiry() throws Exception {
+        LoopbackNetwork network = network().build();
+        LoopbackTransport publisher = network.newTransport("p", SERVICE);
+        LoopbackTransport subscriber = network.newTransport("s", SERVICE);
+        publisher.publish("one".getBytes(), 0, pubSub("pub"));
+        publisher.publish("two".getBytes(), 60, pubSub("pub"));
+        subscriber.subscribe(new NearbyTransport.SubscriptionListener() {
+            @Override
+            public void onFound(byte[] content) {
+                mEvents.add("found " + new String(content));
+            }
+
+            @Override
+            public void onLost(byte[] content) {
+                mEvents.add("lost " + new String(content));
+            }
+        }, 0, pubSub("sub"));
+        mScheduler.advance(100);
+        publisher.unpublish("one".getBytes());
+        mScheduler.advance(60000);
+
+        assertEquals("[pub 0, pub 0, sub 0, found one, found two, lost one, pub expired, lost two]",
+                mEvents.toString());
+    }
+
+    @Test
+    public void hundredsOfDevices_receiveABroadcastThroughThePipeline() throws Exception {
+        LoopbackNetwork network = network().latency(5, 15).bandwidth(250000).build();
+        final LoopbackTransport host = network.newTransport("host", SERVICE);
+        final ConnectionManager connections = new ConnectionManager(new OutboundPipeline.Builder(
+                (endpointIds, payload, reliable) -> host.sendReliableMessage(endpointIds, payload),
+                mScheduler).build());
+        host.startAdvertising(null, 0, (endpointId, name, payload) -> {
+            connections.onConnecting(endpointId, name);
+            host.acceptConnectionRequest(endpointId, null, recorder("host"), statusCode ->
+                    connections.onConnected(endpointId, name, mScheduler.now()));
+        }, null);
+        final int[] received = {0};
+        for (int i = 0; i < 200; i++) {
+            final LoopbackTransport guest = network.newTransport("guest" + i, SERVICE);
+            guest.startDiscovery(SERVICE, 0, new NearbyTransport.EndpointDiscoveryListener() {
+                @Override
+                public void onEndpointFound(String endpointId, String serviceId, String endpointName) {
+                    guest.sendConnectionRequest(null, endpointId, null, (id, statusCode, payload) -> {
+                    }, new NearbyTransport.MessageListener() {
+                        @Override
+                        public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                            received[0]++;
+                        }
+
+                        @Override
+                        public void onDisconnected(String endpointId) {
+                        }
+                    });
+                }
+
+                @Override
+                public void onEndpointLost(String endpointId) {
+                }
+            }, null);
+        }
+        mScheduler.advance(1000);
+        assertEquals(200, connections.getConnectedCount());
+
+        connections.broadcast("hello everyone".getBytes(), true);
+        mScheduler.advance(1000);
+        assertEquals(200, received[0]);
+    }
+
+    private LoopbackTransport[] connectedPair(LoopbackNetwork network) {
+        final LoopbackTransport a = network.newTransport("a", SERVICE);
+        LoopbackTransport b = network.newTransport("b", SERVICE);
+        b.startAdvertising(null, 0, (endpointId, name, payload) ->
+                b.acceptConnectionRequest(endpointId, null, recorder("b"), null), null);
+        a.sendConnectionRequest(null, b.getEndpointId(), null, (id, statusCode, payload) -> {
+        }, recorder("a"));
+        mScheduler.advance(1000);
+        assertTrue(a.isConnectedTo(b.getEndpointId()));
+        mEvents.clear();
+        return new LoopbackTransport[]{a, b};
+    }
+
+    private int countPrefix(String prefix) {
+        int count = 0;
+        for (String event : mEvents) {
+            if (event.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private NearbyTransport.MessageListener recorder(final String side) {
+        return new NearbyTransport.MessageListener() {
+            @Override
+            public void onMessageReceived(String endpointId, byte[] payload, boolean reliable) {
+                mEvents.add(side + ": " + new String(payload));
+            }
+
+            @Override
+            public void onDisconnected(String endpointId) {
+                mEvents.add(side + ": disconnected");
+            }
+        };
+    }
+
+    private NearbyTransport.PubSubCallback pubSub(final String side) {
+        return new NearbyTransport.PubSubCallback() {
+            @Override
+            public void onResult(int statusCode) {
+                mEvents.add(side + " " + statusCode);
+            }
+
+            @Override
+            public void onExpired() {
+                mEvents.add(side + " expired");
+            }
+        };
+    }
+}
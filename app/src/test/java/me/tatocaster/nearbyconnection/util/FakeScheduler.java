@@ -0,0 +1,73 @@
+package me.tatocaster.nearbyconnection.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manually advanced {@link Scheduler} for tests. Tasks run on the calling thread during
+ * {@link #advance(long)}, in due-time order.
+ */
+public class FakeScheduler implements Scheduler {
+
+    private static final class Pending {
+        final Runnable task;
+        final long due;
+        final long sequence;
+
+        Pending(Runnable task, long due, long sequence) {
+            this.task = task;
+            this.due = due;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Pending> mPending = new ArrayList<>();
+    private long mNow;
+    private long mSequence;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mPending.add(new Pending(task, mNow + Math.max(0, delayMillis), mSequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            if (mPending.get(i).task == task) {
+                mPending.remove(i);
+            }
+        }
+    }
+
+    public int pendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Move the clock forward, running every task that falls due on the way.
+     */
+    public void advance(long millis) {
+        long target = mNow + millis;
+        while (true) {
+            Pending next = null;
+            for (Pending pending : mPending) {
+                if (pending.due <= target && (next == null || pending.due < next.due
+                        || (pending.due == next.due && pending.sequence < next.sequence))) {
+                    next = pending;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mPending.remove(next);
+            mNow = next.due;
+            next.task.run();
+        }
+        mNow = target;
+    }
+}
@@ -0,0 +1,39 @@
+package me.tatocaster.nearbyconnection.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueWithinAnEighth() throws Exception {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LongHistogram.bucketOf(value);
+            long upper = LongHistogram.upperBound(bucket);
+            assertTrue(value + " <= " + upper, value <= upper);
+            assertTrue(value + " in bucket up to " + upper, upper - value <= value / 8);
+            if (bucket > 0) {
+                assertTrue(LongHistogram.upperBound(bucket - 1) < value);
+            }
+        }
+        assertEquals(LongHistogram.bucketOf(Long.MAX_VALUE), LongHistogram.bucketOf(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void quantiles_areCloseToTheRecordedValues() throws Exception {
+        LongHistogram histogram = new LongHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500.5, histogram.mean(), 0);
+        // the median falls in the bucket 480..511
+        assertEquals(511, histogram.quantile(0.5));
+        assertEquals(1000, histogram.quantile(0.99));
+        assertTrue(Math.abs(histogram.quantile(0.9) - 900) <= 900 / 8);
+    }
+}
@@ -0,0 +1,57 @@
+package me.tatocaster.nearbyconnection.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WakeWindowTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mCalls = new ArrayList<>();
+    private final WakeWindow mWindow = new WakeWindow(new WakeWindow.Lock() {
+        @Override
+        public void acquire() {
+            mCalls.add("acquire " + mScheduler.now());
+        }
+
+        @Override
+        public void release() {
+            mCalls.add("release " + mScheduler.now());
+        }
+    }, mScheduler, 500);
+
+    @Test
+    public void burst_isOneHoldEndingAWindowAfterTheLastTouch() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mWindow.touch();
+            mScheduler.advance(100);
+        }
+        // last touch at 900
+        mScheduler.advance(2000);
+
+        assertEquals(Arrays.asList("acquire 0", "release 1400"), mCalls);
+        assertEquals(1400, mWindow.getHeldMillis());
+        assertEquals(0, mScheduler.pendingCount());
+    }
+
+    @Test
+    public void separateBursts_takeTheLockAgain() throws Exception {
+        mWindow.touch();
+        mScheduler.advance(1000);
+        assertFalse(mWindow.isHeld());
+
+        mWindow.touch();
+        assertTrue(mWindow.isHeld());
+        mWindow.releaseNow();
+
+        assertEquals(Arrays.asList("acquire 0", "release 500", "acquire 1000", "release 1000"), mCalls);
+        assertEquals(2, mWindow.getAcquisitions());
+        assertEquals(0, mScheduler.pendingCount());
+    }
+}
@@ -0,0 +1,56 @@
+package me.tatocaster.nearbyconnection.wire;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DeviceMessageCodecTest {
+
+    private static final DeviceMessageCodec.Factory<String[]> FACTORY =
+            (uuid, messageBody) -> new String[]{uuid, messageBody};
+
+    @Test
+    public void roundTrip_canonicalUuidIsStoredRaw() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        byte[] encoded = DeviceMessageCodec.encode(uuid, "Nexus 5X");
+
+        // header + 16 raw uuid bytes + 1 byte length + body
+        assertEquals(3 + 16 + 1 + 8, encoded.length);
+        assertArrayEquals(new String[]{uuid, "Nexus 5X"}, DeviceMessageCodec.decode(encoded, FACTORY));
+    }
+
+    @Test
+    public void roundTrip_nonCanonicalUuidAndMultiByteBody() throws Exception {
+        String body = "Pixel \u10d2\u10d0\u10db\u10d0\u10e0\u10ef\u10dd\u10d1\u10d0 \ud83d\udcf1";
+        String[] decoded = DeviceMessageCodec.decode(DeviceMessageCodec.encode("instance-7", body), FACTORY);
+
+        assertArrayEquals(new String[]{"instance-7", body}, decoded);
+    }
+
+    @Test
+    public void decode_legacyJson() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        byte[] legacy = ("  " + DeviceMessageCodec.encodeLegacy(uuid, "LGE Nexus 5") + "\n")
+                .getBytes(Utf8.UTF_8);
+
+        assertArrayEquals(new String[]{uuid, "LGE Nexus 5"}, DeviceMessageCodec.decode(legacy, FACTORY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsUnknownVersion() throws Exception {
+        byte[] encoded = DeviceMessageCodec.encode("id", "body");
+        encoded[1] = 9;
+        DeviceMessageCodec.decode(encoded, FACTORY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsTruncatedBody() throws Exception {
+        byte[] encoded = DeviceMessageCodec.encode("id", "body");
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        DeviceMessageCodec.decode(truncated, FACTORY);
+    }
+}
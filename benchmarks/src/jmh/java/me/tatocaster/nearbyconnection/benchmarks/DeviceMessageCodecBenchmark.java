@@ -0,0 +1,86 @@
+package me.tatocaster.nearbyconnection.benchmarks;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import me.tatocaster.nearbyconnection.wire.DeviceMessageCodec;
+
+/**
+ * The Gson round trip {@code DeviceMessage} used to do for every onFound/onLost, against the
+ * binary {@link DeviceMessageCodec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeviceMessageCodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Gson gson = new Gson();
+    private static final DeviceMessageCodec.Factory<GsonDeviceMessage> FACTORY = GsonDeviceMessage::new;
+
+    private String mUuid;
+    private String mBody;
+    private byte[] mJsonPayload;
+    private byte[] mBinaryPayload;
+
+    @Setup
+    public void setUp() {
+        mUuid = UUID.randomUUID().toString();
+        mBody = "LGE Nexus 5X";
+        mJsonPayload = gson.toJson(new GsonDeviceMessage(mUuid, mBody)).getBytes(UTF_8);
+        mBinaryPayload = DeviceMessageCodec.encode(mUuid, mBody);
+    }
+
+    @Benchmark
+    public byte[] encodeGson() {
+        return gson.toJson(new GsonDeviceMessage(mUuid, mBody)).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return DeviceMessageCodec.encode(mUuid, mBody);
+    }
+
+    /**
+     * Exactly what {@code DeviceMessage.fromNearbyMessage} did before the binary codec.
+     */
+    @Benchmark
+    public GsonDeviceMessage decodeGson() {
+        String nearbyMessageString = new String(mJsonPayload).trim();
+        return gson.fromJson(new String(nearbyMessageString.getBytes(UTF_8)), GsonDeviceMessage.class);
+    }
+
+    @Benchmark
+    public GsonDeviceMessage decodeBinary() {
+        return DeviceMessageCodec.decode(mBinaryPayload, FACTORY);
+    }
+
+    /**
+     * Payload from an older peer going through the codec's JSON fallback.
+     */
+    @Benchmark
+    public GsonDeviceMessage decodeLegacyThroughCodec() {
+        return DeviceMessageCodec.decode(mJsonPayload, FACTORY);
+    }
+
+    public static class GsonDeviceMessage {
+        private final String mUUID;
+        private final String mMessageBody;
+
+        GsonDeviceMessage(String uuid, String messageBody) {
+            mUUID = uuid;
+            mMessageBody = messageBody;
+        }
+    }
+}
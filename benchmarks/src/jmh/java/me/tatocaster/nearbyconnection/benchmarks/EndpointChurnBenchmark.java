@@ -0,0 +1,109 @@
+package me.tatocaster.nearbyconnection.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import me.tatocaster.nearbyconnection.discovery.EndpointRegistry;
+
+/**
+ * Endpoint list churn behind {@code MyListDialog}: one endpoint is lost and a new one found per
+ * operation, at a steady list size. The legacy variant replays what the dialog did before the
+ * {@link EndpointRegistry}: a title-to-id map scanned on every removal plus the adapter's list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EndpointChurnBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    private String[] mIds;
+    private String[] mNames;
+    private int mOldest;
+    private int mNext;
+
+    private EndpointRegistry mRegistry;
+    private HashMap<String, String> mLegacyItemMap;
+    private ArrayList<String> mLegacyAdapterItems;
+
+    @Setup
+    public void setUp() {
+        // twice as many ids as the list holds, so found endpoints are never still listed
+        mIds = new String[peers * 2];
+        mNames = new String[peers * 2];
+        for (int i = 0; i < mIds.length; i++) {
+            mIds[i] = "endpoint-" + i;
+            mNames[i] = "Nexus " + i;
+        }
+        mRegistry = new EndpointRegistry();
+        mLegacyItemMap = new HashMap<>();
+        mLegacyAdapterItems = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            mRegistry.put(mIds[i], mNames[i]);
+            mLegacyItemMap.put(mNames[i], mIds[i]);
+            mLegacyAdapterItems.add(mNames[i]);
+        }
+        mOldest = 0;
+        mNext = peers;
+    }
+
+    @Benchmark
+    public int registryChurn() {
+        mRegistry.remove(mIds[mOldest]);
+        mRegistry.put(mIds[mNext], mNames[mNext]);
+        advance();
+        // reading a position is what the adapter does next, and triggers compaction
+        return mRegistry.getAt(mRegistry.size() - 1).getName().length();
+    }
+
+    /**
+     * A discovery batch: a tenth of the list is replaced inside one update.
+     */
+    @Benchmark
+    public int registryBatchChurn() {
+        mRegistry.beginUpdate();
+        int batch = Math.max(1, peers / 10);
+        for (int i = 0; i < batch; i++) {
+            mRegistry.remove(mIds[mOldest]);
+            mRegistry.put(mIds[mNext], mNames[mNext]);
+            advance();
+        }
+        mRegistry.endUpdate();
+        return mRegistry.getAt(mRegistry.size() - 1).getName().length();
+    }
+
+    @Benchmark
+    public int legacyChurn() {
+        String value = mIds[mOldest];
+        Iterator<Map.Entry<String, String>> iterator = mLegacyItemMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (entry.getValue().equals(value)) {
+                iterator.remove();
+                mLegacyAdapterItems.remove(entry.getKey());
+            }
+        }
+        mLegacyItemMap.put(mNames[mNext], mIds[mNext]);
+        mLegacyAdapterItems.add(mNames[mNext]);
+        advance();
+        return mLegacyAdapterItems.get(mLegacyAdapterItems.size() - 1).length();
+    }
+
+    private void advance() {
+        mOldest = (mOldest + 1) % mIds.length;
+        mNext = (mNext + 1) % mIds.length;
+    }
+}
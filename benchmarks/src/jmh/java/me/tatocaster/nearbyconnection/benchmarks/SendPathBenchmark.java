@@ -0,0 +1,94 @@
+package me.tatocaster.nearbyconnection.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.tatocaster.nearbyconnection.connection.OutboundPipeline;
+import me.tatocaster.nearbyconnection.util.Scheduler;
+import me.tatocaster.nearbyconnection.wire.BatchFraming;
+import me.tatocaster.nearbyconnection.wire.ChannelFraming;
+
+/**
+ * Framing work between {@code Channel.send} and the Connections call: the channel header, the
+ * batch encoding, and the whole {@link OutboundPipeline} for a run of small chat-sized messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendPathBenchmark {
+
+    private static final List<String> PEER = Collections.singletonList("endpoint-0");
+
+    /**
+     * Never runs anything; the benchmark flushes the pipeline itself.
+     */
+    private static final Scheduler INERT = new Scheduler() {
+        @Override
+        public long now() {
+            return 0;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+        }
+    };
+
+    @Param({"1", "8", "32"})
+    public int messagesPerBatch;
+
+    @Param({"64"})
+    public int messageSize;
+
+    private byte[][] mMessages;
+    private int mFramedBytes;
+    private OutboundPipeline mPipeline;
+    private Blackhole mSent;
+    private int mSequence;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mSent = blackhole;
+        mMessages = new byte[messagesPerBatch][];
+        mFramedBytes = 0;
+        for (int i = 0; i < messagesPerBatch; i++) {
+            mMessages[i] = new byte[messageSize];
+            mFramedBytes += BatchFraming.framedLength(messageSize);
+        }
+        mPipeline = new OutboundPipeline.Builder((endpointIds, payload, reliable) -> mSent.consume(payload), INERT)
+                .capacity(Math.max(64, messagesPerBatch))
+                .build();
+    }
+
+    @Benchmark
+    public byte[] channelHeader() {
+        return ChannelFraming.encode(1, mSequence++, mMessages[0]);
+    }
+
+    @Benchmark
+    public byte[] batchEncode() {
+        return BatchFraming.encode(mMessages, 0, messagesPerBatch, mFramedBytes);
+    }
+
+    @Benchmark
+    public void pipelineSendAndFlush() {
+        for (int i = 0; i < messagesPerBatch; i++) {
+            mPipeline.send(PEER, mMessages[i], true);
+        }
+        mPipeline.flush();
+    }
+}